@@ -16,6 +16,8 @@ interface AttributesCacheable {
 	
 	long getOriginalCacheValue(int cacheIndex);
 
+	void setOriginalCacheValue(int cacheIndex, long value);
+
 	int getCacheSize();
 
 	void removeCacheValue(int last);
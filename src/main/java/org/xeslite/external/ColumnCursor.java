@@ -0,0 +1,46 @@
+package org.xeslite.external;
+
+import org.deckfour.xes.model.XAttribute;
+
+/**
+ * Cursor over the values of a single attribute key in an
+ * {@link InMemoryStore}. The values are read directly from the column without
+ * creating {@link XAttribute} objects. A cursor is not thread-safe, but cheap
+ * to open, so every thread should open its own cursor.
+ * 
+ * @author F. Mannhardt
+ *
+ */
+public interface ColumnCursor {
+
+	/**
+	 * @return the attribute key of the column
+	 */
+	String getKey();
+
+	/**
+	 * Moves the cursor to the object with the supplied key. Objects may be
+	 * visited in any order, but visiting them in the order they were created
+	 * is fastest.
+	 * 
+	 * @param objectKey
+	 *            the external id of an {@link ExternalAttributable}
+	 * @return whether the object has a value for the attribute
+	 */
+	boolean advanceTo(long objectKey);
+
+	/**
+	 * Moves the cursor to the supplied object.
+	 * 
+	 * @param attributable
+	 * @return whether the object has a value for the attribute
+	 */
+	boolean advanceTo(ExternalAttributable attributable);
+
+	/**
+	 * @return whether the object at the current position has a value for the
+	 *         attribute
+	 */
+	boolean hasValue();
+
+}
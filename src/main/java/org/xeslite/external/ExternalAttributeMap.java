@@ -22,6 +22,12 @@ abstract class ExternalAttributeMap<S extends ExternalStore> extends AbstractMap
 		this.owner = owner;
 	}
 
+	protected final void checkNotFrozen() {
+		if (store.isFrozen()) {
+			throw new UnsupportedOperationException("The store is frozen and cannot be modified.");
+		}
+	}
+
 	private final Integer safeGetKey(Object key) {
 		if (key instanceof String) {
 			return store.getAttributeKeyPool().getIndex((String) key);
@@ -37,6 +43,7 @@ abstract class ExternalAttributeMap<S extends ExternalStore> extends AbstractMap
 			throw new NullPointerException(
 					"This XAttributeMap implementation does not support NULL as key. Invalid attribute: " + info);
 		}
+		checkNotFrozen();
 		ExternalAttribute externalAttribute = XAttributeExternalImpl.convert(store, owner, value);
 		assert key.equals(externalAttribute
 				.getKey()) : "Trying to put attribute 'a' under a different key than return by a.getKey()";
@@ -89,6 +96,7 @@ abstract class ExternalAttributeMap<S extends ExternalStore> extends AbstractMap
 
 	@Override
 	public XAttribute remove(Object o) {
+		checkNotFrozen();
 		Integer keyIndex = safeGetKey(o);
 		if (keyIndex != null) {
 			ExternalAttribute removedAttribute = doRemove(keyIndex);
@@ -104,6 +112,27 @@ abstract class ExternalAttributeMap<S extends ExternalStore> extends AbstractMap
 
 	abstract public void clear();
 
+	/**
+	 * @return whether {@link #cachedValueChanged(XAttribute, XAttribute)}
+	 *         needs to be called, false by default
+	 */
+	protected boolean isTrackingCachedValues() {
+		return false;
+	}
+
+	/**
+	 * Called when an attribute that is cached by the owner (see
+	 * {@link AttributesCacheable}) instead of being stored in this map has
+	 * been changed and {@link #isTrackingCachedValues()} is true.
+	 * 
+	 * @param oldValue
+	 *            the previous attribute or NULL
+	 * @param newValue
+	 *            the new attribute or NULL
+	 */
+	protected void cachedValueChanged(XAttribute oldValue, XAttribute newValue) {
+	}
+
 	abstract protected ExternalAttribute doRemove(Integer keyIndex);
 
 	// super.containsValue just uses entrySet
@@ -29,11 +29,13 @@ final class ExternalAttributeMapCaching implements XAttributeMap {
 
 	private static final class CacheItr implements Iterator<XAttribute> {
 
+		private final ExternalAttributeMapCaching map;
 		private final AttributesCacheable cachable;
 		private int index = -1;
 		private int last = -1;
 
-		private CacheItr(AttributesCacheable cachable) {
+		private CacheItr(ExternalAttributeMapCaching map, AttributesCacheable cachable) {
+			this.map = map;
 			this.cachable = cachable;
 			this.index = findNext();
 		}
@@ -76,6 +78,10 @@ final class ExternalAttributeMapCaching implements XAttributeMap {
 			if (last == -1) {
 				throw new IllegalStateException();
 			}
+			map.checkNotFrozen();
+			if (map.getOriginalMap().isTrackingCachedValues()) {
+				map.getOriginalMap().cachedValueChanged(cachable.getCacheValue(last), null);
+			}
 			cachable.removeCacheValue(last);
 			if (last < index) {
 				index = findPrev();
@@ -101,13 +107,23 @@ final class ExternalAttributeMapCaching implements XAttributeMap {
 		return originalMap;
 	}
 
+	private void checkNotFrozen() {
+		// the cache is stored in the owner and, thus, not protected by the store 
+		originalMap.checkNotFrozen();
+	}
+
 	@Override
 	public XAttribute put(String key, XAttribute value) {
+		checkNotFrozen();
 		if (getOwner() instanceof AttributesCacheable) {
 			AttributesCacheable cacheable = (AttributesCacheable) getOwner();
 			Integer cacheIndex = cacheable.getCacheIndex(key);
 			if (cacheIndex != null) {
-				return cacheable.putCacheValue(cacheIndex, value);
+				XAttribute oldValue = cacheable.putCacheValue(cacheIndex, value);
+				if (getOriginalMap().isTrackingCachedValues()) {
+					getOriginalMap().cachedValueChanged(oldValue, value);
+				}
+				return oldValue;
 			} else {
 				return getOriginalMap().put(key, value);
 			}
@@ -178,12 +194,16 @@ final class ExternalAttributeMapCaching implements XAttributeMap {
 
 	@Override
 	public final XAttribute remove(Object key) {
+		checkNotFrozen();
 		if (getOwner() instanceof AttributesCacheable && key instanceof String) {
 			AttributesCacheable cacheable = (AttributesCacheable) getOwner();
 			Integer cacheIndex = cacheable.getCacheIndex((String) key);
 			if (cacheIndex != null) {
 				XAttribute oldValue = cacheable.getCacheValue(cacheIndex);
 				cacheable.removeCacheValue(cacheIndex);
+				if (getOriginalMap().isTrackingCachedValues()) {
+					getOriginalMap().cachedValueChanged(oldValue, null);
+				}
 				return oldValue;
 			} else {
 				return null;
@@ -195,8 +215,16 @@ final class ExternalAttributeMapCaching implements XAttributeMap {
 
 	@Override
 	public final void clear() {
+		checkNotFrozen();
 		if (getOwner() instanceof AttributesCacheable) {
 			AttributesCacheable cacheable = (AttributesCacheable) getOwner();
+			if (getOriginalMap().isTrackingCachedValues()) {
+				for (int i = 0; i < cacheable.getCacheSize(); i++) {
+					if (cacheable.getOriginalCacheValue(i) != -1) {
+						getOriginalMap().cachedValueChanged(cacheable.getCacheValue(i), null);
+					}
+				}
+			}
 			cacheable.clearCache();
 		}
 		getOriginalMap().clear();
@@ -256,7 +284,7 @@ final class ExternalAttributeMapCaching implements XAttributeMap {
 	private Iterator<? extends XAttribute> iterateCached() {
 		if (getOwner() instanceof AttributesCacheable) {
 			final AttributesCacheable cachable = (AttributesCacheable) getOwner();
-			return new CacheItr(cachable);
+			return new CacheItr(this, cachable);
 		} else {
 			return ImmutableSet.<XAttribute>of().iterator();
 		}
@@ -298,6 +326,7 @@ final class ExternalAttributeMapCaching implements XAttributeMap {
 
 	@Override
 	public void putAll(Map<? extends String, ? extends XAttribute> m) {
+		checkNotFrozen();
 		getOriginalMap().putAll(m);
 	}
 
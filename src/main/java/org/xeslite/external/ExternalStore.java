@@ -47,6 +47,19 @@ public interface ExternalStore {
 	 */
 	void dispose();
 
+	/**
+	 * Commits all pending changes and turns the store read-only. Afterwards,
+	 * reads may take a faster path and all modifications fail with an
+	 * {@link UnsupportedOperationException}. A frozen store cannot be
+	 * unfrozen.
+	 */
+	void freeze();
+
+	/**
+	 * @return whether {@link #freeze()} has been called
+	 */
+	boolean isFrozen();
+
 	/**
 	 * Starts the batch import mode (can only be done once). Be aware that this
 	 * may lock the underlying storage. So only the returned {@link PumpService}
@@ -1,27 +1,83 @@
 package org.xeslite.external;
 
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.Set;
 
 import org.deckfour.xes.model.XAttribute;
 import org.deckfour.xes.model.XAttributeMap;
 import org.deckfour.xes.model.impl.XAttributeMapImpl;
 import org.xeslite.common.XESLiteException;
 
+import com.google.common.collect.MapMaker;
+
 abstract class ExternalStoreAbstract implements ExternalStore {
 
+	private volatile boolean frozen = false;
+
+	// logs whose traces are compressed on freeze
+	private final Set<XLogExternalImpl> logs = Collections
+			.newSetFromMap(new MapMaker().weakKeys().<XLogExternalImpl, Boolean>makeMap());
+
 	abstract protected XAttributeMap createAttributeMap(ExternalAttributable attributable);
 
 	@Override
-	public final XAttributeMap getAttributes(final ExternalAttributable attributable) {
+	public final void freeze() {
 		if (isPumping()) {
 			throw new XESLiteException("Cannot be used during data pump!");
 		}
+		if (!frozen) {
+			for (XLogExternalImpl log : logs) {
+				log.compressTraces();
+			}
+			logs.clear();
+			doFreeze();
+			frozen = true;
+		}
+	}
+
+	/**
+	 * Prepares the store for read-only access, by default all pending changes
+	 * are committed.
+	 */
+	protected void doFreeze() {
+		commit();
+	}
+
+	/**
+	 * Registers a log, so that the write buffers of its traces are compressed
+	 * when the store is frozen.
+	 * 
+	 * @param log
+	 */
+	final void registerLog(XLogExternalImpl log) {
+		if (!frozen) {
+			logs.add(log);
+		}
+	}
+
+	@Override
+	public final boolean isFrozen() {
+		return frozen;
+	}
+
+	protected final void checkNotFrozen() {
+		if (frozen) {
+			throw new UnsupportedOperationException("The store is frozen and cannot be modified.");
+		}
+	}
+
+	@Override
+	public final XAttributeMap getAttributes(final ExternalAttributable attributable) {
+		if (!frozen && isPumping()) {
+			throw new XESLiteException("Cannot be used during data pump!");
+		}
 		return createAttributeMap(attributable);
 	}
 
 	@Override
 	public final boolean hasAttributes(final ExternalAttributable attributable) {
-		if (isPumping()) {
+		if (!frozen && isPumping()) {
 			throw new XESLiteException("Cannot be used during data pump!");
 		}
 		return !createAttributeMap(attributable).isEmpty();
@@ -32,6 +88,7 @@ abstract class ExternalStoreAbstract implements ExternalStore {
 		if (isPumping()) {
 			throw new XESLiteException("Cannot be used during data pump!");
 		}
+		checkNotFrozen();
 
 		if (attributes.isEmpty()) {
 			createAttributeMap(attributable).clear();
@@ -54,6 +111,7 @@ abstract class ExternalStoreAbstract implements ExternalStore {
 		if (isPumping()) {
 			throw new XESLiteException("Cannot be used during data pump!");
 		}
+		checkNotFrozen();
 
 		XAttributeMap attributeMap = createAttributeMap(attributable);
 
@@ -38,6 +38,32 @@ public final class IdFactorySeq implements Serializable, IdFactory {
 		return counter.getAndIncrement() << intervalShift;
 	}
 
+	/**
+	 * Reserves a range of consecutive IDs that starts at a multiple of the
+	 * range size. IDs that are skipped to align the range are not used.
+	 * 
+	 * @param count
+	 *            size of the range
+	 * @return the first ID of the range
+	 */
+	long nextIdRange(int count) {
+		while (true) {
+			long current = counter.get();
+			long start = (current + count - 1) / count * count;
+			if (counter.compareAndSet(current, start + count)) {
+				return start << intervalShift;
+			}
+		}
+	}
+
+	/**
+	 * @return the ID that is going to be returned by the next call to
+	 *         {@link #nextId()}
+	 */
+	long peekNextId() {
+		return counter.get() << intervalShift;
+	}
+
 	public int getIntervalCapacity() {
 		return 1 << intervalShift;
 	}
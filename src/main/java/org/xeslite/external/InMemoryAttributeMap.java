@@ -34,6 +34,7 @@ public class InMemoryAttributeMap extends ExternalAttributeMap<InMemoryStore> {
 
 	@Override
 	public void clear() {
+		checkNotFrozen();
 		getAS().clear(getId());
 	}
 
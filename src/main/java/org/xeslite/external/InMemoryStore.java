@@ -1,23 +1,29 @@
 package org.xeslite.external;
 
-import java.lang.ref.WeakReference;
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.UUID;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.LockSupport;
 
+import org.cliffc.high_scale_lib.ConcurrentAutoTable;
 import org.cliffc.high_scale_lib.NonBlockingHashMapLong;
+import org.cliffc.high_scale_lib.NonBlockingIdentityHashMap;
 import org.deckfour.xes.extension.XExtension;
 import org.deckfour.xes.id.XID;
 import org.deckfour.xes.model.XAttributable;
@@ -41,12 +47,12 @@ import com.google.common.collect.ListMultimap;
 import com.google.common.collect.PeekingIterator;
 import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
 import net.jpountz.lz4.LZ4Factory;
 
 /**
- * {@link ExternalStore} implementation using on-heap {@link ByteBuffer} blocks
+ * {@link ExternalStore} implementation using on-heap or off-heap blocks
  * organized in a columnar format. Assuming that the stored {@link XAttribute}
  * have consistent types and extensions.
  * 
@@ -59,14 +65,20 @@ public class InMemoryStore extends ExternalStoreAbstract {
 
 		private static final AttributeStorage INSERTING = new AttributeStorage(-1, XAttributeLiteral.class, null, null);
 
+		private static final int SPARSE_FILL_DIVISOR = 32;
+
 		private final NonBlockingHashMapLong<AttributeStorage> attributes;
 		private final int blockShift;
 		private final int initialBlocks;
+		private final VolumeType volumeType;
+		private final BlockCache cache;
 
-		Store(int blockShift, int initialBlocks) {
+		Store(int blockShift, int initialBlocks, VolumeType volumeType, BlockCache cache) {
 			super();
 			this.blockShift = blockShift;
 			this.initialBlocks = initialBlocks;
+			this.volumeType = volumeType;
+			this.cache = cache;
 			this.attributes = new NonBlockingHashMapLong<>(false);
 		}
 
@@ -92,7 +104,7 @@ public class InMemoryStore extends ExternalStoreAbstract {
 					// We reserved the spot and, therefore, the following operations are executed atomically
 					// Take care that this block never fails, otherwise other threads trying the same put starve					
 					storage = new AttributeStorage(attributeKey, attributeClass, extension,
-							new HeapVolume(initialBlocks, blockShift, Mode.getMode(attributeClass)));
+							volumeType.createVolume(initialBlocks, blockShift, Mode.getMode(attributeClass), cache));
 					attributes.put(attributeKey, storage);
 					return storage;
 				} else {
@@ -106,6 +118,48 @@ public class InMemoryStore extends ExternalStoreAbstract {
 			}
 		}
 
+		void putStorage(AttributeStorage storage) {
+			attributes.put(storage.getAttributeKey(), storage);
+		}
+
+		/**
+		 * Switches each volume to the representation that fits its fill ratio.
+		 * Volumes with less than 1/{@value #SPARSE_FILL_DIVISOR} of their
+		 * positions filled become a {@link SparseVolume}, sparse volumes that
+		 * got more than twice as dense are converted back. Not thread-safe,
+		 * needs to be synchronized externally.
+		 */
+		void adaptVolumes() {
+			for (AttributeStorage storage : this) {
+				Volume volume = storage.getVolume();
+				Volume adapted = null;
+				if (volume instanceof BlockVolume) {
+					BlockVolume blockVolume = (BlockVolume) volume;
+					long size = blockVolume.getSize();
+					long count = blockVolume.countValues();
+					if (count != -1 && count < size / SPARSE_FILL_DIVISOR) {
+						adapted = new SparseVolume(blockVolume.getBlocks().length, blockShift, blockVolume.getMode());
+						SparseVolume.copyValues(blockVolume, adapted, blockVolume.getMode(), size);
+					}
+				} else if (volume instanceof SparseVolume) {
+					SparseVolume sparseVolume = (SparseVolume) volume;
+					long size = sparseVolume.getSize();
+					if (sparseVolume.countValues() > size * 2 / SPARSE_FILL_DIVISOR) {
+						adapted = volumeType.createVolume((int) (size >> blockShift), blockShift,
+								sparseVolume.getMode(), cache);
+						SparseVolume.copyValues(sparseVolume, adapted, sparseVolume.getMode(), size);
+					}
+				}
+				if (adapted != null) {
+					putStorage(new AttributeStorage(storage.getAttributeKey(), storage.getType(),
+							storage.getExtension(), adapted));
+					if (volume instanceof BlockVolume && cache != null) {
+						cache.invalidate(((BlockVolume) volume).getBlocks());
+					}
+				}
+			}
+		}
+
 		public Iterator<AttributeStorage> iterator() {
 			return attributes.values().iterator();
 		}
@@ -190,9 +244,11 @@ public class InMemoryStore extends ExternalStoreAbstract {
 
 	}
 
+	private static final LZ4Factory LZ4 = LZ4Factory.fastestJavaInstance();
+
 	private static final Compressor COMPRESSOR = new Compressor() {
 
-		private final LZ4Factory factory = LZ4Factory.fastestJavaInstance();
+		private final LZ4Factory factory = LZ4;
 
 		public int decompress(byte[] compressedData, byte[] uncompressedBuffer, int srcOff, int destOff, int destLen) {
 			return factory.fastDecompressor().decompress(compressedData, srcOff, uncompressedBuffer, destOff, destLen);
@@ -290,9 +346,112 @@ public class InMemoryStore extends ExternalStoreAbstract {
 
 		void compress();
 
+		/**
+		 * @return the size of this block in bytes when decompressed
+		 */
+		int getCapacity();
+
+		/**
+		 * @return a view of the raw bytes of this block in its current,
+		 *         possibly compressed, representation
+		 */
+		ByteBuffer getData();
+
+		boolean isCompressed();
+
+		/**
+		 * Drops auxiliary structures that are only needed for writes. Called
+		 * while holding the lock of the block when no further writes are
+		 * expected, e.g., on commit. Writes are still allowed afterwards.
+		 */
+		void seal();
+
+		// Optimistic reads, see AbstractBlock
+
+		int tryOptimisticRead();
+
+		boolean validate(int stamp);
+
+		void beginWrite();
+
+		void endWrite();
+
+		boolean peekExistsFlag(int position);
+
+		boolean peekNestedFlag(int position);
+
+		byte peek(int pos);
+
+		int peekInt(int pos);
+
+		long peekLong(int pos);
+
+	}
+
+	/**
+	 * Base class for {@link Block}s that can be read without holding the lock
+	 * of the block. Modifications, including (de)compression, are wrapped in
+	 * {@link #beginWrite()} and {@link #endWrite()} while holding the lock,
+	 * which makes the sequence number odd during the write. A reader obtains
+	 * an even stamp with {@link #tryOptimisticRead()}, reads the values with
+	 * the peek methods, which never decompress the block and never fail on
+	 * concurrently replaced data, and uses the value only if
+	 * {@link #validate(int)} confirms that the sequence number did not change.
+	 * Otherwise, the reader falls back to reading with the lock held.
+	 */
+	abstract static class AbstractBlock implements Block {
+
+		private static final AtomicIntegerFieldUpdater<AbstractBlock> SEQUENCE = AtomicIntegerFieldUpdater
+				.newUpdater(AbstractBlock.class, "sequence");
+
+		private volatile int sequence = 0;
+		private int writeDepth = 0; // guarded by the lock of the block
+
+		/**
+		 * @return a stamp to be validated after reading, or -1 if the block is
+		 *         compressed or a write is in progress
+		 */
+		@Override
+		public final int tryOptimisticRead() {
+			int stamp = sequence;
+			if ((stamp & 1) != 0 || isCompressed()) {
+				return -1;
+			}
+			return stamp;
+		}
+
+		/**
+		 * A plain volatile read would allow the preceding reads of the data to
+		 * be reordered after it. The compare-and-set has the semantics of a
+		 * volatile write and, thus, acts as the missing acquire fence.
+		 */
+		@Override
+		public final boolean validate(int stamp) {
+			return SEQUENCE.compareAndSet(this, stamp, stamp);
+		}
+
+		@Override
+		public final void beginWrite() {
+			if (writeDepth++ == 0) {
+				// full fence, the following writes must not become visible before
+				SEQUENCE.incrementAndGet(this);
+			}
+		}
+
+		@Override
+		public final void endWrite() {
+			if (--writeDepth == 0) {
+				SEQUENCE.incrementAndGet(this);
+			}
+		}
+
+		@Override
+		public void seal() {
+		}
+
 	}
 
-	static final class HeapBlock implements Block {
+	static final class HeapBlock extends AbstractBlock {
 
 		private byte[] buffer;
 		private final int blockSize;
@@ -417,7 +576,9 @@ public class InMemoryStore extends ExternalStoreAbstract {
 				byte[] compressed = new byte[1 + COMPRESSOR.maxCompressedSize(buffer.length - 1)];
 				compressed[0] = (byte) 1;
 				int compressedLength = COMPRESSOR.compress(buffer, 1, buffer.length - 1, compressed, 1);
+				beginWrite();
 				buffer = Arrays.copyOf(compressed, compressedLength + 1);
+				endWrite();
 			}
 		}
 
@@ -428,479 +589,2485 @@ public class InMemoryStore extends ExternalStoreAbstract {
 				byte[] decompressed = new byte[decompressedSize];
 				COMPRESSOR.decompress(buffer, decompressed, 1, 1, decompressedSize - 1); //skip first byte
 				decompressed[0] = (byte) 0;
+				beginWrite();
 				buffer = decompressed;
+				endWrite();
 			}
 		}
 
-	}
-
-	interface Volume {
-
-		boolean hasValue(long position);
-
-		boolean hasNested(long position);
-
-		int getInt(long position);
-
-		long getLong(long position);
-
-		UUID getUUID(long position);
-
-		boolean getBoolean(long position);
+		// The peek methods read a snapshot of the buffer reference and return garbage if it was concurrently replaced
 
-		void putInt(long position, int val, long nestedId);
+		private boolean peekFlag(int position, int flagIndex) {
+			byte[] data = buffer;
+			int byteIndex = getFlagByte(position, mode.getNumBytes(blockSize)) + 1;
+			if (byteIndex >= data.length) {
+				return false;
+			}
+			return 0 != (data[byteIndex] & (1 << getFlagBit(position, flagIndex)));
+		}
 
-		void putInts(Iterable<IntEntry> values);
+		@Override
+		public boolean peekExistsFlag(int position) {
+			return peekFlag(position, 0);
+		}
 
-		void putLong(long position, long val, long nestedId);
+		@Override
+		public boolean peekNestedFlag(int position) {
+			return peekFlag(position, 1);
+		}
 
-		void putLongs(Iterable<LongEntry> values);
+		@Override
+		public byte peek(int pos) {
+			byte[] data = buffer;
+			if (pos + 1 >= data.length) {
+				return 0;
+			}
+			return data[pos + 1];
+		}
 
-		void putUUID(long position, UUID val, long nestedId);
+		@Override
+		public int peekInt(int pos) {
+			byte[] data = buffer;
+			if (pos + 4 >= data.length) {
+				return 0;
+			}
+			return Ints.fromBytes(data[pos + 1], data[pos + 2], data[pos + 3], data[pos + 4]);
+		}
 
-		void putUUIDs(Iterable<UUIDEntry> values);
+		@Override
+		public long peekLong(int pos) {
+			byte[] data = buffer;
+			if (pos + 8 >= data.length) {
+				return 0;
+			}
+			return Longs.fromBytes(data[pos + 1], data[pos + 2], data[pos + 3], data[pos + 4], data[pos + 5],
+					data[pos + 6], data[pos + 7], data[pos + 8]);
+		}
 
-		void putBoolean(long position, boolean val, long nestedId);
+		@Override
+		public int getCapacity() {
+			return capacity(blockSize, mode);
+		}
 
-		void putBooleans(Iterable<BooleanEntry> values);
+		@Override
+		public ByteBuffer getData() {
+			return ByteBuffer.wrap(buffer).asReadOnlyBuffer();
+		}
 
-		void remove(long position);
+	}
 
-		void compressStorage();
+	/**
+	 * Packs unsigned values of a fixed bit width into an array of longs.
+	 */
+	static final class BitPacking {
 
-		void decompressStorage();
+		private BitPacking() {
+		}
 
-		void compressBlock(long position);
+		static int getNumWords(int count, int width) {
+			return (int) (((long) count * width + 63) >>> 6);
+		}
 
-		void decompressBlock(long position);
+		static long getMask(int width) {
+			return width == 64 ? -1L : (1L << width) - 1;
+		}
 
 		/**
-		 * Resizes the underlying storage to the exact size needed (not
-		 * thread-safe, needs to be synchronized externally)
+		 * @param value
+		 *            interpreted as unsigned
+		 * @return the number of bits required to store the value
 		 */
-		void trimToSize();
+		static int getWidth(long value) {
+			return 64 - Long.numberOfLeadingZeros(value);
+		}
 
-	}
+		static long get(long[] words, int width, int index) {
+			if (width == 0) {
+				return 0;
+			}
+			long bitPosition = (long) index * width;
+			int word = (int) (bitPosition >>> 6);
+			int offset = (int) (bitPosition & 63);
+			long value = words[word] >>> offset;
+			if (offset + width > 64) {
+				value |= words[word + 1] << (64 - offset);
+			}
+			return value & getMask(width);
+		}
+
+		static void set(long[] words, int width, int index, long value) {
+			if (width == 0) {
+				return;
+			}
+			long mask = getMask(width);
+			long bitPosition = (long) index * width;
+			int word = (int) (bitPosition >>> 6);
+			int offset = (int) (bitPosition & 63);
+			words[word] = (words[word] & ~(mask << offset)) | ((value & mask) << offset);
+			if (offset + width > 64) {
+				int shift = 64 - offset;
+				words[word + 1] = (words[word + 1] & ~(mask >>> shift)) | ((value & mask) >>> shift);
+			}
+		}
 
-	static final class HeapVolume implements Volume {
+	}
 
-		private final Mode mode;
+	/**
+	 * Encoded content of a {@link PackedBlock}: bit-packed codes of a fixed
+	 * width for all positions and the flags in the same layout as in
+	 * {@link HeapBlock}.
+	 */
+	abstract static class PackedState {
 
-		private final int blockShift;
-		private volatile Block[] storage;
+		protected final int width;
+		protected final long[] codes;
+		protected final byte[] flags;
 
-		HeapVolume(int initalBlocks, int blockShift, Mode mode) {
-			super();
-			this.blockShift = blockShift;
-			this.mode = mode;
-			this.storage = new Block[initalBlocks];
-			for (int i = 0; i < initalBlocks; i++) {
-				storage[i] = new HeapBlock(1 << blockShift, mode);
-			}
+		PackedState(int blockSize, int width, byte[] flags) {
+			this.width = width;
+			this.codes = new long[BitPacking.getNumWords(blockSize, width)];
+			this.flags = flags;
 		}
 
-		private int getBlockMask() {
-			return getBlockSize() - 1;
+		final long getCode(int index) {
+			return BitPacking.get(codes, width, index);
 		}
 
-		private int getBlockSize() {
-			return 1 << blockShift;
+		final void setCode(int index, long code) {
+			BitPacking.set(codes, width, index, code);
 		}
 
-		private int getPositionInBlock(long position) {
-			return (int) (position & getBlockMask());
+		final boolean hasFlag(int position, int flagIndex) {
+			byte b = flags[HeapBlock.getFlagByte(position, 0)];
+			return 0 != (b & (1 << HeapBlock.getFlagBit(position, flagIndex)));
 		}
 
-		private int getBlockIndex(long position) {
-			return (int) (position >> blockShift);
+		int getSizeInBytes() {
+			return codes.length * 8 + flags.length;
 		}
 
-		private Block getBlock(int blockIndex) {
-			if (blockIndex < storage.length) {
-				Block block = getStorage()[blockIndex];
-				if (block != null) {
-					return block;
-				}
-			}
-			return null;
+	}
+
+	/**
+	 * Base class of heap blocks that store their values in an encoded
+	 * {@link PackedState}. The state is only replaced as a whole, which allows
+	 * the peek methods to work on a snapshot of it. Compression serializes the
+	 * state and compresses it with LZ4.
+	 */
+	abstract static class PackedBlock<S extends PackedState> extends AbstractBlock {
+
+		protected final int blockSize;
+		protected S state; // null if compressed
+
+		private byte[] compressed; // null if not compressed
+		private int uncompressedLength;
+
+		PackedBlock(int blockSize, S initialState) {
+			super();
+			this.blockSize = blockSize;
+			this.state = initialState;
 		}
 
-		private final Object growLock = new Object();
+		protected abstract Mode getMode();
 
-		private Block getOrCreateBlock(int blockIndex) {
-			// read first
-			Block block = getBlock(blockIndex);
-			if (block != null) {
-				return block;
-			}
+		protected abstract int getHeaderSize(S state);
 
-			// Otherwise grow copy on write
-			synchronized (growLock) {
-				// Check whether some other thread grew the array 
-				block = getBlock(blockIndex);
-				if (block != null) {
-					return block;
-				}
+		protected abstract void writeHeader(S state, ByteBuffer data);
 
-				// grow array
-				final Block[] oldStorage = getStorage();
-				int oldLength = oldStorage.length;
-				int minLength = blockIndex + 1;
-				int newLength = Math.max(minLength, (int) Math.ceil(oldLength * 1.5));
-				final Block[] newStorage = Arrays.copyOf(oldStorage, Math.min(Integer.MAX_VALUE - 8, newLength));
+		protected abstract S readHeader(ByteBuffer data, byte[] flags);
 
-				// allocate blocks
-				for (int i = oldLength; i < newStorage.length; i++) {
-					newStorage[i] = new HeapBlock(getBlockSize(), mode);
-				}
+		protected abstract void writeValues(S state, ByteBuffer data);
 
-				setStorage(newStorage); // volatile ensures visibility
-				return newStorage[blockIndex];
+		/**
+		 * Called after compression dropped the state.
+		 */
+		protected void compressed() {
+		}
+
+		protected final void setFlag(int position, int flagIndex, boolean val) {
+			decompress();
+			byte[] flags = state.flags;
+			int byteIndex = HeapBlock.getFlagByte(position, 0);
+			int bitIndex = HeapBlock.getFlagBit(position, flagIndex);
+			if (val) {
+				flags[byteIndex] |= (1 << bitIndex);
+			} else {
+				flags[byteIndex] &= ~(1 << bitIndex);
 			}
 		}
 
-		private void setStorage(Block[] storage) {
-			this.storage = storage;
+		@Override
+		public final boolean hasExistsFlag(int position) {
+			decompress();
+			return state.hasFlag(position, 0);
 		}
 
-		private Block[] getStorage() {
-			return storage;
+		@Override
+		public final void setExistsFlag(int position, boolean val) {
+			setFlag(position, 0, val);
 		}
 
 		@Override
-		public void trimToSize() {
-			final Block[] oldStorage = getStorage();
-			int lastFilledBlock = findLastFilledBlock(oldStorage);
-			final Block[] newStorage = Arrays.copyOf(oldStorage, lastFilledBlock + 1);
-			setStorage(newStorage); // volatile ensures visibility
+		public final boolean hasNestedFlag(int position) {
+			decompress();
+			return state.hasFlag(position, 1);
 		}
 
-		private int findLastFilledBlock(final Block[] oldStorage) {
-			for (int i = oldStorage.length - 1; i >= 0; i--) {
-				Block block = oldStorage[i];
-				for (int j = getBlockSize() - 1; j >= 0; j--) {
-					if (block.hasExistsFlag(j)) {
-						return i;
-					}
-				}
-			}
-			return 0;
+		@Override
+		public final void setNestedFlag(int position, boolean val) {
+			setFlag(position, 1, val);
 		}
 
 		@Override
-		public void compressStorage() {
-			for (Block block : storage) {
-				synchronized (block) {
-					block.compress();
-				}
-			}
+		public final boolean isCompressed() {
+			return compressed != null;
 		}
 
 		@Override
-		public void decompressStorage() {
-			for (Block block : storage) {
-				synchronized (block) {
-					block.decompress();
+		public final void compress() {
+			if (!isCompressed()) {
+				S current = state;
+				ByteBuffer data = ByteBuffer.allocate(
+						current.flags.length + getHeaderSize(current) + current.codes.length * 8);
+				data.put(current.flags);
+				writeHeader(current, data);
+				for (long word : current.codes) {
+					data.putLong(word);
 				}
+				byte[] bytes = data.array();
+				byte[] buffer = new byte[COMPRESSOR.maxCompressedSize(bytes.length)];
+				int compressedLength = COMPRESSOR.compress(bytes, 0, bytes.length, buffer, 0);
+				beginWrite();
+				uncompressedLength = bytes.length;
+				compressed = Arrays.copyOf(buffer, compressedLength);
+				state = null;
+				compressed();
+				endWrite();
 			}
 		}
 
 		@Override
-		public void compressBlock(long position) {
-			Block block = getOrCreateBlock(getBlockIndex(position));
-			synchronized (block) {
-				block.compress();
+		public final void decompress() {
+			if (isCompressed()) {
+				S decompressed = unpack();
+				beginWrite();
+				state = decompressed;
+				compressed = null;
+				endWrite();
 			}
 		}
 
-		@Override
-		public void decompressBlock(long position) {
-			Block block = getOrCreateBlock(getBlockIndex(position));
-			synchronized (block) {
-				block.decompress();
+		private S unpack() {
+			byte[] bytes = new byte[uncompressedLength];
+			COMPRESSOR.decompress(compressed, bytes, 0, 0, uncompressedLength);
+			ByteBuffer data = ByteBuffer.wrap(bytes);
+			byte[] flags = new byte[getNumFlagBytes()];
+			data.get(flags);
+			S unpacked = readHeader(data, flags);
+			for (int i = 0; i < unpacked.codes.length; i++) {
+				unpacked.codes[i] = data.getLong();
 			}
+			return unpacked;
 		}
 
-		//************* GET Methods *************
+		protected final int getNumFlagBytes() {
+			return getMode().getNumFlagBytes(blockSize);
+		}
 
 		@Override
-		public boolean hasValue(long position) {
-			Block block = getBlock(getBlockIndex(position));
-			if (block != null) {
-				synchronized (block) {
-					return block.hasExistsFlag(getPositionInBlock(position));
-				}
+		public final int getCapacity() {
+			S current = state;
+			if (current != null) {
+				return current.getSizeInBytes();
 			} else {
-				return false;
+				return uncompressedLength;
 			}
 		}
 
-		@Override
+		/**
+		 * @return the data in the layout of an uncompressed {@link HeapBlock}
+		 */
+		@Override
+		public final ByteBuffer getData() {
+			S current = isCompressed() ? unpack() : state;
+			ByteBuffer data = ByteBuffer
+					.allocate(1 + getMode().getNumBytes(blockSize) + current.flags.length);
+			data.put((byte) 0);
+			writeValues(current, data);
+			data.put(current.flags);
+			data.flip();
+			return data.asReadOnlyBuffer();
+		}
+
+		@Override
+		public final boolean peekExistsFlag(int position) {
+			S current = state;
+			return current != null && current.hasFlag(position, 0);
+		}
+
+		@Override
+		public final boolean peekNestedFlag(int position) {
+			S current = state;
+			return current != null && current.hasFlag(position, 1);
+		}
+
+		@Override
+		public byte get(int pos) {
+			throw new UnsupportedOperationException("Unsupported for mode " + getMode());
+		}
+
+		@Override
+		public void put(int pos, byte val) {
+			throw new UnsupportedOperationException("Unsupported for mode " + getMode());
+		}
+
+		@Override
+		public byte peek(int pos) {
+			throw new UnsupportedOperationException("Unsupported for mode " + getMode());
+		}
+
+		@Override
+		public int getInt(int pos) {
+			throw new UnsupportedOperationException("Unsupported for mode " + getMode());
+		}
+
+		@Override
+		public void putInt(int pos, int val) {
+			throw new UnsupportedOperationException("Unsupported for mode " + getMode());
+		}
+
+		@Override
+		public int peekInt(int pos) {
+			throw new UnsupportedOperationException("Unsupported for mode " + getMode());
+		}
+
+		@Override
+		public long getLong(int pos) {
+			throw new UnsupportedOperationException("Unsupported for mode " + getMode());
+		}
+
+		@Override
+		public void putLong(int pos, long val) {
+			throw new UnsupportedOperationException("Unsupported for mode " + getMode());
+		}
+
+		@Override
+		public long peekLong(int pos) {
+			throw new UnsupportedOperationException("Unsupported for mode " + getMode());
+		}
+
+	}
+
+	/**
+	 * {@link Block} for {@link Mode#INT} on the heap that stores its values
+	 * dictionary encoded. The distinct values of the block are kept in a small
+	 * dictionary and each position stores the code of its value bit-packed
+	 * with the smallest width that fits the dictionary. When a new value does
+	 * not fit, the dictionary is rebuilt from the values still in use and
+	 * widened if necessary. Literal columns typically have only few distinct
+	 * values per block. The values are still the indices into the literal
+	 * pool. Blocks with so many distinct values that the dictionary does not
+	 * pay off fall back to storing the plain 32-bit values.
+	 */
+	static final class PackedIntBlock extends PackedBlock<PackedIntBlock.DictionaryState> {
+
+		static final class DictionaryState extends PackedState {
+
+			private final int[] dictionary; // capacity 1 << width, code 0 is always the value 0, null if plain
+			private int dictionarySize; // -1 if plain
+
+			private DictionaryState(int blockSize, int width, int[] dictionary, int dictionarySize, byte[] flags) {
+				super(blockSize, width, flags);
+				this.dictionary = dictionary;
+				this.dictionarySize = dictionarySize;
+			}
+
+			private static DictionaryState plain(int blockSize, byte[] flags) {
+				return new DictionaryState(blockSize, 32, null, -1, flags);
+			}
+
+			private boolean isPlain() {
+				return dictionary == null;
+			}
+
+			private int getValue(int index) {
+				if (dictionary == null) {
+					return (int) getCode(index);
+				}
+				return dictionary[(int) getCode(index)];
+			}
+
+			@Override
+			int getSizeInBytes() {
+				return super.getSizeInBytes() + (dictionary == null ? 0 : dictionary.length * 4);
+			}
+
+		}
+
+		private Int2IntOpenHashMap codeLookup; // lazily created for writes, null if sealed or plain
+
+		PackedIntBlock(int blockSize) {
+			super(blockSize,
+					new DictionaryState(blockSize, 0, new int[1], 1, new byte[Mode.INT.getNumFlagBytes(blockSize)]));
+		}
+
+		@Override
+		protected Mode getMode() {
+			return Mode.INT;
+		}
+
+		private Int2IntOpenHashMap getCodeLookup() {
+			if (codeLookup == null) {
+				codeLookup = new Int2IntOpenHashMap(state.dictionarySize);
+				codeLookup.defaultReturnValue(-1);
+				for (int i = state.dictionarySize - 1; i >= 0; i--) {
+					codeLookup.put(state.dictionary[i], i);
+				}
+			}
+			return codeLookup;
+		}
+
+		private int getOrAddCode(int val, int index) {
+			int code = getCodeLookup().get(val);
+			if (code != -1) {
+				return code;
+			}
+			if (state.dictionarySize == state.dictionary.length) {
+				rebuild(index);
+				if (state.isPlain()) {
+					return val;
+				}
+			}
+			code = state.dictionarySize;
+			state.dictionary[code] = val;
+			state.dictionarySize++;
+			codeLookup.put(val, code);
+			return code;
+		}
+
+		/**
+		 * Rebuilds the dictionary with the values of all existing entries
+		 * except the entry at the excluded index, which is about to be
+		 * overwritten. A quarter of the new dictionary is left free for new
+		 * values. Switches to the plain layout if the dictionary together with
+		 * the codes would be larger than the plain values.
+		 */
+		private void rebuild(int excludedIndex) {
+			DictionaryState oldState = state;
+			Int2IntOpenHashMap newLookup = new Int2IntOpenHashMap();
+			newLookup.defaultReturnValue(-1);
+			newLookup.put(0, 0);
+			int[] values = new int[blockSize + 1];
+			int[] newCodes = new int[blockSize];
+			int size = 1;
+			for (int i = 0; i < blockSize; i++) {
+				if (i != excludedIndex && oldState.hasFlag(i, 0)) {
+					int value = oldState.getValue(i);
+					int code = newLookup.get(value);
+					if (code == -1) {
+						code = size;
+						values[size++] = value;
+						newLookup.put(value, code);
+					}
+					newCodes[i] = code;
+				}
+			}
+			int width = BitPacking.getWidth(size + (size >> 2));
+			long dictionaryBytes = (1L << width) * 4 + BitPacking.getNumWords(blockSize, width) * 8L;
+			if (dictionaryBytes > BitPacking.getNumWords(blockSize, 32) * 8L) {
+				DictionaryState plainState = DictionaryState.plain(blockSize, oldState.flags);
+				for (int i = 0; i < blockSize; i++) {
+					plainState.setCode(i, values[newCodes[i]]);
+				}
+				state = plainState;
+				codeLookup = null;
+				return;
+			}
+			DictionaryState newState = new DictionaryState(blockSize, width, Arrays.copyOf(values, 1 << width), size,
+					oldState.flags);
+			for (int i = 0; i < blockSize; i++) {
+				newState.setCode(i, newCodes[i]);
+			}
+			state = newState;
+			codeLookup = newLookup;
+		}
+
+		@Override
+		public int getInt(int pos) {
+			decompress();
+			return state.getValue(pos >> 2);
+		}
+
+		@Override
+		public void putInt(int pos, int val) {
+			decompress();
+			int index = pos >> 2;
+			int code = state.isPlain() ? val : getOrAddCode(val, index); // may replace the state
+			state.setCode(index, code);
+		}
+
+		@Override
+		public int peekInt(int pos) {
+			DictionaryState current = state;
+			if (current == null) {
+				return 0;
+			}
+			return current.getValue(pos >> 2); // codes are always within the capacity of the dictionary
+		}
+
+		@Override
+		protected void compressed() {
+			codeLookup = null;
+		}
+
+		@Override
+		public void seal() {
+			codeLookup = null;
+		}
+
+		@Override
+		protected int getHeaderSize(DictionaryState state) {
+			return 8 + Math.max(state.dictionarySize, 0) * 4;
+		}
+
+		@Override
+		protected void writeHeader(DictionaryState state, ByteBuffer data) {
+			data.putInt(state.width);
+			data.putInt(state.dictionarySize);
+			for (int i = 0; i < state.dictionarySize; i++) {
+				data.putInt(state.dictionary[i]);
+			}
+		}
+
+		@Override
+		protected DictionaryState readHeader(ByteBuffer data, byte[] flags) {
+			int width = data.getInt();
+			int dictionarySize = data.getInt();
+			if (dictionarySize == -1) {
+				return DictionaryState.plain(blockSize, flags);
+			}
+			int[] dictionary = new int[1 << width];
+			for (int i = 0; i < dictionarySize; i++) {
+				dictionary[i] = data.getInt();
+			}
+			return new DictionaryState(blockSize, width, dictionary, dictionarySize, flags);
+		}
+
+		@Override
+		protected void writeValues(DictionaryState state, ByteBuffer data) {
+			for (int i = 0; i < blockSize; i++) {
+				data.putInt(state.getValue(i));
+			}
+		}
+
+	}
+
+	/**
+	 * {@link Block} for {@link Mode#LONG} on the heap that stores its values
+	 * with a frame of reference: a base value and bit-packed unsigned offsets
+	 * from the base with the smallest width that fits the range of the block.
+	 * Timestamps of the events in a block are usually close to each other.
+	 * When a new value is outside of the range, the block is re-encoded with
+	 * the values still in use and some room on both sides. In the worst case
+	 * the width is 64 bits, which is the size of the plain encoding. Random
+	 * access remains a single lookup.
+	 */
+	static final class PackedLongBlock extends PackedBlock<PackedLongBlock.FrameState> {
+
+		static final class FrameState extends PackedState {
+
+			private final long base;
+
+			private FrameState(int blockSize, int width, long base, byte[] flags) {
+				super(blockSize, width, flags);
+				this.base = base;
+			}
+
+			private long getValue(int index) {
+				return base + getCode(index);
+			}
+
+			private boolean isInRange(long value) {
+				return width == 64 || ((value - base) >>> width) == 0;
+			}
+
+		}
+
+		PackedLongBlock(int blockSize) {
+			super(blockSize, new FrameState(blockSize, 0, 0, new byte[Mode.LONG.getNumFlagBytes(blockSize)]));
+		}
+
+		@Override
+		protected Mode getMode() {
+			return Mode.LONG;
+		}
+
+		/**
+		 * Re-encodes the block to fit the range of the new value and the
+		 * values of all existing entries except the entry at the excluded
+		 * index, which is about to be overwritten. The width is chosen to
+		 * leave at least the size of the range as room, half of it below the
+		 * minimum.
+		 */
+		private void rebuild(int excludedIndex, long newValue) {
+			FrameState oldState = state;
+			long min = newValue;
+			long max = newValue;
+			for (int i = 0; i < blockSize; i++) {
+				if (i != excludedIndex && oldState.hasFlag(i, 0)) {
+					long value = oldState.getValue(i);
+					min = Math.min(min, value);
+					max = Math.max(max, value);
+				}
+			}
+			long range = max - min; // unsigned
+			int width = Math.min(64, BitPacking.getWidth(range) + 1);
+			long base = min;
+			if (width < 64) {
+				long room = BitPacking.getMask(width) - range;
+				base = min - (room >>> 1);
+			}
+			FrameState newState = new FrameState(blockSize, width, base, oldState.flags);
+			for (int i = 0; i < blockSize; i++) {
+				if (i != excludedIndex && oldState.hasFlag(i, 0)) {
+					newState.setCode(i, oldState.getValue(i) - base);
+				}
+			}
+			state = newState;
+		}
+
+		@Override
+		public long getLong(int pos) {
+			decompress();
+			return state.getValue(pos >> 3);
+		}
+
+		@Override
+		public void putLong(int pos, long val) {
+			decompress();
+			int index = pos >> 3;
+			if (!state.isInRange(val)) {
+				rebuild(index, val);
+			}
+			state.setCode(index, val - state.base);
+		}
+
+		@Override
+		public long peekLong(int pos) {
+			FrameState current = state;
+			if (current == null) {
+				return 0;
+			}
+			return current.getValue(pos >> 3);
+		}
+
+		@Override
+		protected int getHeaderSize(FrameState state) {
+			return 12;
+		}
+
+		@Override
+		protected void writeHeader(FrameState state, ByteBuffer data) {
+			data.putInt(state.width);
+			data.putLong(state.base);
+		}
+
+		@Override
+		protected FrameState readHeader(ByteBuffer data, byte[] flags) {
+			int width = data.getInt();
+			long base = data.getLong();
+			return new FrameState(blockSize, width, base, flags);
+		}
+
+		@Override
+		protected void writeValues(FrameState state, ByteBuffer data) {
+			for (int i = 0; i < blockSize; i++) {
+				data.putLong(state.getValue(i));
+			}
+		}
+
+	}
+
+	/**
+	 * {@link Block} using the same layout as {@link HeapBlock} but storing its
+	 * data in a direct {@link ByteBuffer} outside of the heap.
+	 */
+	static final class DirectBlock extends AbstractBlock {
+
+		private static final ThreadLocal<ByteBuffer> COMPRESSION_BUFFER = new ThreadLocal<ByteBuffer>() {
+
+			protected ByteBuffer initialValue() {
+				return ByteBuffer.allocateDirect(0);
+			}
+
+		};
+
+		private ByteBuffer buffer;
+		private final int blockSize;
+		private final Mode mode;
+
+		// whether the buffer is a read-only view of a memory-mapped file
+		private boolean mapped;
+
+		DirectBlock(int blockSize, Mode mode) {
+			super();
+			this.blockSize = blockSize;
+			this.mode = mode;
+			this.buffer = ByteBuffer.allocateDirect(capacity(blockSize, mode));
+			this.mapped = false;
+		}
+
+		/**
+		 * Creates a block on top of a read-only (memory-mapped) buffer. The
+		 * data is copied upon the first modification.
+		 */
+		DirectBlock(int blockSize, Mode mode, ByteBuffer mappedData) {
+			super();
+			this.blockSize = blockSize;
+			this.mode = mode;
+			this.buffer = mappedData;
+			this.mapped = true;
+		}
+
+		private void ensureWritable() {
+			decompress();
+			if (mapped) {
+				ByteBuffer copy = ByteBuffer.allocateDirect(buffer.capacity());
+				copy.put(buffer.duplicate());
+				beginWrite();
+				buffer = copy;
+				mapped = false;
+				endWrite();
+			}
+		}
+
+		private static int capacity(int blockSize, Mode mode) {
+			return mode.getNumBytes(blockSize) + mode.getNumFlagBytes(blockSize) + 1;
+		}
+
+		private boolean getFlag(int position, int flagIndex) {
+			decompress();
+			int valuesSize = mode.getNumBytes(blockSize);
+			int byteIndex = HeapBlock.getFlagByte(position, valuesSize) + 1;
+			int bitIndex = HeapBlock.getFlagBit(position, flagIndex);
+			byte b = buffer.get(byteIndex);
+			return 0 != (b & (1 << bitIndex)); // and with shifted mask 
+		}
+
+		private void setFlag(int position, int flagIndex, boolean val) {
+			ensureWritable();
+			int valuesSize = mode.getNumBytes(blockSize);
+			int byteIndex = HeapBlock.getFlagByte(position, valuesSize) + 1;
+			int bitIndex = HeapBlock.getFlagBit(position, flagIndex);
+			byte b = buffer.get(byteIndex);
+			if (val) {
+				b |= (1 << bitIndex);
+			} else {
+				b &= ~(1 << bitIndex);
+			}
+			buffer.put(byteIndex, b);
+		}
+
+		@Override
+		public boolean hasExistsFlag(int position) {
+			return getFlag(position, 0);
+		}
+
+		@Override
+		public void setExistsFlag(int position, boolean val) {
+			setFlag(position, 0, val);
+		}
+
+		@Override
+		public boolean hasNestedFlag(int position) {
+			return getFlag(position, 1);
+		}
+
+		@Override
+		public void setNestedFlag(int position, boolean val) {
+			setFlag(position, 1, val);
+		}
+
+		@Override
+		public byte get(int pos) {
+			decompress();
+			return buffer.get(pos + 1);
+		}
+
+		@Override
+		public int getInt(int pos) {
+			decompress();
+			return buffer.getInt(pos + 1); // big-endian as in HeapBlock
+		}
+
+		@Override
+		public long getLong(int pos) {
+			decompress();
+			return buffer.getLong(pos + 1);
+		}
+
+		@Override
+		public void put(int pos, byte val) {
+			ensureWritable();
+			buffer.put(pos + 1, val);
+		}
+
+		@Override
+		public void putInt(int pos, int val) {
+			ensureWritable();
+			buffer.putInt(pos + 1, val);
+		}
+
+		@Override
+		public void putLong(int pos, long val) {
+			ensureWritable();
+			buffer.putLong(pos + 1, val);
+		}
+
+		public boolean isCompressed() {
+			return buffer.get(0) == 1;
+		}
+
+		@Override
+		public void compress() {
+			if (!isCompressed() && !mapped) { // mapped data is managed by the OS
+				int maxLength = COMPRESSOR.maxCompressedSize(buffer.capacity() - 1);
+				ByteBuffer scratch = COMPRESSION_BUFFER.get();
+				if (scratch.capacity() < maxLength) {
+					scratch = ByteBuffer.allocateDirect(maxLength);
+					COMPRESSION_BUFFER.set(scratch);
+				}
+				int compressedLength = LZ4.fastCompressor().compress(buffer, 1, buffer.capacity() - 1, scratch, 0,
+						maxLength);
+				ByteBuffer compressedData = scratch.duplicate();
+				compressedData.limit(compressedLength);
+				ByteBuffer compressed = ByteBuffer.allocateDirect(compressedLength + 1);
+				compressed.put((byte) 1);
+				compressed.put(compressedData);
+				beginWrite();
+				buffer = compressed; // old buffer is released by the garbage collector
+				endWrite();
+			}
+		}
+
+		@Override
+		public void decompress() {
+			if (isCompressed()) {
+				int decompressedSize = capacity(blockSize, mode);
+				ByteBuffer decompressed = ByteBuffer.allocateDirect(decompressedSize);
+				LZ4.fastDecompressor().decompress(buffer, 1, decompressed, 1, decompressedSize - 1); //skip first byte
+				decompressed.put(0, (byte) 0);
+				beginWrite();
+				buffer = decompressed;
+				mapped = false;
+				endWrite();
+			}
+		}
+
+		// The peek methods read a snapshot of the buffer reference and return garbage if it was concurrently replaced
+
+		private boolean peekFlag(int position, int flagIndex) {
+			ByteBuffer data = buffer;
+			int byteIndex = HeapBlock.getFlagByte(position, mode.getNumBytes(blockSize)) + 1;
+			if (byteIndex >= data.limit()) {
+				return false;
+			}
+			return 0 != (data.get(byteIndex) & (1 << HeapBlock.getFlagBit(position, flagIndex)));
+		}
+
+		@Override
+		public boolean peekExistsFlag(int position) {
+			return peekFlag(position, 0);
+		}
+
+		@Override
+		public boolean peekNestedFlag(int position) {
+			return peekFlag(position, 1);
+		}
+
+		@Override
+		public byte peek(int pos) {
+			ByteBuffer data = buffer;
+			if (pos + 1 >= data.limit()) {
+				return 0;
+			}
+			return data.get(pos + 1);
+		}
+
+		@Override
+		public int peekInt(int pos) {
+			ByteBuffer data = buffer;
+			if (pos + 4 >= data.limit()) {
+				return 0;
+			}
+			return data.getInt(pos + 1);
+		}
+
+		@Override
+		public long peekLong(int pos) {
+			ByteBuffer data = buffer;
+			if (pos + 8 >= data.limit()) {
+				return 0;
+			}
+			return data.getLong(pos + 1);
+		}
+
+		@Override
+		public int getCapacity() {
+			return capacity(blockSize, mode);
+		}
+
+		@Override
+		public ByteBuffer getData() {
+			return buffer.asReadOnlyBuffer();
+		}
+
+	}
+
+	/**
+	 * Keeps decompressed {@link Block}s within a budget of bytes. Only accesses
+	 * that had to decompress a block are recorded, reads of a decompressed
+	 * block do not touch the cache at all. Blocks are evicted in the order in
+	 * which they were decompressed and compressed right away, outside of the
+	 * monitor of the cache. Blocks of volumes that are replaced need to be
+	 * removed with {@link #invalidate(Block[])}.
+	 */
+	static final class BlockCache {
+
+		private static final class Entry {
+
+			private final Block block;
+			private final int size;
+			private boolean invalidated = false; // guarded by the cache
+
+			private Entry(Block block, int size) {
+				this.block = block;
+				this.size = size;
+			}
+
+		}
+
+		private final long budget;
+		private final ConcurrentAutoTable misses = new ConcurrentAutoTable();
+
+		private volatile boolean enabled = false;
+
+		// guarded by this
+		private final Map<Block, Entry> resident = new IdentityHashMap<>();
+		private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+		private long residentBytes = 0;
+
+		BlockCache(long budget) {
+			super();
+			this.budget = budget;
+		}
+
+		/**
+		 * Records that an access decompressed the block and compresses the
+		 * blocks that exceed the budget. Must not be called while holding the
+		 * lock of a block.
+		 * 
+		 * @param block
+		 */
+		void decompressed(Block block) {
+			if (!enabled) {
+				return;
+			}
+			misses.increment();
+			for (Block evicted : admit(block)) {
+				synchronized (evicted) {
+					evicted.compress();
+				}
+			}
+		}
+
+		/**
+		 * @return the blocks that were evicted to stay within the budget
+		 */
+		private synchronized List<Block> admit(Block block) {
+			if (!enabled || resident.containsKey(block)) {
+				return Collections.emptyList();
+			}
+			Entry entry = new Entry(block, block.getCapacity());
+			resident.put(block, entry);
+			queue.addLast(entry);
+			residentBytes += entry.size;
+			List<Block> evicted = new ArrayList<>();
+			while (residentBytes > budget && queue.size() > 1) {
+				Entry candidate = queue.pollFirst();
+				if (!candidate.invalidated) {
+					resident.remove(candidate.block);
+					residentBytes -= candidate.size;
+					evicted.add(candidate.block);
+				}
+			}
+			return evicted;
+		}
+
+		/**
+		 * Removes the blocks from the cache without compressing them. Used for
+		 * blocks of volumes that have been replaced and are not used anymore.
+		 * 
+		 * @param blocks
+		 */
+		synchronized void invalidate(Block[] blocks) {
+			for (Block block : blocks) {
+				if (block != null) {
+					Entry entry = resident.remove(block);
+					if (entry != null) {
+						entry.invalidated = true;
+						residentBytes -= entry.size;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Starts tracking decompressions, assuming that all blocks are
+		 * compressed.
+		 */
+		synchronized void enable() {
+			queue.clear();
+			resident.clear();
+			residentBytes = 0;
+			enabled = true;
+		}
+
+		boolean isEnabled() {
+			return enabled;
+		}
+
+		/**
+		 * Stops tracking decompressions and compressing blocks.
+		 */
+		synchronized void disable() {
+			enabled = false;
+			queue.clear();
+			resident.clear();
+			residentBytes = 0;
+		}
+
+		long getMisses() {
+			return misses.get();
+		}
+
+		synchronized long getResidentBytes() {
+			return residentBytes;
+		}
+
+		long getBudget() {
+			return budget;
+		}
+
+	}
+
+	interface Volume {
+
+		boolean hasValue(long position);
+
+		boolean hasNested(long position);
+
+		int getInt(long position);
+
+		long getLong(long position);
+
+		UUID getUUID(long position);
+
+		boolean getBoolean(long position);
+
+		void putInt(long position, int val, long nestedId);
+
+		void putInts(Iterable<IntEntry> values);
+
+		void putLong(long position, long val, long nestedId);
+
+		void putLongs(Iterable<LongEntry> values);
+
+		void putUUID(long position, UUID val, long nestedId);
+
+		void putUUIDs(Iterable<UUIDEntry> values);
+
+		void putBoolean(long position, boolean val, long nestedId);
+
+		void putBooleans(Iterable<BooleanEntry> values);
+
+		void remove(long position);
+
+		void compressStorage();
+
+		void decompressStorage();
+
+		void compressBlock(long position);
+
+		void decompressBlock(long position);
+
+		/**
+		 * Resizes the underlying storage to the exact size needed (not
+		 * thread-safe, needs to be synchronized externally)
+		 */
+		void trimToSize();
+
+	}
+
+	/**
+	 * Base class for a {@link Volume} that is organized in fixed-size
+	 * {@link Block}s. Sub-classes decide where the bytes of a {@link Block} are
+	 * stored.
+	 */
+	static abstract class BlockVolume implements Volume {
+
+		private final Mode mode;
+
+		private final int blockShift;
+		private volatile Block[] storage;
+
+		private final BlockCache cache; // may be null
+
+		private final ConcurrentAutoTable valueCount = new ConcurrentAutoTable();
+		private final boolean isValueCountKnown;
+
+		BlockVolume(int initalBlocks, int blockShift, Mode mode, BlockCache cache) {
+			super();
+			this.blockShift = blockShift;
+			this.mode = mode;
+			this.cache = cache;
+			this.isValueCountKnown = true;
+			this.storage = new Block[initalBlocks];
+			for (int i = 0; i < initalBlocks; i++) {
+				storage[i] = newBlock(1 << blockShift, mode);
+			}
+		}
+
+		BlockVolume(Block[] blocks, int blockShift, Mode mode, BlockCache cache) {
+			super();
+			this.blockShift = blockShift;
+			this.mode = mode;
+			this.cache = cache;
+			this.isValueCountKnown = false;
+			this.storage = blocks;
+		}
+
+		protected abstract Block newBlock(int blockSize, Mode mode);
+
+		Mode getMode() {
+			return mode;
+		}
+
+		int getBlockShift() {
+			return blockShift;
+		}
+
+		/**
+		 * @return the current blocks, these need to be synchronized on before
+		 *         being accessed
+		 */
+		Block[] getBlocks() {
+			return getStorage();
+		}
+
+		/**
+		 * @return the number of positions covered by this volume
+		 */
+		long getSize() {
+			return (long) getStorage().length << blockShift;
+		}
+
+		/**
+		 * @return the number of positions with a value as counted by the
+		 *         writes, or -1 if unknown as the volume was created from
+		 *         existing blocks
+		 */
+		long countValues() {
+			return isValueCountKnown ? valueCount.get() : -1;
+		}
+
+		private int getBlockMask() {
+			return getBlockSize() - 1;
+		}
+
+		private int getBlockSize() {
+			return 1 << blockShift;
+		}
+
+		private int getPositionInBlock(long position) {
+			return (int) (position & getBlockMask());
+		}
+
+		private int getBlockIndex(long position) {
+			return (int) (position >> blockShift);
+		}
+
+		private Block getBlock(int blockIndex) {
+			if (blockIndex < storage.length) {
+				Block block = getStorage()[blockIndex];
+				if (block != null) {
+					return block;
+				}
+			}
+			return null;
+		}
+
+		private final Object growLock = new Object();
+
+		private Block getOrCreateBlock(int blockIndex) {
+			// read first
+			Block block = getBlock(blockIndex);
+			if (block != null) {
+				return block;
+			}
+
+			// Otherwise grow copy on write
+			synchronized (growLock) {
+				// Check whether some other thread grew the array 
+				block = getBlock(blockIndex);
+				if (block != null) {
+					return block;
+				}
+
+				// grow array
+				final Block[] oldStorage = getStorage();
+				int oldLength = oldStorage.length;
+				int minLength = blockIndex + 1;
+				int newLength = Math.max(minLength, (int) Math.ceil(oldLength * 1.5));
+				final Block[] newStorage = Arrays.copyOf(oldStorage, Math.min(Integer.MAX_VALUE - 8, newLength));
+
+				// allocate blocks
+				for (int i = oldLength; i < newStorage.length; i++) {
+					newStorage[i] = newBlock(getBlockSize(), mode);
+				}
+
+				setStorage(newStorage); // volatile ensures visibility
+				return newStorage[blockIndex];
+			}
+		}
+
+		private void accessed(Block block, boolean wasCompressed) {
+			if (wasCompressed && cache != null) {
+				cache.decompressed(block);
+			}
+		}
+
+		private void setStorage(Block[] storage) {
+			this.storage = storage;
+		}
+
+		private Block[] getStorage() {
+			return storage;
+		}
+
+		@Override
+		public void trimToSize() {
+			final Block[] oldStorage = getStorage();
+			int lastFilledBlock = findLastFilledBlock(oldStorage);
+			final Block[] newStorage = Arrays.copyOf(oldStorage, lastFilledBlock + 1);
+			setStorage(newStorage); // volatile ensures visibility
+			if (cache != null && newStorage.length < oldStorage.length) {
+				cache.invalidate(Arrays.copyOfRange(oldStorage, newStorage.length, oldStorage.length));
+			}
+			for (Block block : newStorage) {
+				synchronized (block) {
+					block.seal();
+				}
+			}
+		}
+
+		private int findLastFilledBlock(final Block[] oldStorage) {
+			for (int i = oldStorage.length - 1; i >= 0; i--) {
+				Block block = oldStorage[i];
+				for (int j = getBlockSize() - 1; j >= 0; j--) {
+					if (block.hasExistsFlag(j)) {
+						return i;
+					}
+				}
+			}
+			return 0;
+		}
+
+		@Override
+		public void compressStorage() {
+			for (Block block : storage) {
+				synchronized (block) {
+					block.compress();
+				}
+			}
+		}
+
+		@Override
+		public void decompressStorage() {
+			for (Block block : storage) {
+				synchronized (block) {
+					block.decompress();
+				}
+			}
+		}
+
+		@Override
+		public void compressBlock(long position) {
+			Block block = getOrCreateBlock(getBlockIndex(position));
+			synchronized (block) {
+				block.compress();
+			}
+		}
+
+		@Override
+		public void decompressBlock(long position) {
+			Block block = getOrCreateBlock(getBlockIndex(position));
+			boolean wasCompressed;
+			synchronized (block) {
+				wasCompressed = block.isCompressed();
+				block.decompress();
+			}
+			accessed(block, wasCompressed);
+		}
+
+		//************* GET Methods *************
+
+		// All getters first try an optimistic read without lock and only lock the block if that read fails (see AbstractBlock)
+
+		@Override
+		public boolean hasValue(long position) {
+			Block block = getBlock(getBlockIndex(position));
+			if (block != null) {
+				int positionInBlock = getPositionInBlock(position);
+				boolean val = false;
+				int stamp = block.tryOptimisticRead();
+				if (stamp != -1) {
+					val = block.peekExistsFlag(positionInBlock);
+				}
+				if (stamp == -1 || !block.validate(stamp)) {
+					boolean wasCompressed;
+					synchronized (block) {
+						wasCompressed = block.isCompressed();
+						val = block.hasExistsFlag(positionInBlock);
+					}
+					accessed(block, wasCompressed);
+				}
+				return val;
+			} else {
+				return false;
+			}
+		}
+
+		@Override
+		public boolean hasNested(long position) {
+			Block block = getBlock(getBlockIndex(position));
+			if (block != null) {
+				int positionInBlock = getPositionInBlock(position);
+				boolean val = false;
+				int stamp = block.tryOptimisticRead();
+				if (stamp != -1) {
+					val = block.peekNestedFlag(positionInBlock);
+				}
+				if (stamp == -1 || !block.validate(stamp)) {
+					boolean wasCompressed;
+					synchronized (block) {
+						wasCompressed = block.isCompressed();
+						val = block.hasNestedFlag(positionInBlock);
+					}
+					accessed(block, wasCompressed);
+				}
+				return val;
+			} else {
+				return false;
+			}
+		}
+
+		@Override
+		public boolean getBoolean(long position) {
+			Block block = getOrCreateBlock(getBlockIndex(position));
+			int localPosition = getPositionInBlock(position);
+			int byteIndex = (localPosition >> 3); // DIV 8
+			int bitIndex = localPosition & 7; // MOD 8
+			byte b = 0;
+			int stamp = block.tryOptimisticRead();
+			if (stamp != -1) {
+				b = block.peek(byteIndex);
+			}
+			if (stamp == -1 || !block.validate(stamp)) {
+				boolean wasCompressed;
+				synchronized (block) {
+					wasCompressed = block.isCompressed();
+					b = block.get(byteIndex);
+				}
+				accessed(block, wasCompressed);
+			}
+			return 0 != (b & (1 << bitIndex)); // AND with shifted mask 
+		}
+
+		@Override
+		public UUID getUUID(long position) {
+			Block block = getOrCreateBlock(getBlockIndex(position));
+			int pos1 = mode.shiftPosition(getPositionInBlock(position));
+			int pos2 = pos1 + 8;
+			long mostSigBits = 0;
+			long leastSigBits = 0;
+			int stamp = block.tryOptimisticRead();
+			if (stamp != -1) {
+				mostSigBits = block.peekLong(pos1);
+				leastSigBits = block.peekLong(pos2);
+			}
+			if (stamp == -1 || !block.validate(stamp)) {
+				boolean wasCompressed;
+				synchronized (block) {
+					wasCompressed = block.isCompressed();
+					mostSigBits = block.getLong(pos1);
+					leastSigBits = block.getLong(pos2);
+				}
+				accessed(block, wasCompressed);
+			}
+			return new UUID(mostSigBits, leastSigBits);
+		}
+
+		@Override
+		public long getLong(long position) {
+			Block block = getOrCreateBlock(getBlockIndex(position));
+			int pos = mode.shiftPosition(getPositionInBlock(position));
+			long val = 0;
+			int stamp = block.tryOptimisticRead();
+			if (stamp != -1) {
+				val = block.peekLong(pos);
+			}
+			if (stamp == -1 || !block.validate(stamp)) {
+				boolean wasCompressed;
+				synchronized (block) {
+					wasCompressed = block.isCompressed();
+					val = block.getLong(pos);
+				}
+				accessed(block, wasCompressed);
+			}
+			return val;
+		}
+
+		@Override
+		public int getInt(long position) {
+			Block block = getOrCreateBlock(getBlockIndex(position));
+			int pos = mode.shiftPosition(getPositionInBlock(position));
+			int val = 0;
+			int stamp = block.tryOptimisticRead();
+			if (stamp != -1) {
+				val = block.peekInt(pos);
+			}
+			if (stamp == -1 || !block.validate(stamp)) {
+				boolean wasCompressed;
+				synchronized (block) {
+					wasCompressed = block.isCompressed();
+					val = block.getInt(pos);
+				}
+				accessed(block, wasCompressed);
+			}
+			return val;
+		}
+
+		//***************** PUT methods *************
+
+		// The *WithBlock methods need to be called between Block.beginWrite() and Block.endWrite()
+
+		private void setFlags(Block block, long nestedId, int positionInBlock) {
+			if (!block.hasExistsFlag(positionInBlock)) {
+				block.setExistsFlag(positionInBlock, true);
+				valueCount.increment();
+			}
+			block.setNestedFlag(positionInBlock, nestedId != -1);
+		}
+
+		private void putIntWithBlock(long position, int val, Block block, long nestedId) {
+			int positionInBlock = getPositionInBlock(position);
+			block.putInt(mode.shiftPosition(positionInBlock), val);
+			setFlags(block, nestedId, positionInBlock);
+		}
+
+		private void putLongWithBlock(long position, long val, Block block, long nestedId) {
+			int positionInBlock = getPositionInBlock(position);
+			block.putLong(mode.shiftPosition(positionInBlock), val);
+			setFlags(block, nestedId, positionInBlock);
+		}
+
+		private void putBooleanWithBlock(long position, boolean val, Block block, long nestedId) {
+			int positionInBlock = getPositionInBlock(position);
+			int byteIndex = (positionInBlock >> 3); // divide by 8
+			int bitIndex = positionInBlock & 7; // mod 8
+			byte b = block.get(byteIndex);
+			if (val) {
+				b |= (1 << bitIndex); // or with shifted mask	
+			} else {
+				b &= ~(1 << bitIndex); // or with shifted mask
+			}
+			block.put(byteIndex, b);
+			setFlags(block, nestedId, positionInBlock);
+		}
+
+		private void putUUIDWithBlock(long position, UUID val, Block block, long nestedId) {
+			int positionInBlock = getPositionInBlock(position);
+			int pos1 = mode.shiftPosition(positionInBlock);
+			int pos2 = pos1 + 8;
+			block.putLong(pos1, val.getMostSignificantBits());
+			block.putLong(pos2, val.getLeastSignificantBits());
+			setFlags(block, nestedId, positionInBlock);
+		}
+
+		//***************** PUT API method *************
+
+		@Override
+		public void remove(long position) {
+			Block block = getOrCreateBlock(getBlockIndex(position));
+			boolean wasCompressed;
+			synchronized (block) {
+				wasCompressed = block.isCompressed();
+				int positionInBlock = getPositionInBlock(position);
+				block.beginWrite();
+				if (block.hasExistsFlag(positionInBlock)) {
+					valueCount.decrement();
+				}
+				block.setExistsFlag(positionInBlock, false);
+				block.setNestedFlag(positionInBlock, false);
+				block.endWrite();
+			}
+			accessed(block, wasCompressed);
+		}
+
+		@Override
+		public void putBoolean(long position, boolean val, long nestedId) {
+			Block block = getOrCreateBlock(getBlockIndex(position));
+			boolean wasCompressed;
+			synchronized (block) {
+				wasCompressed = block.isCompressed();
+				block.beginWrite();
+				putBooleanWithBlock(position, val, block, nestedId);
+				block.endWrite();
+			}
+			accessed(block, wasCompressed);
+		}
+
+		@Override
+		public void putBooleans(Iterable<BooleanEntry> values) {
+			PeekingIterator<BooleanEntry> iterator = Iterators.peekingIterator(values.iterator());
+			if (iterator.hasNext()) {
+				long position = iterator.peek().getPosition();
+				while (iterator.hasNext()) {
+					int currentBlockIndex = getBlockIndex(position);
+					Block block = getOrCreateBlock(currentBlockIndex);
+					boolean wasCompressed;
+					synchronized (block) {
+						wasCompressed = block.isCompressed();
+						block.beginWrite();
+						while (iterator.hasNext()) {
+							position = iterator.peek().getPosition();
+							if (getBlockIndex(position) == currentBlockIndex) {
+								BooleanEntry val = iterator.next();
+								putBooleanWithBlock(position, val.isValue(), block, val.getNestedId());
+							} else {
+								break;
+							}
+						}
+						block.endWrite();
+					}
+					accessed(block, wasCompressed);
+				}
+			}
+		}
+
+		@Override
+		public void putUUID(long position, UUID val, long nestedId) {
+			Block block = getOrCreateBlock(getBlockIndex(position));
+			boolean wasCompressed;
+			synchronized (block) {
+				wasCompressed = block.isCompressed();
+				block.beginWrite();
+				putUUIDWithBlock(position, val, block, nestedId);
+				block.endWrite();
+			}
+			accessed(block, wasCompressed);
+		}
+
+		@Override
+		public void putUUIDs(Iterable<UUIDEntry> values) {
+			PeekingIterator<UUIDEntry> iterator = Iterators.peekingIterator(values.iterator());
+			if (iterator.hasNext()) {
+				long position = iterator.peek().getPosition();
+				while (iterator.hasNext()) {
+					int currentBlockIndex = getBlockIndex(position);
+					Block block = getOrCreateBlock(currentBlockIndex);
+					boolean wasCompressed;
+					synchronized (block) {
+						wasCompressed = block.isCompressed();
+						block.beginWrite();
+						while (iterator.hasNext()) {
+							position = iterator.peek().getPosition();
+							if (getBlockIndex(position) == currentBlockIndex) {
+								UUIDEntry val = iterator.next();
+								putUUIDWithBlock(position, val.getValue(), block, val.getNestedId());
+							} else {
+								break;
+							}
+						}
+						block.endWrite();
+					}
+					accessed(block, wasCompressed);
+				}
+			}
+		}
+
+		@Override
+		public void putLong(long position, long val, long nestedId) {
+			Block block = getOrCreateBlock(getBlockIndex(position));
+			boolean wasCompressed;
+			synchronized (block) {
+				wasCompressed = block.isCompressed();
+				block.beginWrite();
+				putLongWithBlock(position, val, block, nestedId);
+				block.endWrite();
+			}
+			accessed(block, wasCompressed);
+		}
+
+		@Override
+		public void putLongs(Iterable<LongEntry> values) {
+			PeekingIterator<LongEntry> iterator = Iterators.peekingIterator(values.iterator());
+			if (iterator.hasNext()) {
+				long position = iterator.peek().getPosition();
+				while (iterator.hasNext()) {
+					int currentBlockIndex = getBlockIndex(position);
+					Block block = getOrCreateBlock(currentBlockIndex);
+					boolean wasCompressed;
+					synchronized (block) {
+						wasCompressed = block.isCompressed();
+						block.beginWrite();
+						while (iterator.hasNext()) {
+							position = iterator.peek().getPosition();
+							if (getBlockIndex(position) == currentBlockIndex) {
+								LongEntry val = iterator.next();
+								putLongWithBlock(position, val.getValue(), block, val.getNestedId());
+							} else {
+								break;
+							}
+						}
+						block.endWrite();
+					}
+					accessed(block, wasCompressed);
+				}
+			}
+		}
+
+		@Override
+		public void putInt(long position, int val, long nestedId) {
+			Block block = getOrCreateBlock(getBlockIndex(position));
+			boolean wasCompressed;
+			synchronized (block) {
+				wasCompressed = block.isCompressed();
+				block.beginWrite();
+				putIntWithBlock(position, val, block, nestedId);
+				block.endWrite();
+			}
+			accessed(block, wasCompressed);
+		}
+
+		@Override
+		public void putInts(Iterable<IntEntry> values) {
+			PeekingIterator<IntEntry> iterator = Iterators.peekingIterator(values.iterator());
+			if (iterator.hasNext()) {
+				long position = iterator.peek().getPosition();
+				while (iterator.hasNext()) {
+					int currentBlockIndex = getBlockIndex(position);
+					Block block = getOrCreateBlock(currentBlockIndex);
+					boolean wasCompressed;
+					synchronized (block) {
+						wasCompressed = block.isCompressed();
+						block.beginWrite();
+						while (iterator.hasNext()) {
+							position = iterator.peek().getPosition();
+							if (getBlockIndex(position) == currentBlockIndex) {
+								IntEntry val = iterator.next();
+								putIntWithBlock(position, val.getValue(), block, val.getNestedId());
+							} else {
+								break;
+							}
+						}
+						block.endWrite();
+					}
+					accessed(block, wasCompressed);
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * {@link Volume} storing its {@link Block}s as byte arrays on the heap.
+	 */
+	static final class HeapVolume extends BlockVolume {
+
+		HeapVolume(int initalBlocks, int blockShift, Mode mode) {
+			this(initalBlocks, blockShift, mode, null);
+		}
+
+		HeapVolume(int initalBlocks, int blockShift, Mode mode, BlockCache cache) {
+			super(initalBlocks, blockShift, mode, cache);
+		}
+
+		@Override
+		protected Block newBlock(int blockSize, Mode mode) {
+			switch (mode) {
+				case INT :
+					return new PackedIntBlock(blockSize);
+				case LONG :
+					return new PackedLongBlock(blockSize);
+				default:
+					return new HeapBlock(blockSize, mode);
+			}
+		}
+
+	}
+
+	/**
+	 * {@link Volume} storing its {@link Block}s in direct {@link ByteBuffer}s
+	 * outside of the heap. Only the block table is kept on the heap, which
+	 * reduces the work of the garbage collector for large logs.
+	 */
+	static final class DirectVolume extends BlockVolume {
+
+		DirectVolume(int initalBlocks, int blockShift, Mode mode) {
+			this(initalBlocks, blockShift, mode, null);
+		}
+
+		DirectVolume(int initalBlocks, int blockShift, Mode mode, BlockCache cache) {
+			super(initalBlocks, blockShift, mode, cache);
+		}
+
+		DirectVolume(Block[] blocks, int blockShift, Mode mode, BlockCache cache) {
+			super(blocks, blockShift, mode, cache);
+		}
+
+		@Override
+		protected Block newBlock(int blockSize, Mode mode) {
+			return new DirectBlock(blockSize, mode);
+		}
+
+	}
+
+	/**
+	 * Read-only view of a {@link BlockVolume} created by
+	 * {@link InMemoryStore#freeze()}. The sealed blocks keep their encoding
+	 * and their on-heap or off-heap storage. Reads of decompressed blocks do
+	 * not lock, compressed blocks are decompressed within the budget of the
+	 * {@link BlockCache} as before. The volume never grows, reads beyond its
+	 * size return the default value and all modifications fail.
+	 */
+	static final class FrozenVolume implements Volume {
+
+		private final BlockVolume volume;
+		private final long size;
+
+		FrozenVolume(BlockVolume volume) {
+			super();
+			this.volume = volume;
+			this.size = volume.getSize();
+		}
+
+		Mode getMode() {
+			return volume.getMode();
+		}
+
+		int getBlockShift() {
+			return volume.getBlockShift();
+		}
+
+		/**
+		 * @return the blocks of the volume, these need to be synchronized on
+		 *         before being accessed
+		 */
+		Block[] getBlocks() {
+			return volume.getBlocks();
+		}
+
+		private boolean isInRange(long position) {
+			return position >= 0 && position < size;
+		}
+
+		@Override
+		public boolean hasValue(long position) {
+			return isInRange(position) && volume.hasValue(position);
+		}
+
+		@Override
 		public boolean hasNested(long position) {
-			Block block = getBlock(getBlockIndex(position));
-			if (block != null) {
-				synchronized (block) {
-					return block.hasNestedFlag(getPositionInBlock(position));
+			return isInRange(position) && volume.hasNested(position);
+		}
+
+		@Override
+		public int getInt(long position) {
+			return isInRange(position) ? volume.getInt(position) : 0;
+		}
+
+		@Override
+		public long getLong(long position) {
+			return isInRange(position) ? volume.getLong(position) : 0;
+		}
+
+		@Override
+		public UUID getUUID(long position) {
+			return isInRange(position) ? volume.getUUID(position) : new UUID(0, 0);
+		}
+
+		@Override
+		public boolean getBoolean(long position) {
+			return isInRange(position) && volume.getBoolean(position);
+		}
+
+		private static UnsupportedOperationException frozen() {
+			return new UnsupportedOperationException("The store is frozen and cannot be modified.");
+		}
+
+		@Override
+		public void putInt(long position, int val, long nestedId) {
+			throw frozen();
+		}
+
+		@Override
+		public void putInts(Iterable<IntEntry> values) {
+			throw frozen();
+		}
+
+		@Override
+		public void putLong(long position, long val, long nestedId) {
+			throw frozen();
+		}
+
+		@Override
+		public void putLongs(Iterable<LongEntry> values) {
+			throw frozen();
+		}
+
+		@Override
+		public void putUUID(long position, UUID val, long nestedId) {
+			throw frozen();
+		}
+
+		@Override
+		public void putUUIDs(Iterable<UUIDEntry> values) {
+			throw frozen();
+		}
+
+		@Override
+		public void putBoolean(long position, boolean val, long nestedId) {
+			throw frozen();
+		}
+
+		@Override
+		public void putBooleans(Iterable<BooleanEntry> values) {
+			throw frozen();
+		}
+
+		@Override
+		public void remove(long position) {
+			throw frozen();
+		}
+
+		// (De)compression does not change the values
+
+		@Override
+		public void compressStorage() {
+			volume.compressStorage();
+		}
+
+		@Override
+		public void decompressStorage() {
+			volume.decompressStorage();
+		}
+
+		@Override
+		public void compressBlock(long position) {
+			if (isInRange(position)) {
+				volume.compressBlock(position);
+			}
+		}
+
+		@Override
+		public void decompressBlock(long position) {
+			if (isInRange(position)) {
+				volume.decompressBlock(position);
+			}
+		}
+
+		@Override
+		public void trimToSize() {
+		}
+
+	}
+
+	/**
+	 * {@link Volume} for rarely populated attributes. Each block only stores
+	 * the positions that have a value as a sorted array together with the
+	 * values. Blocks are immutable and replaced on every write, which is cheap
+	 * as they only hold few entries. Readers, therefore, do not need to
+	 * synchronize.
+	 */
+	static final class SparseVolume implements Volume {
+
+		private static final class SparseBlock {
+
+			private static final SparseBlock EMPTY = new SparseBlock(new int[0], new long[0]);
+
+			private final int[] keys; // position in block << 1 | nested flag, sorted
+			private final long[] values; // stride values per key
+
+			private SparseBlock(int[] keys, long[] values) {
+				this.keys = keys;
+				this.values = values;
+			}
+
+			private int indexOf(int positionInBlock) {
+				int low = 0;
+				int high = keys.length - 1;
+				while (low <= high) {
+					int mid = (low + high) >>> 1;
+					int midPosition = keys[mid] >>> 1;
+					if (midPosition < positionInBlock) {
+						low = mid + 1;
+					} else if (midPosition > positionInBlock) {
+						high = mid - 1;
+					} else {
+						return mid;
+					}
+				}
+				return -(low + 1);
+			}
+
+			private SparseBlock put(int positionInBlock, boolean nested, long value1, long value2, int stride) {
+				int index = indexOf(positionInBlock);
+				int[] newKeys;
+				long[] newValues;
+				if (index >= 0) {
+					newKeys = keys.clone();
+					newValues = values.clone();
+				} else {
+					index = -(index + 1);
+					newKeys = new int[keys.length + 1];
+					System.arraycopy(keys, 0, newKeys, 0, index);
+					System.arraycopy(keys, index, newKeys, index + 1, keys.length - index);
+					newValues = new long[values.length + stride];
+					System.arraycopy(values, 0, newValues, 0, index * stride);
+					System.arraycopy(values, index * stride, newValues, (index + 1) * stride,
+							values.length - index * stride);
+				}
+				newKeys[index] = (positionInBlock << 1) | (nested ? 1 : 0);
+				newValues[index * stride] = value1;
+				if (stride == 2) {
+					newValues[index * stride + 1] = value2;
+				}
+				return new SparseBlock(newKeys, newValues);
+			}
+
+			private SparseBlock remove(int positionInBlock, int stride) {
+				int index = indexOf(positionInBlock);
+				if (index < 0) {
+					return this;
+				}
+				int[] newKeys = new int[keys.length - 1];
+				System.arraycopy(keys, 0, newKeys, 0, index);
+				System.arraycopy(keys, index + 1, newKeys, index, keys.length - index - 1);
+				long[] newValues = new long[values.length - stride];
+				System.arraycopy(values, 0, newValues, 0, index * stride);
+				System.arraycopy(values, (index + 1) * stride, newValues, index * stride,
+						values.length - (index + 1) * stride);
+				return new SparseBlock(newKeys, newValues);
+			}
+
+		}
+
+		private final Mode mode;
+		private final int blockShift;
+		private final int stride;
+
+		private volatile AtomicReferenceArray<SparseBlock> blocks; // grown while holding the lock of this volume
+
+		SparseVolume(int initialBlocks, int blockShift, Mode mode) {
+			super();
+			this.mode = mode;
+			this.blockShift = blockShift;
+			this.stride = mode == Mode.UUID ? 2 : 1;
+			this.blocks = new AtomicReferenceArray<>(initialBlocks);
+		}
+
+		Mode getMode() {
+			return mode;
+		}
+
+		int getBlockShift() {
+			return blockShift;
+		}
+
+		/**
+		 * @return the number of positions covered by this volume
+		 */
+		long getSize() {
+			return (long) blocks.length() << blockShift;
+		}
+
+		/**
+		 * @return the number of positions with a value
+		 */
+		long countValues() {
+			AtomicReferenceArray<SparseBlock> currentBlocks = blocks;
+			long count = 0;
+			for (int i = 0; i < currentBlocks.length(); i++) {
+				SparseBlock block = currentBlocks.get(i);
+				if (block != null) {
+					count += block.keys.length;
 				}
-			} else {
-				return false;
 			}
+			return count;
 		}
 
-		@Override
-		public boolean getBoolean(long position) {
-			Block block = getOrCreateBlock(getBlockIndex(position));
-			synchronized (block) {
-				int localPosition = getPositionInBlock(position);
-				int byteIndex = (localPosition >> 3); // DIV 8
-				int bitIndex = localPosition & 7; // MOD 8
-				byte b = block.get(byteIndex);
-				return 0 != (b & (1 << bitIndex)); // AND with shifted mask 
-			}
+		/**
+		 * @return newly allocated uncompressed {@link Block}s with the content
+		 *         of this volume
+		 */
+		Block[] toBlocks() {
+			HeapVolume volume = new HeapVolume(blocks.length(), blockShift, mode);
+			copyValues(this, volume, mode, getSize());
+			return volume.getBlocks();
 		}
 
-		@Override
-		public UUID getUUID(long position) {
-			Block block = getOrCreateBlock(getBlockIndex(position));
-			synchronized (block) {
-				int pos1 = mode.shiftPosition(getPositionInBlock(position));
-				int pos2 = pos1 + 8;
-				return new UUID(block.getLong(pos1), block.getLong(pos2));
+		/**
+		 * Copies all values of the source volume up to the given size to the
+		 * target volume.
+		 */
+		static void copyValues(Volume source, Volume target, Mode mode, long size) {
+			for (long position = 0; position < size; position++) {
+				if (source.hasValue(position)) {
+					long nestedId = source.hasNested(position) ? position : -1;
+					switch (mode) {
+						case LONG :
+							target.putLong(position, source.getLong(position), nestedId);
+							break;
+						case UUID :
+							target.putUUID(position, source.getUUID(position), nestedId);
+							break;
+						case INT :
+							target.putInt(position, source.getInt(position), nestedId);
+							break;
+						case BOOLEAN :
+							target.putBoolean(position, source.getBoolean(position), nestedId);
+							break;
+					}
+				}
 			}
 		}
 
-		@Override
-		public long getLong(long position) {
-			Block block = getOrCreateBlock(getBlockIndex(position));
-			synchronized (block) {
-				return block.getLong(mode.shiftPosition(getPositionInBlock(position)));
+		private SparseBlock getBlock(long position) {
+			AtomicReferenceArray<SparseBlock> currentBlocks = blocks;
+			long blockIndex = position >> blockShift;
+			if (position >= 0 && blockIndex < currentBlocks.length()) {
+				SparseBlock block = currentBlocks.get((int) blockIndex);
+				if (block != null) {
+					return block;
+				}
 			}
+			return SparseBlock.EMPTY;
 		}
 
-		@Override
-		public int getInt(long position) {
-			Block block = getOrCreateBlock(getBlockIndex(position));
-			synchronized (block) {
-				return block.getInt(mode.shiftPosition(getPositionInBlock(position)));
+		private int getPositionInBlock(long position) {
+			return (int) (position & ((1 << blockShift) - 1));
+		}
+
+		private long getValue(long position, int offset) {
+			SparseBlock block = getBlock(position);
+			int index = block.indexOf(getPositionInBlock(position));
+			return index >= 0 ? block.values[index * stride + offset] : 0;
+		}
+
+		private synchronized void put(long position, long value1, long value2, long nestedId) {
+			int blockIndex = (int) (position >> blockShift);
+			AtomicReferenceArray<SparseBlock> currentBlocks = blocks;
+			if (blockIndex >= currentBlocks.length()) {
+				int newLength = Math.max(blockIndex + 1, (int) Math.ceil(currentBlocks.length() * 1.5));
+				AtomicReferenceArray<SparseBlock> newBlocks = new AtomicReferenceArray<>(newLength);
+				for (int i = 0; i < currentBlocks.length(); i++) {
+					newBlocks.set(i, currentBlocks.get(i));
+				}
+				blocks = newBlocks; // volatile ensures visibility
+				currentBlocks = newBlocks;
+			}
+			SparseBlock block = currentBlocks.get(blockIndex);
+			if (block == null) {
+				block = SparseBlock.EMPTY;
 			}
+			currentBlocks.set(blockIndex,
+					block.put(getPositionInBlock(position), nestedId != -1, value1, value2, stride));
 		}
 
-		//***************** PUT methods *************
+		@Override
+		public boolean hasValue(long position) {
+			return getBlock(position).indexOf(getPositionInBlock(position)) >= 0;
+		}
 
-		private void setFlags(Block block, long nestedId, int positionInBlock) {
-			block.setExistsFlag(positionInBlock, true);
-			block.setNestedFlag(positionInBlock, nestedId != -1);
+		@Override
+		public boolean hasNested(long position) {
+			SparseBlock block = getBlock(position);
+			int index = block.indexOf(getPositionInBlock(position));
+			return index >= 0 && (block.keys[index] & 1) != 0;
 		}
 
-		private void putIntWithBlock(long position, int val, Block block, long nestedId) {
-			int positionInBlock = getPositionInBlock(position);
-			block.putInt(mode.shiftPosition(positionInBlock), val);
-			setFlags(block, nestedId, positionInBlock);
+		@Override
+		public int getInt(long position) {
+			return (int) getValue(position, 0);
 		}
 
-		private void putLongWithBlock(long position, long val, Block block, long nestedId) {
-			int positionInBlock = getPositionInBlock(position);
-			block.putLong(mode.shiftPosition(positionInBlock), val);
-			setFlags(block, nestedId, positionInBlock);
+		@Override
+		public long getLong(long position) {
+			return getValue(position, 0);
 		}
 
-		private void putBooleanWithBlock(long position, boolean val, Block block, long nestedId) {
-			int positionInBlock = getPositionInBlock(position);
-			int byteIndex = (positionInBlock >> 3); // divide by 8
-			int bitIndex = positionInBlock & 7; // mod 8
-			byte b = block.get(byteIndex);
-			if (val) {
-				b |= (1 << bitIndex); // or with shifted mask	
+		@Override
+		public UUID getUUID(long position) {
+			SparseBlock block = getBlock(position);
+			int index = block.indexOf(getPositionInBlock(position));
+			if (index >= 0) {
+				return new UUID(block.values[index * 2], block.values[index * 2 + 1]);
 			} else {
-				b &= ~(1 << bitIndex); // or with shifted mask
+				return new UUID(0, 0);
 			}
-			block.put(byteIndex, b);
-			setFlags(block, nestedId, positionInBlock);
 		}
 
-		private void putUUIDWithBlock(long position, UUID val, Block block, long nestedId) {
-			int positionInBlock = getPositionInBlock(position);
-			int pos1 = mode.shiftPosition(positionInBlock);
-			int pos2 = pos1 + 8;
-			block.putLong(pos1, val.getMostSignificantBits());
-			block.putLong(pos2, val.getLeastSignificantBits());
-			setFlags(block, nestedId, positionInBlock);
+		@Override
+		public boolean getBoolean(long position) {
+			return getValue(position, 0) != 0;
 		}
 
-		//***************** PUT API method *************
+		@Override
+		public void putInt(long position, int val, long nestedId) {
+			put(position, val, 0, nestedId);
+		}
 
 		@Override
-		public void remove(long position) {
-			Block block = getOrCreateBlock(getBlockIndex(position));
-			synchronized (block) {
-				int positionInBlock = getPositionInBlock(position);
-				block.setExistsFlag(positionInBlock, false);
-				block.setNestedFlag(positionInBlock, false);
+		public synchronized void putInts(Iterable<IntEntry> values) {
+			for (IntEntry entry : values) {
+				put(entry.getPosition(), entry.getValue(), 0, entry.getNestedId());
 			}
 		}
 
 		@Override
-		public void putBoolean(long position, boolean val, long nestedId) {
-			Block block = getOrCreateBlock(getBlockIndex(position));
-			synchronized (block) {
-				putBooleanWithBlock(position, val, block, nestedId);
-			}
+		public void putLong(long position, long val, long nestedId) {
+			put(position, val, 0, nestedId);
 		}
 
 		@Override
-		public void putBooleans(Iterable<BooleanEntry> values) {
-			PeekingIterator<BooleanEntry> iterator = Iterators.peekingIterator(values.iterator());
-			if (iterator.hasNext()) {
-				long position = iterator.peek().getPosition();
-				while (iterator.hasNext()) {
-					int currentBlockIndex = getBlockIndex(position);
-					Block block = getOrCreateBlock(currentBlockIndex);
-					while (iterator.hasNext()) {
-						position = iterator.peek().getPosition();
-						if (getBlockIndex(position) == currentBlockIndex) {
-							BooleanEntry val = iterator.next();
-							putBooleanWithBlock(position, val.isValue(), block, val.getNestedId());
-						} else {
-							break;
-						}
-					}
-				}
+		public synchronized void putLongs(Iterable<LongEntry> values) {
+			for (LongEntry entry : values) {
+				put(entry.getPosition(), entry.getValue(), 0, entry.getNestedId());
 			}
 		}
 
 		@Override
 		public void putUUID(long position, UUID val, long nestedId) {
-			Block block = getOrCreateBlock(getBlockIndex(position));
-			synchronized (block) {
-				putUUIDWithBlock(position, val, block, nestedId);
-			}
+			put(position, val.getMostSignificantBits(), val.getLeastSignificantBits(), nestedId);
 		}
 
 		@Override
-		public void putUUIDs(Iterable<UUIDEntry> values) {
-			PeekingIterator<UUIDEntry> iterator = Iterators.peekingIterator(values.iterator());
-			if (iterator.hasNext()) {
-				long position = iterator.peek().getPosition();
-				while (iterator.hasNext()) {
-					int currentBlockIndex = getBlockIndex(position);
-					Block block = getOrCreateBlock(currentBlockIndex);
-					while (iterator.hasNext()) {
-						position = iterator.peek().getPosition();
-						if (getBlockIndex(position) == currentBlockIndex) {
-							UUIDEntry val = iterator.next();
-							putUUIDWithBlock(position, val.getValue(), block, val.getNestedId());
-						} else {
-							break;
-						}
-					}
-				}
+		public synchronized void putUUIDs(Iterable<UUIDEntry> values) {
+			for (UUIDEntry entry : values) {
+				UUID val = entry.getValue();
+				put(entry.getPosition(), val.getMostSignificantBits(), val.getLeastSignificantBits(),
+						entry.getNestedId());
 			}
 		}
 
 		@Override
-		public void putLong(long position, long val, long nestedId) {
-			Block block = getOrCreateBlock(getBlockIndex(position));
-			synchronized (block) {
-				putLongWithBlock(position, val, block, nestedId);
+		public void putBoolean(long position, boolean val, long nestedId) {
+			put(position, val ? 1 : 0, 0, nestedId);
+		}
+
+		@Override
+		public synchronized void putBooleans(Iterable<BooleanEntry> values) {
+			for (BooleanEntry entry : values) {
+				put(entry.getPosition(), entry.isValue() ? 1 : 0, 0, entry.getNestedId());
 			}
 		}
 
 		@Override
-		public void putLongs(Iterable<LongEntry> values) {
-			PeekingIterator<LongEntry> iterator = Iterators.peekingIterator(values.iterator());
-			if (iterator.hasNext()) {
-				long position = iterator.peek().getPosition();
-				while (iterator.hasNext()) {
-					int currentBlockIndex = getBlockIndex(position);
-					Block block = getOrCreateBlock(currentBlockIndex);
-					while (iterator.hasNext()) {
-						position = iterator.peek().getPosition();
-						if (getBlockIndex(position) == currentBlockIndex) {
-							LongEntry val = iterator.next();
-							putLongWithBlock(position, val.getValue(), block, val.getNestedId());
-						} else {
-							break;
-						}
-					}
+		public synchronized void remove(long position) {
+			int blockIndex = (int) (position >> blockShift);
+			if (blockIndex < blocks.length()) {
+				SparseBlock block = blocks.get(blockIndex);
+				if (block != null) {
+					SparseBlock newBlock = block.remove(getPositionInBlock(position), stride);
+					blocks.set(blockIndex, newBlock.keys.length == 0 ? null : newBlock);
 				}
 			}
 		}
 
 		@Override
-		public void putInt(long position, int val, long nestedId) {
-			Block block = getOrCreateBlock(getBlockIndex(position));
-			synchronized (block) {
-				putIntWithBlock(position, val, block, nestedId);
+		public void compressStorage() {
+		}
+
+		@Override
+		public void decompressStorage() {
+		}
+
+		@Override
+		public void compressBlock(long position) {
+		}
+
+		@Override
+		public void decompressBlock(long position) {
+		}
+
+		@Override
+		public synchronized void trimToSize() {
+			AtomicReferenceArray<SparseBlock> currentBlocks = blocks;
+			int length = currentBlocks.length();
+			while (length > 1 && currentBlocks.get(length - 1) == null) {
+				length--;
+			}
+			if (length < currentBlocks.length()) {
+				AtomicReferenceArray<SparseBlock> newBlocks = new AtomicReferenceArray<>(length);
+				for (int i = 0; i < length; i++) {
+					newBlocks.set(i, currentBlocks.get(i));
+				}
+				blocks = newBlocks; // volatile ensures visibility
+			}
+		}
+
+	}
+
+	/**
+	 * Where the {@link Volume}s of an {@link InMemoryStore} are allocated.
+	 */
+	enum VolumeType {
+		HEAP {
+
+			Volume createVolume(int initialBlocks, int blockShift, Mode mode, BlockCache cache) {
+				return new HeapVolume(initialBlocks, blockShift, mode, cache);
+			}
+
+		},
+		OFF_HEAP {
+
+			Volume createVolume(int initialBlocks, int blockShift, Mode mode, BlockCache cache) {
+				return new DirectVolume(initialBlocks, blockShift, mode, cache);
+			}
+
+		};
+
+		abstract Volume createVolume(int initialBlocks, int blockShift, Mode mode, BlockCache cache);
+
+	}
+
+	static final class AttributeStorage {
+
+		private final int attributeKey;
+		private final Class<? extends XAttribute> type;
+		private final XExtension extension;
+
+		private final Volume volume;
+
+		public AttributeStorage(int attributeKey, Class<? extends XAttribute> type, XExtension extension,
+				Volume volume) {
+			this.attributeKey = attributeKey;
+			this.type = type;
+			this.extension = extension;
+			this.volume = volume;
+		}
+
+		public Volume getVolume() {
+			return volume;
+		}
+
+		public Class<? extends XAttribute> getType() {
+			return type;
+		}
+
+		public XExtension getExtension() {
+			return extension;
+		}
+
+		public int getAttributeKey() {
+			return attributeKey;
+		}
+
+	}
+
+	/**
+	 * Keeps track of the attribute keys that are present for each object. All
+	 * objects with the same set of keys share one immutable shape, so only the
+	 * shape id needs to be stored per object. Transitions between shapes are
+	 * cached as most objects of a log are built up in the same way. Cached
+	 * transitions are looked up without locking, only registering a new shape
+	 * or transition locks the index. Updates of the shape id of an object are
+	 * guarded by one of several striped locks.
+	 */
+	static final class ShapeIndex {
+
+		private static final int EMPTY_SHAPE = 0;
+		private static final int OBJECT_LOCK_STRIPES = 64;
+
+		private final Volume shapeIds;
+		private final Object[] objectLocks = new Object[OBJECT_LOCK_STRIPES];
+
+		// keyed by the shape id in the upper and the attribute key in the lower 32 bits
+		private final NonBlockingHashMapLong<Integer> addTransitions = new NonBlockingHashMapLong<>();
+		private final NonBlockingHashMapLong<Integer> removeTransitions = new NonBlockingHashMapLong<>();
+
+		// guarded by this, only the shapes array is read without the lock
+		private final Map<List<Integer>, Integer> shapeLookup = new HashMap<>();
+		private volatile int[][] shapes = new int[8][];
+		private int shapeCount = 0;
+
+		ShapeIndex(Volume shapeIds) {
+			this(shapeIds, new int[][] { new int[0] });
+		}
+
+		ShapeIndex(Volume shapeIds, int[][] initialShapes) {
+			super();
+			this.shapeIds = shapeIds;
+			for (int i = 0; i < objectLocks.length; i++) {
+				objectLocks[i] = new Object();
+			}
+			for (int[] keys : initialShapes) {
+				registerShape(keys);
+			}
+		}
+
+		Volume getShapeIds() {
+			return shapeIds;
+		}
+
+		/**
+		 * @return all shapes indexed by their id
+		 */
+		synchronized int[][] getShapes() {
+			return Arrays.copyOf(shapes, shapeCount);
+		}
+
+		/**
+		 * @param objectKey
+		 * @return the sorted attribute keys present for the object, must not be
+		 *         modified
+		 */
+		int[] getKeys(long objectKey) {
+			return getShape(getShapeId(objectKey));
+		}
+
+		private int getShapeId(long objectKey) {
+			if (shapeIds.hasValue(objectKey)) {
+				return shapeIds.getInt(objectKey);
+			} else {
+				return EMPTY_SHAPE;
+			}
+		}
+
+		private int[] getShape(int shapeId) {
+			int[][] currentShapes = shapes;
+			if (shapeId < currentShapes.length && currentShapes[shapeId] != null) {
+				return currentShapes[shapeId];
+			}
+			synchronized (this) {
+				return shapes[shapeId];
 			}
 		}
 
-		@Override
-		public void putInts(Iterable<IntEntry> values) {
-			PeekingIterator<IntEntry> iterator = Iterators.peekingIterator(values.iterator());
-			if (iterator.hasNext()) {
-				long position = iterator.peek().getPosition();
-				while (iterator.hasNext()) {
-					int currentBlockIndex = getBlockIndex(position);
-					Block block = getOrCreateBlock(currentBlockIndex);
-					while (iterator.hasNext()) {
-						position = iterator.peek().getPosition();
-						if (getBlockIndex(position) == currentBlockIndex) {
-							IntEntry val = iterator.next();
-							putIntWithBlock(position, val.getValue(), block, val.getNestedId());
-						} else {
-							break;
-						}
-					}
+		private Object getObjectLock(long objectKey) {
+			return objectLocks[(int) (objectKey ^ (objectKey >>> 32)) & (OBJECT_LOCK_STRIPES - 1)];
+		}
+
+		void addKey(long objectKey, int attributeKey) {
+			synchronized (getObjectLock(objectKey)) {
+				int shapeId = getShapeId(objectKey);
+				int newShapeId = transition(addTransitions, shapeId, attributeKey, true);
+				if (newShapeId != shapeId) {
+					shapeIds.putInt(objectKey, newShapeId, -1);
 				}
 			}
 		}
 
-	}
-
-	static final class AttributeStorage {
-
-		private final int attributeKey;
-		private final Class<? extends XAttribute> type;
-		private final XExtension extension;
-
-		private final Volume volume;
+		void removeKey(long objectKey, int attributeKey) {
+			synchronized (getObjectLock(objectKey)) {
+				int shapeId = getShapeId(objectKey);
+				int newShapeId = transition(removeTransitions, shapeId, attributeKey, false);
+				if (newShapeId != shapeId) {
+					shapeIds.putInt(objectKey, newShapeId, -1);
+				}
+			}
+		}
 
-		public AttributeStorage(int attributeKey, Class<? extends XAttribute> type, XExtension extension,
-				Volume volume) {
-			this.attributeKey = attributeKey;
-			this.type = type;
-			this.extension = extension;
-			this.volume = volume;
+		void clear(long objectKey) {
+			synchronized (getObjectLock(objectKey)) {
+				shapeIds.remove(objectKey);
+			}
 		}
 
-		public Volume getVolume() {
-			return volume;
+		private int transition(NonBlockingHashMapLong<Integer> transitions, int shapeId, int attributeKey,
+				boolean add) {
+			long transitionKey = ((long) shapeId << 32) | (attributeKey & 0xFFFFFFFFL);
+			Integer newShapeId = transitions.get(transitionKey);
+			if (newShapeId == null) {
+				// threads racing for the same transition register the same shape
+				newShapeId = registerTransition(shapeId, attributeKey, add);
+				transitions.put(transitionKey, newShapeId);
+			}
+			return newShapeId;
 		}
 
-		public Class<? extends XAttribute> getType() {
-			return type;
+		private synchronized int registerTransition(int shapeId, int attributeKey, boolean add) {
+			int[] keys = shapes[shapeId];
+			int index = Arrays.binarySearch(keys, attributeKey);
+			if (add && index < 0) {
+				int insertAt = -(index + 1);
+				int[] newKeys = new int[keys.length + 1];
+				System.arraycopy(keys, 0, newKeys, 0, insertAt);
+				newKeys[insertAt] = attributeKey;
+				System.arraycopy(keys, insertAt, newKeys, insertAt + 1, keys.length - insertAt);
+				return getOrRegisterShape(newKeys);
+			} else if (!add && index >= 0) {
+				int[] newKeys = new int[keys.length - 1];
+				System.arraycopy(keys, 0, newKeys, 0, index);
+				System.arraycopy(keys, index + 1, newKeys, index, keys.length - index - 1);
+				return getOrRegisterShape(newKeys);
+			} else {
+				return shapeId;
+			}
 		}
 
-		public XExtension getExtension() {
-			return extension;
+		private int getOrRegisterShape(int[] keys) {
+			Integer shapeId = shapeLookup.get(Ints.asList(keys));
+			if (shapeId != null) {
+				return shapeId;
+			}
+			return registerShape(keys);
 		}
 
-		public int getAttributeKey() {
-			return attributeKey;
+		private int registerShape(int[] keys) {
+			int shapeId = shapeCount++;
+			int[][] currentShapes = shapes;
+			if (shapeId == currentShapes.length) {
+				currentShapes = Arrays.copyOf(currentShapes, currentShapes.length * 2);
+			}
+			currentShapes[shapeId] = keys;
+			shapes = currentShapes; // volatile ensures visibility
+			shapeLookup.put(Ints.asList(keys), shapeId);
+			return shapeId;
 		}
 
 	}
 
 	static final class AttributeStoreImpl implements AttributeStore<ExternalAttribute> {
 
-		private final StringPool literalPool;
+		private volatile StringPool literalPool;
 		private final Store store;
 		private final Store nestedStore;
+		private volatile ShapeIndex shapeIndex;
+		private final BlockCache cache;
+
+		private volatile boolean frozen = false;
 
-		AttributeStoreImpl(int blockSize, int initialBlocks, StringPool literalPool) {
-			this.store = new Store((int) Math.log(blockSize), initialBlocks);
-			this.nestedStore = new Store((int) Math.log(blockSize), 0);
+		AttributeStoreImpl(int blockSize, int initialBlocks, VolumeType volumeType, StringPool literalPool,
+				BlockCache cache) {
+			this.store = new Store((int) Math.log(blockSize), initialBlocks, volumeType, cache);
+			this.nestedStore = new Store((int) Math.log(blockSize), 0, volumeType, cache);
+			this.shapeIndex = new ShapeIndex(
+					volumeType.createVolume(initialBlocks, (int) Math.log(blockSize), Mode.INT, cache));
 			this.literalPool = literalPool;
+			this.cache = cache;
 		}
 
 		private AttributeStorage getAttributeStorage(int attributeKey, ExternalAttribute attribute) {
@@ -915,6 +3082,67 @@ public class InMemoryStore extends ExternalStoreAbstract {
 			return store.getStorage(attributeKey);
 		}
 
+		Store getStore() {
+			return store;
+		}
+
+		Store getNestedStore() {
+			return nestedStore;
+		}
+
+		ShapeIndex getShapeIndex() {
+			return shapeIndex;
+		}
+
+		void setShapeIndex(ShapeIndex shapeIndex) {
+			this.shapeIndex = shapeIndex;
+		}
+
+		private void checkNotFrozen() {
+			if (frozen) {
+				throw new UnsupportedOperationException("The store is frozen and cannot be modified.");
+			}
+		}
+
+		/**
+		 * Seals all volumes and wraps them in a {@link FrozenVolume}. Readers
+		 * that are still using an old volume are not affected as it shares the
+		 * blocks and is not modified anymore.
+		 */
+		void freeze() {
+			adaptVolumes();
+			frozen = true;
+			for (AttributeStorage storage : store) {
+				store.putStorage(freeze(storage));
+			}
+			for (AttributeStorage storage : nestedStore) {
+				nestedStore.putStorage(freeze(storage));
+			}
+			shapeIndex = new ShapeIndex(freeze(shapeIndex.getShapeIds()), shapeIndex.getShapes());
+		}
+
+		/**
+		 * Replaces the literal pool with a compacted pool that returns the
+		 * same indices.
+		 */
+		void compactLiteralPool(StringPool compactedPool) {
+			literalPool = compactedPool;
+		}
+
+		private static AttributeStorage freeze(AttributeStorage storage) {
+			return new AttributeStorage(storage.getAttributeKey(), storage.getType(), storage.getExtension(),
+					freeze(storage.getVolume()));
+		}
+
+		private static Volume freeze(Volume volume) {
+			if (volume instanceof BlockVolume) {
+				volume.trimToSize();
+				return new FrozenVolume((BlockVolume) volume);
+			} else {
+				return volume;
+			}
+		}
+
 		@Override
 		public ExternalAttribute getValue(int attributeKey, long objectKey) {
 			AttributeStorage storage = getStorage(attributeKey);
@@ -969,6 +3197,7 @@ public class InMemoryStore extends ExternalStoreAbstract {
 
 		@Override
 		public ExternalAttribute putValue(int attributeKey, long objectKey, ExternalAttribute value) {
+			checkNotFrozen();
 			AttributeStorage storage = getAttributeStorage(attributeKey, value);
 			if (storage != null) {
 				ExternalAttribute oldValue = null;
@@ -979,6 +3208,7 @@ public class InMemoryStore extends ExternalStoreAbstract {
 					storeValue(attributeKey, objectKey, storage, value);
 				} else {
 					storage.getVolume().remove(objectKey);
+					shapeIndex.removeKey(objectKey, attributeKey);
 				}
 				return oldValue;
 			} else {
@@ -988,6 +3218,7 @@ public class InMemoryStore extends ExternalStoreAbstract {
 
 		@Override
 		public void setValue(int attributeKey, long objectKey, ExternalAttribute value) {
+			checkNotFrozen();
 			AttributeStorage attributeStorage = getAttributeStorage(attributeKey, value);
 			if (attributeStorage != null) {
 				storeValue(attributeKey, objectKey, attributeStorage, value);	
@@ -996,6 +3227,7 @@ public class InMemoryStore extends ExternalStoreAbstract {
 
 		@Override
 		public void setValues(int attributeKey, Iterable<ExternalAttribute> values) {
+			checkNotFrozen();
 			assert Iterables.size(values) > 0;
 			AttributeStorage storage = getAttributeStorage(attributeKey, Iterables.getFirst(values, null));
 			Class<? extends XAttribute> type = storage.getType();
@@ -1006,7 +3238,7 @@ public class InMemoryStore extends ExternalStoreAbstract {
 
 					public IntEntry apply(final ExternalAttribute a) {
 						prepareEntry(entry, a);
-						entry.setValue(literalPool.put(getAsString(a)));
+						entry.setValue(literalPool.intern(getAsString(a)));
 						return entry;
 					}
 
@@ -1071,7 +3303,7 @@ public class InMemoryStore extends ExternalStoreAbstract {
 			} else {
 				throw new XESLiteException("Unsupported attribute type " + type.getSimpleName());
 			}
-			batchPutNested(attributeKey, values);
+			batchPutShapesAndNested(attributeKey, values);
 		}
 
 		private static String getAsString(final ExternalAttribute a) {
@@ -1110,10 +3342,11 @@ public class InMemoryStore extends ExternalStoreAbstract {
 			}
 		}
 
-		private void batchPutNested(int attributeKey, Iterable<ExternalAttribute> values) {
+		private void batchPutShapesAndNested(int attributeKey, Iterable<ExternalAttribute> values) {
 			for (ExternalAttribute a : values) {
-				long nestedId = getNestedId(a);
-				storeNested(attributeKey, a.getOwner().getExternalId(), nestedId);
+				long objectKey = a.getOwner().getExternalId();
+				shapeIndex.addKey(objectKey, attributeKey);
+				storeNested(attributeKey, objectKey, getNestedId(a));
 			}
 		}
 
@@ -1131,7 +3364,7 @@ public class InMemoryStore extends ExternalStoreAbstract {
 			Volume vol = storage.getVolume();
 			long nestedId = getNestedId(a);
 			if (XAttributeLiteral.class.isAssignableFrom(attributeClass)) {
-				vol.putInt(objectKey, literalPool.put(getAsString(a)), nestedId);
+				vol.putInt(objectKey, literalPool.intern(getAsString(a)), nestedId);
 			} else if (XAttributeDiscrete.class.isAssignableFrom(attributeClass)) {
 				vol.putLong(objectKey, getAsLong(a), nestedId);
 			} else if (XAttributeContinuous.class.isAssignableFrom(attributeClass)) {
@@ -1148,6 +3381,7 @@ public class InMemoryStore extends ExternalStoreAbstract {
 				throw new UnsupportedOperationException();
 			}
 			storeNested(attributeKey, objectKey, nestedId);
+			shapeIndex.addKey(objectKey, attributeKey);
 		}
 
 		private void storeNested(int attributeKey, long objectKey, long nestedId) {
@@ -1180,10 +3414,15 @@ public class InMemoryStore extends ExternalStoreAbstract {
 			}
 		}
 
+		/**
+		 * Only visits the columns of the attribute keys in the shape of the
+		 * object.
+		 */
 		private final class ValueIter implements Iterator<ExternalAttribute> {
 
 			private final long objectKey;
-			private final Iterator<AttributeStorage> storageIter;
+			private final int[] attributeKeys;
+			private int keyIndex = 0;
 
 			private ExternalAttribute current;
 
@@ -1193,7 +3432,7 @@ public class InMemoryStore extends ExternalStoreAbstract {
 
 			private ValueIter(Long objectKey) {
 				this.objectKey = objectKey;
-				this.storageIter = store.iterator();
+				this.attributeKeys = shapeIndex.getKeys(objectKey);
 				this.current = moveToNext();
 			}
 
@@ -1202,9 +3441,9 @@ public class InMemoryStore extends ExternalStoreAbstract {
 			}
 
 			private ExternalAttribute moveToNext() {
-				while (storageIter.hasNext()) {
-					AttributeStorage nextStorage = storageIter.next();
-					if (nextStorage.getVolume().hasValue(objectKey)) {
+				while (keyIndex < attributeKeys.length) {
+					AttributeStorage nextStorage = store.getStorage(attributeKeys[keyIndex++]);
+					if (nextStorage != null && nextStorage.getVolume().hasValue(objectKey)) {
 						ExternalAttribute value = retrieveValue(objectKey, nextStorage);
 						assert value != null;
 						currentIndex = nextStorage.getAttributeKey();
@@ -1240,72 +3479,66 @@ public class InMemoryStore extends ExternalStoreAbstract {
 
 		@Override
 		public void clear(long objectKey) {
-			Iterator<ExternalAttribute> iter = iterateValues(objectKey);
-			while (iter.hasNext()) {
-				iter.remove();
+			checkNotFrozen();
+			for (int attributeKey : shapeIndex.getKeys(objectKey)) {
+				AttributeStorage storage = store.getStorage(attributeKey);
+				if (storage != null) {
+					storage.getVolume().remove(objectKey);
+				}
 			}
+			shapeIndex.clear(objectKey);
 		}
 
 		@Override
 		public int size(long objectKey) {
-			return Iterators.size(iterateValues(objectKey));
+			return shapeIndex.getKeys(objectKey).length;
 		}
 
 		@Override
 		public void startPump() {
 		}
 
-		private static final class CompressionWorker implements Runnable {
-
-			private final WeakReference<Store> attributesRef;
-			private final ScheduledExecutorService service;
-
-			private CompressionWorker(Store attributes, ScheduledExecutorService service) {
-				super();
-				this.service = service;
-				attributesRef = new WeakReference<Store>(attributes);
-			}
-
-			public void run() {
-				Store attributes = attributesRef.get();
-				if (attributes != null) {
-					for (AttributeStorage meta : attributes) {
-						if (!Thread.currentThread().isInterrupted()) {
-							meta.getVolume().compressStorage();
-						}
-					}
-				} else {
-					service.shutdownNow();
-				}
-			}
-		}
-
-		private final static ThreadFactoryBuilder COMPRESSION_THREAD_BUILDER = new ThreadFactoryBuilder()
-				.setDaemon(true).setNameFormat("XESLite-InMemoryStore-Compression-Daemon-Thread-%d");
-		private int compressionInterval = 30;
-		private ScheduledFuture<?> compressionWorker;
-
 		@Override
 		public void finishPump() {
 			trimToSize();
+			adaptVolumes();
 			startCompression();
 		}
 
+		/**
+		 * Switches rarely populated volumes to a {@link SparseVolume} and back.
+		 * Only done at the end of a pump and when freezing, as copying the
+		 * values of a volume decompresses all of its blocks.
+		 */
+		private void adaptVolumes() {
+			if (!frozen) {
+				store.adaptVolumes();
+				nestedStore.adaptVolumes();
+			}
+		}
+
+		/**
+		 * Compresses all blocks and, from then on, only keeps the blocks that
+		 * fit into the budget of the {@link BlockCache} decompressed.
+		 */
 		@Override
 		public void startCompression() {
-			if (compressionWorker == null) {
-				ScheduledExecutorService service = Executors.newScheduledThreadPool(1,
-						COMPRESSION_THREAD_BUILDER.build());
-				compressionWorker = service.scheduleAtFixedRate(new CompressionWorker(store, service), 0,
-						compressionInterval, TimeUnit.SECONDS);
+			if (frozen || cache.isEnabled()) {
+				return;
+			}
+			for (AttributeStorage storage : store) {
+				storage.getVolume().compressStorage();
 			}
+			for (AttributeStorage storage : nestedStore) {
+				storage.getVolume().compressStorage();
+			}
+			shapeIndex.getShapeIds().compressStorage();
+			cache.enable();
 		}
 
 		@Override
 		public void stopCompression() {
-			if (compressionWorker != null) {
-				compressionWorker.cancel(true);
-			}
+			cache.disable();
 		}
 
 		public void trimToSize() {
@@ -1315,6 +3548,7 @@ public class InMemoryStore extends ExternalStoreAbstract {
 			for (AttributeStorage storage : nestedStore) {
 				storage.getVolume().trimToSize();
 			}
+			shapeIndex.getShapeIds().trimToSize();
 		}
 
 		public Map<Integer, Class<?>> getAttributeTypes() {
@@ -1381,21 +3615,132 @@ public class InMemoryStore extends ExternalStoreAbstract {
 
 	private static final int BLOCK_SIZE = 16384;
 	private static final int INITITAL_BLOCK_COUNT = 8;
+	private static final long DEFAULT_BLOCK_CACHE_SIZE = 64 * 1024 * 1024;
 
-	private final AttributeStore<ExternalAttribute> store;
+	private final AttributeStoreImpl store;
+	private final BlockCache blockCache;
 
-	private final IdFactory idFactory;
+	private final IdFactorySeq idFactory;
+	private final IdFactory pumpIdFactory = new PumpIdFactory();
 	private final StringPool keyPool;
-	private final StringPool literalPool;
+	private volatile StringPool literalPool;
+	private final boolean compactLiteralPool;
+
+	private final File snapshotFile;
+	private final InMemoryStoreSnapshot snapshot;
+
+	private volatile PumpService pumpService;
+
+	public static final class Builder {
+
+		private VolumeType volumeType = VolumeType.HEAP;
+		private File snapshotFile;
+		private long blockCacheSize = DEFAULT_BLOCK_CACHE_SIZE;
+		private boolean compactLiteralPool = false;
+
+		/**
+		 * Stores the attribute columns in direct memory outside of the Java
+		 * heap. Only meta-data about the columns remains on the heap.
+		 * 
+		 * @return this builder
+		 */
+		public Builder withOffHeapStorage() {
+			this.volumeType = VolumeType.OFF_HEAP;
+			return this;
+		}
+
+		/**
+		 * Uses the supplied file to save the store with
+		 * {@link InMemoryStore#saveLogStructure(XLog)}. In case the file
+		 * already exists, the store is opened from the snapshot in the file
+		 * and the log can be retrieved with
+		 * {@link InMemoryStore#loadLogStructure(XFactoryExternalStore)}. The
+		 * attribute columns of the snapshot are memory-mapped.
+		 * 
+		 * @param snapshotFile
+		 * @return this builder
+		 */
+		public Builder withSnapshot(File snapshotFile) {
+			this.snapshotFile = snapshotFile;
+			return this;
+		}
+
+		/**
+		 * Sets the number of bytes of decompressed blocks that are kept after
+		 * the data has been committed. Blocks that are not used recently are
+		 * compressed as soon as this budget is exceeded. Default is 64 MB.
+		 * 
+		 * @param bytes
+		 * @return this builder
+		 */
+		public Builder withBlockCacheSize(long bytes) {
+			this.blockCacheSize = bytes;
+			return this;
+		}
+
+		/**
+		 * Compacts the pool of literal values into a perfect-hash automaton
+		 * when the store is frozen with {@link InMemoryStore#freeze()}. This
+		 * saves a lot of memory for literals with common prefixes or suffixes,
+		 * such as URLs or ticket numbers, at the cost of slower lookups.
+		 * 
+		 * @return this builder
+		 */
+		public Builder withCompactLiteralPool() {
+			this.compactLiteralPool = true;
+			return this;
+		}
+
+		public InMemoryStore build() {
+			return new InMemoryStore(this);
+		}
 
-	private PumpService pumpService;
+	}
 
 	public InMemoryStore() {
+		this(new Builder());
+	}
+
+	protected InMemoryStore(Builder builder) {
 		super();
-		this.idFactory = new IdFactorySeq(0);
-		this.keyPool = new KeyPoolCASImpl();
-		this.literalPool = new StringPoolCASImpl(Integer.MAX_VALUE);
-		this.store = new AttributeStoreImpl(BLOCK_SIZE, INITITAL_BLOCK_COUNT, literalPool);
+		this.snapshotFile = builder.snapshotFile;
+		this.blockCache = new BlockCache(builder.blockCacheSize);
+		this.compactLiteralPool = builder.compactLiteralPool;
+		if (snapshotFile != null && snapshotFile.exists()) {
+			try {
+				this.snapshot = InMemoryStoreSnapshot.open(snapshotFile, blockCache);
+			} catch (IOException e) {
+				throw new XESLiteException("Failed to open snapshot " + snapshotFile, e);
+			}
+			this.idFactory = new IdFactorySeq(0, snapshot.getNextId());
+			KeyPoolCASImpl snapshotKeyPool = new KeyPoolCASImpl();
+			List<String> keys = snapshot.getKeys();
+			for (int i = 0; i < keys.size(); i++) {
+				int index = keys.get(i) != null ? snapshotKeyPool.put(keys.get(i)) : snapshotKeyPool.reserve();
+				if (index != i) {
+					throw new XESLiteException("Invalid attribute key " + keys.get(i) + " in snapshot " + snapshotFile);
+				}
+			}
+			this.keyPool = snapshotKeyPool;
+			this.literalPool = snapshot.getLiteralPool();
+			this.store = new AttributeStoreImpl(BLOCK_SIZE, INITITAL_BLOCK_COUNT, builder.volumeType, literalPool,
+					blockCache);
+			for (AttributeStorage storage : snapshot.getStorages()) {
+				store.getStore().putStorage(storage);
+			}
+			for (AttributeStorage storage : snapshot.getNestedStorages()) {
+				store.getNestedStore().putStorage(storage);
+			}
+			store.setShapeIndex(snapshot.getShapeIndex());
+			blockCache.enable(); // blocks of the snapshot are already compressed
+		} else {
+			this.snapshot = null;
+			this.idFactory = new IdFactorySeq(0);
+			this.keyPool = new KeyPoolCASImpl();
+			this.literalPool = new StringPoolArenaImpl(Integer.MAX_VALUE);
+			this.store = new AttributeStoreImpl(BLOCK_SIZE, INITITAL_BLOCK_COUNT, builder.volumeType, literalPool,
+					blockCache);
+		}
 	}
 
 	final AttributeStore<ExternalAttribute> getAttributeStore() {
@@ -1408,56 +3753,241 @@ public class InMemoryStore extends ExternalStoreAbstract {
 	}
 
 	/**
-	 * Pump is not thread-safe!
+	 * Base class of the {@link ColumnCursor}s. The storage is looked up again
+	 * on every move as it may be replaced when the store is frozen or the
+	 * volumes are adapted.
+	 */
+	private static abstract class AbstractColumnCursor implements ColumnCursor {
+
+		private final String key;
+		private final int attributeKey;
+		private final Store store;
+		private final Mode mode;
+
+		private AttributeStorage storage;
+		protected Volume volume;
+		protected long objectKey;
+		private boolean hasValue;
+
+		AbstractColumnCursor(String key, int attributeKey, Store store, Mode mode) {
+			super();
+			this.key = key;
+			this.attributeKey = attributeKey;
+			this.store = store;
+			this.mode = mode;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public boolean advanceTo(long objectKey) {
+			// -1 for keys that are unknown to the key pool
+			AttributeStorage currentStorage = attributeKey != -1 ? store.getStorage(attributeKey) : null;
+			if (currentStorage != storage) {
+				if (currentStorage != null && currentStorage.getVolume() != null) {
+					Mode storageMode = Mode.getMode(currentStorage.getType());
+					if (storageMode != mode) {
+						throw new XESLiteException(
+								"Attribute " + key + " is stored in mode " + storageMode + " instead of " + mode);
+					}
+					storageChanged(currentStorage);
+				}
+				storage = currentStorage;
+			}
+			this.objectKey = objectKey;
+			this.volume = storage != null ? storage.getVolume() : null;
+			this.hasValue = volume != null && volume.hasValue(objectKey);
+			return hasValue;
+		}
+
+		public boolean advanceTo(ExternalAttributable attributable) {
+			return advanceTo(attributable.getExternalId());
+		}
+
+		public boolean hasValue() {
+			return hasValue;
+		}
+
+		protected void storageChanged(AttributeStorage storage) {
+		}
+
+		protected final void checkValue() {
+			if (!hasValue) {
+				throw new NoSuchElementException("No value for " + key + " at object " + objectKey);
+			}
+		}
+
+	}
+
+	private static final class LongColumnCursorImpl extends AbstractColumnCursor implements LongColumnCursor {
+
+		private boolean continuous;
+
+		LongColumnCursorImpl(String key, int attributeKey, Store store) {
+			super(key, attributeKey, store, Mode.LONG);
+		}
+
+		protected void storageChanged(AttributeStorage storage) {
+			continuous = XAttributeContinuous.class.isAssignableFrom(storage.getType());
+		}
+
+		public long getLong() {
+			checkValue();
+			long value = volume.getLong(objectKey);
+			return continuous ? (long) Double.longBitsToDouble(value) : value;
+		}
+
+		public double getDouble() {
+			checkValue();
+			long value = volume.getLong(objectKey);
+			return continuous ? Double.longBitsToDouble(value) : value;
+		}
+
+	}
+
+	private static final class IntColumnCursorImpl extends AbstractColumnCursor implements IntColumnCursor {
+
+		private final InMemoryStore owner;
+
+		IntColumnCursorImpl(String key, int attributeKey, Store store, InMemoryStore owner) {
+			super(key, attributeKey, store, Mode.INT);
+			this.owner = owner;
+		}
+
+		public int getLiteralIndex() {
+			checkValue();
+			return volume.getInt(objectKey);
+		}
+
+		public String getLiteral() {
+			// the pool is replaced when compacted on freeze
+			return owner.getLiteralPool().getValue(getLiteralIndex());
+		}
+
+	}
+
+	/**
+	 * Pump that can be used by several producer threads at the same time. Each
+	 * thread gets its own range of {@link #BLOCK_SIZE} IDs at a time and fills
+	 * its own buffer, partitioned by attribute key. The buffer is flushed on
+	 * its own thread whenever an attributable of another range is pumped.
+	 * Threads that pump at the same time, therefore, write to different blocks
+	 * in parallel. {@link #finishPump()} merges the remaining buffers of all
+	 * threads into the store and must only be called after all producers are
+	 * done.
 	 */
 	private final class ByteStorePumpServiceImpl implements PumpService {
 
-		private int bufferAttributables = 0;
-		private ListMultimap<Integer, ExternalAttribute> buffer = ArrayListMultimap
-				.<Integer, ExternalAttribute>create();
+		private final class PumpBuffer {
 
-		public void pumpAttributes(XAttributable attributable, List<XAttribute> attributes) {
-			if (attributable instanceof ExternalAttributable) {
-				if (!attributes.isEmpty()) {
-					fillBuffer(attributable, attributes);
+			private long bufferRange = -1;
+			private final ListMultimap<Integer, ExternalAttribute> buffer = ArrayListMultimap
+					.<Integer, ExternalAttribute>create();
+
+			private long nextId = 0;
+			private long lastId = -1;
+
+			private long nextId() {
+				if (nextId > lastId) {
+					nextId = idFactory.nextIdRange(BLOCK_SIZE);
+					lastId = nextId + ((long) (BLOCK_SIZE - 1) << idFactory.getIdShift());
 				}
-			} else {
-				for (XAttribute attr : attributes) {
-					attributable.getAttributes().put(attr.getKey(), attr);
+				long id = nextId;
+				nextId += idFactory.getIntervalCapacity();
+				return id;
+			}
+
+			private void fill(XAttributable attributable, List<XAttribute> attributes) {
+				ExternalAttributable owner = (ExternalAttributable) attributable;
+				long range = (owner.getExternalId() >> idFactory.getIdShift()) / BLOCK_SIZE;
+				if (range != bufferRange) {
+					flush();
+					bufferRange = range;
+				}
+				for (XAttribute attribute : attributes) {
+					ExternalAttribute externalAttribute = XAttributeExternalImpl.convert(InMemoryStore.this, owner,
+							attribute);
+					buffer.put(externalAttribute.getInternalKey(), externalAttribute);
 				}
 			}
 
-			if (bufferAttributables++ == BLOCK_SIZE) {
+			private void flush() {
 				for (Entry<Integer, Collection<ExternalAttribute>> bufferPartition : buffer.asMap().entrySet()) {
 					store.setValues(bufferPartition.getKey(), bufferPartition.getValue());
 				}
 				buffer.clear();
-				bufferAttributables = 0;
+				bufferRange = -1;
+			}
+
+		}
+
+		// only the owning thread adds its buffer, all buffers are drained by finishPump
+		private final NonBlockingIdentityHashMap<Thread, PumpBuffer> buffers = new NonBlockingIdentityHashMap<>();
+
+		private PumpBuffer getBuffer() {
+			Thread thread = Thread.currentThread();
+			PumpBuffer buffer = buffers.get(thread);
+			if (buffer == null) {
+				buffer = new PumpBuffer();
+				buffers.put(thread, buffer);
 			}
+			return buffer;
+		}
+
+		private long nextId() {
+			return getBuffer().nextId();
 		}
 
-		private void fillBuffer(XAttributable attributable, List<XAttribute> attributes) {
-			ExternalAttributable owner = (ExternalAttributable) attributable;
-			for (XAttribute attribute : attributes) {
-				ExternalAttribute externalAttribute = XAttributeExternalImpl.convert(InMemoryStore.this, owner,
-						attribute);
-				buffer.put(externalAttribute.getInternalKey(), externalAttribute);
+		public void pumpAttributes(XAttributable attributable, List<XAttribute> attributes) {
+			if (attributable instanceof ExternalAttributable) {
+				if (!attributes.isEmpty()) {
+					getBuffer().fill(attributable, attributes);
+				}
+			} else {
+				for (XAttribute attr : attributes) {
+					attributable.getAttributes().put(attr.getKey(), attr);
+				}
 			}
 		}
 
 		public void finishPump() throws InterruptedException {
-			for (Entry<Integer, Collection<ExternalAttribute>> bufferPartition : buffer.asMap().entrySet()) {
-				store.setValues(bufferPartition.getKey(), bufferPartition.getValue());
+			for (PumpBuffer buffer : buffers.values()) {
+				buffer.flush();
 			}
-			buffer = null;
-			bufferAttributables = 0;
+			buffers.clear();
 			store.finishPump();
 			InMemoryStore.this.pumpService = null; // Remove reference to ourselves for GC
 		}
 	}
 
+	/**
+	 * Hands out IDs from the sequence, but while pumping each thread takes
+	 * its IDs from its own range, see {@link ByteStorePumpServiceImpl}.
+	 */
+	private final class PumpIdFactory implements IdFactory {
+
+		public long nextId() {
+			PumpService currentPump = pumpService;
+			if (currentPump instanceof ByteStorePumpServiceImpl) {
+				return ((ByteStorePumpServiceImpl) currentPump).nextId();
+			}
+			return idFactory.nextId();
+		}
+
+		public int getIntervalCapacity() {
+			return idFactory.getIntervalCapacity();
+		}
+
+		public int getIdShift() {
+			return idFactory.getIdShift();
+		}
+
+	}
+
 	@Override
 	public PumpService startPump() {
+		checkNotFrozen();
 		pumpService = new ByteStorePumpServiceImpl();
 		return pumpService;
 	}
@@ -1484,7 +4014,7 @@ public class InMemoryStore extends ExternalStoreAbstract {
 
 	@Override
 	public final IdFactory getIdFactory() {
-		return idFactory;
+		return pumpIdFactory;
 	}
 
 	@Override
@@ -1498,14 +4028,94 @@ public class InMemoryStore extends ExternalStoreAbstract {
 		getAttributeStore().stopCompression();
 	}
 
+	/**
+	 * Seals all columns and replaces them with read-only views that keep the
+	 * encoding of the blocks and the budget of the block cache. With
+	 * {@link Builder#withCompactLiteralPool()} the literal pool is compacted as
+	 * well.
+	 */
+	@Override
+	protected void doFreeze() {
+		store.freeze();
+		if (compactLiteralPool) {
+			literalPool = StringPoolAutomatonImpl.compact(literalPool);
+			store.compactLiteralPool(literalPool);
+		}
+	}
+
+	/**
+	 * Saves a snapshot of the store together with the structure of the log to
+	 * the file configured with {@link Builder#withSnapshot(File)}.
+	 */
 	@Override
 	public void saveLogStructure(XLog log) {
-		throw new UnsupportedOperationException();
+		if (snapshotFile == null) {
+			throw new UnsupportedOperationException(
+					"No snapshot file configured, please use InMemoryStore.Builder.withSnapshot(File).");
+		}
+		if (isPumping()) {
+			throw new XESLiteException("Cannot be used during data pump!");
+		}
+		try {
+			InMemoryStoreSnapshot.write(snapshotFile, log, store, idFactory.peekNextId(), keyPool, literalPool);
+		} catch (IOException e) {
+			throw new XESLiteException("Failed to save snapshot " + snapshotFile, e);
+		}
 	}
 
+	/**
+	 * Loads the log structure from the snapshot that was opened with
+	 * {@link Builder#withSnapshot(File)}.
+	 */
 	@Override
 	public XLog loadLogStructure(XFactoryExternalStore factory) {
-		throw new UnsupportedOperationException();
+		if (snapshot == null) {
+			throw new UnsupportedOperationException(
+					"No snapshot opened, please use InMemoryStore.Builder.withSnapshot(File) with an existing file.");
+		}
+		try {
+			return snapshot.readLogStructure(factory);
+		} catch (IOException e) {
+			throw new XESLiteException("Failed to load log structure from snapshot " + snapshotFile, e);
+		}
+	}
+
+	/**
+	 * @return the number of accesses to blocks that had to decompress the
+	 *         block
+	 */
+	public long getBlockCacheMisses() {
+		return blockCache.getMisses();
+	}
+
+	/**
+	 * @return the number of bytes currently used by decompressed blocks in the
+	 *         block cache
+	 */
+	public long getBlockCacheUsage() {
+		return blockCache.getResidentBytes();
+	}
+
+	/**
+	 * Opens a cursor over the values of a discrete, continuous or timestamp
+	 * attribute that reads the values without creating attribute objects.
+	 * 
+	 * @param key
+	 * @return a new cursor, which never has a value if the key is unknown
+	 */
+	public LongColumnCursor openLongCursor(String key) {
+		return new LongColumnCursorImpl(key, getAttributeKeyPool().indexOf(key), store.getStore());
+	}
+
+	/**
+	 * Opens a cursor over the values of a literal attribute that reads the
+	 * values without creating attribute objects.
+	 * 
+	 * @param key
+	 * @return a new cursor, which never has a value if the key is unknown
+	 */
+	public IntColumnCursor openIntCursor(String key) {
+		return new IntColumnCursorImpl(key, getAttributeKeyPool().indexOf(key), store.getStore(), this);
 	}
 
 	public Map<String, Class<?>> getAttributeTypes() {
@@ -0,0 +1,443 @@
+package org.xeslite.external;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.deckfour.xes.extension.XExtension;
+import org.deckfour.xes.extension.XExtensionManager;
+import org.deckfour.xes.model.XAttribute;
+import org.deckfour.xes.model.XAttributeDiscrete;
+import org.deckfour.xes.model.XLog;
+import org.xeslite.common.XESLiteException;
+import org.xeslite.external.InMemoryStore.AttributeStorage;
+import org.xeslite.external.InMemoryStore.AttributeStoreImpl;
+import org.xeslite.external.InMemoryStore.Block;
+import org.xeslite.external.InMemoryStore.BlockCache;
+import org.xeslite.external.InMemoryStore.BlockVolume;
+import org.xeslite.external.InMemoryStore.DirectBlock;
+import org.xeslite.external.InMemoryStore.DirectVolume;
+import org.xeslite.external.InMemoryStore.FrozenVolume;
+import org.xeslite.external.InMemoryStore.Mode;
+import org.xeslite.external.InMemoryStore.ShapeIndex;
+import org.xeslite.external.InMemoryStore.SparseVolume;
+import org.xeslite.external.InMemoryStore.Store;
+import org.xeslite.external.InMemoryStore.Volume;
+
+import com.google.common.io.CountingOutputStream;
+
+/**
+ * Columnar on-disk snapshot of an {@link InMemoryStore}. The blocks of all
+ * attribute columns are written as they are (compressed or not), followed by
+ * the literal pool, the log structure and a meta-data section. Opening a
+ * snapshot only reads the meta-data, the blocks and the literal pool are
+ * memory-mapped and decoded lazily upon access.
+ * <p>
+ * Layout of the file:
+ *
+ * <pre>
+ * MAGIC VERSION
+ * [blocks of all columns] [blocks of the shape ids] [literals] [literal offsets]
+ * [log structure] [meta-data]
+ * META-DATA-OFFSET MAGIC
+ * </pre>
+ *
+ * @author F. Mannhardt
+ *
+ */
+final class InMemoryStoreSnapshot {
+
+	private static final int MAGIC = 0x58534C53; // XSLS
+	private static final int VERSION = 3;
+
+	private static final int TRAILER_SIZE = 12;
+	private static final int MAX_MAPPING_SIZE = 1 << 30;
+
+	private static final class ColumnInfo {
+
+		private int attributeKey;
+		private Class<? extends XAttribute> type;
+		private XExtension extension;
+		private Mode mode;
+		private int blockShift;
+		private long dataOffset;
+		private int[] blockLengths;
+
+	}
+
+	private final File file;
+	private final long nextId;
+	private final List<String> keys;
+	private final StringPool literalPool;
+	private final List<AttributeStorage> storages;
+	private final List<AttributeStorage> nestedStorages;
+	private final ShapeIndex shapeIndex;
+	private final long logOffset;
+
+	private InMemoryStoreSnapshot(File file, long nextId, List<String> keys, StringPool literalPool,
+			List<AttributeStorage> storages, List<AttributeStorage> nestedStorages, ShapeIndex shapeIndex,
+			long logOffset) {
+		super();
+		this.file = file;
+		this.nextId = nextId;
+		this.keys = keys;
+		this.literalPool = literalPool;
+		this.storages = storages;
+		this.nestedStorages = nestedStorages;
+		this.shapeIndex = shapeIndex;
+		this.logOffset = logOffset;
+	}
+
+	/**
+	 * @return the next identifier to be used by the {@link IdFactory}
+	 */
+	long getNextId() {
+		return nextId;
+	}
+
+	/**
+	 * @return the attribute keys in the order of their index in the key pool,
+	 *         {@code null} for indices without a key
+	 */
+	List<String> getKeys() {
+		return keys;
+	}
+
+	StringPool getLiteralPool() {
+		return literalPool;
+	}
+
+	List<AttributeStorage> getStorages() {
+		return storages;
+	}
+
+	List<AttributeStorage> getNestedStorages() {
+		return nestedStorages;
+	}
+
+	ShapeIndex getShapeIndex() {
+		return shapeIndex;
+	}
+
+	XLog readLogStructure(XFactoryExternalStore factory) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			FileChannel channel = raf.getChannel();
+			channel.position(logOffset);
+			InputStream is = new BufferedInputStream(Channels.newInputStream(channel));
+			return new MapDBLogSerializer(factory).deserialize(new DataInputStream(is), -1);
+		}
+	}
+
+	// Writing
+
+	/**
+	 * Writes a snapshot of the store and the log structure. The snapshot is
+	 * first written to a temporary file, which then replaces the target file.
+	 * The store must not be modified while the snapshot is written.
+	 */
+	static void write(File file, XLog log, AttributeStoreImpl attributeStore, long nextId, StringPool keyPool,
+			StringPool literalPool) throws IOException {
+		attributeStore.trimToSize();
+
+		File tempFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		try {
+			CountingOutputStream counter = new CountingOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tempFile)));
+			try (DataOutputStream out = new DataOutputStream(counter)) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+
+				List<ColumnInfo> columns = writeColumns(out, counter, attributeStore.getStore());
+				List<ColumnInfo> nestedColumns = writeColumns(out, counter, attributeStore.getNestedStore());
+				ShapeIndex shapeIndex = attributeStore.getShapeIndex();
+				ColumnInfo shapeColumn = writeColumn(out, counter, -1, XAttributeDiscrete.class, null,
+						shapeIndex.getShapeIds());
+
+				int literalCount = literalPool.size();
+				long literalsOffset = counter.getCount();
+				int[] literalOffsets = new int[literalCount + 1];
+				for (int i = 0; i < literalCount; i++) {
+					String literal = literalPool.getValue(i);
+					if (literal != null) {
+						out.write(StringPoolMappedImpl.encode(literal));
+					} else {
+						out.write(StringPoolMappedImpl.GAP); // index without a value
+					}
+					long length = counter.getCount() - literalsOffset;
+					if (length > Integer.MAX_VALUE) {
+						throw new XESLiteException("Literals exceed the maximum size of a snapshot.");
+					}
+					literalOffsets[i + 1] = (int) length;
+				}
+				long literalOffsetsOffset = counter.getCount();
+				for (int offset : literalOffsets) {
+					out.writeInt(offset);
+				}
+
+				long logOffset = counter.getCount();
+				new MapDBLogSerializer(null).serialize(out, log);
+
+				long metaDataOffset = counter.getCount();
+				out.writeLong(nextId);
+				int keyCount = keyPool.size();
+				out.writeInt(keyCount);
+				for (int i = 0; i < keyCount; i++) {
+					String key = keyPool.getValue(i);
+					out.writeBoolean(key != null);
+					if (key != null) {
+						out.writeUTF(key);
+					}
+				}
+				out.writeInt(literalCount);
+				out.writeLong(literalsOffset);
+				out.writeLong(literalOffsetsOffset);
+				writeColumnInfos(out, columns);
+				writeColumnInfos(out, nestedColumns);
+				writeColumnInfo(out, shapeColumn);
+				int[][] shapes = shapeIndex.getShapes();
+				out.writeInt(shapes.length);
+				for (int[] shape : shapes) {
+					out.writeInt(shape.length);
+					for (int key : shape) {
+						out.writeInt(key);
+					}
+				}
+				out.writeLong(logOffset);
+
+				out.writeLong(metaDataOffset);
+				out.writeInt(MAGIC);
+			}
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			tempFile.delete();
+		}
+	}
+
+	private static List<ColumnInfo> writeColumns(DataOutputStream out, CountingOutputStream counter, Store store)
+			throws IOException {
+		List<ColumnInfo> columns = new ArrayList<>();
+		for (AttributeStorage storage : store) {
+			columns.add(writeColumn(out, counter, storage.getAttributeKey(), storage.getType(),
+					storage.getExtension(), storage.getVolume()));
+		}
+		return columns;
+	}
+
+	private static ColumnInfo writeColumn(DataOutputStream out, CountingOutputStream counter, int attributeKey,
+			Class<? extends XAttribute> type, XExtension extension, Volume volume) throws IOException {
+		ColumnInfo column = new ColumnInfo();
+		column.attributeKey = attributeKey;
+		column.type = type;
+		column.extension = extension;
+		column.dataOffset = counter.getCount();
+		Block[] blocks;
+		if (volume instanceof BlockVolume) {
+			BlockVolume blockVolume = (BlockVolume) volume;
+			column.mode = blockVolume.getMode();
+			column.blockShift = blockVolume.getBlockShift();
+			blocks = blockVolume.getBlocks();
+		} else if (volume instanceof FrozenVolume) {
+			FrozenVolume frozenVolume = (FrozenVolume) volume;
+			column.mode = frozenVolume.getMode();
+			column.blockShift = frozenVolume.getBlockShift();
+			blocks = frozenVolume.getBlocks();
+		} else if (volume instanceof SparseVolume) {
+			SparseVolume sparseVolume = (SparseVolume) volume;
+			column.mode = sparseVolume.getMode();
+			column.blockShift = sparseVolume.getBlockShift();
+			blocks = sparseVolume.toBlocks();
+		} else {
+			throw new XESLiteException("Unsupported volume " + volume.getClass().getSimpleName());
+		}
+		column.blockLengths = new int[blocks.length];
+		byte[] copyBuffer = new byte[8192];
+		for (int i = 0; i < blocks.length; i++) {
+			Block block = blocks[i];
+			synchronized (block) {
+				ByteBuffer data = block.getData();
+				column.blockLengths[i] = data.remaining();
+				while (data.hasRemaining()) {
+					int length = Math.min(copyBuffer.length, data.remaining());
+					data.get(copyBuffer, 0, length);
+					out.write(copyBuffer, 0, length);
+				}
+			}
+		}
+		return column;
+	}
+
+	private static void writeColumnInfos(DataOutputStream out, List<ColumnInfo> columns) throws IOException {
+		out.writeInt(columns.size());
+		for (ColumnInfo column : columns) {
+			writeColumnInfo(out, column);
+		}
+	}
+
+	private static void writeColumnInfo(DataOutputStream out, ColumnInfo column) throws IOException {
+		out.writeInt(column.attributeKey);
+		out.writeUTF(column.type.getName());
+		out.writeBoolean(column.extension != null);
+		if (column.extension != null) {
+			out.writeUTF(column.extension.getUri().toString());
+		}
+		out.writeUTF(column.mode.name());
+		out.writeInt(column.blockShift);
+		out.writeLong(column.dataOffset);
+		out.writeInt(column.blockLengths.length);
+		for (int length : column.blockLengths) {
+			out.writeInt(length);
+		}
+	}
+
+	// Reading
+
+	/**
+	 * Opens a snapshot by reading its meta-data and mapping the attribute
+	 * columns and literals into memory.
+	 */
+	static InMemoryStoreSnapshot open(File file, BlockCache cache) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			if (size < 8 + TRAILER_SIZE) {
+				throw new XESLiteException("Invalid XESLite snapshot " + file);
+			}
+
+			ByteBuffer header = ByteBuffer.allocate(8);
+			channel.read(header, 0);
+			header.flip();
+			if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+				throw new XESLiteException("Invalid XESLite snapshot. Expected snapshot version " + VERSION);
+			}
+
+			ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+			channel.read(trailer, size - TRAILER_SIZE);
+			trailer.flip();
+			long metaDataOffset = trailer.getLong();
+			if (trailer.getInt() != MAGIC) {
+				throw new XESLiteException("Incomplete XESLite snapshot " + file);
+			}
+
+			channel.position(metaDataOffset);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+			long nextId = in.readLong();
+			int keyCount = in.readInt();
+			List<String> keys = new ArrayList<>(keyCount);
+			for (int i = 0; i < keyCount; i++) {
+				keys.add(in.readBoolean() ? in.readUTF() : null);
+			}
+			int literalCount = in.readInt();
+			long literalsOffset = in.readLong();
+			long literalOffsetsOffset = in.readLong();
+			List<ColumnInfo> columns = readColumnInfos(in);
+			List<ColumnInfo> nestedColumns = readColumnInfos(in);
+			ColumnInfo shapeColumn = readColumnInfo(in);
+			int[][] shapes = new int[in.readInt()][];
+			for (int i = 0; i < shapes.length; i++) {
+				shapes[i] = new int[in.readInt()];
+				for (int j = 0; j < shapes[i].length; j++) {
+					shapes[i][j] = in.readInt();
+				}
+			}
+			long logOffset = in.readLong();
+
+			MappedByteBuffer literals = channel.map(MapMode.READ_ONLY, literalsOffset,
+					literalOffsetsOffset - literalsOffset);
+			MappedByteBuffer literalOffsets = channel.map(MapMode.READ_ONLY, literalOffsetsOffset,
+					(literalCount + 1) * 4l);
+			StringPool literalPool = new StringPoolMappedImpl(literalCount, literalOffsets.asIntBuffer(), literals);
+
+			ShapeIndex shapeIndex = new ShapeIndex(mapVolume(channel, shapeColumn, cache), shapes);
+			return new InMemoryStoreSnapshot(file, nextId, keys, literalPool, mapColumns(channel, columns, cache),
+					mapColumns(channel, nestedColumns, cache), shapeIndex, logOffset);
+		}
+	}
+
+	private static List<ColumnInfo> readColumnInfos(DataInputStream in) throws IOException {
+		int size = in.readInt();
+		List<ColumnInfo> columns = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			columns.add(readColumnInfo(in));
+		}
+		return columns;
+	}
+
+	private static ColumnInfo readColumnInfo(DataInputStream in) throws IOException {
+		ColumnInfo column = new ColumnInfo();
+		column.attributeKey = in.readInt();
+		try {
+			column.type = Class.forName(in.readUTF()).asSubclass(XAttribute.class);
+		} catch (ClassNotFoundException e) {
+			throw new XESLiteException("Unknown attribute type in XESLite snapshot.", e);
+		}
+		if (in.readBoolean()) {
+			column.extension = XExtensionManager.instance().getByUri(URI.create(in.readUTF()));
+		}
+		column.mode = Mode.valueOf(in.readUTF());
+		column.blockShift = in.readInt();
+		column.dataOffset = in.readLong();
+		column.blockLengths = new int[in.readInt()];
+		for (int j = 0; j < column.blockLengths.length; j++) {
+			column.blockLengths[j] = in.readInt();
+		}
+		return column;
+	}
+
+	private static List<AttributeStorage> mapColumns(FileChannel channel, List<ColumnInfo> columns,
+			BlockCache cache) throws IOException {
+		List<AttributeStorage> storages = new ArrayList<>(columns.size());
+		for (ColumnInfo column : columns) {
+			storages.add(new AttributeStorage(column.attributeKey, column.type, column.extension,
+					mapVolume(channel, column, cache)));
+		}
+		return storages;
+	}
+
+	private static DirectVolume mapVolume(FileChannel channel, ColumnInfo column, BlockCache cache)
+			throws IOException {
+		long columnSize = 0;
+		for (int length : column.blockLengths) {
+			columnSize += length;
+		}
+		long columnEnd = column.dataOffset + columnSize;
+
+		int blockSize = 1 << column.blockShift;
+		Block[] blocks = new Block[column.blockLengths.length];
+		// Map the column in windows of at most MAX_MAPPING_SIZE bytes, blocks never span two windows
+		MappedByteBuffer window = null;
+		long windowStart = column.dataOffset;
+		long position = column.dataOffset;
+		for (int i = 0; i < blocks.length; i++) {
+			int length = column.blockLengths[i];
+			if (window == null || position + length > windowStart + window.capacity()) {
+				windowStart = position;
+				window = channel.map(MapMode.READ_ONLY, windowStart,
+						Math.min(MAX_MAPPING_SIZE, columnEnd - windowStart));
+			}
+			ByteBuffer blockData = window.duplicate();
+			blockData.position((int) (position - windowStart));
+			blockData.limit((int) (position - windowStart) + length);
+			blocks[i] = new DirectBlock(blockSize, column.mode, blockData.slice());
+			position += length;
+		}
+		return new DirectVolume(blocks, column.blockShift, column.mode, cache);
+	}
+
+}
@@ -0,0 +1,30 @@
+package org.xeslite.external;
+
+import java.util.NoSuchElementException;
+
+/**
+ * {@link ColumnCursor} for attributes with literal values.
+ * 
+ * @author F. Mannhardt
+ *
+ */
+public interface IntColumnCursor extends ColumnCursor {
+
+	/**
+	 * @return the index of the literal in the
+	 *         {@link ExternalStore#getLiteralPool()}, equal literals have the
+	 *         same index
+	 * @throws NoSuchElementException
+	 *             in case there is no value at the current position
+	 */
+	int getLiteralIndex();
+
+	/**
+	 * @return the literal, which is shared with all other occurrences of the
+	 *         same literal
+	 * @throws NoSuchElementException
+	 *             in case there is no value at the current position
+	 */
+	String getLiteral();
+
+}
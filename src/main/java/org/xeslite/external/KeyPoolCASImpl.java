@@ -120,13 +120,33 @@ public final class KeyPoolCASImpl implements Serializable, StringPool {
 		return valueMap.get(index);
 	}
 
+	/**
+	 * Reserves the next index without assigning a key to it.
+	 * 
+	 * @return the reserved index
+	 */
+	int reserve() {
+		return keyCounter.getAndIncrement();
+	}
+
+	@Override
+	public int intern(String val) {
+		return put(val);
+	}
+
+	@Override
+	public int indexOf(String val) {
+		Integer index = getIndex(val);
+		return index != null ? index : -1;
+	}
+
 	@Override
 	public String toString() {
 		return String.format("KeyPoolCASImpl with %s entries", keyCounter);
 	}
 
 	public int size() {
-		return keyMap.size();
+		return keyCounter.get();
 	}
 
 	public int getCapacity() {
@@ -0,0 +1,30 @@
+package org.xeslite.external;
+
+import java.util.NoSuchElementException;
+
+/**
+ * {@link ColumnCursor} for attributes with discrete, continuous or timestamp
+ * values.
+ * 
+ * @author F. Mannhardt
+ *
+ */
+public interface LongColumnCursor extends ColumnCursor {
+
+	/**
+	 * @return the discrete value, the timestamp in milliseconds, or the
+	 *         continuous value cast to long
+	 * @throws NoSuchElementException
+	 *             in case there is no value at the current position
+	 */
+	long getLong();
+
+	/**
+	 * @return the continuous value, or the discrete value and the timestamp
+	 *         in milliseconds as double
+	 * @throws NoSuchElementException
+	 *             in case there is no value at the current position
+	 */
+	double getDouble();
+
+}
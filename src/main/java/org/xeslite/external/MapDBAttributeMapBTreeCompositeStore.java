@@ -20,6 +20,7 @@ public class MapDBAttributeMapBTreeCompositeStore extends ExternalAttributeMap<M
 
 	@Override
 	public void clear() {
+		checkNotFrozen();
 		getStore().getAttributeStore().clear(getOwner().getExternalId());
 	}
 
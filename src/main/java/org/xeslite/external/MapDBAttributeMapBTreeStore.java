@@ -3,8 +3,8 @@ package org.xeslite.external;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.NavigableMap;
-import java.util.NavigableSet;
 
+import org.deckfour.xes.model.XAttribute;
 import org.deckfour.xes.model.XAttributeMap;
 
 import com.google.common.base.Function;
@@ -23,7 +23,67 @@ import com.google.common.collect.Iterators;
  */
 class MapDBAttributeMapBTreeStore extends ExternalAttributeMap<MapDBStore> {
 
+	/**
+	 * Removes entries through the backing map, but keeps the indexes up to
+	 * date.
+	 */
+	private final class EntryItr implements Iterator<Map.Entry<Long, ExternalAttribute>> {
+
+		private final Iterator<Map.Entry<Long, ExternalAttribute>> entries = getInternalSubMap().entrySet()
+				.iterator();
+		private Map.Entry<Long, ExternalAttribute> last;
+
+		public boolean hasNext() {
+			return entries.hasNext();
+		}
+
+		public Map.Entry<Long, ExternalAttribute> next() {
+			last = entries.next();
+			return last;
+		}
+
+		public void remove() {
+			entries.remove();
+			int keyIndex = MapDBStore.getInternalAttributeKey(getOwner(), last.getKey());
+			getStore().updateIndex(getOwner().getExternalId(), keyIndex, last.getValue(), null);
+			getStore().attributesModified();
+		}
+
+	}
+
+	/**
+	 * Iterates the composite keys only, so no attribute is deserialized
+	 * unless it is removed.
+	 */
+	private final class KeyItr implements Iterator<Long> {
+
+		private final Iterator<Long> keys = getInternalSubMap().navigableKeySet().iterator();
+		private Long last;
+
+		public boolean hasNext() {
+			return keys.hasNext();
+		}
+
+		public Long next() {
+			last = keys.next();
+			return last;
+		}
+
+		public void remove() {
+			if (last == null) {
+				throw new IllegalStateException();
+			}
+			ExternalAttribute oldAttribute = getInternalFullMap().remove(last);
+			int keyIndex = MapDBStore.getInternalAttributeKey(getOwner(), last);
+			getStore().updateIndex(getOwner().getExternalId(), keyIndex, oldAttribute, null);
+			getStore().attributesModified();
+			last = null;
+		}
+
+	}
+
 	private NavigableMap<Long, ExternalAttribute> subMap;
+	private NavigableMap<Long, ExternalAttribute> subMapSource; // BTree of the view, replaced when segments are merged
 
 	/**
 	 * Create a new {@link MapDBAttributeMapBTreeStore} for the
@@ -38,20 +98,30 @@ class MapDBAttributeMapBTreeStore extends ExternalAttributeMap<MapDBStore> {
 	}
 
 	final NavigableMap<Long, ExternalAttribute> getInternalFullMap() {
-		return getStore().getMapStorage();
+		return getStore().getMapStorage(getOwner().getExternalId());
 	}
 
 	final NavigableMap<Long, ExternalAttribute> getInternalSubMap() {
-		if (subMap == null) {
-			subMap = getInternalFullMap().subMap(getStore().lowestCompositeKey(getOwner()), true,
+		NavigableMap<Long, ExternalAttribute> fullMap = getInternalFullMap();
+		if (subMap == null || subMapSource != fullMap) {
+			subMap = fullMap.subMap(getStore().lowestCompositeKey(getOwner()), true,
 					getStore().highestCompositeKey(getOwner()), true);
+			subMapSource = fullMap;
 		}
 		return subMap;
 	}
 
 	@Override
 	public void clear() {
+		checkNotFrozen();
+		if (getStore().hasIndexes()) {
+			for (Map.Entry<Long, ExternalAttribute> entry : getInternalSubMap().entrySet()) {
+				int keyIndex = MapDBStore.getInternalAttributeKey(getOwner(), entry.getKey());
+				getStore().updateIndex(getOwner().getExternalId(), keyIndex, entry.getValue(), null);
+			}
+		}
 		getInternalSubMap().clear();
+		getStore().attributesModified();
 	}
 
 	@Override
@@ -62,7 +132,10 @@ class MapDBAttributeMapBTreeStore extends ExternalAttributeMap<MapDBStore> {
 	@Override
 	protected ExternalAttribute doPut(Integer keyIndex, ExternalAttribute a) {
 		Long compositeKey = MapDBStore.getCompositeKey(getOwner(), keyIndex);
-		return getInternalFullMap().put(compositeKey, a);
+		ExternalAttribute oldAttribute = getInternalFullMap().put(compositeKey, a);
+		getStore().updateIndex(getOwner().getExternalId(), keyIndex, oldAttribute, a);
+		getStore().attributesModified();
+		return oldAttribute;
 	}
 
 	@Override
@@ -74,17 +147,33 @@ class MapDBAttributeMapBTreeStore extends ExternalAttributeMap<MapDBStore> {
 	@Override
 	protected ExternalAttribute doRemove(Integer keyIndex) {
 		Long compositeKey = MapDBStore.getCompositeKey(getOwner(), keyIndex);
-		return getInternalFullMap().remove(compositeKey);
+		ExternalAttribute oldAttribute = getInternalFullMap().remove(compositeKey);
+		getStore().updateIndex(getOwner().getExternalId(), keyIndex, oldAttribute, null);
+		getStore().attributesModified();
+		return oldAttribute;
+	}
+
+	@Override
+	protected boolean isTrackingCachedValues() {
+		return getStore().hasIndexes();
+	}
+
+	@Override
+	protected void cachedValueChanged(XAttribute oldValue, XAttribute newValue) {
+		XAttribute a = newValue != null ? newValue : oldValue;
+		if (a != null) {
+			getStore().updateIndex(getOwner().getExternalId(), getStore().getAttributeKeyPool().put(a.getKey()),
+					oldValue, newValue);
+		}
 	}
 
 	@Override
 	protected Iterator<String> iterateKeys() {
-		NavigableSet<Long> keySet = getInternalSubMap().navigableKeySet();
-		return Iterators.transform(keySet.iterator(), new Function<Long, String>() {
+		return Iterators.transform(new KeyItr(), new Function<Long, String>() {
 
 			@Override
-			public String apply(Long id) {
-				int keyId = (int) (id.longValue() % getStore().getAttributeKeyPool().getCapacity());
+			public String apply(Long compositeKey) {
+				int keyId = (int) (compositeKey.longValue() % getStore().getAttributeKeyPool().getCapacity());
 				return getStore().getAttributeKeyPool().getValue(keyId);
 			}
 		});
@@ -92,7 +181,7 @@ class MapDBAttributeMapBTreeStore extends ExternalAttributeMap<MapDBStore> {
 
 	@Override
 	protected Iterator<ExternalAttribute> iterateValues() {
-		return Iterators.transform(getInternalSubMap().entrySet().iterator(),
+		return Iterators.transform(new EntryItr(),
 				new Function<Entry<Long, ExternalAttribute>, ExternalAttribute>() {
 
 					public ExternalAttribute apply(Map.Entry<Long, ExternalAttribute> entry) {
@@ -0,0 +1,91 @@
+package org.xeslite.external;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.xeslite.external.MapDBReadAhead.Record;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Iterators;
+
+/**
+ * View on the attributes of an {@link ExternalAttributable} that were read
+ * ahead by a {@link MapDBReadAhead}. Reads are served from the {@link Record}
+ * without accessing MapDB as long as the store is not modified. Writes and all
+ * operations after a modification of the store are forwarded to the
+ * {@link MapDBAttributeMapBTreeStore}.
+ *
+ * @author F. Mannhardt
+ *
+ */
+final class MapDBAttributeMapReadAhead extends MapDBAttributeMapBTreeStore {
+
+	private final class RecordItr implements Iterator<ExternalAttribute> {
+
+		private int index = 0;
+		private int last = -1;
+
+		public boolean hasNext() {
+			return index < record.size();
+		}
+
+		public ExternalAttribute next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			last = index++;
+			// needs to be decorated here to avoid extra transform
+			return XAttributeExternalImpl.decorate(record.getValue(last), record.getKey(last), getStore(),
+					getOwner());
+		}
+
+		public void remove() {
+			if (last == -1) {
+				throw new IllegalStateException();
+			}
+			checkNotFrozen();
+			doRemove(record.getKey(last));
+			last = -1;
+		}
+
+	}
+
+	private final MapDBReadAhead readAhead;
+	private final Record record;
+
+	MapDBAttributeMapReadAhead(ExternalAttributable owner, MapDBStore store, MapDBReadAhead readAhead,
+			Record record) {
+		super(owner, store);
+		this.readAhead = readAhead;
+		this.record = record;
+	}
+
+	@Override
+	public int size() {
+		return readAhead.isCurrent() ? record.size() : super.size();
+	}
+
+	@Override
+	protected ExternalAttribute doGet(Integer keyIndex) {
+		return readAhead.isCurrent() ? record.get(keyIndex) : super.doGet(keyIndex);
+	}
+
+	@Override
+	protected Iterator<String> iterateKeys() {
+		if (!readAhead.isCurrent()) {
+			return super.iterateKeys();
+		}
+		return Iterators.transform(new RecordItr(), new Function<ExternalAttribute, String>() {
+
+			public String apply(ExternalAttribute a) {
+				return a.getKey();
+			}
+		});
+	}
+
+	@Override
+	protected Iterator<ExternalAttribute> iterateValues() {
+		return readAhead.isCurrent() ? new RecordItr() : super.iterateValues();
+	}
+
+}
@@ -0,0 +1,124 @@
+package org.xeslite.external;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.xeslite.external.MapDBStoreRowGroup.Record;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Iterators;
+
+/**
+ * View on the {@link Record} of an {@link ExternalAttributable} in a
+ * {@link MapDBStoreRowGroup}. Each read fetches the whole record with a single
+ * lookup, each write replaces the whole record.
+ *
+ * @author F. Mannhardt
+ *
+ */
+class MapDBAttributeMapRowGroupStore extends ExternalAttributeMap<MapDBStoreRowGroup> {
+
+	private final class RecordItr implements Iterator<ExternalAttribute> {
+
+		private final Record record = getRecord();
+		private int index = 0;
+		private int last = -1;
+
+		public boolean hasNext() {
+			return index < record.size();
+		}
+
+		public ExternalAttribute next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			last = index++;
+			// needs to be decorated here to avoid extra transform
+			return XAttributeExternalImpl.decorate(record.getValue(last), record.getKey(last), getStore(),
+					getOwner());
+		}
+
+		public void remove() {
+			if (last == -1) {
+				throw new IllegalStateException();
+			}
+			checkNotFrozen();
+			doRemove(record.getKey(last));
+			last = -1;
+		}
+
+	}
+
+	public MapDBAttributeMapRowGroupStore(ExternalAttributable owner, MapDBStoreRowGroup store) {
+		super(store, owner);
+	}
+
+	private Record getRecord() {
+		return getStore().getRecord(getOwner().getExternalId());
+	}
+
+	private void putRecord(Record record) {
+		// keep the owner so that the serializer can decide which literals to pool
+		for (int i = 0; i < record.size(); i++) {
+			XAttributeExternalImpl.decorate(record.getValue(i), record.getKey(i), getStore(), getOwner());
+		}
+		getStore().putRecord(getOwner().getExternalId(), record);
+	}
+
+	@Override
+	public int size() {
+		return getRecord().size();
+	}
+
+	@Override
+	public void clear() {
+		checkNotFrozen();
+		long id = getOwner().getExternalId();
+		synchronized (getStore().getLock(id)) {
+			getStore().putRecord(id, Record.EMPTY);
+		}
+	}
+
+	@Override
+	protected ExternalAttribute doPut(Integer keyIndex, ExternalAttribute a) {
+		synchronized (getStore().getLock(getOwner().getExternalId())) {
+			Record record = getRecord();
+			ExternalAttribute oldAttribute = record.get(keyIndex);
+			putRecord(record.with(keyIndex, a));
+			return oldAttribute;
+		}
+	}
+
+	@Override
+	protected ExternalAttribute doGet(Integer keyIndex) {
+		return getRecord().get(keyIndex);
+	}
+
+	@Override
+	protected ExternalAttribute doRemove(Integer keyIndex) {
+		synchronized (getStore().getLock(getOwner().getExternalId())) {
+			Record record = getRecord();
+			ExternalAttribute oldAttribute = record.get(keyIndex);
+			if (oldAttribute != null) {
+				putRecord(record.without(keyIndex));
+			}
+			return oldAttribute;
+		}
+	}
+
+	@Override
+	protected Iterator<String> iterateKeys() {
+		return Iterators.transform(iterateValues(), new Function<ExternalAttribute, String>() {
+
+			public String apply(ExternalAttribute a) {
+				return a.getKey();
+			}
+		});
+	}
+
+	@Override
+	protected Iterator<ExternalAttribute> iterateValues() {
+		return new RecordItr();
+	}
+
+}
@@ -273,6 +273,10 @@ final class MapDBAttributeSerializer extends Serializer<ExternalAttribute> {
 		if (a.getOwner() instanceof XEvent) {
 			// Workaround to only pool attributes of events to avoid polluting the pool with trace id's
 			return keysToPool.contains(a.getInternalKey());
+		} else if (a.getOwner() == null) {
+			// Owner is unknown when attributes are re-written, e.g., by MapDBStore#mergeSegments, only re-use pooled values
+			return keysToPool.contains(a.getInternalKey())
+					&& literalPool.getIndex(((XAttributeLiteral) a).getValue()) != null;
 		} else {
 			return false;
 		}
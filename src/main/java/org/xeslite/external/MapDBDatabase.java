@@ -2,6 +2,8 @@ package org.xeslite.external;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.deckfour.xes.model.XEvent;
 import org.deckfour.xes.model.XLog;
@@ -53,6 +55,34 @@ public interface MapDBDatabase {
 			}
 		}
 
+		/**
+		 * Loads the traces of the log on access, see
+		 * {@link MapDBStore.Builder#withLazyLog()}. The returned log cannot
+		 * be modified.
+		 * 
+		 * @param file
+		 * @return the log
+		 */
+		public static XLog loadLazy(File file) {
+			MapDBDatabaseImpl database = new MapDBDatabaseImpl();
+			database.setTemporary(false);
+			database.setDbFile(file);
+
+			MapDBStore.Builder builder = new MapDBStore.Builder();
+			builder.withDatabase(database);
+			builder.withLazyLog();
+
+			XFactoryExternalStore factory = new XFactoryExternalStore.MapDBDiskImpl(builder);
+
+			try {
+				return factory.loadLogStructure();
+			} catch (Exception e) {
+				// Clean-up
+				factory.dispose();
+				throw e;
+			}
+		}
+
 		public static void save(XLog log, File file) {
 
 			// overwrite existing file to avoid mapdb opening the existing DB
@@ -99,6 +129,73 @@ public interface MapDBDatabase {
 
 		}
 
+		/**
+		 * Appends the traces of the log to a log saved with
+		 * {@link #save(XLog, File)} using the data pump, see
+		 * {@link MapDBStore.Builder#withAppendPump()}. Only the traces are
+		 * appended, the attributes of the log are ignored.
+		 * 
+		 * @param log
+		 *            the traces to append
+		 * @param file
+		 */
+		public static void append(XLog log, File file) {
+			MapDBDatabaseImpl database = new MapDBDatabaseImpl();
+			database.setTemporary(false);
+			database.setDbFile(file);
+			database.setUseCache(false);
+			database.setUseAsyncWriter(false);
+
+			MapDBStore.Builder builder = new MapDBStore.Builder();
+			builder.withAppendPump();
+			builder.withDatabase(database);
+
+			XFactoryExternalStore factory = new XFactoryExternalStore.MapDBDiskWithoutCacheImpl(builder);
+
+			try {
+				factory.startPump();
+				List<XTrace> traces = new ArrayList<>(log.size());
+				for (XTrace t : log) {
+					XTraceImpl pumpTrace = new XTraceImpl(t.getAttributes());
+					for (XEvent e : t) {
+						pumpTrace.add(factory.pumpEvent(e));
+					}
+					traces.add(factory.pumpTrace(pumpTrace));
+				}
+				try {
+					factory.finishPump();
+					// only the pages of the appended traces are written
+					((MapDBStore) factory.getStore()).appendLogStructure(factory, traces);
+				} catch (InterruptedException e) {
+					return;
+				}
+			} finally {
+				factory.dispose();
+			}
+		}
+
+		/**
+		 * Merges the segments that were added by {@link #append(XLog, File)},
+		 * see {@link MapDBStore#mergeSegments()}.
+		 * 
+		 * @param file
+		 */
+		public static void mergeSegments(File file) {
+			MapDBDatabaseImpl database = new MapDBDatabaseImpl();
+			database.setTemporary(false);
+			database.setDbFile(file);
+			database.setUseCache(false);
+			database.setUseAsyncWriter(false);
+
+			MapDBStore store = (MapDBStore) new MapDBStore.Builder().withDatabase(database).build();
+			try {
+				store.mergeSegments();
+				store.commit();
+			} finally {
+				store.dispose();
+			}
+		}
+
 	}
 
 	void createDB() throws IOException;
@@ -0,0 +1,302 @@
+package org.xeslite.external;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+import org.deckfour.xes.model.XEvent;
+import org.deckfour.xes.model.XLog;
+import org.deckfour.xes.model.XTrace;
+import org.mapdb.BTreeKeySerializer;
+import org.mapdb.BTreeMap;
+import org.mapdb.DB;
+import org.mapdb.DataIO;
+import org.mapdb.Serializer;
+import org.xeslite.common.XESLiteException;
+import org.xeslite.external.MapDBLogSerializer.CacheColumn;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * Stores the traces of a log saved by {@link MapDBLogSerializer} in pages of
+ * up to {@link #PAGE_SIZE} traces. Each page starts with an index of (trace
+ * id, offset, size) entries, followed by the delta-encoded event ids and the
+ * cached attributes of its events. A separate page index stores the number
+ * of traces up to the end of each page, so that traces can be appended by
+ * adding pages without rewriting the existing ones.
+ * <p>
+ * When reading lazily, the log is backed by a read-only list that decodes
+ * pages on access and keeps a bounded number of decoded pages. Traces and
+ * events are created anew from the decoded page on each access, so opening a
+ * log takes constant time and memory grows only with the traces that are
+ * actually in use.
+ *
+ * @author F. Mannhardt
+ *
+ */
+final class MapDBLogPages {
+
+	static final String PAGES = ".logPages";
+	static final String PAGE_INDEX = ".logPageIndex";
+
+	static final int PAGE_SIZE = 256;
+
+	private static final class Page {
+
+		private final long[] traceIds;
+		private final int[] offsets;
+		private final long[] eventIds;
+		private final String[] cacheKeys;
+		private final long[][] cacheValues;
+
+		private Page(long[] traceIds, int[] offsets, long[] eventIds, String[] cacheKeys, long[][] cacheValues) {
+			this.traceIds = traceIds;
+			this.offsets = offsets;
+			this.eventIds = eventIds;
+			this.cacheKeys = cacheKeys;
+			this.cacheValues = cacheValues;
+		}
+
+	}
+
+	private final class TraceList extends AbstractList<XTrace> implements RandomAccess {
+
+		private final XFactoryExternalStore factory;
+		private final int[] pageEnds;
+		private final int size;
+
+		private TraceList(XFactoryExternalStore factory, int[] pageEnds) {
+			this.factory = factory;
+			this.pageEnds = pageEnds;
+			this.size = pageEnds.length == 0 ? 0 : pageEnds[pageEnds.length - 1];
+		}
+
+		public XTrace get(int index) {
+			if (index < 0 || index >= size) {
+				throw new IndexOutOfBoundsException();
+			}
+			int pageIndex = findPage(pageEnds, index);
+			Page page = pageCache.getUnchecked(pageIndex);
+			int slot = pageIndex == 0 ? index : index - pageEnds[pageIndex - 1];
+			int start = page.offsets[slot];
+			int end = page.offsets[slot + 1];
+			List<XEvent> events = new ArrayList<>(end - start);
+			for (int i = start; i < end; i++) {
+				XEvent event = factory.openEvent(page.eventIds[i]);
+				if (page.cacheKeys.length == 0) {
+					MapDBLogSerializer.lookupCacheValues(event);
+				}
+				for (int j = 0; j < page.cacheKeys.length; j++) {
+					MapDBLogSerializer.setCacheValue(event, page.cacheKeys[j], page.cacheValues[j][i]);
+				}
+				events.add(event);
+			}
+			return factory.openTrace(page.traceIds[slot], events);
+		}
+
+		public int size() {
+			return size;
+		}
+
+	}
+
+	private final DB db;
+	private final BTreeMap<Integer, byte[]> pages;
+	// number of traces up to the end of each page
+	private int[] pageEnds;
+	private final boolean isLazy;
+	private final LoadingCache<Integer, Page> pageCache;
+
+	/**
+	 * @param db
+	 * @param isLazy
+	 *            whether the traces should be loaded on access
+	 * @param cachedPages
+	 *            number of decoded pages that are kept in memory
+	 */
+	MapDBLogPages(DB db, boolean isLazy, int cachedPages) {
+		super();
+		this.db = db;
+		if (db.exists(PAGES)) {
+			this.pages = db.treeMap(PAGES, BTreeKeySerializer.INTEGER, Serializer.BYTE_ARRAY);
+		} else {
+			this.pages = db.treeMapCreate(PAGES).keySerializer(BTreeKeySerializer.INTEGER)
+					.valueSerializer(Serializer.BYTE_ARRAY).valuesOutsideNodesEnable().makeOrGet();
+		}
+		if (db.exists(PAGE_INDEX)) {
+			this.pageEnds = db.atomicVar(PAGE_INDEX, Serializer.INT_ARRAY).get();
+		} else {
+			// pages written without an index hold PAGE_SIZE traces except for the last one
+			this.pageEnds = new int[pages.size()];
+			if (pageEnds.length > 0) {
+				for (int i = 0; i < pageEnds.length - 1; i++) {
+					pageEnds[i] = (i + 1) * PAGE_SIZE;
+				}
+				try {
+					DataInput in = new DataInputStream(new ByteArrayInputStream(pages.lastEntry().getValue()));
+					int lastSize = DataIO.unpackInt(in);
+					pageEnds[pageEnds.length - 1] = (pageEnds.length - 1) * PAGE_SIZE + lastSize;
+				} catch (IOException e) {
+					throw new XESLiteException("Could not read the last page of the log!", e);
+				}
+			}
+		}
+		this.isLazy = isLazy;
+		this.pageCache = CacheBuilder.newBuilder().maximumSize(cachedPages).build(new CacheLoader<Integer, Page>() {
+
+			public Page load(Integer pageIndex) throws IOException {
+				return readPage(pageIndex);
+			}
+		});
+	}
+
+	/**
+	 * Writes all traces of the log to the pages. Needs to be called before the
+	 * log itself is written with a {@link MapDBLogSerializer} using these
+	 * pages.
+	 *
+	 * @param log
+	 * @param serializer
+	 *            used to write the cached attributes
+	 */
+	void writeTraces(XLog log, MapDBLogSerializer serializer) {
+		pages.clear();
+		pageEnds = new int[0];
+		pageCache.invalidateAll();
+		appendTraces(log, serializer);
+	}
+
+	/**
+	 * Adds pages with the traces after the existing pages and updates the
+	 * page index. Existing pages are neither read nor rewritten.
+	 *
+	 * @param traces
+	 * @param serializer
+	 *            used to write the cached attributes
+	 */
+	void appendTraces(List<XTrace> traces, MapDBLogSerializer serializer) {
+		int pageCount = (traces.size() + PAGE_SIZE - 1) / PAGE_SIZE;
+		int firstPage = pageEnds.length;
+		int[] newPageEnds = Arrays.copyOf(pageEnds, firstPage + pageCount);
+		int size = size();
+		try {
+			for (int i = 0; i < pageCount; i++) {
+				List<XTrace> page = traces.subList(i * PAGE_SIZE, Math.min((i + 1) * PAGE_SIZE, traces.size()));
+				pages.put(firstPage + i, writePage(page, serializer));
+				size += page.size();
+				newPageEnds[firstPage + i] = size;
+			}
+		} catch (IOException e) {
+			throw new XESLiteException("Could not write the traces of the log!", e);
+		}
+		pageEnds = newPageEnds;
+		MapDBStore.saveVar(db, PAGE_INDEX, pageEnds, Serializer.INT_ARRAY);
+	}
+
+	/**
+	 * @return the number of stored traces
+	 */
+	int size() {
+		return pageEnds.length == 0 ? 0 : pageEnds[pageEnds.length - 1];
+	}
+
+	private static byte[] writePage(List<XTrace> traces, MapDBLogSerializer serializer) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutput out = new DataOutputStream(bytes);
+		DataIO.packInt(out, traces.size());
+		long lastId = 0;
+		for (XTrace t : traces) {
+			assert t instanceof ExternalIdentifyable : "Only supports traces stored in a MapDB database";
+			long traceId = ((ExternalIdentifyable) t).getExternalId();
+			DataIO.packLong(out, zigZag(traceId - lastId));
+			lastId = traceId;
+			DataIO.packInt(out, t.size());
+		}
+		lastId = 0;
+		for (XTrace t : traces) {
+			for (XEvent e : t) {
+				assert e instanceof ExternalIdentifyable : "Only supports events stored in a MapDB database";
+				long eventId = ((ExternalIdentifyable) e).getExternalId();
+				DataIO.packLong(out, zigZag(eventId - lastId));
+				lastId = eventId;
+			}
+		}
+		serializer.writeCachedAttributes(out, traces);
+		return bytes.toByteArray();
+	}
+
+	private Page readPage(int pageIndex) throws IOException {
+		byte[] data = pages.get(pageIndex);
+		if (data == null) {
+			throw new XESLiteException("Missing page " + pageIndex + " of the log!");
+		}
+		DataInput in = new DataInputStream(new ByteArrayInputStream(data));
+		int traceCount = DataIO.unpackInt(in);
+		long[] traceIds = new long[traceCount];
+		int[] offsets = new int[traceCount + 1];
+		long lastId = 0;
+		for (int i = 0; i < traceCount; i++) {
+			lastId += unZigZag(DataIO.unpackLong(in));
+			traceIds[i] = lastId;
+			offsets[i + 1] = offsets[i] + DataIO.unpackInt(in);
+		}
+		long[] eventIds = new long[offsets[traceCount]];
+		lastId = 0;
+		for (int i = 0; i < eventIds.length; i++) {
+			lastId += unZigZag(DataIO.unpackLong(in));
+			eventIds[i] = lastId;
+		}
+		CacheColumn[] columns = MapDBLogSerializer.readCachedAttributes(in);
+		String[] cacheKeys = new String[columns.length];
+		long[][] cacheValues = new long[columns.length][eventIds.length];
+		for (int i = 0; i < columns.length; i++) {
+			cacheKeys[i] = columns[i].getKey();
+			for (int j = 0; j < eventIds.length; j++) {
+				cacheValues[i][j] = columns[i].next();
+			}
+		}
+		return new Page(traceIds, offsets, eventIds, cacheKeys, cacheValues);
+	}
+
+	/**
+	 * Adds the traces to the log. Lazily read logs are backed by the pages and
+	 * cannot be modified.
+	 *
+	 * @param log
+	 * @param factory
+	 */
+	void readTraces(XLog log, XFactoryExternalStore factory) {
+		TraceList traces = new TraceList(factory, pageEnds);
+		if (isLazy) {
+			((XLogExternalImpl) log).setTraces(traces);
+		} else {
+			log.addAll(traces);
+		}
+	}
+
+	private static int findPage(int[] pageEnds, int traceIndex) {
+		// pages are never empty, so the ends are strictly ascending
+		int i = Arrays.binarySearch(pageEnds, traceIndex);
+		return i >= 0 ? i + 1 : -(i + 1);
+	}
+
+	private static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unZigZag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+}
@@ -9,6 +9,7 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 
@@ -21,17 +22,78 @@ import org.deckfour.xes.model.XAttributeMap;
 import org.deckfour.xes.model.XEvent;
 import org.deckfour.xes.model.XLog;
 import org.deckfour.xes.model.XTrace;
+import org.mapdb.DataIO;
 import org.mapdb.Serializer;
 import org.xeslite.common.XESLiteException;
 
+import com.google.common.collect.BiMap;
+
 public final class MapDBLogSerializer extends Serializer<XLog> {
 
-	private static final int VERSION = 3;
+	private static final int VERSION = 5;
+
+	/**
+	 * Last version without the cached attributes
+	 */
+	private static final int VERSION_WITHOUT_CACHE = 3;
+
+	/**
+	 * Written instead of the number of traces, when the traces are stored in
+	 * {@link MapDBLogPages}
+	 */
+	private static final int TRACES_PAGED = -1;
+
+	/**
+	 * Sequential reader of a column written by
+	 * {@link MapDBLogSerializer#writeCachedAttributes(DataOutput, Iterable)}.
+	 */
+	static final class CacheColumn {
+
+		private final String key;
+		private final ByteArrayInputStream values;
+		private long lastValue = 0;
+
+		private CacheColumn(String key, byte[] values) {
+			this.key = key;
+			this.values = new ByteArrayInputStream(values);
+		}
+
+		String getKey() {
+			return key;
+		}
+
+		long next() throws IOException {
+			long zigZag = DataIO.unpackLong(values);
+			lastValue += (zigZag >>> 1) ^ -(zigZag & 1);
+			return lastValue;
+		}
+
+	}
 
 	private final XFactoryExternalStore factory;
+	private final StringPool literalPool;
+	private final MapDBLogPages pages;
 
 	public MapDBLogSerializer(XFactoryExternalStore factory) {
+		this(factory, null, null);
+	}
+
+	/**
+	 * @param factory
+	 *            used to create the log upon reading, may be NULL when only
+	 *            writing
+	 * @param literalPool
+	 *            used to store the cached attributes (see
+	 *            {@link AttributesCacheable}) with the log, if NULL the
+	 *            cached attributes are looked up upon reading
+	 * @param pages
+	 *            stores the traces, if NULL the traces are written together
+	 *            with the log
+	 */
+	MapDBLogSerializer(XFactoryExternalStore factory, StringPool literalPool, MapDBLogPages pages) {
 		this.factory = factory;
+		this.literalPool = literalPool;
+		this.pages = pages;
 	}
 
 	public void serialize(DataOutput out, XLog log) throws IOException {
@@ -57,6 +119,14 @@ public final class MapDBLogSerializer extends Serializer<XLog> {
 		//Globals
 		writeGlobalAttributes(out, log.getGlobalEventAttributes());
 		writeGlobalAttributes(out, log.getGlobalTraceAttributes());
+		if (pages != null) {
+			// traces and their cached attributes are written by the pages
+			out.writeInt(0);
+			out.writeInt(TRACES_PAGED);
+			out.writeInt(log.size());
+			return;
+		}
+		writeCachedAttributes(out, log);
 		out.writeInt(log.size());
 		for (XTrace t : log) {
 			assert t instanceof ExternalIdentifyable : "Only supports traces stored in a MapDB database";
@@ -64,14 +134,63 @@ public final class MapDBLogSerializer extends Serializer<XLog> {
 			out.writeLong(((ExternalIdentifyable) t).getExternalId());
 			for (XEvent e : t) {
 				assert e instanceof ExternalIdentifyable : "Only supports events stored in a MapDB database";
-				if (e instanceof AttributesCacheable) {
-					//TODO store in MapDB
-				}
 				out.writeLong(((ExternalIdentifyable) e).getExternalId());
 			}
 		}
 	}
 
+	/**
+	 * Writes the values of the attributes that are cached by
+	 * {@link XEventCachingExternalImpl} for all events of the traces in order.
+	 * Each attribute is written as separate column of zig-zag encoded deltas,
+	 * so that the caches can be filled without any attribute lookup when
+	 * reading the log. Events that do not cache their attributes are not
+	 * looked up, instead no columns are written and the attributes are looked
+	 * up when reading the log with a cache.
+	 */
+	void writeCachedAttributes(DataOutput out, Iterable<XTrace> traces) throws IOException {
+		if (literalPool == null) {
+			out.writeInt(0);
+			return;
+		}
+		BiMap<String, Integer> cachedKeys = XEventCachingExternalImpl.CACHED_ATTRIBUTE_KEYS;
+		ByteArrayOutputStream[] columns = new ByteArrayOutputStream[cachedKeys.size()];
+		long[] lastValues = new long[columns.length];
+		long[] values = new long[columns.length];
+		for (int i = 0; i < columns.length; i++) {
+			columns[i] = new ByteArrayOutputStream();
+		}
+		for (XTrace t : traces) {
+			for (XEvent e : t) {
+				if (!(e instanceof AttributesCacheable)) {
+					// empty marker, avoids reading all attributes of the event
+					out.writeInt(0);
+					return;
+				}
+				Arrays.fill(values, -1);
+				AttributesCacheable cacheable = (AttributesCacheable) e;
+				for (int i = 0; i < values.length; i++) {
+					Integer cacheIndex = cacheable.getCacheIndex(cachedKeys.inverse().get(i));
+					if (cacheIndex != null) {
+						values[i] = cacheable.getOriginalCacheValue(cacheIndex);
+					}
+				}
+				for (int i = 0; i < values.length; i++) {
+					long delta = values[i] - lastValues[i];
+					DataIO.packLong(columns[i], (delta << 1) ^ (delta >> 63));
+					lastValues[i] = values[i];
+				}
+			}
+		}
+		out.writeInt(columns.length);
+		for (int i = 0; i < columns.length; i++) {
+			out.writeUTF(cachedKeys.inverse().get(i));
+			byte[] bytes = columns[i].toByteArray();
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
 	private void writeGlobalAttributes(DataOutput out, List<XAttribute> globalAttributes) throws IOException {
 		out.writeInt(globalAttributes.size());
 		for (XAttribute globalAttribute : globalAttributes) {
@@ -86,7 +205,7 @@ public final class MapDBLogSerializer extends Serializer<XLog> {
 
 	public XLog deserialize(DataInput in, int available) throws IOException {
 		int version = in.readInt();
-		if (version != VERSION) {
+		if (version < VERSION_WITHOUT_CACHE || version > VERSION) {
 			throw new RuntimeException("Invalid XESLite database. Expected database version " + VERSION);
 		}
 		XLog log = factory.openLog(in.readLong());
@@ -106,7 +225,16 @@ public final class MapDBLogSerializer extends Serializer<XLog> {
 		}
 		readGlobals(in, log.getGlobalEventAttributes());
 		readGlobals(in, log.getGlobalTraceAttributes());
+		CacheColumn[] columns = version > VERSION_WITHOUT_CACHE ? readCachedAttributes(in) : new CacheColumn[0];
 		int logSize = in.readInt();
+		if (logSize == TRACES_PAGED) {
+			if (pages == null) {
+				throw new XESLiteException("Traces are stored in pages, which are not available.");
+			}
+			in.readInt(); // size at the time of saving, appended traces are only in the page index
+			pages.readTraces(log, factory);
+			return log;
+		}
 		ArrayList<XEvent> events = new ArrayList<>();
 		for (int traceIndex = 0; traceIndex < logSize; traceIndex++) {
 			events.clear();
@@ -115,16 +243,12 @@ public final class MapDBLogSerializer extends Serializer<XLog> {
 			long traceId = in.readLong();
 			for (int eventIndex = 0; eventIndex < traceSize; eventIndex++) {
 				XEvent event = factory.openEvent(in.readLong());
-				if (event instanceof AttributesCacheable) {
-					XAttributeMap attributes = event.getAttributes();
-					AttributesCacheable cacheable = (AttributesCacheable) event;
-					for (Iterator<XAttribute> iterator = attributes.values().iterator(); iterator.hasNext();) {
-						XAttribute a = iterator.next();
-						Integer cacheIndex = cacheable.getCacheIndex(a.getKey());
-						if (cacheIndex != null) {
-							cacheable.setCacheValue(cacheIndex, a);
-						}
+				if (columns.length > 0) {
+					for (CacheColumn column : columns) {
+						setCacheValue(event, column.getKey(), column.next());
 					}
+				} else {
+					lookupCacheValues(event);
 				}
 				events.add(event);
 			}
@@ -134,6 +258,49 @@ public final class MapDBLogSerializer extends Serializer<XLog> {
 		return log;
 	}
 
+	/**
+	 * Fills the cache of the event with a value read from a
+	 * {@link CacheColumn}, does nothing for events without cache.
+	 */
+	static void setCacheValue(XEvent event, String key, long value) {
+		if (event instanceof AttributesCacheable) {
+			AttributesCacheable cacheable = (AttributesCacheable) event;
+			Integer cacheIndex = cacheable.getCacheIndex(key);
+			if (cacheIndex != null) {
+				cacheable.setOriginalCacheValue(cacheIndex, value);
+			}
+		}
+	}
+
+	/**
+	 * Fills the cache of the event by looking up its attributes, used when no
+	 * {@link CacheColumn} was written. Does nothing for events without cache.
+	 */
+	static void lookupCacheValues(XEvent event) {
+		if (event instanceof AttributesCacheable) {
+			XAttributeMap attributes = event.getAttributes();
+			AttributesCacheable cacheable = (AttributesCacheable) event;
+			for (Iterator<XAttribute> iterator = attributes.values().iterator(); iterator.hasNext();) {
+				XAttribute a = iterator.next();
+				Integer cacheIndex = cacheable.getCacheIndex(a.getKey());
+				if (cacheIndex != null) {
+					cacheable.setCacheValue(cacheIndex, a);
+				}
+			}
+		}
+	}
+
+	static CacheColumn[] readCachedAttributes(DataInput in) throws IOException {
+		CacheColumn[] columns = new CacheColumn[in.readInt()];
+		for (int i = 0; i < columns.length; i++) {
+			String key = in.readUTF();
+			byte[] values = new byte[in.readInt()];
+			in.readFully(values);
+			columns[i] = new CacheColumn(key, values);
+		}
+		return columns;
+	}
+
 	private void readGlobals(DataInput in, List<XAttribute> globals) throws IOException {
 		int globalsSize = in.readInt();
 		for (int globalsIndex = 0; globalsIndex < globalsSize; globalsIndex++) {
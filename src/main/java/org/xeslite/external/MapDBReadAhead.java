@@ -0,0 +1,176 @@
+package org.xeslite.external;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.NavigableMap;
+
+import org.deckfour.xes.model.XAttributeMap;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+
+/**
+ * Reads the attributes of a group of {@link ExternalAttributable}s, e.g., the
+ * events of a trace, from a {@link MapDBStore} with a single range scan
+ * instead of one lookup per owner. Since the {@link IdFactorySeq} hands out
+ * ascending identifiers, the attributes of the events of a trace are usually
+ * stored next to each other.
+ * <p>
+ * The scan is done upon the first access. The attributes that were read are
+ * only used as long as the store is not modified, afterwards all attribute
+ * maps read directly from the store again.
+ *
+ * @author F. Mannhardt
+ *
+ */
+final class MapDBReadAhead {
+
+	/**
+	 * Owners that are spread over more than MAX_SPREAD times their number of
+	 * identifiers are not read ahead.
+	 */
+	static final int MAX_SPREAD = 4;
+
+	/**
+	 * The stored attributes of one owner in the order of the storage.
+	 */
+	static final class Record {
+
+		static final Record EMPTY = new Record(new int[0], new ExternalAttribute[0], 0);
+
+		private final int[] keys;
+		private final ExternalAttribute[] values;
+		private final int size;
+
+		private Record(int[] keys, ExternalAttribute[] values, int size) {
+			this.keys = keys;
+			this.values = values;
+			this.size = size;
+		}
+
+		int size() {
+			return size;
+		}
+
+		int getKey(int index) {
+			return keys[index];
+		}
+
+		ExternalAttribute getValue(int index) {
+			return values[index];
+		}
+
+		ExternalAttribute get(int keyIndex) {
+			for (int i = 0; i < size; i++) {
+				if (keys[i] == keyIndex) {
+					return values[i];
+				}
+			}
+			return null;
+		}
+
+	}
+
+	private final MapDBStore store;
+	private final long lowestId;
+	private final long highestId;
+
+	private long[] ownerIds;
+	private Long2ObjectMap<Record> records;
+	private long modificationCount;
+
+	MapDBReadAhead(MapDBStore store, long[] ownerIds, int size, long lowestId, long highestId) {
+		super();
+		this.store = store;
+		this.ownerIds = Arrays.copyOf(ownerIds, size);
+		this.lowestId = lowestId;
+		this.highestId = highestId;
+	}
+
+	/**
+	 * @param owner
+	 * @return the attributes of the owner, which are read ahead if possible
+	 */
+	XAttributeMap getAttributes(ExternalAttributable owner) {
+		Record record = getRecord(owner.getExternalId());
+		if (record != null) {
+			return store.createAttributeMap(owner, this, record);
+		} else {
+			return store.getAttributes(owner);
+		}
+	}
+
+	/**
+	 * @return whether the store has not been modified since the attributes
+	 *         were read
+	 */
+	boolean isCurrent() {
+		return store.getModificationCount() == getModificationCount();
+	}
+
+	private synchronized long getModificationCount() {
+		return modificationCount;
+	}
+
+	private synchronized Record getRecord(long ownerId) {
+		if (store.isPumping()) {
+			return null;
+		}
+		if (records == null) {
+			if (ownerIds == null) {
+				// outdated
+				return null;
+			}
+			readAll();
+		} else if (store.getModificationCount() != modificationCount) {
+			// release memory, the attributes are not used anymore
+			records = null;
+			return null;
+		}
+		return records.get(ownerId);
+	}
+
+	private void readAll() {
+		// read first, so that concurrent changes are detected
+		modificationCount = store.getModificationCount();
+
+		records = new Long2ObjectOpenHashMap<>(ownerIds.length);
+		for (long id : ownerIds) {
+			records.put(id, Record.EMPTY);
+		}
+		ownerIds = null;
+
+		long keyMask = store.getAttributeKeyPool().getCapacity() - 1;
+		// keys are reversed, the range starts with the last key of the highest owner
+		NavigableMap<Long, ExternalAttribute> range = store.getMapStorage(lowestId).subMap(highestId + keyMask, true,
+				lowestId, true);
+		long currentOwner = -1;
+		int[] keys = new int[8];
+		ExternalAttribute[] values = new ExternalAttribute[8];
+		int size = 0;
+		for (Map.Entry<Long, ExternalAttribute> entry : range.entrySet()) {
+			long compositeKey = entry.getKey();
+			long owner = compositeKey & ~keyMask;
+			if (owner != currentOwner) {
+				addRecord(currentOwner, keys, values, size);
+				currentOwner = owner;
+				size = 0;
+			}
+			if (size == keys.length) {
+				keys = Arrays.copyOf(keys, size * 2);
+				values = Arrays.copyOf(values, size * 2);
+			}
+			keys[size] = (int) (compositeKey & keyMask);
+			values[size] = entry.getValue();
+			size++;
+		}
+		addRecord(currentOwner, keys, values, size);
+	}
+
+	private void addRecord(long owner, int[] keys, ExternalAttribute[] values, int size) {
+		if (size > 0 && records.containsKey(owner)) {
+			records.put(owner, new Record(Arrays.copyOf(keys, size), Arrays.copyOf(values, size), size));
+		}
+	}
+
+}
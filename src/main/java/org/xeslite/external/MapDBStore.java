@@ -3,22 +3,30 @@ package org.xeslite.external;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedTransferQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.prefs.Preferences;
 
 import org.deckfour.xes.extension.std.XConceptExtension;
@@ -26,8 +34,11 @@ import org.deckfour.xes.extension.std.XLifecycleExtension;
 import org.deckfour.xes.extension.std.XTimeExtension;
 import org.deckfour.xes.model.XAttributable;
 import org.deckfour.xes.model.XAttribute;
+import org.deckfour.xes.model.XAttributeCollection;
+import org.deckfour.xes.model.XAttributeLiteral;
 import org.deckfour.xes.model.XAttributeMap;
 import org.deckfour.xes.model.XLog;
+import org.deckfour.xes.model.XTrace;
 import org.mapdb.Atomic;
 import org.mapdb.BTreeKeySerializer;
 import org.mapdb.BTreeMap;
@@ -41,6 +52,9 @@ import org.xeslite.common.XESLiteException;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Ordering;
 import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 
 /**
  * Implementation using the BTree implementation of MapDB
@@ -59,6 +73,13 @@ public final class MapDBStore extends ExternalStoreAbstract {
 	private static final int DEFAULT_KEY_POOL_SHIFT = 12; // 4096  should be enough for most XES logs
 	private static final int MAX_KEY_POOL_SHIFT = 20; // 1048576 unique attribute, this would be a strange XES file
 	private static final int DEFAULT_NODE_SIZE = 32; // 32 is a good compromise for concurrent writes
+	private static final int DEFAULT_PUMP_BATCH_SIZE = 1024; // attributables handed over to the pump thread at once
+	private static final int DEFAULT_PUMP_QUEUE_CAPACITY = 64; // batches waiting for the pump thread
+	private static final int DEFAULT_LOG_PAGE_CACHE_SIZE = 64; // decoded pages of a lazily loaded log
+
+	private static final String ATTRIBUTE_STORE = ".attributeStore";
+	private static final String SEGMENTS = ".attributeSegments";
+	private static final String INDEX_PREFIX = ".index.";
 
 	public static int getDefaultKeyPoolShift() {
 		return PREFS.getInt("defaultKeyPoolShift", DEFAULT_KEY_POOL_SHIFT);
@@ -72,6 +93,18 @@ public final class MapDBStore extends ExternalStoreAbstract {
 		return PREFS.getInt("defaultNodeSize", DEFAULT_NODE_SIZE);
 	}
 
+	public static int getDefaultPumpBatchSize() {
+		return PREFS.getInt("defaultPumpBatchSize", DEFAULT_PUMP_BATCH_SIZE);
+	}
+
+	public static int getDefaultPumpQueueCapacity() {
+		return PREFS.getInt("defaultPumpQueueCapacity", DEFAULT_PUMP_QUEUE_CAPACITY);
+	}
+
+	public static int getDefaultLogPageCacheSize() {
+		return PREFS.getInt("defaultLogPageCacheSize", DEFAULT_LOG_PAGE_CACHE_SIZE);
+	}
+
 	private static final class ReversedLongSerializer extends BTreeKeySerializer<Long, long[]> {
 
 		// Reverse
@@ -127,6 +160,12 @@ public final class MapDBStore extends ExternalStoreAbstract {
 		}
 	}
 
+	/**
+	 * Hands over the attributes to the thread that builds the BTree in
+	 * batches through a bounded queue. The producer blocks when the queue is
+	 * full, so a parser that is faster than MapDB cannot fill the heap with
+	 * attributes that are waiting to be written.
+	 */
 	final class PumpServiceImpl implements PumpService {
 
 		private final class PumpIterator implements Iterator<Fun.Pair<Long, ExternalAttribute>> {
@@ -150,6 +189,8 @@ public final class MapDBStore extends ExternalStoreAbstract {
 				}
 			}
 
+			private List<Pair<XAttributable, List<XAttribute>>> batch = Collections.emptyList();
+			private int batchPos = 0;
 			private ExternalAttributable owner;
 			private Iterator<XAttribute> attributes = ImmutableSet.<XAttribute>of().iterator();
 			private Comparator<? super XAttribute> comparator = new AttributeComparator();
@@ -173,7 +214,7 @@ public final class MapDBStore extends ExternalStoreAbstract {
 						return true;
 					}
 					Pair<XAttributable, List<XAttribute>> attributesWithOwner = takeNext();
-					if (attributesWithOwner != endOfPump) {
+					if (attributesWithOwner != null) {
 						sort(attributesWithOwner.b);
 						owner = (ExternalAttributable) attributesWithOwner.a;
 						attributes = attributesWithOwner.b.iterator();
@@ -190,7 +231,17 @@ public final class MapDBStore extends ExternalStoreAbstract {
 			}
 
 			private final Pair<XAttributable, List<XAttribute>> takeNext() throws InterruptedException {
-				return pumpQueue.take();
+				while (batchPos == batch.size()) {
+					List<Pair<XAttributable, List<XAttribute>>> nextBatch = pumpQueue.take();
+					if (nextBatch == endOfPump) {
+						return null;
+					}
+					batch = nextBatch;
+					batchPos = 0;
+				}
+				Pair<XAttributable, List<XAttribute>> next = batch.set(batchPos++, null); // allow GC of written attributes
+				pumpedCount.lazySet(pumpedCount.get() + 1); // only written by the pump thread
+				return next;
 			}
 
 			private final boolean endOfData() {
@@ -212,18 +263,45 @@ public final class MapDBStore extends ExternalStoreAbstract {
 		private final ExecutorService pumpExecutor = Executors.newSingleThreadExecutor();
 		private final Future<ConcurrentNavigableMap<Long, ExternalAttribute>> pumpFuture;
 
-		private final BlockingQueue<Pair<XAttributable, List<XAttribute>>> pumpQueue = new LinkedTransferQueue<>();
+		private final BlockingQueue<List<Pair<XAttributable, List<XAttribute>>>> pumpQueue;
 		private final Iterator<Pair<Long, ExternalAttribute>> pumpIterator;
 
-		private final Pair<XAttributable, List<XAttribute>> endOfPump = new Pair<>(null, null);
+		private final List<Pair<XAttributable, List<XAttribute>>> endOfPump = Collections.emptyList();
+
+		// only accessed by the producer
+		private final int batchSize;
+		private List<Pair<XAttributable, List<XAttribute>>> currentBatch;
+
+		private final AtomicLong queuedCount = new AtomicLong();
+		private final AtomicLong pumpedCount = new AtomicLong();
+		private final long startTime = System.nanoTime();
+
+		// first identifier of the appended segment, NULL if the store is pumped from scratch
+		private final Long segmentStart;
 
 		/**
 		 * Starts the pump thread. Side-effect: The 'db' will be locked!
 		 */
 		public PumpServiceImpl(final Builder builder) {
-			db.delete(".attributeStore");
 			assert idFactory instanceof IdFactorySeq : "Keys need to be sorted in sequential ascending order for data pump. "
 					+ "Please choose an appropriate IdFactory such as IdFactorySeq.";
+			final String treeName;
+			if (builder.isAppend) {
+				// all identifiers handed out from now on are higher than the stored ones
+				segmentStart = ((IdFactorySeq) idFactory).peekNextId();
+				treeName = getSegmentName(segmentStart);
+				if (db.exists(treeName)) {
+					// left by an earlier append that did not create any attributable
+					db.delete(treeName);
+				}
+			} else {
+				segmentStart = null;
+				treeName = ATTRIBUTE_STORE;
+				db.delete(treeName);
+			}
+			batchSize = builder.pumpBatchSize;
+			currentBatch = new ArrayList<>(batchSize);
+			pumpQueue = new ArrayBlockingQueue<>(builder.pumpQueueCapacity);
 			pumpIterator = new PumpIterator();
 			final Thread callingThread = Thread.currentThread(); // Use to interrupt calling thread upon error on pump thread
 			// Auto-start the creation thread - be aware that 'db' is locked now!
@@ -232,7 +310,7 @@ public final class MapDBStore extends ExternalStoreAbstract {
 
 				public ConcurrentNavigableMap<Long, ExternalAttribute> call() throws Exception {
 					try {
-						return db.treeMapCreate(".attributeStore")
+						return db.treeMapCreate(treeName)
 								.keySerializer(new BTreeKeySerializer.Compress(new ReversedLongSerializer()))
 								.valueSerializer(serializer).nodeSize(builder.nodeSize).pumpSource(pumpIterator)
 								.makeOrGet();
@@ -248,6 +326,13 @@ public final class MapDBStore extends ExternalStoreAbstract {
 		public void pumpAttributes(XAttributable attributable, List<XAttribute> attributes) {
 			if (attributable instanceof ExternalAttributable) {
 				if (!attributes.isEmpty()) {
+					if (!indexes.isEmpty()) {
+						// Index before cached attributes are removed from the list
+						long ownerId = ((ExternalAttributable) attributable).getExternalId();
+						for (XAttribute a : attributes) {
+							updateIndex(ownerId, keyPool.put(a.getKey()), null, a);
+						}
+					}
 					// Handle caching of attribute as we are by-passing the usual adding of attributes
 					// This is done on the adding thread to avoid race conditions  
 					if (attributable instanceof AttributesCacheable) {
@@ -262,11 +347,13 @@ public final class MapDBStore extends ExternalStoreAbstract {
 						}
 					}
 					if (!attributes.isEmpty()) {
-						Pair<XAttributable, List<XAttribute>> pair = new Pair<>(attributable, attributes);
-						try {
-							pumpQueue.offer(pair, 30, TimeUnit.DAYS);
-						} catch (InterruptedException e) {
-							Thread.currentThread().interrupt();
+						currentBatch.add(new Pair<>(attributable, attributes));
+						if (currentBatch.size() >= batchSize) {
+							try {
+								flushBatch();
+							} catch (InterruptedException e) {
+								throwInterrupted(e);
+							}
 						}
 					} // else just ignore this one
 				}
@@ -278,11 +365,65 @@ public final class MapDBStore extends ExternalStoreAbstract {
 			}
 		}
 
+		/**
+		 * Blocks while the queue is full. The pump thread interrupts the
+		 * producer when it fails, so this cannot block forever. The current
+		 * batch is only replaced once it was queued, an interrupted flush
+		 * keeps it.
+		 */
+		private void flushBatch() throws InterruptedException {
+			if (!currentBatch.isEmpty()) {
+				pumpQueue.put(currentBatch);
+				queuedCount.addAndGet(currentBatch.size());
+				currentBatch = new ArrayList<>(batchSize);
+			}
+		}
+
+		/**
+		 * Throws the failure of the pump thread, which interrupted the
+		 * producer, or an exception for an interrupt from elsewhere after
+		 * restoring the interrupt flag.
+		 */
+		private void throwInterrupted(InterruptedException e) {
+			try {
+				pumpFuture.get(1, TimeUnit.SECONDS);
+			} catch (ExecutionException e1) {
+				reThrow(e1);
+			} catch (TimeoutException | InterruptedException e1) {
+				// the pump thread is still running
+			}
+			Thread.currentThread().interrupt();
+			throw new XESLiteException("Interrupted while handing attributes to the pump thread!", e);
+		}
+
+		/**
+		 * @return the number of attributables that have been handed over but
+		 *         are not yet written by the pump thread
+		 */
+		long getQueueDepth() {
+			return Math.max(0, queuedCount.get() - pumpedCount.get());
+		}
+
+		/**
+		 * @return the number of attributables written by the pump thread per
+		 *         second since the pump was started
+		 */
+		double getThroughput() {
+			double seconds = (System.nanoTime() - startTime) / 1e9;
+			return seconds > 0 ? pumpedCount.get() / seconds : 0;
+		}
+
 		public void finishPump() {
 			try {
-				pumpQueue.offer(endOfPump, 30, TimeUnit.DAYS);
+				flushBatch();
+				pumpQueue.put(endOfPump);
 				try {
-					attributeStorage = pumpFuture.get();
+					ConcurrentNavigableMap<Long, ExternalAttribute> tree = pumpFuture.get();
+					if (segmentStart != null) {
+						addSegment(segmentStart, tree);
+					} else {
+						attributeStorage = tree;
+					}
 				} catch (ExecutionException e) {
 					reThrow(e);
 				}
@@ -314,9 +455,17 @@ public final class MapDBStore extends ExternalStoreAbstract {
 
 		private MapDBDatabase database;
 		private boolean isPump = false;
+		private boolean isAppend = false;
 
 		private int keyPoolShift = getDefaultKeyPoolShift();
 		private int nodeSize = getDefaultNodeSize();
+		private int pumpBatchSize = getDefaultPumpBatchSize();
+		private int pumpQueueCapacity = getDefaultPumpQueueCapacity();
+		private boolean isRowLayout = false;
+		private final Set<String> indexedKeys = new LinkedHashSet<>();
+		private int rowGroupShift = 0;
+		private boolean isLazyLog = false;
+		private int logPageCacheSize = getDefaultLogPageCacheSize();
 
 		public Builder withDatabase(MapDBDatabase database) {
 			this.database = database;
@@ -328,6 +477,22 @@ public final class MapDBStore extends ExternalStoreAbstract {
 			return this;
 		}
 
+		/**
+		 * Uses the data pump to append attributables to an existing database
+		 * instead of replacing its content. Identifiers continue from the
+		 * persisted {@link IdFactorySeq}, so the pumped attributes form a new
+		 * key range that is bulk-loaded into a separate BTree segment. Reads
+		 * and writes are routed to the segment of the owner. Segments can be
+		 * combined later with {@link MapDBStore#mergeSegments()}.
+		 * 
+		 * @return this builder
+		 */
+		public Builder withAppendPump() {
+			this.isPump = true;
+			this.isAppend = true;
+			return this;
+		}
+
 		public Builder withKeyPoolShift(int keyPoolShift) {
 			this.keyPoolShift = keyPoolShift;
 			return this;
@@ -338,7 +503,122 @@ public final class MapDBStore extends ExternalStoreAbstract {
 			return this;
 		}
 
+		/**
+		 * Sets the number of attributables that are handed over to the pump
+		 * thread at once.
+		 * 
+		 * @param pumpBatchSize
+		 * @return this builder
+		 */
+		public Builder withPumpBatchSize(int pumpBatchSize) {
+			this.pumpBatchSize = pumpBatchSize;
+			return this;
+		}
+
+		/**
+		 * Sets the number of batches that may wait for the pump thread before
+		 * the producer is blocked. Together with
+		 * {@link #withPumpBatchSize(int)} this bounds the memory used during
+		 * the data pump.
+		 * 
+		 * @param pumpQueueCapacity
+		 * @return this builder
+		 */
+		public Builder withPumpQueueCapacity(int pumpQueueCapacity) {
+			this.pumpQueueCapacity = pumpQueueCapacity;
+			return this;
+		}
+
+		/**
+		 * Maintains a secondary index from the values of literal attributes
+		 * with the supplied keys to their owners, see
+		 * {@link MapDBStore#lookupOwnerIds(String, String)}. The index is
+		 * filled during the data pump and updated on every change.
+		 * 
+		 * @param keys
+		 * @return this builder
+		 */
+		public Builder withIndex(String... keys) {
+			Collections.addAll(indexedKeys, keys);
+			return this;
+		}
+
+		/**
+		 * Stores all attributes of an attributable as one record instead of
+		 * one entry per attribute, see {@link MapDBStoreRowGroup}.
+		 * 
+		 * @return this builder
+		 */
+		public Builder withRowLayout() {
+			this.isRowLayout = true;
+			return this;
+		}
+
+		/**
+		 * Stores the records of 2^rowGroupShift consecutive attributables in
+		 * one page. Implies {@link #withRowLayout()}.
+		 * 
+		 * @param rowGroupShift
+		 * @return this builder
+		 */
+		public Builder withRowGroupShift(int rowGroupShift) {
+			this.isRowLayout = true;
+			this.rowGroupShift = rowGroupShift;
+			return this;
+		}
+
+		/**
+		 * Loads the traces of a saved log on access instead of all at once,
+		 * see {@link MapDBLogPages}. The loaded log cannot be modified and the
+		 * store is frozen after loading.
+		 * 
+		 * @return this builder
+		 */
+		public Builder withLazyLog() {
+			this.isLazyLog = true;
+			return this;
+		}
+
+		/**
+		 * Sets the number of decoded pages of {@link MapDBLogPages#PAGE_SIZE}
+		 * traces that are kept in memory for a lazily loaded log.
+		 * 
+		 * @param logPageCacheSize
+		 * @return this builder
+		 */
+		public Builder withLogPageCacheSize(int logPageCacheSize) {
+			this.logPageCacheSize = logPageCacheSize;
+			return this;
+		}
+
+		private void checkRowLayout() {
+			if (!indexedKeys.isEmpty()) {
+				throw new IllegalStateException("The row layout does not support secondary indexes!");
+			}
+			if (isAppend) {
+				throw new IllegalStateException("The row layout does not support appending with the data pump!");
+			}
+			if (keyPoolShift != getDefaultKeyPoolShift()) {
+				throw new IllegalStateException(
+						"The row layout does not encode attribute keys in the id, the key pool shift cannot be changed!");
+			}
+			if (pumpBatchSize != getDefaultPumpBatchSize() || pumpQueueCapacity != getDefaultPumpQueueCapacity()) {
+				throw new IllegalStateException(
+						"The row layout pumps on the calling thread, the pump batch size and queue capacity cannot be changed!");
+			}
+		}
+
+		/**
+		 * @return a new store, either a {@link MapDBStore} or a
+		 *         {@link MapDBStoreRowGroup} if the row layout is used
+		 * @throws IllegalStateException
+		 *             if options are combined with the row layout that it does
+		 *             not support
+		 */
 		public ExternalStore build() {
+			if (isRowLayout) {
+				checkRowLayout();
+			}
 			if (database == null)
 				// Stand-alone mode with temporary file
 				database = new MapDBDatabaseImpl();
@@ -351,6 +631,9 @@ public final class MapDBStore extends ExternalStoreAbstract {
 			} catch (DBException e) {
 				throw new XESLiteException("Failed to create MapDB database!", e);
 			}
+			if (isRowLayout) {
+				return new MapDBStoreRowGroup(database.getDB(), nodeSize, rowGroupShift, isLazyLog, logPageCacheSize);
+			}
 			return new MapDBStore(this);
 		}
 
@@ -358,24 +641,31 @@ public final class MapDBStore extends ExternalStoreAbstract {
 
 	private final Builder builder;
 
-	private PumpService pumpService;
+	private volatile PumpService pumpService;
 
 	private final DB db;
 	private final MapDBAttributeSerializer serializer;
 
-	private NavigableMap<Long, ExternalAttribute> attributeStorage;
+	private volatile NavigableMap<Long, ExternalAttribute> attributeStorage;
+	private volatile boolean isMerging = false;
+	// first owner id -> attributes appended by a data pump, see Builder#withAppendPump()
+	private final NavigableMap<Long, NavigableMap<Long, ExternalAttribute>> segments = new ConcurrentSkipListMap<>();
 
 	private final IdFactory idFactory;
 	private final StringPool keyPool;
 	private final StringPool literalPool;
 
+	// attribute key -> set of (literal index, owner id)
+	private final Map<Integer, NavigableSet<Object[]>> indexes = new ConcurrentHashMap<>();
+	private final AtomicLong modificationCount = new AtomicLong();
+
 	private MapDBStore(Builder builder) {
 		super();
 		this.builder = builder;
 
 		db = builder.database.getDB();
 
-		if (builder.isPump) {
+		if (builder.isPump && !builder.isAppend) {
 			// sequential ID's are required for data pump
 			idFactory = new IdFactorySeq(builder.keyPoolShift);
 			keyPool = createKeyPool(db, idFactory.getIntervalCapacity());
@@ -386,20 +676,270 @@ public final class MapDBStore extends ExternalStoreAbstract {
 			keyPool = createKeyPool(db, idFactory.getIntervalCapacity());
 			literalPool = createLiteralPool(db);
 			serializer = createSerializer(literalPool, keyPool);
-			if (db.exists(".attributeStore")) {
-				attributeStorage = db.treeMap(".attributeStore", new ReversedLongSerializer(), serializer);
-			} else {
-				attributeStorage = db.treeMapCreate(".attributeStore")
-						.keySerializer(new BTreeKeySerializer.Compress(new ReversedLongSerializer())) //
-						.valueSerializer(serializer) //
-						.nodeSize(builder.nodeSize) //
-						.makeOrGet();
+			attributeStorage = openAttributeTree(ATTRIBUTE_STORE);
+			if (db.exists(SEGMENTS)) {
+				for (long segmentStart : db.atomicVar(SEGMENTS, Serializer.LONG_ARRAY).get()) {
+					segments.put(segmentStart, openAttributeTree(getSegmentName(segmentStart)));
+				}
+			}
+		}
+
+		// Open existing indexes first, so that they are also maintained
+		for (int i = 0; i < keyPool.size(); i++) {
+			String key = keyPool.getValue(i);
+			if (key != null && db.exists(INDEX_PREFIX + key)) {
+				openIndex(key);
+			}
+		}
+		for (String key : builder.indexedKeys) {
+			openIndex(key);
+		}
+
+	}
+
+	private NavigableMap<Long, ExternalAttribute> openAttributeTree(String name) {
+		if (db.exists(name)) {
+			// same key serializer as used upon creation
+			return db.treeMap(name, new BTreeKeySerializer.Compress(new ReversedLongSerializer()), serializer);
+		} else {
+			return db.treeMapCreate(name).keySerializer(new BTreeKeySerializer.Compress(new ReversedLongSerializer())) //
+					.valueSerializer(serializer) //
+					.nodeSize(builder.nodeSize) //
+					.makeOrGet();
+		}
+	}
+
+	private static String getSegmentName(long segmentStart) {
+		return ATTRIBUTE_STORE + "." + segmentStart;
+	}
+
+	private void addSegment(long segmentStart, NavigableMap<Long, ExternalAttribute> segment) {
+		segments.put(segmentStart, segment);
+		saveVar(db, SEGMENTS, Longs.toArray(segments.keySet()), Serializer.LONG_ARRAY);
+	}
+
+	/**
+	 * @return the number of BTree segments that were added by appending data
+	 *         pumps and are not yet merged, see
+	 *         {@link Builder#withAppendPump()}
+	 */
+	public int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * Combines the attributes of all segments added by appending data pumps
+	 * into a single BTree. Since the segments cover ascending, disjoint ranges
+	 * of identifiers, the new BTree is bulk-loaded with the data pump. This
+	 * rewrites all stored attributes and is meant to be called now and then,
+	 * e.g., after several appends. Since the owner of merged attributes is
+	 * not known, their literals are pooled based on the key if the value is
+	 * already in the literal pool.
+	 * <p>
+	 * Merging requires exclusive access to the store: the old BTrees are
+	 * deleted afterwards, so no attribute may be read or written while
+	 * merging. Accessing attributes during the merge fails with an
+	 * {@link XESLiteException}, attribute maps obtained before switch to the
+	 * merged BTree afterwards.
+	 */
+	public synchronized void mergeSegments() {
+		if (isPumping()) {
+			throw new XESLiteException("Cannot be used during data pump!");
+		}
+		checkNotFrozen();
+		if (segments.isEmpty()) {
+			return;
+		}
+		isMerging = true;
+		try {
+			doMergeSegments();
+		} finally {
+			isMerging = false;
+		}
+	}
+
+	private void doMergeSegments() {
+		final String mergedName = ATTRIBUTE_STORE + ".merged";
+		if (db.exists(mergedName)) {
+			db.delete(mergedName);
+		}
+		final List<NavigableMap<Long, ExternalAttribute>> trees = new ArrayList<>();
+		trees.add(attributeStorage);
+		trees.addAll(segments.values());
+		final long keyMask = keyPool.getCapacity() - 1;
+		Iterator<Pair<Long, ExternalAttribute>> mergeIterator = new Iterator<Pair<Long, ExternalAttribute>>() {
+
+			private final Iterator<NavigableMap<Long, ExternalAttribute>> treeIterator = trees.iterator();
+			private Iterator<Map.Entry<Long, ExternalAttribute>> entries = Collections.emptyIterator();
+
+			public boolean hasNext() {
+				while (!entries.hasNext() && treeIterator.hasNext()) {
+					// keys are reversed, the pump needs the lowest composite key first
+					entries = treeIterator.next().descendingMap().entrySet().iterator();
+				}
+				return entries.hasNext();
+			}
+
+			public Pair<Long, ExternalAttribute> next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				Map.Entry<Long, ExternalAttribute> entry = entries.next();
+				ExternalAttribute a = XAttributeExternalImpl.decorate(entry.getValue(),
+						(int) (entry.getKey() & keyMask), MapDBStore.this, null);
+				return new Pair<>(entry.getKey(), a);
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
 			}
+		};
+		NavigableMap<Long, ExternalAttribute> merged = db.treeMapCreate(mergedName)
+				.keySerializer(new BTreeKeySerializer.Compress(new ReversedLongSerializer())) //
+				.valueSerializer(serializer) //
+				.nodeSize(builder.nodeSize) //
+				.pumpSource(mergeIterator) //
+				.makeOrGet();
+		db.delete(ATTRIBUTE_STORE);
+		for (long segmentStart : segments.keySet()) {
+			db.delete(getSegmentName(segmentStart));
 		}
+		db.rename(mergedName, ATTRIBUTE_STORE);
+		attributeStorage = merged;
+		segments.clear();
+		db.delete(SEGMENTS);
+		attributesModified();
+	}
 
+	private NavigableSet<Object[]> openIndex(String key) {
+		String name = INDEX_PREFIX + key;
+		BTreeKeySerializer<Object[], ?> indexSerializer = new BTreeKeySerializer.ArrayKeySerializer(
+				Serializer.INTEGER_PACKED, Serializer.LONG_PACKED);
+		NavigableSet<Object[]> index;
+		if (db.exists(name)) {
+			index = db.treeSet(name, indexSerializer);
+		} else {
+			index = db.treeSetCreate(name).serializer(indexSerializer).makeOrGet();
+		}
+		indexes.put(keyPool.put(key), index);
+		return index;
 	}
 
-	private MapDBAttributeSerializer createSerializer(StringPool literalPool, StringPool keyPool) {
+	/**
+	 * Updates the secondary index of the attribute key, if there is one.
+	 * 
+	 * @param ownerId
+	 * @param keyIndex
+	 * @param oldValue
+	 *            the previous attribute or NULL
+	 * @param newValue
+	 *            the new attribute or NULL
+	 */
+	final void updateIndex(long ownerId, int keyIndex, XAttribute oldValue, XAttribute newValue) {
+		if (indexes.isEmpty()) {
+			return;
+		}
+		NavigableSet<Object[]> index = indexes.get(keyIndex);
+		if (index != null) {
+			if (isIndexable(oldValue)) {
+				// an unknown literal cannot be in the index, do not add it to the pool
+				Integer oldIndex = literalPool.getIndex(((XAttributeLiteral) oldValue).getValue());
+				if (oldIndex != null) {
+					index.remove(new Object[] { oldIndex, ownerId });
+				}
+			}
+			if (isIndexable(newValue)) {
+				index.add(new Object[] { literalPool.put(((XAttributeLiteral) newValue).getValue()), ownerId });
+			}
+		}
+	}
+
+	final boolean hasIndexes() {
+		return !indexes.isEmpty();
+	}
+
+	private static boolean isIndexable(XAttribute a) {
+		return a instanceof XAttributeLiteral && !(a instanceof XAttributeCollection);
+	}
+
+	/**
+	 * Creates a secondary index for the literal attributes with the supplied
+	 * key by scanning all stored attributes once. Attributes that are kept in
+	 * memory by the factory (such as 'concept:name' for
+	 * {@link XFactoryExternalStore.MapDBDiskImpl}) are not stored in MapDB and
+	 * are only indexed when the index is declared with
+	 * {@link Builder#withIndex(String...)} before they are added.
+	 * 
+	 * @param key
+	 */
+	public synchronized void createIndex(String key) {
+		if (isPumping()) {
+			throw new XESLiteException("Cannot be used during data pump!");
+		}
+		if (isIndexed(key)) {
+			return;
+		}
+		NavigableSet<Object[]> index = openIndex(key);
+		int keyIndex = keyPool.put(key);
+		long keyMask = keyPool.getCapacity() - 1;
+		List<NavigableMap<Long, ExternalAttribute>> trees = new ArrayList<>();
+		trees.add(attributeStorage);
+		trees.addAll(segments.values());
+		for (NavigableMap<Long, ExternalAttribute> tree : trees) {
+			for (Map.Entry<Long, ExternalAttribute> entry : tree.entrySet()) {
+				long compositeKey = entry.getKey();
+				if ((compositeKey & keyMask) == keyIndex && isIndexable(entry.getValue())) {
+					String value = ((XAttributeLiteral) entry.getValue()).getValue();
+					index.add(new Object[] { literalPool.put(value), compositeKey - keyIndex });
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return whether there is a secondary index for the attribute key
+	 */
+	public boolean isIndexed(String key) {
+		Integer keyIndex = keyPool.getIndex(key);
+		return keyIndex != null && indexes.containsKey(keyIndex);
+	}
+
+	/**
+	 * Looks up the owners of literal attributes with the supplied key and
+	 * value in the secondary index. The cost is proportional to the size of
+	 * the result rather than to the size of the log.
+	 * 
+	 * @param key
+	 *            a key that is indexed, see
+	 *            {@link Builder#withIndex(String...)} and
+	 *            {@link #createIndex(String)}
+	 * @param value
+	 * @return the sorted external ids of the owners
+	 */
+	public long[] lookupOwnerIds(String key, String value) {
+		if (isPumping()) {
+			throw new XESLiteException("Cannot be used during data pump!");
+		}
+		Integer keyIndex = keyPool.getIndex(key);
+		NavigableSet<Object[]> index = keyIndex != null ? indexes.get(keyIndex) : null;
+		if (index == null) {
+			throw new XESLiteException("There is no index for attribute " + key
+					+ ", please use MapDBStore.Builder.withIndex(String...) or MapDBStore.createIndex(String).");
+		}
+		Integer literalIndex = literalPool.getIndex(value);
+		if (literalIndex == null) {
+			return new long[0];
+		}
+		LongArrayList owners = new LongArrayList();
+		for (Object[] entry : index.subSet(new Object[] { literalIndex }, true, new Object[] { literalIndex + 1 },
+				false)) {
+			owners.add((Long) entry[1]);
+		}
+		return owners.toLongArray();
+	}
+
+	static MapDBAttributeSerializer createSerializer(StringPool literalPool, StringPool keyPool) {
 		Integer nameIndex = keyPool.put(XConceptExtension.KEY_NAME);
 		Integer transitionIndex = keyPool.put(XLifecycleExtension.KEY_TRANSITION);
 		keyPool.put(XTimeExtension.KEY_TIMESTAMP); // is not pooled as it is not literal
@@ -408,7 +948,7 @@ public final class MapDBStore extends ExternalStoreAbstract {
 		return serializer;
 	}
 
-	private static StringPool createKeyPool(DB db, int fixedCapacity) {
+	static StringPool createKeyPool(DB db, int fixedCapacity) {
 		Atomic.Var<StringPool> pool = db.<Atomic.Var<StringPool>>get(".keyPool");
 		if (pool != null) {
 			return pool.get();
@@ -417,7 +957,7 @@ public final class MapDBStore extends ExternalStoreAbstract {
 		}
 	}
 
-	private static StringPool createLiteralPool(DB db) {
+	static StringPool createLiteralPool(DB db) {
 		Atomic.Var<StringPool> pool = db.<Atomic.Var<StringPool>>get(".literalPool");
 		if (pool != null) {
 			return pool.get();
@@ -427,18 +967,33 @@ public final class MapDBStore extends ExternalStoreAbstract {
 	}
 
 	private static IdFactory createIDFactory(DB db) {
+		return createIDFactory(db, getDefaultKeyPoolShift());
+	}
+
+	static IdFactory createIDFactory(DB db, int keyPoolShift) {
 		Atomic.Var<IdFactory> idFactory = db.<Atomic.Var<IdFactory>>get(".idFactory");
 		if (idFactory != null) {
 			return idFactory.get();
 		} else {
-			return new IdFactorySeq(getDefaultKeyPoolShift());
+			return new IdFactorySeq(keyPoolShift);
 		}
 	}
 
 	/**
-	 * @return underlying BTree as {@link NavigableMap}
+	 * @param ownerId
+	 * @return underlying BTree segment that stores the attributes of the
+	 *         owner as {@link NavigableMap}
 	 */
-	final NavigableMap<Long, ExternalAttribute> getMapStorage() {
+	final NavigableMap<Long, ExternalAttribute> getMapStorage(long ownerId) {
+		if (isMerging) {
+			throw new XESLiteException("Cannot be used while segments are merged!");
+		}
+		if (!segments.isEmpty()) {
+			Map.Entry<Long, NavigableMap<Long, ExternalAttribute>> segment = segments.floorEntry(ownerId);
+			if (segment != null) {
+				return segment.getValue();
+			}
+		}
 		return attributeStorage;
 	}
 
@@ -485,10 +1040,60 @@ public final class MapDBStore extends ExternalStoreAbstract {
 		return new ExternalAttributeMapCaching(attributable, new MapDBAttributeMapBTreeStore(attributable, this));
 	}
 
+	final XAttributeMap createAttributeMap(ExternalAttributable attributable, MapDBReadAhead readAhead,
+			MapDBReadAhead.Record record) {
+		return new ExternalAttributeMapCaching(attributable,
+				new MapDBAttributeMapReadAhead(attributable, this, readAhead, record));
+	}
+
+	/**
+	 * Needs to be called after each change of the stored attributes, so that
+	 * attributes that were read ahead are not used anymore.
+	 */
+	final void attributesModified() {
+		modificationCount.incrementAndGet();
+	}
+
+	final long getModificationCount() {
+		return modificationCount.get();
+	}
+
+	/**
+	 * Prepares reading the attributes of all supplied owners with a single
+	 * range scan, see {@link MapDBReadAhead}.
+	 * 
+	 * @param ownerIds
+	 * @param size
+	 *            number of owners in ownerIds
+	 * @return a {@link MapDBReadAhead} or NULL if the owners are stored too
+	 *         far apart
+	 */
+	final MapDBReadAhead readAhead(long[] ownerIds, int size) {
+		if (size < 2 || isPumping()) {
+			return null;
+		}
+		long lowestId = Long.MAX_VALUE;
+		long highestId = Long.MIN_VALUE;
+		for (int i = 0; i < size; i++) {
+			lowestId = Math.min(lowestId, ownerIds[i]);
+			highestId = Math.max(highestId, ownerIds[i]);
+		}
+		long slots = ((highestId - lowestId) >> idFactory.getIdShift()) + 1;
+		if (slots > (long) size * MapDBReadAhead.MAX_SPREAD) {
+			return null;
+		}
+		if (getMapStorage(lowestId) != getMapStorage(highestId)) {
+			// stored in different segments
+			return null;
+		}
+		return new MapDBReadAhead(this, ownerIds, size, lowestId, highestId);
+	}
+
 	// data pump methods
 
 	@Override
 	public PumpService startPump() {
+		checkNotFrozen();
 		pumpService = new PumpServiceImpl(builder);
 		return pumpService;
 	}
@@ -503,6 +1108,24 @@ public final class MapDBStore extends ExternalStoreAbstract {
 		return pumpService != null;
 	}
 
+	/**
+	 * @return the number of attributables waiting to be written by the data
+	 *         pump, 0 if there is no active pump
+	 */
+	public long getPumpQueueDepth() {
+		PumpServiceImpl pump = (PumpServiceImpl) pumpService;
+		return pump != null ? pump.getQueueDepth() : 0;
+	}
+
+	/**
+	 * @return the number of attributables written by the data pump per
+	 *         second, 0 if there is no active pump
+	 */
+	public double getPumpThroughput() {
+		PumpServiceImpl pump = (PumpServiceImpl) pumpService;
+		return pump != null ? pump.getThroughput() : 0;
+	}
+
 	@Override
 	public final StringPool getAttributeKeyPool() {
 		return keyPool;
@@ -539,17 +1162,86 @@ public final class MapDBStore extends ExternalStoreAbstract {
 
 	@Override
 	public void saveLogStructure(XLog log) {
-		MapDBLogSerializer serializer = new MapDBLogSerializer(null);
-		db.atomicVarCreate(".logStore", log, new Serializer.CompressionWrapper<>(serializer));
-		db.atomicVarCreate(".literalPool", getLiteralPool(), null);
-		db.atomicVarCreate(".keyPool", getAttributeKeyPool(), null);
-		db.atomicVarCreate(".idFactory", getIdFactory(), null);
+		saveLogStructure(db, log, this);
+	}
+
+	/**
+	 * Saves the log structure in pages together with the pools and the ID
+	 * factory of the store.
+	 * 
+	 * @param db
+	 * @param log
+	 * @param store
+	 */
+	static void saveLogStructure(DB db, XLog log, ExternalStore store) {
+		MapDBLogPages pages = new MapDBLogPages(db, false, 1);
+		MapDBLogSerializer serializer = new MapDBLogSerializer(null, store.getLiteralPool(), pages);
+		pages.writeTraces(log, serializer);
+		// replaces a saved structure, e.g., after appending to a loaded log
+		saveVar(db, ".logStore", log, new Serializer.CompressionWrapper<>(serializer));
+		saveVar(db, ".literalPool", store.getLiteralPool(), null);
+		saveVar(db, ".keyPool", store.getAttributeKeyPool(), null);
+		saveVar(db, ".idFactory", store.getIdFactory(), null);
+	}
+
+	/**
+	 * Appends traces to the log structure saved by
+	 * {@link #saveLogStructure(XLog)}. Only pages with the new traces are
+	 * written, the saved traces are neither loaded nor rewritten. Log
+	 * structures without pages are loaded and saved again.
+	 * 
+	 * @param factory
+	 *            used to load log structures without pages
+	 * @param traces
+	 *            the traces to append
+	 */
+	public void appendLogStructure(XFactoryExternalStore factory, List<XTrace> traces) {
+		if (!db.exists(MapDBLogPages.PAGES)) {
+			XLog log = loadLogStructure(factory);
+			log.addAll(traces);
+			saveLogStructure(log);
+			return;
+		}
+		MapDBLogPages pages = new MapDBLogPages(db, false, 1);
+		pages.appendTraces(traces, new MapDBLogSerializer(null, getLiteralPool(), pages));
+		saveVar(db, ".literalPool", getLiteralPool(), null);
+		saveVar(db, ".keyPool", getAttributeKeyPool(), null);
+		saveVar(db, ".idFactory", getIdFactory(), null);
+	}
+
+	static <E> void saveVar(DB db, String name, E value, Serializer<E> serializer) {
+		if (!db.exists(name)) {
+			db.atomicVarCreate(name, value, serializer);
+		} else if (serializer != null) {
+			db.atomicVar(name, serializer).set(value);
+		} else {
+			db.<Atomic.Var<E>>get(name).set(value);
+		}
 	}
 
 	@Override
 	public XLog loadLogStructure(XFactoryExternalStore factory) {
-		MapDBLogSerializer serializer = new MapDBLogSerializer(factory);
-		return db.atomicVar(".logStore", new Serializer.CompressionWrapper<>(serializer)).get();
+		return loadLogStructure(db, factory, this, builder.isLazyLog, builder.logPageCacheSize);
+	}
+
+	/**
+	 * Loads a log structure saved by
+	 * {@link #saveLogStructure(DB, XLog, ExternalStore)}. The store is frozen
+	 * if the log is loaded lazily.
+	 */
+	static XLog loadLogStructure(DB db, XFactoryExternalStore factory, ExternalStore store, boolean isLazyLog,
+			int logPageCacheSize) {
+		MapDBLogPages pages = null;
+		if (db.exists(MapDBLogPages.PAGES)) {
+			pages = new MapDBLogPages(db, isLazyLog, logPageCacheSize);
+		}
+		MapDBLogSerializer serializer = new MapDBLogSerializer(factory, null, pages);
+		XLog log = db.atomicVar(".logStore", new Serializer.CompressionWrapper<>(serializer)).get();
+		if (pages != null && isLazyLog) {
+			// events are created anew on each access, changes to them would be lost
+			store.freeze();
+		}
+		return log;
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,564 @@
+package org.xeslite.external;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.deckfour.xes.model.XAttributable;
+import org.deckfour.xes.model.XAttribute;
+import org.deckfour.xes.model.XAttributeMap;
+import org.deckfour.xes.model.XLog;
+import org.mapdb.BTreeKeySerializer;
+import org.mapdb.BTreeMap;
+import org.mapdb.DB;
+import org.mapdb.DataIO.DataInputInternal;
+import org.mapdb.DataIO.DataOutputByteArray;
+import org.mapdb.Serializer;
+import org.xeslite.common.XESLiteException;
+
+/**
+ * Alternative layout for {@link MapDBStore} that stores all attributes of an
+ * attributable as a single {@link Record} instead of one BTree entry per
+ * attribute. Reading all attributes of an event is a single lookup and the
+ * compression of MapDB works on larger chunks. The attributes are encoded with
+ * the {@link MapDBAttributeSerializer}.
+ * <p>
+ * Records of 2^rowGroupShift consecutive external ids are grouped in one
+ * {@link Page}, which is the value that is stored in the BTree. As ids are
+ * assigned sequentially, a page usually contains events of the same trace.
+ * Larger pages reduce the number of BTree entries at the cost of a larger
+ * value to be read and written on each access.
+ * <p>
+ * Created by {@link MapDBStore.Builder#withRowLayout()}.
+ *
+ * @author F. Mannhardt
+ *
+ */
+public final class MapDBStoreRowGroup extends ExternalStoreAbstract {
+
+	private static final int LOCK_COUNT = 64;
+
+	/**
+	 * Immutable list of attributes sorted by their internal key.
+	 */
+	static final class Record {
+
+		static final Record EMPTY = new Record(new int[0], new ExternalAttribute[0]);
+
+		private final int[] keys;
+		private final ExternalAttribute[] values;
+
+		private Record(int[] keys, ExternalAttribute[] values) {
+			this.keys = keys;
+			this.values = values;
+		}
+
+		/**
+		 * @param attributes
+		 *            with their internal key set, later attributes replace
+		 *            earlier attributes with the same key
+		 * @return a record of the attributes
+		 */
+		static Record of(List<ExternalAttribute> attributes) {
+			int[] keys = new int[attributes.size()];
+			ExternalAttribute[] values = new ExternalAttribute[attributes.size()];
+			int size = 0;
+			for (ExternalAttribute a : attributes) {
+				// insertion sort, as there are only few attributes per attributable
+				int key = a.getInternalKey();
+				int i = size;
+				while (i > 0 && keys[i - 1] > key) {
+					i--;
+				}
+				if (i > 0 && keys[i - 1] == key) {
+					values[i - 1] = a;
+				} else {
+					System.arraycopy(keys, i, keys, i + 1, size - i);
+					System.arraycopy(values, i, values, i + 1, size - i);
+					keys[i] = key;
+					values[i] = a;
+					size++;
+				}
+			}
+			if (size < keys.length) {
+				return new Record(Arrays.copyOf(keys, size), Arrays.copyOf(values, size));
+			}
+			return new Record(keys, values);
+		}
+
+		int size() {
+			return keys.length;
+		}
+
+		boolean isEmpty() {
+			return keys.length == 0;
+		}
+
+		int getKey(int i) {
+			return keys[i];
+		}
+
+		ExternalAttribute getValue(int i) {
+			return values[i];
+		}
+
+		ExternalAttribute get(int key) {
+			int i = Arrays.binarySearch(keys, key);
+			return i >= 0 ? values[i] : null;
+		}
+
+		Record with(int key, ExternalAttribute value) {
+			int i = Arrays.binarySearch(keys, key);
+			if (i >= 0) {
+				ExternalAttribute[] newValues = values.clone();
+				newValues[i] = value;
+				return new Record(keys, newValues);
+			} else {
+				int pos = -(i + 1);
+				int[] newKeys = new int[keys.length + 1];
+				ExternalAttribute[] newValues = new ExternalAttribute[keys.length + 1];
+				System.arraycopy(keys, 0, newKeys, 0, pos);
+				System.arraycopy(values, 0, newValues, 0, pos);
+				newKeys[pos] = key;
+				newValues[pos] = value;
+				System.arraycopy(keys, pos, newKeys, pos + 1, keys.length - pos);
+				System.arraycopy(values, pos, newValues, pos + 1, keys.length - pos);
+				return new Record(newKeys, newValues);
+			}
+		}
+
+		Record without(int key) {
+			int i = Arrays.binarySearch(keys, key);
+			if (i < 0) {
+				return this;
+			}
+			int[] newKeys = new int[keys.length - 1];
+			ExternalAttribute[] newValues = new ExternalAttribute[keys.length - 1];
+			System.arraycopy(keys, 0, newKeys, 0, i);
+			System.arraycopy(values, 0, newValues, 0, i);
+			System.arraycopy(keys, i + 1, newKeys, i, keys.length - i - 1);
+			System.arraycopy(values, i + 1, newValues, i, keys.length - i - 1);
+			return new Record(newKeys, newValues);
+		}
+
+	}
+
+	/**
+	 * Immutable group of the {@link Record}s of consecutive external ids.
+	 */
+	static final class Page {
+
+		static final Page EMPTY = new Page(new int[0], new Record[0]);
+
+		private final int[] slots;
+		private final Record[] records;
+
+		private Page(int[] slots, Record[] records) {
+			this.slots = slots;
+			this.records = records;
+		}
+
+		boolean isEmpty() {
+			return slots.length == 0;
+		}
+
+		Record get(int slot) {
+			int i = Arrays.binarySearch(slots, slot);
+			return i >= 0 ? records[i] : null;
+		}
+
+		Page with(int slot, Record record) {
+			if (record.isEmpty()) {
+				return without(slot);
+			}
+			int i = Arrays.binarySearch(slots, slot);
+			if (i >= 0) {
+				Record[] newRecords = records.clone();
+				newRecords[i] = record;
+				return new Page(slots, newRecords);
+			} else {
+				int pos = -(i + 1);
+				int[] newSlots = new int[slots.length + 1];
+				Record[] newRecords = new Record[slots.length + 1];
+				System.arraycopy(slots, 0, newSlots, 0, pos);
+				System.arraycopy(records, 0, newRecords, 0, pos);
+				newSlots[pos] = slot;
+				newRecords[pos] = record;
+				System.arraycopy(slots, pos, newSlots, pos + 1, slots.length - pos);
+				System.arraycopy(records, pos, newRecords, pos + 1, slots.length - pos);
+				return new Page(newSlots, newRecords);
+			}
+		}
+
+		Page without(int slot) {
+			int i = Arrays.binarySearch(slots, slot);
+			if (i < 0) {
+				return this;
+			}
+			int[] newSlots = new int[slots.length - 1];
+			Record[] newRecords = new Record[slots.length - 1];
+			System.arraycopy(slots, 0, newSlots, 0, i);
+			System.arraycopy(records, 0, newRecords, 0, i);
+			System.arraycopy(slots, i + 1, newSlots, i, slots.length - i - 1);
+			System.arraycopy(records, i + 1, newRecords, i, slots.length - i - 1);
+			return new Page(newSlots, newRecords);
+		}
+
+		/**
+		 * Collects records for a new page without copying the arrays on each
+		 * addition. Records are usually added in ascending order of their
+		 * slot.
+		 */
+		static final class Builder {
+
+			private int[] slots = new int[16];
+			private Record[] records = new Record[16];
+			private int size = 0;
+
+			boolean isEmpty() {
+				return size == 0;
+			}
+
+			void put(int slot, Record record) {
+				if (size > 0 && slots[size - 1] >= slot) {
+					int i = Arrays.binarySearch(slots, 0, size, slot);
+					if (i >= 0) {
+						records[i] = record;
+						return;
+					}
+					insert(-(i + 1), slot, record);
+				} else {
+					insert(size, slot, record);
+				}
+			}
+
+			private void insert(int pos, int slot, Record record) {
+				if (size == slots.length) {
+					slots = Arrays.copyOf(slots, size * 2);
+					records = Arrays.copyOf(records, size * 2);
+				}
+				System.arraycopy(slots, pos, slots, pos + 1, size - pos);
+				System.arraycopy(records, pos, records, pos + 1, size - pos);
+				slots[pos] = slot;
+				records[pos] = record;
+				size++;
+			}
+
+			Page build() {
+				return new Page(Arrays.copyOf(slots, size), Arrays.copyOf(records, size));
+			}
+
+			void clear() {
+				Arrays.fill(records, 0, size, null);
+				size = 0;
+			}
+
+		}
+
+		Page merge(Page other) {
+			Page page = this;
+			for (int i = 0; i < other.slots.length; i++) {
+				page = page.with(other.slots[i], other.records[i]);
+			}
+			return page;
+		}
+
+	}
+
+	/**
+	 * Writes the number of records followed by the records with delta encoded
+	 * slots. Each record is the number of attributes followed by the delta
+	 * encoded internal key and the attribute as written by the
+	 * {@link MapDBAttributeSerializer}.
+	 */
+	private static final class PageSerializer extends Serializer<Page> {
+
+		private final MapDBAttributeSerializer attributeSerializer;
+
+		private PageSerializer(MapDBAttributeSerializer attributeSerializer) {
+			super();
+			this.attributeSerializer = attributeSerializer;
+		}
+
+		@Override
+		public void serialize(DataOutput out, Page page) throws IOException {
+			DataOutputByteArray out2 = (DataOutputByteArray) out;
+			out2.packInt(page.slots.length);
+			int lastSlot = 0;
+			for (int i = 0; i < page.slots.length; i++) {
+				out2.packInt(page.slots[i] - lastSlot);
+				lastSlot = page.slots[i];
+				Record record = page.records[i];
+				out2.packInt(record.size());
+				int lastKey = 0;
+				for (int j = 0; j < record.size(); j++) {
+					out2.packInt(record.getKey(j) - lastKey);
+					lastKey = record.getKey(j);
+					attributeSerializer.serialize(out, record.getValue(j));
+				}
+			}
+		}
+
+		@Override
+		public Page deserialize(DataInput in, int available) throws IOException {
+			DataInputInternal in2 = (DataInputInternal) in;
+			int recordCount = in2.unpackInt();
+			int[] slots = new int[recordCount];
+			Record[] records = new Record[recordCount];
+			int slot = 0;
+			for (int i = 0; i < recordCount; i++) {
+				slot += in2.unpackInt();
+				slots[i] = slot;
+				int size = in2.unpackInt();
+				int[] keys = new int[size];
+				ExternalAttribute[] values = new ExternalAttribute[size];
+				int key = 0;
+				for (int j = 0; j < size; j++) {
+					key += in2.unpackInt();
+					keys[j] = key;
+					values[j] = attributeSerializer.deserialize(in, -1);
+				}
+				records[i] = new Record(keys, values);
+			}
+			return new Page(slots, records);
+		}
+
+		public boolean isTrusted() {
+			return true;
+		}
+
+	}
+
+	/**
+	 * Writes the records directly to the BTree, each page is written once
+	 * when the pump moves on to the next page. Requires the attributables to
+	 * be pumped in the order of their external ids, which is the case for
+	 * ids from an {@link IdFactorySeq}. The records of the current page are
+	 * collected in a {@link Page.Builder}.
+	 */
+	final class PumpServiceImpl implements PumpService {
+
+		private long currentPageKey = Long.MIN_VALUE;
+		private final Page.Builder currentPage = new Page.Builder();
+
+		public synchronized void pumpAttributes(XAttributable attributable, List<XAttribute> attributes) {
+			if (attributable instanceof ExternalAttributable) {
+				if (!attributes.isEmpty()) {
+					// Handle caching of attribute as we are by-passing the usual adding of attributes
+					if (attributable instanceof AttributesCacheable) {
+						for (Iterator<XAttribute> iterator = attributes.iterator(); iterator.hasNext();) {
+							XAttribute a = iterator.next();
+							AttributesCacheable cacheable = (AttributesCacheable) attributable;
+							Integer cacheIndex = cacheable.getCacheIndex(a.getKey());
+							if (cacheIndex != null) {
+								cacheable.setCacheValue(cacheIndex, a);
+								iterator.remove();
+							}
+						}
+					}
+					if (!attributes.isEmpty()) {
+						ExternalAttributable owner = (ExternalAttributable) attributable;
+						ExternalAttribute[] converted = new ExternalAttribute[attributes.size()];
+						for (int i = 0; i < converted.length; i++) {
+							converted[i] = XAttributeExternalImpl.convert(MapDBStoreRowGroup.this, owner,
+									attributes.get(i));
+						}
+						long pageKey = getPageKey(owner.getExternalId());
+						if (pageKey != currentPageKey) {
+							flushPage();
+							currentPageKey = pageKey;
+						}
+						currentPage.put(getSlot(owner.getExternalId()), Record.of(Arrays.asList(converted)));
+					} // else just ignore this one
+				}
+			} else {
+				// just put the attribute
+				for (XAttribute attr : attributes) {
+					attributable.getAttributes().put(attr.getKey(), attr);
+				}
+			}
+		}
+
+		private void flushPage() {
+			if (!currentPage.isEmpty()) {
+				Page page = currentPage.build();
+				Page existingPage = pages.get(currentPageKey);
+				pages.put(currentPageKey, existingPage != null ? existingPage.merge(page) : page);
+				currentPage.clear();
+			}
+		}
+
+		public synchronized void finishPump() {
+			try {
+				flushPage();
+			} finally {
+				MapDBStoreRowGroup.this.pumpService = null; // Remove reference to ourselves for GC
+			}
+		}
+
+	}
+
+	private volatile PumpService pumpService;
+
+	private final DB db;
+	private final PageSerializer serializer;
+	private final BTreeMap<Long, Page> pages;
+	private final int rowGroupShift;
+	private final long slotMask;
+	private final Object[] locks;
+
+	private final IdFactory idFactory;
+	private final StringPool keyPool;
+	private final StringPool literalPool;
+
+	private final boolean isLazyLog;
+	private final int logPageCacheSize;
+
+	MapDBStoreRowGroup(DB db, int nodeSize, int rowGroupShift, boolean isLazyLog, int logPageCacheSize) {
+		super();
+		this.db = db;
+		this.rowGroupShift = rowGroupShift;
+		this.slotMask = (1L << rowGroupShift) - 1;
+		this.locks = new Object[LOCK_COUNT];
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
+		this.isLazyLog = isLazyLog;
+		this.logPageCacheSize = logPageCacheSize;
+		// attribute keys are not part of the id
+		this.idFactory = MapDBStore.createIDFactory(db, 0);
+		this.keyPool = MapDBStore.createKeyPool(db, Integer.MAX_VALUE);
+		this.literalPool = MapDBStore.createLiteralPool(db);
+		this.serializer = new PageSerializer(MapDBStore.createSerializer(literalPool, keyPool));
+		if (db.exists(".attributePages")) {
+			this.pages = db.treeMap(".attributePages", BTreeKeySerializer.LONG, serializer);
+		} else {
+			this.pages = db.treeMapCreate(".attributePages") //
+					.keySerializer(BTreeKeySerializer.LONG) //
+					.valueSerializer(serializer) //
+					.nodeSize(nodeSize) //
+					.makeOrGet();
+		}
+	}
+
+	private long getPageKey(long externalId) {
+		return externalId >> rowGroupShift;
+	}
+
+	private int getSlot(long externalId) {
+		return (int) (externalId & slotMask);
+	}
+
+	/**
+	 * @param externalId
+	 * @return the lock that needs to be held to update the record
+	 */
+	final Object getLock(long externalId) {
+		return locks[(int) (getPageKey(externalId) & (LOCK_COUNT - 1))];
+	}
+
+	/**
+	 * @param externalId
+	 * @return the attributes of the attributable, never NULL
+	 */
+	final Record getRecord(long externalId) {
+		Page page = pages.get(getPageKey(externalId));
+		if (page != null) {
+			Record record = page.get(getSlot(externalId));
+			if (record != null) {
+				return record;
+			}
+		}
+		return Record.EMPTY;
+	}
+
+	/**
+	 * Replaces the attributes of the attributable. The caller needs to hold
+	 * the lock returned by {@link #getLock(long)}.
+	 *
+	 * @param externalId
+	 * @param record
+	 */
+	final void putRecord(long externalId, Record record) {
+		Long pageKey = getPageKey(externalId);
+		Page page = pages.get(pageKey);
+		Page newPage = (page != null ? page : Page.EMPTY).with(getSlot(externalId), record);
+		if (newPage.isEmpty()) {
+			if (page != null) {
+				pages.remove(pageKey);
+			}
+		} else {
+			pages.put(pageKey, newPage);
+		}
+	}
+
+	@Override
+	protected final XAttributeMap createAttributeMap(ExternalAttributable attributable) {
+		return new ExternalAttributeMapCaching(attributable, new MapDBAttributeMapRowGroupStore(attributable, this));
+	}
+
+	@Override
+	public PumpService startPump() {
+		checkNotFrozen();
+		pumpService = new PumpServiceImpl();
+		return pumpService;
+	}
+
+	@Override
+	public PumpService getPumpService() {
+		return pumpService;
+	}
+
+	@Override
+	public boolean isPumping() {
+		return pumpService != null;
+	}
+
+	@Override
+	public final StringPool getAttributeKeyPool() {
+		return keyPool;
+	}
+
+	@Override
+	public StringPool getLiteralPool() {
+		return literalPool;
+	}
+
+	@Override
+	public final IdFactory getIdFactory() {
+		return idFactory;
+	}
+
+	@Override
+	public final void commit() {
+		if (isPumping()) {
+			throw new XESLiteException("Cannot be used during data pump!");
+		}
+
+		// Only does a sync
+		db.commit();
+	}
+
+	@Override
+	public void dispose() {
+		if (isPumping()) {
+			throw new XESLiteException("Cannot be used during data pump!");
+		}
+
+		db.close();
+	}
+
+	@Override
+	public void saveLogStructure(XLog log) {
+		MapDBStore.saveLogStructure(db, log, this);
+	}
+
+	@Override
+	public XLog loadLogStructure(XFactoryExternalStore factory) {
+		return MapDBStore.loadLogStructure(db, factory, this, isLazyLog, logPageCacheSize);
+	}
+
+}
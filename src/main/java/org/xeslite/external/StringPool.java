@@ -4,8 +4,24 @@ public interface StringPool {
 
 	Integer put(String val);
 
+	/**
+	 * Same as {@link #put(String)}, but without boxing the index.
+	 * 
+	 * @param val
+	 * @return the index of the value
+	 */
+	int intern(String val);
+
 	Integer getIndex(String val);
 
+	/**
+	 * Same as {@link #getIndex(String)}, but without boxing the index.
+	 * 
+	 * @param val
+	 * @return the index of the value or -1 if the value is not in the pool
+	 */
+	int indexOf(String val);
+
 	String getValue(int index);
 	
 	int size();
@@ -0,0 +1,491 @@
+package org.xeslite.external;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.xeslite.common.XESLiteException;
+
+/**
+ * {@link StringPool} that stores its strings as modified UTF-8 (see
+ * {@link StringPoolMappedImpl#encode(String)}) in an append-only byte arena
+ * and finds them through an open-addressing hash table of primitive ints. In
+ * contrast to {@link StringPoolCASImpl} there are no {@link String} or
+ * {@link Integer} objects per entry, which makes a big difference for pools
+ * with millions of distinct literals. Strings are decoded on
+ * {@link #getValue(int)}, recently decoded strings are cached.
+ * <p>
+ * Inserts are lock-free in the same way as in {@link StringPoolCASImpl}: a
+ * slot is reserved with a CAS and threads that look for the same string wait
+ * until the reservation is published. When the table is half full, the thread
+ * that crossed the threshold copies it to a table of twice the size. Empty
+ * slots of the old table are marked as moved during the copy, which forwards
+ * all threads that would insert there to the new table.
+ *
+ * @author F. Mannhardt
+ *
+ */
+public final class StringPoolArenaImpl implements StringPool {
+
+	private static final int EMPTY = 0;
+	private static final int INSERTING = -1;
+	private static final int MOVED = -2;
+
+	private static final int INITIAL_TABLE_SIZE = 1024;
+
+	// arena chunks double in size up to MAX_CHUNK_SHIFT, then have that size
+	private static final int FIRST_CHUNK_SHIFT = 12;
+	private static final int MAX_CHUNK_SHIFT = 30;
+	private static final int GROWING_CHUNKS = MAX_CHUNK_SHIFT - FIRST_CHUNK_SHIFT + 1;
+	private static final long GROWING_CHUNKS_SIZE = (1L << (MAX_CHUNK_SHIFT + 1)) - (1L << FIRST_CHUNK_SHIFT);
+	private static final int MAX_CHUNKS = GROWING_CHUNKS + 64;
+
+	// offset segments double in size starting with 2^FIRST_SEGMENT_SHIFT entries
+	private static final int FIRST_SEGMENT_SHIFT = 10;
+	private static final int SEGMENTS = 32 - FIRST_SEGMENT_SHIFT;
+
+	private static final int CACHE_SIZE = 4096;
+
+	private static final class Table {
+
+		private final AtomicIntegerArray slots; // index + 1, EMPTY, INSERTING or MOVED
+		private final int mask;
+		private final AtomicInteger count = new AtomicInteger();
+		private final AtomicReference<Table> next = new AtomicReference<>();
+
+		private Table(int size) {
+			this.slots = new AtomicIntegerArray(size);
+			this.mask = size - 1;
+		}
+
+		private Table awaitNext() {
+			Table nextTable = next.get();
+			while (nextTable == null) {
+				LockSupport.parkNanos(10L);
+				nextTable = next.get();
+			}
+			return nextTable;
+		}
+
+	}
+
+	private static final class CachedValue {
+
+		private final int index;
+		private final String value;
+
+		private CachedValue(int index, String value) {
+			this.index = index;
+			this.value = value;
+		}
+
+	}
+
+	private final int capacity;
+	private final AtomicInteger indexCounter = new AtomicInteger();
+
+	private volatile Table table = new Table(INITIAL_TABLE_SIZE);
+
+	private final AtomicLong arenaSize = new AtomicLong();
+	private final AtomicReferenceArray<byte[]> chunks = new AtomicReferenceArray<>(MAX_CHUNKS);
+	private final AtomicReferenceArray<long[]> offsets = new AtomicReferenceArray<>(SEGMENTS); // offset + 1
+
+	private final CachedValue[] cache = new CachedValue[CACHE_SIZE];
+
+	public StringPoolArenaImpl() {
+		this(Integer.MAX_VALUE);
+	}
+
+	public StringPoolArenaImpl(int capacity) {
+		super();
+		this.capacity = Math.min(capacity, getSegmentStart(SEGMENTS - 1));
+	}
+
+	@Override
+	public Integer put(String val) {
+		return intern(val);
+	}
+
+	@Override
+	public int intern(String val) {
+		if (indexCounter.get() >= capacity) {
+			throw new XESLiteException.StringPoolException(
+					"Too many distinct literals to be stored in this string pool. The maximum number of literals that can be stored is "
+							+ capacity);
+		}
+		if (val == null) {
+			throw new XESLiteException("String pool cannot store a 'NULL' value!");
+		}
+		if ((long) val.length() * 3 + 5 > (1 << MAX_CHUNK_SHIFT)) {
+			throw new XESLiteException("String with " + val.length() + " characters is too long for the string pool.");
+		}
+		int hash = spread(val.hashCode());
+		Table t = table;
+		while (true) {
+			int index = insert(t, val, hash);
+			if (index >= 0) {
+				return index;
+			}
+			t = t.awaitNext();
+		}
+	}
+
+	/**
+	 * @return the index of the string or -1 if it needs to be inserted into
+	 *         the next table
+	 */
+	private int insert(Table t, String val, int hash) {
+		int i = hash & t.mask;
+		for (int probes = 0; probes <= t.mask; probes++) {
+			int slot = awaitSlot(t, i);
+			while (slot == EMPTY) {
+				if (t.slots.compareAndSet(i, EMPTY, INSERTING)) {
+					// We reserved the slot, take care that this never fails, otherwise other threads trying the same insert starve
+					int index = store(val);
+					t.slots.set(i, index + 1);
+					if (t.count.incrementAndGet() > (t.mask + 1) >> 1) {
+						resize(t);
+					}
+					return index;
+				}
+				slot = awaitSlot(t, i);
+			}
+			if (slot == MOVED) {
+				return -1;
+			}
+			if (matches(slot - 1, val)) {
+				return slot - 1;
+			}
+			i = (i + 1) & t.mask;
+		}
+		return -1; // full, resize is on its way
+	}
+
+	private static int awaitSlot(Table t, int i) {
+		int slot = t.slots.get(i);
+		while (slot == INSERTING) {
+			LockSupport.parkNanos(10L);
+			slot = t.slots.get(i);
+		}
+		return slot;
+	}
+
+	@Override
+	public Integer getIndex(String val) {
+		int index = indexOf(val);
+		return index == -1 ? null : index;
+	}
+
+	@Override
+	public int indexOf(String val) {
+		int hash = spread(val.hashCode());
+		Table t = table;
+		while (t != null) {
+			int i = hash & t.mask;
+			for (int probes = 0; probes <= t.mask; probes++) {
+				int slot = awaitSlot(t, i);
+				if (slot == EMPTY) {
+					return -1;
+				} else if (slot == MOVED) {
+					break;
+				} else if (matches(slot - 1, val)) {
+					return slot - 1;
+				}
+				i = (i + 1) & t.mask;
+			}
+			t = t.next.get();
+		}
+		return -1;
+	}
+
+	/**
+	 * Copies the table to a new table of twice the size. Only the thread that
+	 * installs the next table copies, the others continue with their inserts.
+	 */
+	private void resize(Table t) {
+		Table nextTable = new Table((t.mask + 1) << 1);
+		if (!t.next.compareAndSet(null, nextTable)) {
+			return;
+		}
+		for (int i = 0; i <= t.mask; i++) {
+			int slot = awaitSlot(t, i);
+			while (slot == EMPTY) {
+				if (t.slots.compareAndSet(i, EMPTY, MOVED)) {
+					slot = MOVED;
+				} else {
+					slot = awaitSlot(t, i);
+				}
+			}
+			if (slot != MOVED) {
+				transfer(nextTable, slot - 1);
+			}
+		}
+		// tables are only replaced in order, a previous copy might still be in progress
+		while (table != t) {
+			LockSupport.parkNanos(10L);
+		}
+		table = nextTable; // volatile ensures visibility
+	}
+
+	/**
+	 * Inserts an index that is known not to be in the table.
+	 */
+	private void transfer(Table t, int index) {
+		int hash = spread(hashOf(index));
+		while (true) {
+			int i = hash & t.mask;
+			for (int probes = 0; probes <= t.mask; probes++) {
+				int slot = awaitSlot(t, i);
+				while (slot == EMPTY) {
+					if (t.slots.compareAndSet(i, EMPTY, index + 1)) {
+						// The copy never resizes as it would wait for itself, the next insert triggers the resize
+						t.count.incrementAndGet();
+						return;
+					}
+					slot = awaitSlot(t, i);
+				}
+				if (slot == MOVED) {
+					break;
+				}
+				i = (i + 1) & t.mask;
+			}
+			t = t.awaitNext();
+		}
+	}
+
+	private static int spread(int hash) {
+		return (hash ^ (hash >>> 16)) * 0x9E3779B9;
+	}
+
+	// Arena
+
+	/**
+	 * Reserves the next index without storing a value, {@link #getValue(int)}
+	 * returns {@code null} for it.
+	 * 
+	 * @return the reserved index
+	 */
+	int reserve() {
+		return indexCounter.getAndIncrement();
+	}
+
+	private int store(String val) {
+		int index = indexCounter.getAndIncrement();
+		byte[] bytes = StringPoolMappedImpl.encode(val);
+		int headerLength = getVarIntLength(bytes.length);
+		long offset = allocate(headerLength + bytes.length);
+		byte[] chunk = getChunk(getChunkIndex(offset));
+		int pos = (int) (offset - getChunkStart(getChunkIndex(offset)));
+		pos = writeVarInt(chunk, pos, bytes.length);
+		System.arraycopy(bytes, 0, chunk, pos, bytes.length);
+		long[] segment = getSegment(getSegmentIndex(index));
+		segment[index - getSegmentStart(getSegmentIndex(index))] = offset + 1;
+		return index;
+	}
+
+	/**
+	 * Reserves space in the arena that does not span two chunks.
+	 */
+	private long allocate(int length) {
+		while (true) {
+			long current = arenaSize.get();
+			long start = current;
+			int chunkIndex = getChunkIndex(start);
+			while (start + length > getChunkStart(chunkIndex + 1)) {
+				start = getChunkStart(++chunkIndex);
+			}
+			if (arenaSize.compareAndSet(current, start + length)) {
+				return start;
+			}
+		}
+	}
+
+	private static int getChunkIndex(long offset) {
+		if (offset < GROWING_CHUNKS_SIZE) {
+			return 63 - Long.numberOfLeadingZeros(offset + (1L << FIRST_CHUNK_SHIFT)) - FIRST_CHUNK_SHIFT;
+		} else {
+			return GROWING_CHUNKS + (int) ((offset - GROWING_CHUNKS_SIZE) >>> MAX_CHUNK_SHIFT);
+		}
+	}
+
+	private static long getChunkStart(int chunkIndex) {
+		if (chunkIndex < GROWING_CHUNKS) {
+			return (1L << (chunkIndex + FIRST_CHUNK_SHIFT)) - (1L << FIRST_CHUNK_SHIFT);
+		} else {
+			return GROWING_CHUNKS_SIZE + ((long) (chunkIndex - GROWING_CHUNKS) << MAX_CHUNK_SHIFT);
+		}
+	}
+
+	private byte[] getChunk(int chunkIndex) {
+		if (chunkIndex >= MAX_CHUNKS) {
+			throw new XESLiteException("String pool is full.");
+		}
+		byte[] chunk = chunks.get(chunkIndex);
+		if (chunk == null) {
+			int size = (int) (getChunkStart(chunkIndex + 1) - getChunkStart(chunkIndex));
+			chunks.compareAndSet(chunkIndex, null, new byte[size]);
+			chunk = chunks.get(chunkIndex);
+		}
+		return chunk;
+	}
+
+	private static int getSegmentIndex(int index) {
+		return 31 - Integer.numberOfLeadingZeros((index >>> FIRST_SEGMENT_SHIFT) + 1);
+	}
+
+	private static int getSegmentStart(int segmentIndex) {
+		return ((1 << segmentIndex) - 1) << FIRST_SEGMENT_SHIFT;
+	}
+
+	private long[] getSegment(int segmentIndex) {
+		long[] segment = offsets.get(segmentIndex);
+		if (segment == null) {
+			offsets.compareAndSet(segmentIndex, null, new long[1 << (segmentIndex + FIRST_SEGMENT_SHIFT)]);
+			segment = offsets.get(segmentIndex);
+		}
+		return segment;
+	}
+
+	/**
+	 * @return offset of the string in the arena or -1 if not yet stored
+	 */
+	private long getOffset(int index) {
+		int segmentIndex = getSegmentIndex(index);
+		long[] segment = offsets.get(segmentIndex);
+		if (segment == null) {
+			return -1;
+		}
+		return segment[index - getSegmentStart(segmentIndex)] - 1;
+	}
+
+	private static int getVarIntLength(int value) {
+		int length = 1;
+		while ((value >>>= 7) != 0) {
+			length++;
+		}
+		return length;
+	}
+
+	private static int writeVarInt(byte[] chunk, int pos, int value) {
+		while ((value & ~0x7F) != 0) {
+			chunk[pos++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		chunk[pos++] = (byte) value;
+		return pos;
+	}
+
+	/**
+	 * @return the position of the first byte after the length header and the
+	 *         length, packed into a long
+	 */
+	private static long readHeader(byte[] chunk, int pos) {
+		int length = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = chunk[pos++];
+			length |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return ((long) length << 32) | pos;
+	}
+
+	private static int getCharLength(byte[] chunk, int pos) {
+		int b = chunk[pos] & 0xFF;
+		if (b < 0x80) {
+			return 1;
+		} else if ((b & 0xE0) == 0xC0) {
+			return 2;
+		} else {
+			return 3;
+		}
+	}
+
+	private static char getChar(byte[] chunk, int pos) {
+		int b = chunk[pos] & 0xFF;
+		if (b < 0x80) {
+			return (char) b;
+		} else if ((b & 0xE0) == 0xC0) {
+			return (char) (((b & 0x1F) << 6) | (chunk[pos + 1] & 0x3F));
+		} else {
+			return (char) (((b & 0x0F) << 12) | ((chunk[pos + 1] & 0x3F) << 6) | (chunk[pos + 2] & 0x3F));
+		}
+	}
+
+	/**
+	 * Compares the stored string with the supplied one without decoding it.
+	 */
+	private boolean matches(int index, String val) {
+		long offset = getOffset(index);
+		int chunkIndex = getChunkIndex(offset);
+		byte[] chunk = chunks.get(chunkIndex);
+		long header = readHeader(chunk, (int) (offset - getChunkStart(chunkIndex)));
+		int pos = (int) header;
+		int end = pos + (int) (header >>> 32);
+		int length = val.length();
+		for (int i = 0; i < length; i++) {
+			if (pos >= end || getChar(chunk, pos) != val.charAt(i)) {
+				return false;
+			}
+			pos += getCharLength(chunk, pos);
+		}
+		return pos == end;
+	}
+
+	/**
+	 * @return the same hash as {@link String#hashCode()} of the stored string
+	 */
+	private int hashOf(int index) {
+		long offset = getOffset(index);
+		int chunkIndex = getChunkIndex(offset);
+		byte[] chunk = chunks.get(chunkIndex);
+		long header = readHeader(chunk, (int) (offset - getChunkStart(chunkIndex)));
+		int pos = (int) header;
+		int end = pos + (int) (header >>> 32);
+		int hash = 0;
+		while (pos < end) {
+			hash = 31 * hash + getChar(chunk, pos);
+			pos += getCharLength(chunk, pos);
+		}
+		return hash;
+	}
+
+	@Override
+	public String getValue(int index) {
+		if (index < 0 || index >= indexCounter.get() || getOffset(index) < 0) {
+			return null;
+		}
+		int cacheIndex = index & (CACHE_SIZE - 1);
+		CachedValue cached = cache[cacheIndex];
+		if (cached != null && cached.index == index) {
+			return cached.value;
+		}
+		long offset = getOffset(index);
+		int chunkIndex = getChunkIndex(offset);
+		byte[] chunk = chunks.get(chunkIndex);
+		long header = readHeader(chunk, (int) (offset - getChunkStart(chunkIndex)));
+		String value = StringPoolMappedImpl.decode(chunk, (int) header, (int) (header >>> 32));
+		cache[cacheIndex] = new CachedValue(index, value); // Benign race, entries are immutable
+		return value;
+	}
+
+	@Override
+	public int size() {
+		return indexCounter.get();
+	}
+
+	@Override
+	public int getCapacity() {
+		return capacity;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("StringPoolArenaImpl with %s entries", size());
+	}
+
+}
@@ -0,0 +1,185 @@
+package org.xeslite.external;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.xeslite.common.XESLiteException;
+
+import eu.danieldk.dictomaton.DictionaryBuilderException;
+import eu.danieldk.dictomaton.DictionaryBuilderIterative;
+import eu.danieldk.dictomaton.PerfectHashDictionary;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+
+/**
+ * Immutable {@link StringPool} created by {@link #compact(StringPool)}. All
+ * strings are stored in a minimized perfect-hash automaton, which shares
+ * common prefixes and suffixes of the strings. Literals such as URLs,
+ * resource names or ticket numbers often take only a fraction of the memory
+ * that is needed by a hash-based pool.
+ * <p>
+ * The automaton numbers the strings in lexicographic order. Two remapping
+ * tables translate between these numbers and the indices of the original
+ * pool, so that indices that are already stored in the attribute columns stay
+ * valid. Strings that are not in the pool cannot be added anymore.
+ *
+ * @author F. Mannhardt
+ *
+ */
+final class StringPoolAutomatonImpl implements StringPool {
+
+	private static final int CACHE_SIZE = 1024;
+
+	private static final class CachedValue {
+
+		private final int index;
+		private final String value;
+
+		private CachedValue(int index, String value) {
+			this.index = index;
+			this.value = value;
+		}
+
+	}
+
+	/**
+	 * Copies all strings of the pool into a perfect-hash automaton. The
+	 * supplied pool must not be modified concurrently. Indices without a
+	 * value, e.g., left by an interrupted insert, stay without a value.
+	 *
+	 * @param pool
+	 * @return an immutable pool with the same indices as the supplied pool
+	 */
+	static StringPoolAutomatonImpl compact(StringPool pool) {
+		int size = pool.size();
+		final String[] values = new String[size];
+		int[] order = new int[size];
+		int emptyIndex = -1;
+		int count = 0;
+		for (int i = 0; i < size; i++) {
+			String value = pool.getValue(i);
+			values[i] = value;
+			if (value == null) {
+				// hole, stays unmapped
+				continue;
+			} else if (value.isEmpty()) {
+				// the automaton does not number the empty string
+				emptyIndex = i;
+			} else {
+				order[count++] = i;
+			}
+		}
+
+		IntArrays.quickSort(order, 0, count, new AbstractIntComparator() {
+
+			public int compare(int k1, int k2) {
+				return values[k1].compareTo(values[k2]);
+			}
+		});
+
+		DictionaryBuilderIterative builder = new DictionaryBuilderIterative();
+		try {
+			for (int i = 0; i < count; i++) {
+				builder.add(values[order[i]]);
+			}
+		} catch (DictionaryBuilderException e) {
+			throw new XESLiteException("Could not build automaton for the string pool!", e);
+		}
+		// suffix counts per state are smaller than per transition
+		PerfectHashDictionary dictionary = builder.buildPerfectHash(true);
+
+		// sequences are numbered starting with 1 in lexicographic order
+		int[] hashToIndex = new int[count + 1];
+		int[] indexToHash = new int[size];
+		for (int i = 0; i < count; i++) {
+			hashToIndex[i + 1] = order[i];
+			indexToHash[order[i]] = i + 1;
+		}
+		return new StringPoolAutomatonImpl(dictionary, indexToHash, hashToIndex, emptyIndex);
+	}
+
+	private final PerfectHashDictionary dictionary;
+	private final int[] indexToHash;
+	private final int[] hashToIndex;
+	private final int emptyIndex;
+
+	private final AtomicReferenceArray<CachedValue> cache = new AtomicReferenceArray<>(CACHE_SIZE);
+
+	private StringPoolAutomatonImpl(PerfectHashDictionary dictionary, int[] indexToHash, int[] hashToIndex,
+			int emptyIndex) {
+		super();
+		this.dictionary = dictionary;
+		this.indexToHash = indexToHash;
+		this.hashToIndex = hashToIndex;
+		this.emptyIndex = emptyIndex;
+	}
+
+	@Override
+	public Integer put(String val) {
+		return intern(val);
+	}
+
+	@Override
+	public int intern(String val) {
+		int index = indexOf(val);
+		if (index == -1) {
+			throw new UnsupportedOperationException("The string pool is compacted and cannot be modified.");
+		}
+		return index;
+	}
+
+	@Override
+	public Integer getIndex(String val) {
+		int index = indexOf(val);
+		return index != -1 ? index : null;
+	}
+
+	@Override
+	public int indexOf(String val) {
+		if (val == null) {
+			throw new XESLiteException("String pool cannot store a 'NULL' value!");
+		}
+		if (val.isEmpty()) {
+			return emptyIndex;
+		}
+		int hash = dictionary.number(val);
+		return hash > 0 ? hashToIndex[hash] : -1;
+	}
+
+	@Override
+	public String getValue(int index) {
+		if (index < 0 || index >= indexToHash.length) {
+			return null;
+		}
+		if (index == emptyIndex) {
+			return "";
+		}
+		int hash = indexToHash[index];
+		if (hash == 0) {
+			return null;
+		}
+		int slot = index & (CACHE_SIZE - 1);
+		CachedValue cached = cache.get(slot);
+		if (cached != null && cached.index == index) {
+			return cached.value;
+		}
+		String value = dictionary.sequence(hash);
+		cache.lazySet(slot, new CachedValue(index, value));
+		return value;
+	}
+
+	@Override
+	public int size() {
+		return indexToHash.length;
+	}
+
+	@Override
+	public int getCapacity() {
+		return indexToHash.length;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("StringPoolAutomatonImpl with %s entries", size());
+	}
+
+}
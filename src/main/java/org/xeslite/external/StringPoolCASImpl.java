@@ -113,6 +113,17 @@ public final class StringPoolCASImpl implements Serializable, StringPool {
 		return valueMap.get(index);
 	}
 
+	@Override
+	public int intern(String val) {
+		return put(val);
+	}
+
+	@Override
+	public int indexOf(String val) {
+		Integer index = getIndex(val);
+		return index != null ? index : -1;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
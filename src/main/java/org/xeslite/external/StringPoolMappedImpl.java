@@ -0,0 +1,203 @@
+package org.xeslite.external;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Read-mostly {@link StringPool} on top of modified UTF-8 encoded strings (see
+ * {@link java.io.DataInput}) in a (memory-mapped) {@link ByteBuffer}. Strings
+ * are only decoded when requested through {@link #getValue(int)}. The first
+ * call to one of the lookup methods copies all strings into a
+ * {@link StringPoolArenaImpl} that is used from then on.
+ *
+ * @author F. Mannhardt
+ *
+ */
+final class StringPoolMappedImpl implements StringPool {
+
+	/**
+	 * Encoding of an index without a value. The byte never occurs in modified
+	 * UTF-8.
+	 */
+	static final int GAP = 0xFF;
+
+	private final int size;
+	private final IntBuffer offsets;
+	private final ByteBuffer data;
+
+	private final String[] decoded;
+
+	private volatile StringPool delegate;
+
+	/**
+	 * @param size
+	 *            number of strings
+	 * @param offsets
+	 *            size + 1 offsets of the strings in data
+	 * @param data
+	 *            the strings encoded with {@link #encode(String)}
+	 */
+	StringPoolMappedImpl(int size, IntBuffer offsets, ByteBuffer data) {
+		super();
+		this.size = size;
+		this.offsets = offsets;
+		this.data = data;
+		this.decoded = new String[size];
+	}
+
+	private StringPool getDelegate() {
+		StringPool pool = delegate;
+		if (pool == null) {
+			synchronized (this) {
+				pool = delegate;
+				if (pool == null) {
+					StringPoolArenaImpl arenaPool = new StringPoolArenaImpl(Integer.MAX_VALUE);
+					for (int i = 0; i < size; i++) {
+						String value = getValue(i);
+						if (value != null) {
+							arenaPool.put(value);
+						} else {
+							arenaPool.reserve();
+						}
+					}
+					delegate = pool = arenaPool;
+				}
+			}
+		}
+		return pool;
+	}
+
+	@Override
+	public Integer put(String val) {
+		return getDelegate().put(val);
+	}
+
+	@Override
+	public int intern(String val) {
+		return getDelegate().intern(val);
+	}
+
+	@Override
+	public Integer getIndex(String val) {
+		return getDelegate().getIndex(val);
+	}
+
+	@Override
+	public int indexOf(String val) {
+		return getDelegate().indexOf(val);
+	}
+
+	@Override
+	public String getValue(int index) {
+		StringPool pool = delegate;
+		if (pool != null) {
+			return pool.getValue(index);
+		}
+		if (index < 0 || index >= size) {
+			return null;
+		}
+		String value = decoded[index];
+		if (value == null) {
+			// Benign race, Strings are immutable
+			value = decode(index);
+			decoded[index] = value;
+		}
+		return value;
+	}
+
+	private String decode(int index) {
+		int start = offsets.get(index);
+		int end = offsets.get(index + 1);
+		byte[] bytes = new byte[end - start];
+		ByteBuffer view = data.duplicate();
+		view.position(start);
+		view.get(bytes);
+		if (bytes.length == 1 && (bytes[0] & 0xFF) == GAP) {
+			return null;
+		}
+		return decode(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Encodes the string in modified UTF-8 without length prefix. In contrast
+	 * to standard UTF-8 this is lossless for all Java strings, including
+	 * strings with unpaired surrogates.
+	 * 
+	 * @param value
+	 * @return the encoded bytes
+	 */
+	static byte[] encode(String value) {
+		int length = 0;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c >= 0x0001 && c <= 0x007F) {
+				length++;
+			} else if (c <= 0x07FF) {
+				length += 2;
+			} else {
+				length += 3;
+			}
+		}
+		byte[] bytes = new byte[length];
+		int pos = 0;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c >= 0x0001 && c <= 0x007F) {
+				bytes[pos++] = (byte) c;
+			} else if (c <= 0x07FF) {
+				bytes[pos++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+				bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+			} else {
+				bytes[pos++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+				bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Decodes a string encoded by {@link #encode(String)}.
+	 */
+	static String decode(byte[] bytes, int offset, int length) {
+		char[] chars = new char[length];
+		int count = 0;
+		int pos = offset;
+		int end = offset + length;
+		while (pos < end) {
+			int b = bytes[pos] & 0xFF;
+			if (b < 0x80) {
+				chars[count++] = (char) b;
+				pos++;
+			} else if ((b & 0xE0) == 0xC0) {
+				chars[count++] = (char) (((b & 0x1F) << 6) | (bytes[pos + 1] & 0x3F));
+				pos += 2;
+			} else {
+				chars[count++] = (char) (((b & 0x0F) << 12) | ((bytes[pos + 1] & 0x3F) << 6)
+						| (bytes[pos + 2] & 0x3F));
+				pos += 3;
+			}
+		}
+		return new String(chars, 0, count);
+	}
+
+	@Override
+	public int size() {
+		StringPool pool = delegate;
+		if (pool != null) {
+			return pool.size();
+		}
+		return size;
+	}
+
+	@Override
+	public int getCapacity() {
+		return Integer.MAX_VALUE;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("StringPoolMappedImpl with %s entries", size());
+	}
+
+}
@@ -8,12 +8,58 @@ import java.util.Iterator;
 import java.util.ListIterator;
 import java.util.NoSuchElementException;
 
-import com.google.common.primitives.Longs;
-
 import net.jpountz.lz4.LZ4Factory;
 
+/**
+ * List of elements that are stored as compressed, delta-encoded identifiers.
+ * The identifiers are compressed in chunks of
+ * {@link #CHUNK_SIZE} elements with a skip index of their offsets, so that
+ * {@link #get(int)}, {@link #set(int, Object)} and
+ * {@link #listIterator(int)} only decompress the chunk they need. The last
+ * decoded chunk is cached per thread.
+ * <p>
+ * Deltas are written as zig-zag encoded variable-length integers and only
+ * compressed with LZ4 if that makes the chunk smaller. A chunk of consecutive
+ * identifiers, as handed out by {@link IdFactorySeq}, is stored as its first
+ * identifier.
+ * <p>
+ * Changes are collected in an uncompressed write buffer, so that building a
+ * list element by element takes linear time. The buffer is compressed by
+ * {@link #trimToSize()}, when the compressed identifiers are requested, when
+ * the store is frozen, or after {@link #getDefaultCompressionIdleReads()}
+ * reads without a change. All of them compress under the lock of
+ * {@link #trimToSize()} and publish the compressed identifiers before the
+ * buffer is dropped, so that the list can be read concurrently.
+ *
+ * @author F. Mannhardt
+ *
+ * @param <E>
+ */
 abstract class XAbstractCompressedList<E> extends AbstractList<E> {
 
+	static final int CHUNK_SIZE = 256;
+
+	// consecutive identifiers, only the first one is stored
+	private static final byte CHUNK_RUN = 0;
+	// zig-zag encoded deltas as variable-length integers
+	private static final byte CHUNK_VAR_LONG = 1;
+	// LZ4 compressed CHUNK_VAR_LONG data, preceded by its length
+	private static final byte CHUNK_LZ4 = 2;
+
+	private static final int MAX_VAR_LONG_BYTES = 10;
+
+	private static final int DEFAULT_COMPRESSION_IDLE_READS = 64;
+
+	/**
+	 * @return the number of reads without a change after which the write
+	 *         buffer of a list is compressed
+	 */
+	public static int getDefaultCompressionIdleReads() {
+		return MapDBStore.PREFS.getInt("compressionIdleReads", DEFAULT_COMPRESSION_IDLE_READS);
+	}
+
+	private static final int COMPRESSION_IDLE_READS = getDefaultCompressionIdleReads();
+
 	interface Compressor {
 
 		int decompress(byte[] compressedData, byte[] uncompressedBuffer, int srcOff, int destOff, int destLen);
@@ -42,7 +88,7 @@ abstract class XAbstractCompressedList<E> extends AbstractList<E> {
 	}
 
 	//TODO these iterators are not fast failing!
-	private class CompressedIterator implements Iterator<E> {
+	class CompressedIterator implements Iterator<E> {
 
 		protected EventData eventData;
 
@@ -61,18 +107,30 @@ abstract class XAbstractCompressedList<E> extends AbstractList<E> {
 			if (!hasNext()) {
 				throw new NoSuchElementException();
 			}
-			E element = doGet(index, eventData);
+			E element = newElement(index, eventData.ids[index]);
 			last = index;
 			index++;
 			return element;
 		}
 
+		/**
+		 * Creates the element with the supplied id, by default the same as
+		 * {@link XAbstractCompressedList#newInstance(int, long)}.
+		 * 
+		 * @param index
+		 * @param id
+		 * @return the element
+		 */
+		protected E newElement(int index, long id) {
+			return newInstance(index, id);
+		}
+
 		public void remove() {
 			if (last < 0) {
 				throw new IllegalStateException();
 			}
 
-			// Remove from list			
+			// Remove from list, the iterator is working on a copy
 			setEventData(doRemove(last, eventData));
 
 			if (last < index) {
@@ -83,28 +141,47 @@ abstract class XAbstractCompressedList<E> extends AbstractList<E> {
 
 	}
 
+	/**
+	 * Goes through the list chunk by chunk instead of decoding all elements
+	 * upfront.
+	 */
 	//TODO these iterators are not fast failing!
-	private class CompressedListIterator extends CompressedIterator implements ListIterator<E> {
+	private class CompressedListIterator implements ListIterator<E> {
 
-		CompressedListIterator(int index, EventData eventData) {
-			super(eventData);
+		private int index;
+		private int last = -1;
+
+		CompressedListIterator(int index) {
 			this.index = index;
 		}
 
+		public boolean hasNext() {
+			return index != size();
+		}
+
+		public E next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			E next = get(index);
+			last = index;
+			index++;
+			return next;
+		}
+
 		public boolean hasPrevious() {
 			return index > 0;
 		}
 
 		public E previous() {
-			try {
-				int prevIndex = index - 1;
-				E previous = doGet(prevIndex, eventData);
-				index = prevIndex;
-				last = prevIndex;
-				return previous;
-			} catch (IndexOutOfBoundsException e) {
+			if (!hasPrevious()) {
 				throw new NoSuchElementException();
 			}
+			int prevIndex = index - 1;
+			E previous = get(prevIndex);
+			index = prevIndex;
+			last = prevIndex;
+			return previous;
 		}
 
 		public int nextIndex() {
@@ -115,21 +192,54 @@ abstract class XAbstractCompressedList<E> extends AbstractList<E> {
 			return index - 1;
 		}
 
+		public void remove() {
+			if (last < 0) {
+				throw new IllegalStateException();
+			}
+			XAbstractCompressedList.this.remove(last);
+			if (last < index) {
+				index--;
+			}
+			last = -1;
+		}
+
 		public void set(E e) {
 			if (last == -1) {
 				throw new IllegalStateException();
 			}
-			setEventData(doSet(last, e, eventData));
+			XAbstractCompressedList.this.set(last, e);
 		}
 
 		public void add(E e) {
-			eventData = resizeIfNeeded(size + 1, eventData);
-			setEventData(doAdd(index++, e, eventData));
+			XAbstractCompressedList.this.add(index++, e);
 			last = -1;
 		}
 
 	}
 
+	/**
+	 * Identifiers of a chunk that were decoded last by a thread.
+	 */
+	private static final class DecodedChunk {
+
+		private final byte[] compressedData;
+		private final int dataOffset;
+		private final int chunkIndex;
+		private final long[] ids;
+
+		private DecodedChunk(byte[] compressedData, int dataOffset, int chunkIndex, long[] ids) {
+			this.compressedData = compressedData;
+			this.dataOffset = dataOffset;
+			this.chunkIndex = chunkIndex;
+			this.ids = ids;
+		}
+
+	}
+
+	// compressed data is replaced on every change and never modified, so
+	// together with the offset it identifies the decoded chunk
+	private static final ThreadLocal<DecodedChunk> LAST_CHUNK = new ThreadLocal<>();
+
 	private static final Compressor COMPRESSOR = new Compressor() {
 
 		private final LZ4Factory factory = LZ4Factory.fastestJavaInstance();
@@ -156,11 +266,22 @@ abstract class XAbstractCompressedList<E> extends AbstractList<E> {
 
 	};
 
+	// may be shared with other lists, e.g., a view on the arena of a XTraceTable
 	private byte[] compressedData;
+	private int dataOffset;
+	private int dataLength;
+	// offsets of the chunks relative to dataOffset, NULL if there is at most one chunk
+	private int[] chunkOffsets;
 	private int size;
 
+	// uncompressed identifiers while the list is changed, NULL if compressed
+	private volatile EventData writeBuffer;
+	// not synchronized, lost increments only delay the compression
+	private int idleReads;
+
 	public XAbstractCompressedList() {
 		this.compressedData = null;
+		this.chunkOffsets = null;
 		this.size = 0;
 	}
 
@@ -172,16 +293,20 @@ abstract class XAbstractCompressedList<E> extends AbstractList<E> {
 
 	abstract protected int getIdShift();
 
-	protected ByteBuffer getCompressedIds() {
-		return ByteBuffer.wrap(compressedData);
-	}
-
 	public E get(int index) {
 		if (index < 0 || index >= size()) {
 			throw new IndexOutOfBoundsException();
 		}
-		EventData eventData = getEventData();
-		return doGet(index, eventData);
+		EventData buffer = writeBuffer;
+		if (buffer != null) {
+			long id = buffer.ids[index];
+			if (++idleReads >= COMPRESSION_IDLE_READS) {
+				trimToSize();
+			}
+			return newInstance(index, id);
+		}
+		long[] chunk = getChunk(index / CHUNK_SIZE);
+		return newInstance(index, chunk[index % CHUNK_SIZE]);
 	}
 
 	private E doGet(int index, EventData eventData) {
@@ -193,12 +318,22 @@ abstract class XAbstractCompressedList<E> extends AbstractList<E> {
 			throw new IndexOutOfBoundsException();
 		}
 		E newElement = convertElement(element);
-		
-		EventData eventData = getEventData();
 
-		E oldElement = doGet(index, eventData);
+		if (writeBuffer != null) {
+			EventData buffer = getWriteBuffer();
+			E oldElement = doGet(index, buffer);
+			setWriteBuffer(doSet(index, newElement, buffer));
+			return oldElement;
+		}
+
+		int chunkIndex = index / CHUNK_SIZE;
+		// copy, the decoded chunk may still be used by iterators
+		long[] chunk = getChunk(chunkIndex).clone();
 
-		setEventData(doSet(index, newElement, eventData));
+		E oldElement = newInstance(index, chunk[index % CHUNK_SIZE]);
+
+		chunk[index % CHUNK_SIZE] = getExternalId(newElement);
+		setChunk(chunkIndex, chunk);
 
 		return oldElement;
 	}
@@ -213,11 +348,11 @@ abstract class XAbstractCompressedList<E> extends AbstractList<E> {
 			throw new IndexOutOfBoundsException();
 		}
 
-		EventData eventData = resizeIfNeeded(size + 1, getEventData());
+		EventData eventData = resizeIfNeeded(size + 1, getWriteBuffer());
 
 		eventData = doAdd(index, element, eventData);
 
-		setEventData(eventData);
+		setWriteBuffer(eventData);
 	}
 
 	private EventData doAdd(int index, E element, EventData eventData) {
@@ -237,8 +372,11 @@ abstract class XAbstractCompressedList<E> extends AbstractList<E> {
 			throw new IndexOutOfBoundsException();
 		}
 		int collectionSize = c.size();
+		if (collectionSize == 0) {
+			return false;
+		}
 
-		EventData eventData = resizeIfNeeded(size + collectionSize, getEventData());
+		EventData eventData = resizeIfNeeded(size + collectionSize, getWriteBuffer());
 
 		System.arraycopy(eventData.ids, index, eventData.ids, index + collectionSize, size - index);
 
@@ -250,17 +388,32 @@ abstract class XAbstractCompressedList<E> extends AbstractList<E> {
 		}
 		size += collectionSize;
 
-		setEventData(eventData);
+		setWriteBuffer(eventData);
 
 		return collectionSize != 0;
 	}
 
 	public Iterator<E> iterator() {
-		return new CompressedIterator(getEventData());
+		return newIterator(getEventData());
+	}
+
+	/**
+	 * Creates the iterator returned by {@link #iterator()}. Sub-classes may
+	 * return a {@link CompressedIterator} that prepares the elements for
+	 * sequential access.
+	 * 
+	 * @param eventData
+	 * @return an iterator over all elements
+	 */
+	protected Iterator<E> newIterator(EventData eventData) {
+		return new CompressedIterator(eventData);
 	}
 
 	public ListIterator<E> listIterator(int index) {
-		return new CompressedListIterator(index, getEventData());
+		if (index < 0 || index > size()) {
+			throw new IndexOutOfBoundsException();
+		}
+		return new CompressedListIterator(index);
 	}
 
 	public E remove(int index) {
@@ -268,11 +421,11 @@ abstract class XAbstractCompressedList<E> extends AbstractList<E> {
 			throw new IndexOutOfBoundsException();
 		}
 
-		EventData eventData = getEventData();
+		EventData eventData = getWriteBuffer();
 
 		E oldEvent = doGet(index, eventData);
 
-		setEventData(doRemove(index, eventData));
+		setWriteBuffer(doRemove(index, eventData));
 
 		return oldEvent;
 	}
@@ -295,55 +448,315 @@ abstract class XAbstractCompressedList<E> extends AbstractList<E> {
 		return size;
 	}
 
+	/**
+	 * @return a copy of all identifiers
+	 */
 	protected final EventData getEventData() {
-		if (compressedData == null) {
-			return new EventData();
-		} else {
-			int uncompressedSize = uncompressedSize();
-			byte[] uncompressedData = COMPRESSOR.decompress(compressedData, uncompressedSize);
-			return decodeFromBytes(ByteBuffer.wrap(uncompressedData));
+		EventData buffer = writeBuffer;
+		if (buffer != null) {
+			EventData eventData = new EventData(size);
+			System.arraycopy(buffer.ids, 0, eventData.ids, 0, size);
+			return eventData;
+		}
+		EventData eventData = new EventData(size);
+		if (compressedData != null) {
+			for (int i = 0; i * CHUNK_SIZE < size; i++) {
+				decodeChunk(i, eventData.ids, i * CHUNK_SIZE);
+			}
+		}
+		return eventData;
+	}
+
+	/**
+	 * Compresses the write buffer, if there were changes since the last
+	 * compression.
+	 */
+	public final synchronized void trimToSize() {
+		EventData buffer = writeBuffer;
+		if (buffer != null) {
+			setEventData(buffer);
+		}
+	}
+
+	/**
+	 * @return whether there are changes that are not yet compressed
+	 */
+	final boolean hasWriteBuffer() {
+		return writeBuffer != null;
+	}
+
+	private EventData getWriteBuffer() {
+		EventData buffer = writeBuffer;
+		if (buffer == null) {
+			buffer = getEventData();
+			writeBuffer = buffer;
 		}
+		return buffer;
+	}
+
+	private void setWriteBuffer(EventData eventData) {
+		idleReads = 0;
+		writeBuffer = eventData;
+		identifiersChanged();
+	}
+
+	/**
+	 * Called after the identifiers were changed, either in the write buffer or
+	 * in the compressed identifiers. Sub-classes that keep the identifiers
+	 * elsewhere, e.g., in a {@link XTraceTable}, may write them back later.
+	 */
+	protected void identifiersChanged() {
+	}
+
+	/**
+	 * @return the array that contains the compressed identifiers at
+	 *         {@link #getCompressedDataOffset()} or NULL if the list is
+	 *         empty, must not be modified
+	 */
+	final byte[] getCompressedData() {
+		trimToSize();
+		return compressedData;
 	}
 
+	/**
+	 * @return the start of the compressed identifiers in
+	 *         {@link #getCompressedData()}
+	 */
+	final int getCompressedDataOffset() {
+		trimToSize();
+		return dataOffset;
+	}
+
+	/**
+	 * @return the length of the compressed identifiers in
+	 *         {@link #getCompressedData()}
+	 */
+	final int getCompressedDataLength() {
+		trimToSize();
+		return dataLength;
+	}
+
+	/**
+	 * @return the offsets of the chunks relative to
+	 *         {@link #getCompressedDataOffset()} or NULL if there is at most
+	 *         one chunk, must not be modified
+	 */
+	final int[] getChunkOffsets() {
+		trimToSize();
+		return chunkOffsets;
+	}
+
+	/**
+	 * Replaces the content of this list with identifiers that were compressed
+	 * by another list. The array is not copied, its range of compressed
+	 * identifiers must not be modified afterwards.
+	 * 
+	 * @param compressedData
+	 * @param offset
+	 *            start of the compressed identifiers in the array
+	 * @param length
+	 *            length of the compressed identifiers
+	 * @param chunkOffsets
+	 * @param size
+	 */
+	final void setCompressedData(byte[] compressedData, int offset, int length, int[] chunkOffsets, int size) {
+		this.compressedData = compressedData;
+		this.dataOffset = offset;
+		this.dataLength = length;
+		this.chunkOffsets = chunkOffsets;
+		this.size = size;
+		this.writeBuffer = null;
+	}
+
+	/**
+	 * Compresses the identifiers and discards the write buffer.
+	 * 
+	 * @param eventIds
+	 */
 	protected final void setEventData(EventData eventIds) {
-		byte[] uncompressedData = encodeToBytes(eventIds).array();
-		compressedData = COMPRESSOR.compress(uncompressedData);
+		int chunkCount = (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		if (chunkCount == 0) {
+			compressedData = null;
+			chunkOffsets = null;
+		} else if (chunkCount == 1) {
+			compressedData = encodeChunk(eventIds.ids, 0, size);
+			chunkOffsets = null;
+		} else {
+			byte[][] chunks = new byte[chunkCount][];
+			int[] offsets = new int[chunkCount + 1];
+			for (int i = 0; i < chunkCount; i++) {
+				chunks[i] = encodeChunk(eventIds.ids, i * CHUNK_SIZE, getChunkLength(i));
+				offsets[i + 1] = offsets[i] + chunks[i].length;
+			}
+			byte[] data = new byte[offsets[chunkCount]];
+			for (int i = 0; i < chunkCount; i++) {
+				System.arraycopy(chunks[i], 0, data, offsets[i], chunks[i].length);
+			}
+			compressedData = data;
+			chunkOffsets = offsets;
+		}
+		dataOffset = 0;
+		dataLength = compressedData != null ? compressedData.length : 0;
+		// published after the compressed data
+		writeBuffer = null;
 	}
 
-	private final ByteBuffer encodeToBytes(EventData eventData) {
-		ByteBuffer buffer = ByteBuffer.allocate(uncompressedSize());
+	/**
+	 * @param chunkIndex
+	 * @return the decoded identifiers of the chunk, must not be modified
+	 */
+	private long[] getChunk(int chunkIndex) {
+		DecodedChunk lastChunk = LAST_CHUNK.get();
+		if (lastChunk != null && lastChunk.compressedData == compressedData && lastChunk.dataOffset == dataOffset
+				&& lastChunk.chunkIndex == chunkIndex) {
+			return lastChunk.ids;
+		}
+		long[] ids = new long[getChunkLength(chunkIndex)];
+		decodeChunk(chunkIndex, ids, 0);
+		LAST_CHUNK.set(new DecodedChunk(compressedData, dataOffset, chunkIndex, ids));
+		return ids;
+	}
 
+	/**
+	 * Replaces the compressed data of a single chunk.
+	 * 
+	 * @param chunkIndex
+	 * @param ids
+	 *            all identifiers of the chunk
+	 */
+	private void setChunk(int chunkIndex, long[] ids) {
+		byte[] chunk = encodeChunk(ids, 0, ids.length);
+		if (chunkOffsets == null) {
+			compressedData = chunk;
+		} else {
+			int start = chunkOffsets[chunkIndex];
+			int end = chunkOffsets[chunkIndex + 1];
+			int delta = chunk.length - (end - start);
+			byte[] data = new byte[dataLength + delta];
+			System.arraycopy(compressedData, dataOffset, data, 0, start);
+			System.arraycopy(chunk, 0, data, start, chunk.length);
+			System.arraycopy(compressedData, dataOffset + end, data, start + chunk.length, dataLength - end);
+			// copy, the offsets may be shared through getChunkOffsets() or setCompressedData()
+			int[] offsets = chunkOffsets.clone();
+			for (int i = chunkIndex + 1; i < offsets.length; i++) {
+				offsets[i] += delta;
+			}
+			compressedData = data;
+			chunkOffsets = offsets;
+		}
+		dataOffset = 0;
+		dataLength = compressedData.length;
+		LAST_CHUNK.set(new DecodedChunk(compressedData, dataOffset, chunkIndex, ids));
+		identifiersChanged();
+	}
+
+	private int getChunkLength(int chunkIndex) {
+		return Math.min(CHUNK_SIZE, size - chunkIndex * CHUNK_SIZE);
+	}
+
+	private final byte[] encodeChunk(long[] ids, int offset, int length) {
+		int idShift = getIdShift();
+
+		// each chunk is delta encoded on its own to be decoded independently
+		long firstId = ids[offset] >> idShift;
+		boolean isRun = true;
+		for (int i = 1; i < length && isRun; i++) {
+			isRun = (ids[offset + i] >> idShift) == firstId + i;
+		}
+		if (isRun) {
+			ByteBuffer buffer = ByteBuffer.allocate(1 + MAX_VAR_LONG_BYTES);
+			buffer.put(CHUNK_RUN);
+			putVarLong(buffer, zigZag(firstId));
+			return Arrays.copyOf(buffer.array(), buffer.position());
+		}
+
+		ByteBuffer deltas = ByteBuffer.allocate(length * MAX_VAR_LONG_BYTES);
 		long lastId = 0;
-		for (int i = 0; i < size; i++) {
-			long id = eventData.ids[i] >> getIdShift();
+		for (int i = offset; i < offset + length; i++) {
+			long id = ids[i] >> idShift;
 
 			// Delta encode
 			long delta = id - lastId;
 			lastId = id;
 
-			buffer.putLong(delta);
+			putVarLong(deltas, zigZag(delta));
+		}
+		int deltasLength = deltas.position();
+
+		ByteBuffer compressed = ByteBuffer
+				.allocate(1 + MAX_VAR_LONG_BYTES + COMPRESSOR.maxCompressedSize(deltasLength));
+		compressed.put(CHUNK_LZ4);
+		putVarLong(compressed, deltasLength);
+		int compressedLength = COMPRESSOR.compress(deltas.array(), 0, deltasLength, compressed.array(),
+				compressed.position());
+		int chunkLength = compressed.position() + compressedLength;
+		if (chunkLength < 1 + deltasLength) {
+			return Arrays.copyOf(compressed.array(), chunkLength);
 		}
-		buffer.flip();
-		return buffer;
-	}
 
-	private final int uncompressedSize() {
-		return size * Longs.BYTES;
+		// not worth to be compressed
+		byte[] chunk = new byte[1 + deltasLength];
+		chunk[0] = CHUNK_VAR_LONG;
+		System.arraycopy(deltas.array(), 0, chunk, 1, deltasLength);
+		return chunk;
 	}
 
-	private final EventData decodeFromBytes(ByteBuffer uncompressedData) {
-		EventData eventData = new EventData(size);
+	private final void decodeChunk(int chunkIndex, long[] ids, int offset) {
+		int length = getChunkLength(chunkIndex);
+		int srcOff = dataOffset + (chunkOffsets != null ? chunkOffsets[chunkIndex] : 0);
+		int srcEnd = dataOffset + (chunkOffsets != null ? chunkOffsets[chunkIndex + 1] : dataLength);
+		int idShift = getIdShift();
+
+		ByteBuffer buffer = ByteBuffer.wrap(compressedData, srcOff, srcEnd - srcOff);
+		byte type = buffer.get();
+		if (type == CHUNK_RUN) {
+			long firstId = unZigZag(getVarLong(buffer));
+			for (int i = 0; i < length; i++) {
+				ids[offset + i] = (firstId + i) << idShift;
+			}
+			return;
+		}
+		if (type == CHUNK_LZ4) {
+			byte[] deltas = new byte[(int) getVarLong(buffer)];
+			COMPRESSOR.decompress(compressedData, deltas, buffer.position(), 0, deltas.length);
+			buffer = ByteBuffer.wrap(deltas);
+		}
 
 		long lastId = 0;
-
-		for (int i = 0; i < size; i++) {
+		for (int i = offset; i < offset + length; i++) {
 			// Delta decode
-			long newId = uncompressedData.getLong() + lastId;
-			eventData.ids[i] = newId << getIdShift();
+			long newId = unZigZag(getVarLong(buffer)) + lastId;
+			ids[i] = newId << idShift;
 			lastId = newId;
 		}
+	}
 
-		return eventData;
+	static void putVarLong(ByteBuffer buffer, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	static long getVarLong(ByteBuffer buffer) {
+		long value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = buffer.get();
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+		return value;
+	}
+
+	private static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unZigZag(long value) {
+		return (value >>> 1) ^ -(value & 1);
 	}
 
 	private static EventData resizeIfNeeded(int requiredCapacity, EventData data) {
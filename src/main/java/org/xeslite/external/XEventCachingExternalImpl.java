@@ -157,6 +157,10 @@ class XEventCachingExternalImpl extends XEventBareExternalImpl implements Attrib
 		return cache[cacheIndex];
 	}
 
+	public void setOriginalCacheValue(int cacheIndex, long value) {
+		cache[cacheIndex] = value;
+	}
+
 	public final int getCacheSize() {
 		return cache.length;
 	}
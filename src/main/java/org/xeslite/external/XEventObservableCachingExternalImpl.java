@@ -27,6 +27,15 @@ final class XEventObservableCachingExternalImpl extends XEventCachingExternalImp
 
 	public void setCacheValue(int cacheIndex, XAttribute value) {
 		super.setCacheValue(cacheIndex, value);
+		notifyObserver(cacheIndex);
+	}
+
+	public void setOriginalCacheValue(int cacheIndex, long value) {
+		super.setOriginalCacheValue(cacheIndex, value);
+		notifyObserver(cacheIndex);
+	}
+
+	private void notifyObserver(int cacheIndex) {
 		if (observer != null) {
 			// inform observer
 			AttributeInfo info = getCacheInfo(cacheIndex);
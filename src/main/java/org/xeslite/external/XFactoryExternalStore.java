@@ -2,9 +2,11 @@ package org.xeslite.external;
 
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ConcurrentMap;
 
 import org.deckfour.xes.extension.XExtension;
 import org.deckfour.xes.factory.XFactory;
@@ -28,6 +30,12 @@ import org.deckfour.xes.model.impl.XAttributeMapImpl;
 import org.xeslite.external.MapDBStore.Builder;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.MapMaker;
+
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 
 /**
  * Factory storing attributes of {@link XAttributable} XES objects in a,
@@ -64,6 +72,187 @@ public abstract class XFactoryExternalStore implements XFactory {
 	 */
 	public static class MapDBDiskImpl extends XFactoryExternalStore {
 
+		/**
+		 * Resolves external ids to positions in a log without recording the
+		 * position of every event. IDs are handed out in sequence, so the
+		 * trace and its events usually occupy a single run of consecutive
+		 * ids. Only the runs are recorded, an owner is mapped to its trace by
+		 * a binary search over the runs and then looked up in the current
+		 * events of that trace. A position is the index of the trace in the
+		 * upper 32 bits and the index of the event plus one, or 0 for the
+		 * trace itself, in the lower 32 bits, so positions sort in the order
+		 * of the log.
+		 */
+		private static final class LogPositions {
+
+			private final int modCount;
+			private final int size;
+			private final long[] runStarts; // sorted
+			private final long[] runEnds; // inclusive
+			private final int[] runTraces;
+
+			// owners up to this id that cannot be resolved are not part of the log
+			private long resolvedBound;
+
+			private LogPositions(XLog log, int idShift) {
+				this.modCount = getModCount(log);
+				this.size = log.size();
+				long step = 1L << idShift;
+				LongArrayList starts = new LongArrayList();
+				LongArrayList ends = new LongArrayList();
+				IntArrayList traces = new IntArrayList();
+				long maxId = -1;
+				for (int i = 0; i < size; i++) {
+					long[] ids = getIds(log.get(i));
+					Arrays.sort(ids);
+					for (int j = 0; j < ids.length; j++) {
+						if (ids[j] < 0) {
+							continue; // not identifiable
+						} else if (j == 0 || ids[j] - ids[j - 1] != step) {
+							starts.add(ids[j]);
+							ends.add(ids[j]);
+							traces.add(i);
+						} else {
+							ends.set(ends.size() - 1, ids[j]);
+						}
+					}
+					if (ids.length > 0) {
+						maxId = Math.max(maxId, ids[ids.length - 1]);
+					}
+				}
+				int[] order = new int[starts.size()];
+				for (int i = 0; i < order.length; i++) {
+					order[i] = i;
+				}
+				final long[] unsortedStarts = starts.toLongArray();
+				IntArrays.quickSort(order, new AbstractIntComparator() {
+
+					public int compare(int k1, int k2) {
+						return Long.compare(unsortedStarts[k1], unsortedStarts[k2]);
+					}
+				});
+				this.runStarts = new long[order.length];
+				this.runEnds = new long[order.length];
+				this.runTraces = new int[order.length];
+				for (int i = 0; i < order.length; i++) {
+					runStarts[i] = unsortedStarts[order[i]];
+					runEnds[i] = ends.getLong(order[i]);
+					runTraces[i] = traces.getInt(order[i]);
+				}
+				this.resolvedBound = maxId;
+			}
+
+			/**
+			 * @return the id of the trace followed by the ids of its events,
+			 *         -1 for objects without an external id
+			 */
+			private static long[] getIds(XTrace trace) {
+				long[] ids = new long[trace.size() + 1];
+				ids[0] = trace instanceof ExternalIdentifyable ? ((ExternalIdentifyable) trace).getExternalId() : -1;
+				if (trace instanceof XAbstractCompressedList) {
+					// avoids creating the events and reading ahead their attributes
+					System.arraycopy(((XAbstractCompressedList<?>) trace).getEventData().ids, 0, ids, 1,
+							ids.length - 1);
+				} else {
+					for (int j = 1; j < ids.length; j++) {
+						XEvent event = trace.get(j - 1);
+						ids[j] = event instanceof ExternalIdentifyable ? ((ExternalIdentifyable) event).getExternalId()
+								: -1;
+					}
+				}
+				return ids;
+			}
+
+			private static int getModCount(XLog log) {
+				return log instanceof XLogExternalImpl ? ((XLogExternalImpl) log).getModCount() : 0;
+			}
+
+			/**
+			 * @return whether no trace was added, removed or replaced since
+			 *         the runs were recorded, logs that do not count their
+			 *         modifications are only compared by size
+			 */
+			private boolean isCurrent(XLog log) {
+				return getModCount(log) == modCount && log.size() == size;
+			}
+
+			/**
+			 * @return the sorted positions of the owners that are part of the
+			 *         log, or NULL if an owner was not found that is newer
+			 *         than the recorded ids, i.e., it might have been added to
+			 *         a trace since
+			 */
+			private long[] resolve(XLog log, long[] ownerIds) {
+				LongArrayList resolved = new LongArrayList(ownerIds.length);
+				long maxUnresolved = -1;
+				int cachedTraceIndex = -1;
+				long[] cachedIds = null;
+				for (long ownerId : ownerIds) {
+					long position = -1;
+					int traceIndex = findTrace(ownerId);
+					if (traceIndex != -1) {
+						if (traceIndex != cachedTraceIndex) {
+							// owners are sorted, so owners of the same trace mostly follow each other
+							cachedTraceIndex = traceIndex;
+							cachedIds = getIds(log.get(traceIndex));
+						}
+						position = findPosition(cachedIds, traceIndex, ownerId);
+					}
+					if (position != -1) {
+						resolved.add(position);
+					} else {
+						maxUnresolved = Math.max(maxUnresolved, ownerId);
+					}
+				}
+				if (maxUnresolved > resolvedBound) {
+					return null;
+				}
+				long[] sorted = resolved.toLongArray();
+				Arrays.sort(sorted);
+				return sorted;
+			}
+
+			/**
+			 * Accepts that owners up to the id are not part of the log, so
+			 * that they do not cause the runs to be recorded again.
+			 */
+			private void markResolved(long[] ownerIds) {
+				if (ownerIds.length > 0) {
+					resolvedBound = Math.max(resolvedBound, ownerIds[ownerIds.length - 1]);
+				}
+			}
+
+			/**
+			 * @return the index of the trace with a run that contains the id,
+			 *         or -1
+			 */
+			private int findTrace(long id) {
+				int index = Arrays.binarySearch(runStarts, id);
+				if (index < 0) {
+					index = -index - 2; // last run starting before the id
+				}
+				return index >= 0 && id <= runEnds[index] ? runTraces[index] : -1;
+			}
+
+			/**
+			 * @return the position of the id in the trace with the supplied
+			 *         ids, or -1 if it is not part of the trace anymore
+			 */
+			private static long findPosition(long[] ids, int traceIndex, long id) {
+				for (int j = 0; j < ids.length; j++) {
+					if (ids[j] == id) {
+						return ((long) traceIndex << 32) | j;
+					}
+				}
+				return -1;
+			}
+
+			private static int getTraceIndex(long position) {
+				return (int) (position >>> 32);
+			}
+
+		}
+
 		public static void register() {
 			if (!containsFactory(MapDBDiskImpl.class)) {
 				XFactoryRegistry.instance().register(new MapDBDiskImpl());
@@ -73,6 +262,9 @@ public abstract class XFactoryExternalStore implements XFactory {
 		private final Builder dbBuilder;
 		private ExternalStore attributeStore;
 
+		// weak identity keys, the positions are recorded anew when the log has changed
+		private final ConcurrentMap<XLog, LogPositions> logPositions = new MapMaker().weakKeys().makeMap();
+
 		public MapDBDiskImpl() {
 			this(new MapDBStore.Builder());
 		}
@@ -96,6 +288,124 @@ public abstract class XFactoryExternalStore implements XFactory {
 			}
 		}
 
+		/**
+		 * @return the number of attributables waiting for the data pump
+		 * @see MapDBStore#getPumpQueueDepth()
+		 */
+		public long getPumpQueueDepth() {
+			ExternalStore store = getStore();
+			return store instanceof MapDBStore ? ((MapDBStore) store).getPumpQueueDepth() : 0;
+		}
+
+		/**
+		 * @return the number of attributables written by the data pump per
+		 *         second
+		 * @see MapDBStore#getPumpThroughput()
+		 */
+		public double getPumpThroughput() {
+			ExternalStore store = getStore();
+			return store instanceof MapDBStore ? ((MapDBStore) store).getPumpThroughput() : 0;
+		}
+
+		private MapDBStore getIndexedStore() {
+			ExternalStore store = getStore();
+			if (store instanceof MapDBStore) {
+				return (MapDBStore) store;
+			}
+			throw new UnsupportedOperationException("Secondary indexes are not supported by " + store);
+		}
+
+		/**
+		 * @param key
+		 * @see MapDBStore#createIndex(String)
+		 */
+		public void createIndex(String key) {
+			getIndexedStore().createIndex(key);
+		}
+
+		/**
+		 * @param key
+		 * @param value
+		 * @return the sorted external ids of the owners
+		 * @see MapDBStore#lookupOwnerIds(String, String)
+		 */
+		public long[] lookupOwnerIds(String key, String value) {
+			return getIndexedStore().lookupOwnerIds(key, value);
+		}
+
+		/**
+		 * Returns the events of the log that have a literal attribute with the
+		 * supplied key and value using the secondary index of the key. The
+		 * owners are resolved to their position in the log through the runs of
+		 * consecutive ids of the traces (see {@link LogPositions}), which are
+		 * recorded on the first lookup in the log and recorded anew after
+		 * traces were added, removed or replaced, or when an owner newer than
+		 * the recorded ids is not found. Events that are moved between traces
+		 * of the log are only found again after the traces of the log changed.
+		 * No attribute is read from disk.
+		 * 
+		 * @param log
+		 * @param key
+		 *            a key that is indexed
+		 * @param value
+		 * @return the matching events in the order of the log
+		 */
+		public List<XEvent> lookupEvents(XLog log, String key, String value) {
+			long[] ownerIds = lookupOwnerIds(key, value);
+			List<XEvent> events = new ArrayList<>();
+			if (ownerIds.length > 0) {
+				for (long position : resolvePositions(log, ownerIds)) {
+					int eventIndex = (int) position;
+					if (eventIndex != 0) {
+						events.add(log.get(LogPositions.getTraceIndex(position)).get(eventIndex - 1));
+					}
+				}
+			}
+			return events;
+		}
+
+		/**
+		 * Returns the traces of the log that have, or contain an event that
+		 * has, a literal attribute with the supplied key and value using the
+		 * secondary index of the key.
+		 * 
+		 * @param log
+		 * @param key
+		 *            a key that is indexed
+		 * @param value
+		 * @return the matching traces in the order of the log
+		 */
+		public List<XTrace> lookupTraces(XLog log, String key, String value) {
+			long[] ownerIds = lookupOwnerIds(key, value);
+			List<XTrace> traces = new ArrayList<>();
+			if (ownerIds.length > 0) {
+				int lastTraceIndex = -1;
+				for (long position : resolvePositions(log, ownerIds)) {
+					int traceIndex = LogPositions.getTraceIndex(position);
+					if (traceIndex != lastTraceIndex) {
+						traces.add(log.get(traceIndex));
+						lastTraceIndex = traceIndex;
+					}
+				}
+			}
+			return traces;
+		}
+
+		private long[] resolvePositions(XLog log, long[] ownerIds) {
+			LogPositions positions = logPositions.get(log);
+			if (positions != null && positions.isCurrent(log)) {
+				long[] resolved = positions.resolve(log, ownerIds);
+				if (resolved != null) {
+					return resolved;
+				}
+			}
+			// not recorded yet, outdated or an owner might have been added to a trace
+			positions = new LogPositions(log, getStore().getIdFactory().getIdShift());
+			positions.markResolved(ownerIds);
+			logPositions.put(log, positions);
+			return positions.resolve(log, ownerIds);
+		}
+
 		@Override
 		public String getName() {
 			return "XESLite: MapDB (with Cache)";
@@ -226,6 +536,19 @@ public abstract class XFactoryExternalStore implements XFactory {
 			return new XEventBareExternalImpl(attributes, getStore());
 		}
 
+		/**
+		 * Creates a log that keeps the trace identifiers and compressed event
+		 * identifiers of all traces in a few primitive arrays. Traces of the
+		 * log are created on access. Traces need to be complete when they are
+		 * added, later changes need to be made on the traces returned by the
+		 * log.
+		 * 
+		 * @return an empty log
+		 */
+		public XLog createCompactLog() {
+			return createTableLog();
+		}
+
 	}
 
 	/**
@@ -264,8 +587,12 @@ public abstract class XFactoryExternalStore implements XFactory {
 		private final InMemoryStore attributeStore;
 
 		public InMemoryStoreImpl() {
+			this(new InMemoryStore.Builder());
+		}
+
+		public InMemoryStoreImpl(InMemoryStore.Builder storeBuilder) {
 			super();
-			attributeStore = new InMemoryStore();
+			attributeStore = storeBuilder.build();
 		}
 
 		@Override
@@ -283,6 +610,11 @@ public abstract class XFactoryExternalStore implements XFactory {
 			return new XTraceCompressedExternalImpl(getStore(), events);
 		}
 
+		@Override
+		XTrace openTrace(long externalId, Collection<XEvent> events) {
+			return new XTraceCompressedExternalImpl(externalId, null, getStore(), events);
+		}
+
 		@Override
 		public XEvent createEvent() {
 			return new XEventBareExternalImpl(getStore());
@@ -303,6 +635,33 @@ public abstract class XFactoryExternalStore implements XFactory {
 			return attributeStore;
 		}
 
+		/**
+		 * @return an empty log that stores its traces in few primitive arrays
+		 * @see MapDBDiskSequentialAccessImpl#createCompactLog()
+		 */
+		public XLog createCompactLog() {
+			return createTableLog();
+		}
+
+		/**
+		 * @param key
+		 * @return a cursor over the values of a discrete, continuous or
+		 *         timestamp attribute
+		 * @see InMemoryStore#openLongCursor(String)
+		 */
+		public LongColumnCursor openLongCursor(String key) {
+			return attributeStore.openLongCursor(key);
+		}
+
+		/**
+		 * @param key
+		 * @return a cursor over the values of a literal attribute
+		 * @see InMemoryStore#openIntCursor(String)
+		 */
+		public IntColumnCursor openIntCursor(String key) {
+			return attributeStore.openIntCursor(key);
+		}
+
 		@Override
 		public String getName() {
 			return "XESLite: In-Memory Store";
@@ -429,6 +788,19 @@ public abstract class XFactoryExternalStore implements XFactory {
 		return new XLogExternalImpl(getStore(), traces);
 	}
 
+	/**
+	 * Creates a log that stores its traces in a {@link XTraceTable} instead of
+	 * keeping one object per trace. Only for factories that do not keep
+	 * attributes in the event objects.
+	 * 
+	 * @return an empty log
+	 */
+	XLog createTableLog() {
+		XLogExternalImpl log = new XLogExternalImpl(getStore());
+		log.setTraces(new XTraceTable(getStore()));
+		return log;
+	}
+
 	XLog openLog(long externalId) {
 		return new XLogExternalImpl(externalId, null, getStore(), ImmutableList.<XTrace>of(), true);
 	}
@@ -628,6 +1000,14 @@ public abstract class XFactoryExternalStore implements XFactory {
 		getStore().commit();
 	}
 
+	/**
+	 * Commits all changes and turns the underlying store read-only, see
+	 * {@link ExternalStore#freeze()}.
+	 */
+	public void freeze() {
+		getStore().freeze();
+	}
+
 	public void dispose() {
 		getStore().dispose();
 	}
@@ -4,7 +4,9 @@ import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
 
@@ -20,14 +22,17 @@ import org.deckfour.xes.model.impl.XAttributeMapImpl;
 import org.xeslite.XLogMetadata;
 import org.xeslite.common.XUtils;
 
+import com.google.common.collect.ForwardingIterator;
 import com.google.common.collect.ForwardingList;
 import com.google.common.collect.ImmutableList;
 
-final class XLogExternalImpl extends ForwardingList<XTrace> implements XLog, XLogMetadata {
+final class XLogExternalImpl extends ForwardingList<XTrace> implements XLog, XLogMetadata, ExternalIdentifyable {
 
 	private final ExternalStore store;
+	private final long id;
 
-	private final List<XTrace> traces;
+	private List<XTrace> traces;
+	private int modCount = 0; // traces added, removed or replaced
 
 	private XAttributeMap attributes;
 
@@ -78,8 +83,12 @@ final class XLogExternalImpl extends ForwardingList<XTrace> implements XLog, XLo
 	XLogExternalImpl(long id, XAttributeMap attributeMap, ExternalStore attributeStore, Collection<XTrace> events,
 			boolean closeStoreOnFinalize) {
 		this.store = attributeStore;
+		this.id = id;
 		this.closeStoreOnFinalize = closeStoreOnFinalize;
 		this.traces = new ArrayList<>(events);
+		if (attributeStore instanceof ExternalStoreAbstract) {
+			((ExternalStoreAbstract) attributeStore).registerLog(this);
+		}
 		if (attributeMap != null) {
 			this.attributes = attributeMap;
 		} else {
@@ -192,6 +201,9 @@ final class XLogExternalImpl extends ForwardingList<XTrace> implements XLog, XLo
 		clone.globalEventAttributes = new ArrayList<>(globalEventAttributes);
 		clone.cachedClassifier = null;
 		clone.cachedInfo = null;
+		if (traces instanceof XTraceTable) {
+			clone.traces = new XTraceTable(store);
+		}
 		for (XTrace trace : this) {
 			clone.add((XTrace) trace.clone());
 		}
@@ -257,10 +269,157 @@ final class XLogExternalImpl extends ForwardingList<XTrace> implements XLog, XLo
 		return traces;
 	}
 
+	@Override
+	public boolean add(XTrace trace) {
+		modCount++;
+		return super.add(compress(trace));
+	}
+
+	@Override
+	public void add(int index, XTrace trace) {
+		modCount++;
+		super.add(index, compress(trace));
+	}
+
+	@Override
+	public boolean addAll(Collection<? extends XTrace> collection) {
+		for (XTrace trace : collection) {
+			compress(trace);
+		}
+		modCount++;
+		return super.addAll(collection);
+	}
+
+	@Override
+	public boolean addAll(int index, Collection<? extends XTrace> collection) {
+		for (XTrace trace : collection) {
+			compress(trace);
+		}
+		modCount++;
+		return super.addAll(index, collection);
+	}
+
+	@Override
+	public XTrace set(int index, XTrace trace) {
+		modCount++;
+		return super.set(index, compress(trace));
+	}
+
+	@Override
+	public XTrace remove(int index) {
+		modCount++;
+		return super.remove(index);
+	}
+
+	@Override
+	public boolean remove(Object object) {
+		modCount++;
+		return super.remove(object);
+	}
+
+	@Override
+	public boolean removeAll(Collection<?> collection) {
+		modCount++;
+		return super.removeAll(collection);
+	}
+
+	@Override
+	public boolean retainAll(Collection<?> collection) {
+		modCount++;
+		return super.retainAll(collection);
+	}
+
+	@Override
+	public void clear() {
+		modCount++;
+		super.clear();
+	}
+
+	@Override
+	public Iterator<XTrace> iterator() {
+		final Iterator<XTrace> iterator = super.iterator();
+		return new ForwardingIterator<XTrace>() {
+
+			protected Iterator<XTrace> delegate() {
+				return iterator;
+			}
+
+			@Override
+			public void remove() {
+				modCount++;
+				super.remove();
+			}
+		};
+	}
+
+	// modifications through list iterators and sub lists go through the methods above
+
+	@Override
+	public ListIterator<XTrace> listIterator() {
+		return standardListIterator();
+	}
+
+	@Override
+	public ListIterator<XTrace> listIterator(int index) {
+		return standardListIterator(index);
+	}
+
+	@Override
+	public List<XTrace> subList(int fromIndex, int toIndex) {
+		return standardSubList(fromIndex, toIndex);
+	}
+
+	/**
+	 * @return a counter that changes whenever traces are added, removed or
+	 *         replaced, changes of the events of a trace are not counted
+	 */
+	int getModCount() {
+		return modCount;
+	}
+
+	/**
+	 * Traces are usually complete when added to the log, so their write
+	 * buffer is compressed.
+	 */
+	private static XTrace compress(XTrace trace) {
+		if (trace instanceof XAbstractCompressedList) {
+			((XAbstractCompressedList<?>) trace).trimToSize();
+		}
+		return trace;
+	}
+
+	/**
+	 * Compresses the write buffers of all traces, called when the store is
+	 * frozen. Traces of a {@link XTraceTable} or of lazily loaded pages are
+	 * not kept as objects and are left alone.
+	 */
+	void compressTraces() {
+		if (traces instanceof ArrayList) {
+			for (XTrace trace : traces) {
+				compress(trace);
+			}
+		}
+	}
+
+	/**
+	 * Replaces the traces of this log without copying them, used for logs
+	 * that are loaded lazily or stored in a {@link XTraceTable}.
+	 * 
+	 * @param traces
+	 */
+	void setTraces(List<XTrace> traces) {
+		modCount++;
+		this.traces = traces;
+	}
+
 	public ExternalStore getStore() {
 		return store;
 	}
 
+	public long getExternalId() {
+		return id;
+	}
+
 	public Map<String, Class<?>> getAttributeTypes() {
 		if (store instanceof InMemoryStore) {
 			return ((InMemoryStore) store).getAttributeTypes();
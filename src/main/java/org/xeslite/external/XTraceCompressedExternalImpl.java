@@ -3,6 +3,7 @@ package org.xeslite.external;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
@@ -25,9 +26,54 @@ import com.google.common.collect.ImmutableList;
  * @author F. Mannhardt
  * 
  */
-final class XTraceCompressedExternalImpl extends XAbstractCompressedList<XEvent>
+class XTraceCompressedExternalImpl extends XAbstractCompressedList<XEvent>
 		implements XTrace, ExternalAttributable {
 
+	/**
+	 * Event returned when iterating over the trace, reads its attributes
+	 * through the {@link MapDBReadAhead} of the iterator.
+	 */
+	private static final class XEventReadAheadExternalImpl extends XEventBareExternalImpl {
+
+		private final MapDBReadAhead readAhead;
+
+		XEventReadAheadExternalImpl(long id, ExternalStore store, MapDBReadAhead readAhead) {
+			super(id, null, store);
+			this.readAhead = readAhead;
+		}
+
+		@Override
+		public XAttributeMap getAttributes() {
+			return readAhead.getAttributes(this);
+		}
+
+		@Override
+		public boolean hasAttributes() {
+			return !getAttributes().isEmpty();
+		}
+
+	}
+
+	/**
+	 * Reads the attributes of all events with a single range scan when the
+	 * attributes of the first event are requested.
+	 */
+	private final class ReadAheadIterator extends CompressedIterator {
+
+		private final MapDBReadAhead readAhead;
+
+		ReadAheadIterator(EventData eventData, MapDBReadAhead readAhead) {
+			super(eventData);
+			this.readAhead = readAhead;
+		}
+
+		@Override
+		protected XEvent newElement(int index, long id) {
+			return new XEventReadAheadExternalImpl(id, store, readAhead);
+		}
+
+	}
+
 	private final ExternalStore store;
 	private final long id;
 
@@ -59,6 +105,7 @@ final class XTraceCompressedExternalImpl extends XAbstractCompressedList<XEvent>
 			}
 		}
 		addAll(events);
+		trimToSize();
 	}
 
 	@Override
@@ -66,6 +113,17 @@ final class XTraceCompressedExternalImpl extends XAbstractCompressedList<XEvent>
 		return new XEventBareExternalImpl(id, null, store);
 	}
 	
+	@Override
+	protected Iterator<XEvent> newIterator(EventData eventData) {
+		if (store instanceof MapDBStore) {
+			MapDBReadAhead readAhead = ((MapDBStore) store).readAhead(eventData.ids, size());
+			if (readAhead != null) {
+				return new ReadAheadIterator(eventData, readAhead);
+			}
+		}
+		return super.newIterator(eventData);
+	}
+
 	@Override
 	protected XEvent convertElement(XEvent e) {
 		XEventBareExternalImpl newEvent;
@@ -94,6 +152,10 @@ final class XTraceCompressedExternalImpl extends XAbstractCompressedList<XEvent>
 		return id;
 	}
 
+	final ExternalStore getStore() {
+		return store;
+	}
+
 	@Override
 	public XAttributeMap getAttributes() {
 		return store.getAttributes(this);
@@ -0,0 +1,267 @@
+package org.xeslite.external;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+import org.deckfour.xes.model.XTrace;
+
+/**
+ * Columnar storage of the traces of a log. Instead of one trace object per
+ * trace, the table keeps the trace identifiers and the compressed event
+ * identifiers of all traces in primitive arrays. The compressed identifiers of
+ * all traces share a single arena.
+ * <p>
+ * Traces returned by {@link #get(int)} are transient views created on each
+ * access that read the compressed identifiers directly from the arena. The
+ * table does not keep track of its views. Instead, each row has a stamp that
+ * is renewed whenever the row is written. Changes to a view are collected in
+ * its write buffer and written back once, before the table is accessed again,
+ * as long as the stamp of its row is unchanged. A view whose row was replaced
+ * or removed, or which was created before the last write back of another view
+ * of its row, is detached from the table. Changed rows are appended to the
+ * arena, which is compacted once more than half of it is unused.
+ * Traces that are added to the table are converted to
+ * {@link XTraceCompressedExternalImpl} if needed.
+ *
+ * @author F. Mannhardt
+ *
+ */
+final class XTraceTable extends AbstractList<XTrace> implements RandomAccess {
+
+	private static final int MIN_COMPACTION_SIZE = 1 << 16;
+
+	/**
+	 * Trace that is a view on a row of the table.
+	 */
+	private static final class RowTrace extends XTraceCompressedExternalImpl {
+
+		private final XTraceTable table;
+		// last known row, the row may have moved since
+		private int row;
+		private long stamp;
+		private boolean isChanged;
+
+		RowTrace(XTraceTable table, int row) {
+			super(table.traceIds[row], null, table.store);
+			this.table = table;
+			this.row = row;
+			this.stamp = table.stamps[row];
+		}
+
+		@Override
+		protected void identifiersChanged() {
+			if (!isChanged) {
+				isChanged = true;
+				table.changedViews.add(this);
+			}
+		}
+
+	}
+
+	private final ExternalStore store;
+	// views with changes that are not yet written back
+	private final List<RowTrace> changedViews = new ArrayList<>();
+
+	private long[] traceIds = new long[10];
+	private long[] stamps = new long[10];
+	private int[] sizes = new int[10];
+	private int[] offsets = new int[10];
+	private int[] lengths = new int[10];
+	private int rowCount = 0;
+	private long lastStamp = 0;
+
+	private byte[] arena = new byte[256];
+	private int arenaLength = 0;
+	private int unusedLength = 0;
+
+	XTraceTable(ExternalStore store) {
+		super();
+		this.store = store;
+	}
+
+	public XTrace get(int index) {
+		checkIndex(index, rowCount);
+		writeBackViews();
+		int size = sizes[index];
+		RowTrace trace = new RowTrace(this, index);
+		if (size > 0) {
+			ByteBuffer row = ByteBuffer.wrap(arena, offsets[index], lengths[index]);
+			int[] chunkOffsets = null;
+			if (size > XAbstractCompressedList.CHUNK_SIZE) {
+				int chunkCount = (size + XAbstractCompressedList.CHUNK_SIZE - 1) / XAbstractCompressedList.CHUNK_SIZE;
+				chunkOffsets = new int[chunkCount + 1];
+				for (int i = 0; i < chunkCount; i++) {
+					chunkOffsets[i + 1] = chunkOffsets[i] + (int) XAbstractCompressedList.getVarLong(row);
+				}
+			}
+			// rows in the arena are never modified, a compaction creates a new arena
+			trace.setCompressedData(arena, row.position(), offsets[index] + lengths[index] - row.position(),
+					chunkOffsets, size);
+		}
+		return trace;
+	}
+
+	public XTrace set(int index, XTrace element) {
+		checkIndex(index, rowCount);
+		XTrace oldTrace = get(index);
+		XTraceCompressedExternalImpl trace = convert(element);
+		boolean isSameRow = trace instanceof RowTrace && findRow((RowTrace) trace) == index;
+		writeRow(index, trace);
+		if (isSameRow) {
+			// the view stays attached, all other views of the row are detached
+			((RowTrace) trace).stamp = stamps[index];
+		}
+		return oldTrace;
+	}
+
+	public void add(int index, XTrace element) {
+		checkIndex(index, rowCount + 1);
+		writeBackViews();
+		XTraceCompressedExternalImpl trace = convert(element);
+		if (rowCount == traceIds.length) {
+			int newCapacity = traceIds.length * 2;
+			traceIds = Arrays.copyOf(traceIds, newCapacity);
+			stamps = Arrays.copyOf(stamps, newCapacity);
+			sizes = Arrays.copyOf(sizes, newCapacity);
+			offsets = Arrays.copyOf(offsets, newCapacity);
+			lengths = Arrays.copyOf(lengths, newCapacity);
+		}
+		shiftRows(index, index + 1, rowCount - index);
+		rowCount++;
+		lengths[index] = 0;
+		writeRow(index, trace);
+		modCount++;
+	}
+
+	public XTrace remove(int index) {
+		checkIndex(index, rowCount);
+		XTrace oldTrace = get(index);
+		unusedLength += lengths[index];
+		shiftRows(index + 1, index, rowCount - index - 1);
+		rowCount--;
+		modCount++;
+		return oldTrace;
+	}
+
+	public int size() {
+		return rowCount;
+	}
+
+	private XTraceCompressedExternalImpl convert(XTrace trace) {
+		if (trace instanceof XTraceCompressedExternalImpl && ((XTraceCompressedExternalImpl) trace).getStore() == store) {
+			return (XTraceCompressedExternalImpl) trace;
+		}
+		XTraceCompressedExternalImpl newTrace = new XTraceCompressedExternalImpl(trace.getAttributes(), store);
+		newTrace.addAll(trace);
+		return newTrace;
+	}
+
+	/**
+	 * Writes the changes of all views back to their rows, views that are
+	 * detached from the table keep their changes to themselves.
+	 */
+	private void writeBackViews() {
+		if (changedViews.isEmpty()) {
+			return;
+		}
+		for (RowTrace view : changedViews) {
+			view.isChanged = false;
+			int row = findRow(view);
+			if (row != -1) {
+				writeRow(row, view);
+				view.row = row;
+				view.stamp = stamps[row];
+			}
+		}
+		changedViews.clear();
+	}
+
+	/**
+	 * @return the current row of the view or -1 if it is detached
+	 */
+	private int findRow(RowTrace view) {
+		if (view.table != this) {
+			return -1;
+		}
+		if (view.row < rowCount && stamps[view.row] == view.stamp) {
+			return view.row;
+		}
+		// rows were inserted or removed since
+		for (int i = 0; i < rowCount; i++) {
+			if (stamps[i] == view.stamp) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void writeRow(int row, XTraceCompressedExternalImpl trace) {
+		byte[] compressedData = trace.getCompressedData();
+		int dataOffset = trace.getCompressedDataOffset();
+		int dataLength = trace.getCompressedDataLength();
+		int[] chunkOffsets = trace.getChunkOffsets();
+		ByteBuffer header = ByteBuffer.allocate(chunkOffsets != null ? chunkOffsets.length * 5 : 0);
+		if (chunkOffsets != null) {
+			// chunk lengths are smaller than the offsets
+			for (int i = 1; i < chunkOffsets.length; i++) {
+				XAbstractCompressedList.putVarLong(header, chunkOffsets[i] - chunkOffsets[i - 1]);
+			}
+		}
+		int rowLength = header.position() + dataLength;
+
+		unusedLength += lengths[row];
+		ensureArenaCapacity(arenaLength + rowLength);
+		System.arraycopy(header.array(), 0, arena, arenaLength, header.position());
+		if (compressedData != null) {
+			System.arraycopy(compressedData, dataOffset, arena, arenaLength + header.position(), dataLength);
+		}
+		traceIds[row] = trace.getExternalId();
+		stamps[row] = ++lastStamp;
+		sizes[row] = trace.size();
+		offsets[row] = arenaLength;
+		lengths[row] = rowLength;
+		arenaLength += rowLength;
+
+		if (unusedLength > MIN_COMPACTION_SIZE && unusedLength > arenaLength / 2) {
+			compact();
+		}
+	}
+
+	private void ensureArenaCapacity(int requiredCapacity) {
+		if (requiredCapacity > arena.length) {
+			arena = Arrays.copyOf(arena, Math.max(requiredCapacity, arena.length * 2));
+		}
+	}
+
+	private void compact() {
+		byte[] newArena = new byte[Math.max(256, arenaLength - unusedLength)];
+		int newLength = 0;
+		for (int i = 0; i < rowCount; i++) {
+			System.arraycopy(arena, offsets[i], newArena, newLength, lengths[i]);
+			offsets[i] = newLength;
+			newLength += lengths[i];
+		}
+		arena = newArena;
+		arenaLength = newLength;
+		unusedLength = 0;
+	}
+
+	private void shiftRows(int from, int to, int length) {
+		System.arraycopy(traceIds, from, traceIds, to, length);
+		System.arraycopy(stamps, from, stamps, to, length);
+		System.arraycopy(sizes, from, sizes, to, length);
+		System.arraycopy(offsets, from, offsets, to, length);
+		System.arraycopy(lengths, from, lengths, to, length);
+	}
+
+	private static void checkIndex(int index, int size) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+	}
+
+}
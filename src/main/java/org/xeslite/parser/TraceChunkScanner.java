@@ -0,0 +1,248 @@
+package org.xeslite.parser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Splits a XES document at the boundaries of its top-level
+ * <code>&lt;trace&gt;</code> elements without parsing it. The document is
+ * returned in three parts: the header before the first trace, chunks of
+ * complete trace elements and the tail after the last trace.
+ * <p>
+ * The scanner works on the raw bytes and, thus, only supports encodings that
+ * are compatible with ASCII, e.g., UTF-8 or ISO-8859-1. Comments and CDATA
+ * sections are skipped.
+ *
+ * @author F. Mannhardt
+ *
+ */
+final class TraceChunkScanner {
+
+	private static final byte[] TRACE_START = "<trace".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] TRACE_END = "</trace".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] COMMENT_START = "<!--".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] COMMENT_END = "-->".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] CDATA_START = "<![CDATA[".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] CDATA_END = "]]>".getBytes(StandardCharsets.US_ASCII);
+
+	private static final class Output extends ByteArrayOutputStream {
+
+		Output(int size) {
+			super(size);
+		}
+
+		byte[] copy(int from, int to) {
+			return Arrays.copyOfRange(buf, from, to);
+		}
+
+	}
+
+	private final InputStream is;
+	private final int chunkSize;
+
+	private final byte[] buffer = new byte[1 << 16];
+	private int position = 0;
+	private int limit = 0;
+
+	private Output out;
+	private int completeLength = 0;
+	private boolean isEOF = false;
+
+	/**
+	 * @param is
+	 *            the (decompressed) XES document
+	 * @param chunkSize
+	 *            number of bytes after which a chunk is completed with the
+	 *            next trace
+	 */
+	TraceChunkScanner(InputStream is, int chunkSize) {
+		super();
+		this.is = is;
+		this.chunkSize = chunkSize;
+		this.out = new Output(chunkSize + 1024);
+	}
+
+	/**
+	 * Needs to be called first.
+	 *
+	 * @return the bytes before the first trace or the whole document if there
+	 *         is no trace
+	 * @throws IOException
+	 */
+	byte[] readHeader() throws IOException {
+		while (ensure(1)) {
+			if (buffer[position] == '<') {
+				if (matches(TRACE_START) && isNameEnd(TRACE_START.length)) {
+					byte[] header = out.toByteArray();
+					out.reset();
+					return header;
+				}
+				copyMarkup();
+			} else {
+				out.write(buffer[position++]);
+			}
+		}
+		isEOF = true;
+		byte[] header = out.toByteArray();
+		out.reset();
+		return header;
+	}
+
+	/**
+	 * @return the next chunk of complete trace elements or NULL if there are
+	 *         no more traces
+	 * @throws IOException
+	 */
+	byte[] nextChunk() throws IOException {
+		if (isEOF) {
+			return null;
+		}
+		while (ensure(1)) {
+			if (buffer[position] == '<') {
+				if (matches(TRACE_START) && isNameEnd(TRACE_START.length)) {
+					if (copyTag()) {
+						// empty trace
+						if (traceCompleted()) {
+							return emitChunk();
+						}
+					}
+				} else if (matches(TRACE_END) && isNameEnd(TRACE_END.length)) {
+					copyTag();
+					if (traceCompleted()) {
+						return emitChunk();
+					}
+				} else {
+					copyMarkup();
+				}
+			} else {
+				out.write(buffer[position++]);
+			}
+		}
+		isEOF = true;
+		if (completeLength > 0) {
+			return emitChunk();
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * @return whether the whole document has been read
+	 */
+	boolean isEOF() {
+		return isEOF;
+	}
+
+	/**
+	 * Only available after {@link #nextChunk()} returned NULL.
+	 *
+	 * @return the bytes after the last trace
+	 */
+	byte[] getTail() {
+		return out.toByteArray();
+	}
+
+	private boolean traceCompleted() {
+		completeLength = out.size();
+		return completeLength >= chunkSize;
+	}
+
+	private byte[] emitChunk() {
+		byte[] chunk = out.copy(0, completeLength);
+		byte[] rest = out.copy(completeLength, out.size());
+		out.reset();
+		out.write(rest, 0, rest.length);
+		completeLength = 0;
+		return chunk;
+	}
+
+	private void copyMarkup() throws IOException {
+		if (matches(COMMENT_START)) {
+			copyUntil(COMMENT_END);
+		} else if (matches(CDATA_START)) {
+			copyUntil(CDATA_END);
+		} else {
+			out.write(buffer[position++]);
+		}
+	}
+
+	/**
+	 * Copies a tag up to its closing bracket while skipping quoted attribute
+	 * values.
+	 *
+	 * @return whether the tag is an empty-element tag
+	 * @throws IOException
+	 */
+	private boolean copyTag() throws IOException {
+		byte quote = 0;
+		byte last = 0;
+		while (ensure(1)) {
+			byte b = buffer[position++];
+			out.write(b);
+			if (quote != 0) {
+				if (b == quote) {
+					quote = 0;
+				}
+			} else if (b == '"' || b == '\'') {
+				quote = b;
+			} else if (b == '>') {
+				return last == '/';
+			}
+			last = b;
+		}
+		throw new IOException("Unexpected end of the document in a trace tag!");
+	}
+
+	private void copyUntil(byte[] end) throws IOException {
+		while (ensure(end.length)) {
+			if (matches(end)) {
+				out.write(buffer, position, end.length);
+				position += end.length;
+				return;
+			}
+			out.write(buffer[position++]);
+		}
+		throw new IOException("Unexpected end of the document in a comment or CDATA section!");
+	}
+
+	private boolean matches(byte[] pattern) throws IOException {
+		if (!ensure(pattern.length)) {
+			return false;
+		}
+		for (int i = 0; i < pattern.length; i++) {
+			if (buffer[position + i] != pattern[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean isNameEnd(int offset) throws IOException {
+		if (!ensure(offset + 1)) {
+			return false;
+		}
+		byte b = buffer[position + offset];
+		return b == '>' || b == '/' || b == ' ' || b == '\t' || b == '\r' || b == '\n';
+	}
+
+	private boolean ensure(int length) throws IOException {
+		if (limit - position >= length) {
+			return true;
+		}
+		System.arraycopy(buffer, position, buffer, 0, limit - position);
+		limit -= position;
+		position = 0;
+		while (limit < length) {
+			int read = is.read(buffer, limit, buffer.length - limit);
+			if (read == -1) {
+				return false;
+			}
+			limit += read;
+		}
+		return true;
+	}
+
+}
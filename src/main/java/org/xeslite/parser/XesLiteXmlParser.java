@@ -1,17 +1,29 @@
 package org.xeslite.parser;
 
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Deque;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
 
 import org.deckfour.xes.classification.XEventAttributeClassifier;
@@ -36,14 +48,20 @@ import org.deckfour.xes.model.XEvent;
 import org.deckfour.xes.model.XLog;
 import org.deckfour.xes.model.XTrace;
 import org.deckfour.xes.model.XVisitor;
+import org.deckfour.xes.model.impl.XAttributeMapImpl;
+import org.deckfour.xes.model.impl.XEventImpl;
+import org.deckfour.xes.model.impl.XLogImpl;
+import org.deckfour.xes.model.impl.XTraceImpl;
 import org.deckfour.xes.util.XTokenHelper;
 import org.xeslite.external.XFactoryExternalStore;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * Alternative {@link XesXmlParser} that can optionally handle the batch import
- * mode of the {@link XFactoryExternalStore}.
+ * mode of the {@link XFactoryExternalStore} and parse the traces of a log in
+ * parallel.
  * 
  * @author F. Mannhardt
  *
@@ -93,16 +111,87 @@ public class XesLiteXmlParser extends XesXmlParser {
 		}
 	};
 
+	/**
+	 * Default number of bytes of trace elements that are parsed together in
+	 * parallel mode.
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+	private static final byte[] CHUNK_START = "<chunk>".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] CHUNK_END = "</chunk>".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] CHUNK_LOG_END = "</log>".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] CHUNK_LOG_END_TAG = "</log".getBytes(StandardCharsets.US_ASCII);
+
+	// shared by all parsed events that are only placeholders until the consuming thread creates them
+	private static final XID PARSED_EVENT_ID = new XID();
+
+	/**
+	 * Traces of a chunk together with the log-level content that was found
+	 * between them.
+	 */
+	private static final class ParsedChunk {
+
+		private final List<XTrace> traces = new ArrayList<>();
+		// detached from the parsed log, merged by the consuming thread
+		private final XLog logContent = new XLogImpl(new XAttributeMapImpl());
+		private final List<String[]> classifiers = new ArrayList<>();
+
+	}
+
 	private final boolean isLenient;
+	private final int parallelism;
+	private final int chunkSize;
 	private XFactoryExternalStore pumpFactory;
+	// traces and events of chunks are created by the consuming thread
+	private boolean isCreatingInOrder;
 
 	public XesLiteXmlParser(boolean isLenient) {
 		this(XFactoryRegistry.instance().currentDefault(), isLenient);
 	}
 
 	public XesLiteXmlParser(XFactory factory, boolean isLenient) {
+		this(factory, isLenient, 1);
+	}
+
+	/**
+	 * Creates a parser that parses the traces of the log with the specified
+	 * number of threads. One thread scans the document for the boundaries of
+	 * the traces, the worker threads parse chunks of traces independently and
+	 * the traces are added to the log in the order of the document. The
+	 * factory needs to support the concurrent creation of attributes, which is
+	 * the case for the factories of XESLite. Traces and events of a
+	 * {@link XFactoryExternalStore} are created by the consuming thread in the
+	 * order of the document, so that their identifiers are the same as when
+	 * parsing sequentially. The batch import mode of the
+	 * {@link XFactoryExternalStore} is supported as well, the traces are
+	 * pumped in the order of the document.
+	 * <p>
+	 * The parallel mode only supports documents in an encoding that is
+	 * compatible with ASCII, e.g., UTF-8.
+	 * 
+	 * @param factory
+	 * @param isLenient
+	 * @param parallelism
+	 *            number of worker threads, 1 parses sequentially
+	 */
+	public XesLiteXmlParser(XFactory factory, boolean isLenient, int parallelism) {
+		this(factory, isLenient, parallelism, DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * @param factory
+	 * @param isLenient
+	 * @param parallelism
+	 *            number of worker threads, 1 parses sequentially
+	 * @param chunkSize
+	 *            number of bytes of trace elements that are parsed together
+	 * @see #XesLiteXmlParser(XFactory, boolean, int)
+	 */
+	public XesLiteXmlParser(XFactory factory, boolean isLenient, int parallelism, int chunkSize) {
 		super(factory);
 		this.isLenient = isLenient;
+		this.parallelism = parallelism;
+		this.chunkSize = chunkSize;
 	}
 
 	@Override
@@ -178,16 +267,199 @@ public class XesLiteXmlParser extends XesXmlParser {
 			factory = pumpFactory.createPumpTransferFactory();
 		}
 
+		final List<String[]> classifiers = new ArrayList<>();
+		XLog currentLog;
+		if (parallelism > 1) {
+			currentLog = parseParallel(is, classifiers);
+		} else {
+			final XMLInputFactory xmlFactory = XMLInputFactory.newInstance();
+			currentLog = parseElements(xmlFactory.createXMLStreamReader(is), null, classifiers, null);
+		}
+
+		if (currentLog != null) {
+			fixClassifiers(currentLog, classifiers);
+			if (pumpFactory != null) {
+				currentLog = pumpFactory.pumpLog(currentLog);
+			}
+		}
+
+		return ImmutableList.of(currentLog);
+	}
+
+	private XLog parseParallel(InputStream is, List<String[]> classifiers) throws Exception {
+
 		final XMLInputFactory xmlFactory = XMLInputFactory.newInstance();
-		XMLStreamReader reader = xmlFactory.createXMLStreamReader(is);
+		final TraceChunkScanner scanner = new TraceChunkScanner(is, chunkSize);
+
+		// log attributes, extensions, globals and classifiers
+		byte[] header = scanner.readHeader();
+		InputStream headerStream = new ByteArrayInputStream(header);
+		if (!scanner.isEOF()) {
+			// the log element is closed after the traces
+			headerStream = new SequenceInputStream(headerStream, new ByteArrayInputStream(CHUNK_LOG_END));
+		}
+		XMLStreamReader headerReader = xmlFactory.createXMLStreamReader(headerStream);
+		final XLog currentLog = parseElements(headerReader, null, classifiers, null);
+		if (currentLog == null) {
+			return null;
+		}
+		String encoding = headerReader.getCharacterEncodingScheme();
+		if (encoding == null) {
+			encoding = headerReader.getEncoding();
+		}
+		final String chunkEncoding = encoding != null ? encoding : StandardCharsets.UTF_8.name();
+
+		// identifiers are assigned by the factory, pumped traces are created in order anyway
+		isCreatingInOrder = pumpFactory == null && factory instanceof XFactoryExternalStore;
+
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism,
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("xeslite-parser-%d").build());
+		try {
+			Deque<Future<ParsedChunk>> pendingChunks = new ArrayDeque<>();
+			byte[] chunk;
+			while ((chunk = scanner.nextChunk()) != null) {
+				final byte[] chunkData = chunk;
+				pendingChunks.add(executor.submit(new Callable<ParsedChunk>() {
+
+					public ParsedChunk call() throws Exception {
+						ParsedChunk parsedChunk = new ParsedChunk();
+						XMLStreamReader chunkReader = createChunkReader(xmlFactory, chunkData, chunkEncoding);
+						parseElements(chunkReader, parsedChunk.logContent, parsedChunk.classifiers,
+								parsedChunk.traces);
+						return parsedChunk;
+					}
+				}));
+				if (pendingChunks.size() > parallelism * 2) {
+					addChunk(currentLog, classifiers, getChunk(pendingChunks.poll()));
+				}
+			}
+			while (!pendingChunks.isEmpty()) {
+				addChunk(currentLog, classifiers, getChunk(pendingChunks.poll()));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		// anything that comes after the last trace, except for the end of the log
+		byte[] tail = scanner.getTail();
+		int logEnd = lastIndexOf(tail, CHUNK_LOG_END_TAG);
+		if (logEnd != -1) {
+			tail = Arrays.copyOf(tail, logEnd);
+		}
+		List<XTrace> traces = new ArrayList<>();
+		parseElements(createChunkReader(xmlFactory, tail, chunkEncoding), currentLog, classifiers, traces);
+		addTraces(currentLog, traces);
+
+		return currentLog;
+	}
+
+	private static XMLStreamReader createChunkReader(XMLInputFactory xmlFactory, byte[] chunk, String encoding)
+			throws XMLStreamException {
+		InputStream chunkStream = new SequenceInputStream(Collections.enumeration(
+				Arrays.asList(new ByteArrayInputStream(CHUNK_START), new ByteArrayInputStream(chunk),
+						new ByteArrayInputStream(CHUNK_END))));
+		return xmlFactory.createXMLStreamReader(chunkStream, encoding);
+	}
+
+	private static ParsedChunk getChunk(Future<ParsedChunk> future) throws Exception {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			} else {
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Adds the log-level content that was found between the traces of a chunk
+	 * and the traces to the log. Only called by the thread that consumes the
+	 * chunks in the order of the document.
+	 */
+	private void addChunk(XLog currentLog, List<String[]> classifiers, ParsedChunk chunk) {
+		XLog logContent = chunk.logContent;
+		for (XAttribute attribute : logContent.getAttributes().values()) {
+			addAttribute(attribute, currentLog);
+		}
+		currentLog.getExtensions().addAll(logContent.getExtensions());
+		currentLog.getGlobalTraceAttributes().addAll(logContent.getGlobalTraceAttributes());
+		currentLog.getGlobalEventAttributes().addAll(logContent.getGlobalEventAttributes());
+		classifiers.addAll(chunk.classifiers);
+		addTraces(currentLog, chunk.traces);
+	}
+
+	private void addTraces(XLog currentLog, List<XTrace> traces) {
+		for (XTrace trace : traces) {
+			if (pumpFactory != null) {
+				// identifiers are assigned in the order of the document
+				for (ListIterator<XEvent> iterator = trace.listIterator(); iterator.hasNext();) {
+					iterator.set(pumpFactory.pumpEvent(iterator.next()));
+				}
+				trace = pumpFactory.pumpTrace(trace);
+			} else if (isCreatingInOrder) {
+				trace = createInOrder(trace);
+			}
+			currentLog.add(trace);
+		}
+	}
+
+	/**
+	 * Creates the trace and its events from the placeholders created by
+	 * {@link #parseElements(XMLStreamReader, XLog, List, List)}, in the same
+	 * order as when parsing sequentially.
+	 */
+	private XTrace createInOrder(XTrace parsedTrace) {
+		XTrace trace = factory.createTrace(parsedTrace.getAttributes());
+		for (XEvent parsedEvent : parsedTrace) {
+			trace.add(factory.createEvent(parsedEvent.getAttributes()));
+		}
+		return trace;
+	}
+
+	private static int lastIndexOf(byte[] data, byte[] pattern) {
+		outer: for (int i = data.length - pattern.length; i >= 0; i--) {
+			for (int j = 0; j < pattern.length; j++) {
+				if (data[i + j] != pattern[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Parses the elements read by the reader.
+	 * 
+	 * @param reader
+	 * @param currentLog
+	 *            the log to which top-level attributes are added or NULL if the
+	 *            reader starts with the log element
+	 * @param classifiers
+	 *            the classifiers that were found
+	 * @param parsedTraces
+	 *            if not NULL, traces are added to this list instead of the log
+	 *            and events are not pumped, the traces and events are only
+	 *            placeholders if they are created in order
+	 * @return the log
+	 * @throws Exception
+	 */
+	private XLog parseElements(XMLStreamReader reader, XLog currentLog, List<String[]> classifiers,
+			List<XTrace> parsedTraces) throws Exception {
 
-		XLog currentLog = null;
 		XTrace currentTrace = null;
 
 		final Deque<XAttributable> attributableStack = new ArrayDeque<>();
 		final Deque<XAttribute> attributeStack = new ArrayDeque<>();
 
-		final List<String[]> classifiers = new ArrayList<>();
+		if (currentLog != null) {
+			attributableStack.push(currentLog);
+		}
 
 		String currentName = null;
 		ParseState state = ParseState.NONE;
@@ -271,10 +543,18 @@ public class XesLiteXmlParser extends XesXmlParser {
 					}
 					break;
 				case "event":
-					attributableStack.push(createEvent());
+					if (parsedTraces != null && isCreatingInOrder) {
+						attributableStack.push(new XEventImpl(PARSED_EVENT_ID, new XAttributeMapImpl()));
+					} else {
+						attributableStack.push(createEvent());
+					}
 					break;
 				case "trace":
-					currentTrace = createTrace();
+					if (parsedTraces != null && isCreatingInOrder) {
+						currentTrace = new XTraceImpl(new XAttributeMapImpl());
+					} else {
+						currentTrace = createTrace();
+					}
 					attributableStack.push(currentTrace);
 					break;
 				case "log":
@@ -374,7 +654,7 @@ public class XesLiteXmlParser extends XesXmlParser {
 				case "event":
 					XEvent event = (XEvent) attributableStack.pop();
 
-					if (pumpFactory != null) {
+					if (pumpFactory != null && parsedTraces == null) {
 						event = pumpFactory.pumpEvent(event);
 					}
 
@@ -383,11 +663,14 @@ public class XesLiteXmlParser extends XesXmlParser {
 				case "trace":
 					XTrace trace = (XTrace) attributableStack.pop();
 
-					if (pumpFactory != null) {
-						trace = pumpFactory.pumpTrace(trace);
+					if (parsedTraces != null) {
+						parsedTraces.add(trace);
+					} else {
+						if (pumpFactory != null) {
+							trace = pumpFactory.pumpTrace(trace);
+						}
+						currentLog.add(trace);
 					}
-
-					currentLog.add(trace);
 					break;
 				case "global":
 					state = ParseState.NONE;
@@ -395,11 +678,6 @@ public class XesLiteXmlParser extends XesXmlParser {
 				case "log":
 					final XLog log = (XLog) attributableStack.pop();
 					assert log == currentLog : "Wrong log!";
-					fixClassifiers(currentLog, classifiers);
-
-					if (pumpFactory != null) {
-						currentLog = pumpFactory.pumpLog(currentLog);
-					}
 					break;
 				}
 				break;
@@ -409,7 +687,7 @@ public class XesLiteXmlParser extends XesXmlParser {
 			}
 		}
 
-		return ImmutableList.of(currentLog);
+		return currentLog;
 	}
 
 	private final void fixClassifiers(XLog currentLog, List<String[]> classifiers) {
@@ -1,16 +1,22 @@
 package org.xeslite;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 
+import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
 import java.lang.management.MemoryUsage;
+import java.nio.charset.StandardCharsets;
 import java.text.NumberFormat;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
+import java.util.TreeMap;
 
 import org.deckfour.xes.extension.std.XConceptExtension;
 import org.deckfour.xes.extension.std.XLifecycleExtension;
@@ -36,6 +42,8 @@ import org.deckfour.xes.model.impl.XAttributeLiteralImpl;
 import org.deckfour.xes.model.impl.XAttributeTimestampImpl;
 import org.junit.Before;
 
+import com.google.common.xml.XmlEscapers;
+
 public abstract class XesLiteBaseTestAbstract {
 
 	protected static final int TEST_SIZE = 1000;
@@ -293,6 +301,80 @@ public abstract class XesLiteBaseTestAbstract {
 		return testLog;
 	}
 
+	/**
+	 * Writes the log as XES document with flat attributes.
+	 */
+	protected static byte[] serializeLog(XLog log) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n");
+		sb.append("<log xes.version=\"1.0\" xmlns=\"http://www.xes-standard.org/\">\n");
+		sb.append("<!-- <trace> in a comment -->\n");
+		sb.append("<classifier name=\"Activity\" keys=\"concept:name\"/>\n");
+		serializeAttributes(sb, log);
+		for (XTrace trace : log) {
+			if (trace.isEmpty() && trace.getAttributes().isEmpty()) {
+				sb.append("<trace/>\n");
+				continue;
+			}
+			sb.append("<trace>\n");
+			serializeAttributes(sb, trace);
+			for (XEvent event : trace) {
+				sb.append("<event>\n");
+				serializeAttributes(sb, event);
+				sb.append("</event>\n");
+			}
+			sb.append("</trace>\n");
+		}
+		sb.append("</log>\n");
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static void serializeAttributes(StringBuilder sb, XAttributable attributable) {
+		for (XAttribute a : attributable.getAttributes().values()) {
+			String type;
+			String value;
+			if (a instanceof XAttributeTimestamp) {
+				type = "date";
+				value = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX").format(((XAttributeTimestamp) a).getValue());
+			} else if (a instanceof XAttributeDiscrete) {
+				type = "int";
+				value = a.toString();
+			} else if (a instanceof XAttributeContinuous) {
+				type = "float";
+				value = a.toString();
+			} else if (a instanceof XAttributeBoolean) {
+				type = "boolean";
+				value = a.toString();
+			} else {
+				type = "string";
+				value = a.toString();
+			}
+			sb.append('<').append(type).append(" key=\"").append(XmlEscapers.xmlAttributeEscaper().escape(a.getKey()))
+					.append("\" value=\"").append(XmlEscapers.xmlAttributeEscaper().escape(value)).append("\"/>\n");
+		}
+	}
+
+	protected static void assertSameTraces(XLog expectedLog, XLog log) {
+		assertEquals(expectedLog.size(), log.size());
+		for (int i = 0; i < log.size(); i++) {
+			XTrace expectedTrace = expectedLog.get(i);
+			XTrace trace = log.get(i);
+			assertEquals(describe(expectedTrace), describe(trace));
+			assertEquals(expectedTrace.size(), trace.size());
+			for (int j = 0; j < trace.size(); j++) {
+				assertEquals(describe(expectedTrace.get(j)), describe(trace.get(j)));
+			}
+		}
+	}
+
+	protected static String describe(XAttributable attributable) {
+		Map<String, String> attributes = new TreeMap<>();
+		for (XAttribute a : attributable.getAttributes().values()) {
+			attributes.put(a.getKey(), a.toString());
+		}
+		return attributes.toString();
+	}
+
 	protected MemoryUsage getMemoryUsage() {
 		MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
 		return memoryMXBean.getHeapMemoryUsage();
@@ -1,12 +1,41 @@
 package org.xeslite;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.deckfour.xes.extension.std.XConceptExtension;
+import org.deckfour.xes.extension.std.XTimeExtension;
+import org.deckfour.xes.factory.XFactoryNaiveImpl;
 import org.deckfour.xes.factory.XFactoryRegistry;
+import org.deckfour.xes.model.XAttributable;
+import org.deckfour.xes.model.XAttribute;
+import org.deckfour.xes.model.XEvent;
 import org.deckfour.xes.model.XLog;
+import org.deckfour.xes.model.XTrace;
 import org.junit.Test;
+import org.xeslite.common.XESLiteException;
+import org.xeslite.external.ExternalAttributable;
+import org.xeslite.external.InMemoryStore;
+import org.xeslite.external.IntColumnCursor;
+import org.xeslite.external.LongColumnCursor;
 import org.xeslite.external.XFactoryExternalStore;
 import org.xeslite.external.XFactoryExternalStore.InMemoryStoreImpl;
+import org.xeslite.parser.XesLiteXmlParser;
 
 public class XesLiteInMemoryStoreTest extends XesLiteBaseTestAbstract {
 	
@@ -23,6 +52,20 @@ public class XesLiteInMemoryStoreTest extends XesLiteBaseTestAbstract {
 		changeAttributes(log);
 	}
 
+	@Test
+	public void testCreateReadRandomLogInMemoryStoreOffHeap() {
+		InMemoryStoreImpl factory = new XFactoryExternalStore.InMemoryStoreImpl(
+				new InMemoryStore.Builder().withOffHeapStorage());
+		XFactoryRegistry.instance().setCurrentDefault(factory);
+		XLog log = createRandomLog(factory, TEST_SIZE);
+		assertEquals(TEST_SIZE, log.size());
+		factory.commit();
+		readSequentially(log);
+		readSequentiallyCommon(log);
+		readRandom(log);
+		changeAttributes(log);
+	}
+
 	@Test
 	public void testCreateReadRandomLogInMemoryStoreForAlignment() {
 		XFactoryExternalStore factory = new XFactoryExternalStore.InMemoryStoreAlignmentAwareImpl();
@@ -36,5 +79,196 @@ public class XesLiteInMemoryStoreTest extends XesLiteBaseTestAbstract {
 		changeAttributes(log);
 	}
 
+	@Test
+	public void testSaveAndLoadSnapshotInMemoryStore() throws IOException {
+		File snapshotFile = File.createTempFile("xeslite-snapshot", ".bin");
+		snapshotFile.delete();
+		try {
+			InMemoryStoreImpl factory = new XFactoryExternalStore.InMemoryStoreImpl(
+					new InMemoryStore.Builder().withSnapshot(snapshotFile));
+			XLog log = createRandomLog(factory, TEST_SIZE);
+			factory.commit();
+			factory.saveLogStructure(log);
+			factory.dispose();
+
+			InMemoryStoreImpl loadingFactory = new XFactoryExternalStore.InMemoryStoreImpl(
+					new InMemoryStore.Builder().withSnapshot(snapshotFile));
+			XLog loadedLog = loadingFactory.loadLogStructure();
+			assertEquals(log.size(), loadedLog.size());
+			for (int i = 0; i < log.size(); i++) {
+				XTrace trace = log.get(i);
+				XTrace loadedTrace = loadedLog.get(i);
+				assertAttributesEqual(trace, loadedTrace);
+				assertEquals(trace.size(), loadedTrace.size());
+				Iterator<XEvent> loadedEvents = loadedTrace.iterator();
+				for (XEvent event : trace) {
+					assertAttributesEqual(event, loadedEvents.next());
+				}
+			}
+			readSequentially(loadedLog);
+			changeAttributes(loadedLog);
+			loadingFactory.dispose();
+		} finally {
+			snapshotFile.delete();
+		}
+	}
+
+	@Test
+	public void testConcurrentPumpInMemoryStore() throws Exception {
+		final XLog sourceLog = createRandomLog(new XFactoryNaiveImpl(), TEST_SIZE * 2); // each thread flushes at least once
+		final InMemoryStoreImpl factory = new XFactoryExternalStore.InMemoryStoreImpl();
+		final XTrace[] traces = new XTrace[sourceLog.size()];
+		final int threads = 4;
+		factory.startPump();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<?>> futures = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			final int partition = t;
+			futures.add(executor.submit(new Runnable() {
+
+				public void run() {
+					XFactoryNaiveImpl naiveFactory = new XFactoryNaiveImpl();
+					for (int i = partition; i < traces.length; i += threads) {
+						XTrace sourceTrace = sourceLog.get(i);
+						XTrace pumpTrace = naiveFactory.createTrace(sourceTrace.getAttributes());
+						for (XEvent event : sourceTrace) {
+							pumpTrace.add(factory.pumpEvent(event));
+						}
+						traces[i] = factory.pumpTrace(pumpTrace);
+					}
+				}
+			}));
+		}
+		for (Future<?> future : futures) {
+			future.get();
+		}
+		executor.shutdown();
+		factory.finishPump();
+		for (int i = 0; i < traces.length; i++) {
+			XTrace sourceTrace = sourceLog.get(i);
+			assertEquals(describe(sourceTrace), describe(traces[i]));
+			assertEquals(sourceTrace.size(), traces[i].size());
+			for (int j = 0; j < sourceTrace.size(); j++) {
+				assertEquals(describe(sourceTrace.get(j)), describe(traces[i].get(j)));
+			}
+		}
+	}
+
+	@Test
+	public void testColumnCursorInMemoryStore() {
+		InMemoryStoreImpl factory = new XFactoryExternalStore.InMemoryStoreImpl();
+		XLog log = createRandomLog(factory, TEST_SIZE);
+		factory.commit();
+		LongColumnCursor timestamps = factory.openLongCursor(XTimeExtension.KEY_TIMESTAMP);
+		IntColumnCursor names = factory.openIntCursor(XConceptExtension.KEY_NAME);
+		Map<String, Integer> literalIndices = new HashMap<>();
+		for (XTrace trace : log) {
+			assertFalse(timestamps.advanceTo((ExternalAttributable) trace));
+			assertTrue(names.advanceTo((ExternalAttributable) trace));
+			assertEquals(XConceptExtension.instance().extractName(trace), names.getLiteral());
+			for (XEvent event : trace) {
+				assertTrue(timestamps.advanceTo((ExternalAttributable) event));
+				assertEquals(XTimeExtension.instance().extractTimestamp(event).getTime(), timestamps.getLong());
+				assertTrue(names.advanceTo((ExternalAttributable) event));
+				assertEquals(XConceptExtension.instance().extractName(event), names.getLiteral());
+				Integer index = literalIndices.put(names.getLiteral(), names.getLiteralIndex());
+				assertTrue(index == null || index == names.getLiteralIndex());
+			}
+		}
+		try {
+			factory.openIntCursor(XTimeExtension.KEY_TIMESTAMP).advanceTo((ExternalAttributable) log.get(0).get(0));
+			fail("Timestamps are not stored as literals");
+		} catch (XESLiteException e) {
+		}
+		LongColumnCursor missing = factory.openLongCursor("missing");
+		assertFalse(missing.advanceTo((ExternalAttributable) log.get(0)));
+		try {
+			missing.getLong();
+			fail("There is no value");
+		} catch (NoSuchElementException e) {
+		}
+
+		// cursors opened before a compacting freeze use the new literal pool
+		InMemoryStoreImpl compacting = new XFactoryExternalStore.InMemoryStoreImpl(
+				new InMemoryStore.Builder().withCompactLiteralPool());
+		XLog compactingLog = createRandomLog(compacting, TEST_SIZE);
+		compacting.commit();
+		IntColumnCursor compactingNames = compacting.openIntCursor(XConceptExtension.KEY_NAME);
+		compacting.freeze();
+		XEvent event = compactingLog.get(0).get(0);
+		assertTrue(compactingNames.advanceTo((ExternalAttributable) event));
+		assertEquals(XConceptExtension.instance().extractName(event), compactingNames.getLiteral());
+		compacting.dispose();
+	}
 
+	@Test
+	public void testParseParallelInMemoryStore() throws Exception {
+		// without timestamps, OpenXES falls back to JAXB to parse them on Java 9+
+		byte[] xes = serializeLog(createLog(new XFactoryNaiveImpl(), 40, TEST_SIZE / 10, 2, true));
+		XLog expectedLog = new XesLiteXmlParser(new XFactoryExternalStore.InMemoryStoreImpl(), false)
+				.parse(new ByteArrayInputStream(xes)).get(0);
+		XLog log = new XesLiteXmlParser(new XFactoryExternalStore.InMemoryStoreImpl(), false, 4, 4096)
+				.parse(new ByteArrayInputStream(xes)).get(0);
+		assertSameTraces(expectedLog, log);
+		// identifiers are assigned in the order of the document, as when parsing sequentially
+		for (int i = 0; i < log.size(); i++) {
+			for (int j = 0; j < log.get(i).size(); j++) {
+				assertEquals(expectedLog.get(i).get(j).getID(), log.get(i).get(j).getID());
+			}
+		}
+		readSequentially(log);
+	}
+
+	@Test
+	public void testFreezeInMemoryStore() {
+		assertFrozen(new XFactoryExternalStore.InMemoryStoreImpl());
+		assertFrozen(new XFactoryExternalStore.InMemoryStoreAlignmentAwareImpl());
+		assertFrozen(new XFactoryExternalStore.InMemoryStoreImpl(new InMemoryStore.Builder().withCompactLiteralPool()));
+		assertFrozen(new XFactoryExternalStore.InMemoryStoreImpl(
+				new InMemoryStore.Builder().withOffHeapStorage().withBlockCacheSize(64 * 1024)));
+	}
+
+	private void assertFrozen(XFactoryExternalStore factory) {
+		XLog log = createRandomLog(factory, TEST_SIZE);
+		factory.commit();
+		List<String> expected = new ArrayList<>();
+		for (XTrace trace : log) {
+			expected.add(describe(trace));
+			for (XEvent event : trace) {
+				expected.add(describe(event));
+			}
+		}
+		factory.freeze();
+		List<String> actual = new ArrayList<>();
+		for (XTrace trace : log) {
+			actual.add(describe(trace));
+			for (XEvent event : trace) {
+				actual.add(describe(event));
+			}
+		}
+		assertEquals(expected, actual);
+		readSequentially(log);
+		readRandom(log);
+
+		XEvent event = log.get(0).get(0);
+		try {
+			event.getAttributes().put("concept:name", factory.createAttributeLiteral("concept:name", "x", null));
+			fail("Frozen store should not be modifiable");
+		} catch (UnsupportedOperationException e) {
+		}
+		try {
+			event.getAttributes().clear();
+			fail("Frozen store should not be modifiable");
+		} catch (UnsupportedOperationException e) {
+		}
+		assertEquals(expected.get(1), describe(event));
+		factory.dispose();
+	}
+
+	private static void assertAttributesEqual(XAttributable expected, XAttributable actual) {
+		assertEquals(expected.getAttributes().size(), actual.getAttributes().size());
+		for (XAttribute a : expected.getAttributes().values()) {
+			assertEquals(a.toString(), actual.getAttributes().get(a.getKey()).toString());
+		}
+	}
 }
@@ -2,11 +2,16 @@ package org.xeslite;
 
 import static org.junit.Assert.assertEquals;
 
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
 import org.deckfour.xes.factory.XFactory;
+import org.deckfour.xes.factory.XFactoryNaiveImpl;
 import org.deckfour.xes.factory.XFactoryRegistry;
 import org.deckfour.xes.model.XLog;
 import org.junit.Test;
 import org.xeslite.lite.factory.XFactoryLiteImpl;
+import org.xeslite.parser.XesLiteXmlParser;
 
 public class XesLiteLiteTest extends XesLiteBaseTestAbstract {
 	
@@ -21,4 +26,44 @@ public class XesLiteLiteTest extends XesLiteBaseTestAbstract {
 		readRandom(log);
 	}
 
+	@Test
+	public void testParseParallelLite() throws Exception {
+		// without timestamps, OpenXES falls back to JAXB to parse them on Java 9+
+		XLog sourceLog = createLog(new XFactoryNaiveImpl(), 40, TEST_SIZE / 10, 2, true);
+		sourceLog.add(TEST_SIZE / 20, new XFactoryNaiveImpl().createTrace());
+		byte[] xes = serializeLog(sourceLog);
+		XLog expectedLog = new XesLiteXmlParser(new XFactoryLiteImpl(), false)
+				.parse(new ByteArrayInputStream(xes)).get(0);
+		// small chunks to parse the traces with many workers
+		XLog log = new XesLiteXmlParser(new XFactoryLiteImpl(), false, 4, 4096)
+				.parse(new ByteArrayInputStream(xes)).get(0);
+		assertEquals(expectedLog.getAttributes(), log.getAttributes());
+		assertSameTraces(expectedLog, log);
+		readSequentially(log);
+	}
+
+	@Test
+	public void testParseParallelContentBetweenTraces() throws Exception {
+		XLog sourceLog = createLog(new XFactoryNaiveImpl(), 40, TEST_SIZE / 10, 2, true);
+		String xml = new String(serializeLog(sourceLog), StandardCharsets.UTF_8);
+		int middle = xml.indexOf("<trace>", xml.length() / 2);
+		String between = "<string key=\"between\" value=\"traces\"/>\n"
+				+ "<extension name=\"Organizational\" prefix=\"org\" uri=\"http://www.xes-standard.org/org.xesext\"/>\n"
+				+ "<global scope=\"event\"><string key=\"org:resource\" value=\"UNKNOWN\"/></global>\n"
+				+ "<classifier name=\"Resource\" keys=\"org:resource\"/>\n";
+		byte[] xes = (xml.substring(0, middle) + between + xml.substring(middle)).getBytes(StandardCharsets.UTF_8);
+		XLog expectedLog = new XesLiteXmlParser(new XFactoryLiteImpl(), false)
+				.parse(new ByteArrayInputStream(xes)).get(0);
+		XLog log = new XesLiteXmlParser(new XFactoryLiteImpl(), false, 4, 4096)
+				.parse(new ByteArrayInputStream(xes)).get(0);
+		assertEquals("traces", log.getAttributes().get("between").toString());
+		assertEquals(expectedLog.getAttributes(), log.getAttributes());
+		assertEquals(expectedLog.getExtensions(), log.getExtensions());
+		assertEquals(1, log.getGlobalEventAttributes().size());
+		assertEquals(expectedLog.getGlobalEventAttributes().size(), log.getGlobalEventAttributes().size());
+		assertEquals(2, log.getClassifiers().size());
+		assertEquals(expectedLog.getClassifiers(), log.getClassifiers());
+		assertSameTraces(expectedLog, log);
+	}
+
 }
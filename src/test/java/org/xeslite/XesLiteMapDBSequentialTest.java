@@ -1,10 +1,23 @@
 package org.xeslite;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.deckfour.xes.extension.std.XConceptExtension;
 import org.deckfour.xes.factory.XFactory;
 import org.deckfour.xes.factory.XFactoryRegistry;
+import org.deckfour.xes.model.XEvent;
 import org.deckfour.xes.model.XLog;
+import org.deckfour.xes.model.XTrace;
 import org.junit.Test;
 import org.xeslite.external.XFactoryExternalStore;
 
@@ -22,6 +35,169 @@ public class XesLiteMapDBSequentialTest extends XesLiteBaseTestAbstract {
 		changeAttributes(log);
 	}
 
-	
+	@Test
+	public void testRandomAccessLongTrace() {
+		XFactoryExternalStore factory = new XFactoryExternalStore.MapDBDiskSequentialAccessImpl();
+		int size = 1000;
+		List<XEvent> events = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			XEvent event = factory.createEvent();
+			XConceptExtension.instance().assignName(event, "Event " + i);
+			events.add(event);
+		}
+		XTrace trace = factory.createTrace(events);
+		assertEquals(size, trace.size());
+		for (int i = size - 1; i >= 0; i--) {
+			assertEquals(events.get(i), trace.get(i));
+		}
+
+		// replaces a single chunk
+		XEvent replacement = factory.createEvent();
+		assertEquals(events.get(700), trace.set(700, replacement));
+		assertEquals(replacement, trace.get(700));
+		assertEquals(events.get(699), trace.get(699));
+		assertEquals(events.get(999), trace.get(999));
+		events.set(700, replacement);
+
+		ListIterator<XEvent> iterator = trace.listIterator(701);
+		assertEquals(replacement, iterator.previous());
+		assertEquals(events.get(699), iterator.previous());
+		iterator.remove();
+		events.remove(699);
+		assertEquals(replacement, iterator.next());
+		iterator.add(factory.createEvent());
+		events.add(700, trace.get(700));
+		assertEquals(events, trace);
+		assertEquals(size, trace.size());
+		factory.dispose();
+	}
+
+	@Test
+	public void testCompactLog() {
+		XFactoryExternalStore.MapDBDiskSequentialAccessImpl factory = new XFactoryExternalStore.MapDBDiskSequentialAccessImpl();
+		XLog log = createRandomLog(factory, TEST_SIZE / 10);
+		XLog compactLog = factory.createCompactLog();
+		compactLog.addAll(log);
+		assertEquals(log, compactLog);
+		readSequentially(compactLog);
+		readRandom(compactLog);
+
+		// changes of the transient traces are written back
+		XEvent event = factory.createEvent();
+		compactLog.get(3).add(event);
+		log.get(3).add(event);
+		compactLog.get(5).remove(0);
+		log.get(5).remove(0);
+		compactLog.remove(0);
+		log.remove(0);
+		assertEquals(log, compactLog);
+
+		// views follow their row when rows move
+		XTrace view = compactLog.get(10);
+		XTrace removedView = compactLog.get(2);
+		compactLog.remove(2);
+		log.remove(2);
+		compactLog.add(0, log.get(0));
+		log.add(0, log.get(0));
+		XEvent added = factory.createEvent();
+		view.add(added);
+		log.get(10).add(added);
+		removedView.add(factory.createEvent());
+		assertEquals(log, compactLog);
+
+		// traces with several chunks are read from the arena
+		List<XEvent> events = new ArrayList<>();
+		for (int i = 0; i < 600; i++) {
+			events.add(factory.createEvent());
+		}
+		compactLog.add(factory.createTrace(events));
+		XTrace longTrace = compactLog.get(compactLog.size() - 1);
+		assertEquals(events, longTrace);
+		XEvent replacement = factory.createEvent();
+		longTrace.set(300, replacement);
+		events.set(300, replacement);
+		assertEquals(events, compactLog.get(compactLog.size() - 1));
+		assertEquals(log, compactLog.subList(0, log.size()));
+		XLog clone = (XLog) compactLog.clone();
+		assertEquals(compactLog.size(), clone.size());
+		assertEquals(compactLog.get(3).size(), clone.get(3).size());
+		factory.dispose();
+	}
+
+	@Test
+	public void testEncodeEventIds() {
+		XFactoryExternalStore factory = new XFactoryExternalStore.MapDBDiskSequentialAccessImpl();
+		List<XEvent> events = new ArrayList<>();
+		for (int i = 0; i < 600; i++) {
+			events.add(factory.createEvent());
+		}
+		// consecutive identifiers
+		assertEquals(events, factory.createTrace(events));
+		// negative deltas
+		List<XEvent> reversed = new ArrayList<>(events);
+		Collections.reverse(reversed);
+		assertEquals(reversed, factory.createTrace(reversed));
+		// gaps between identifiers
+		List<XEvent> sparse = new ArrayList<>();
+		for (int i = 0; i < events.size(); i += 1 + i % 7) {
+			sparse.add(events.get(i));
+		}
+		assertEquals(sparse, factory.createTrace(sparse));
+		factory.dispose();
+	}
+
+	@Test
+	public void testBuildTraceEventByEvent() throws Exception {
+		XFactoryExternalStore factory = new XFactoryExternalStore.MapDBDiskSequentialAccessImpl();
+		int size = 2000;
+		List<XEvent> events = new ArrayList<>(size);
+		XTrace trace = factory.createTrace();
+		for (int i = 0; i < size; i++) {
+			XEvent event = factory.createEvent();
+			trace.add(event);
+			events.add(event);
+			// reads in between are served from the write buffer
+			assertEquals(events.get(i / 2), trace.get(i / 2));
+		}
+		trace.remove(0);
+		events.remove(0);
+		trace.add(0, events.get(size - 2));
+		events.add(0, events.get(size - 2));
+		assertEquals(events, trace);
+
+		// idle reads compress the write buffer under a lock, so they can run concurrently
+		final XTrace readTrace = trace;
+		final List<XEvent> expectedEvents = events;
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		List<Future<Boolean>> results = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			results.add(executor.submit(new Callable<Boolean>() {
+
+				public Boolean call() {
+					for (int i = 0; i < expectedEvents.size(); i++) {
+						if (!expectedEvents.get(i).equals(readTrace.get(i))) {
+							return false;
+						}
+					}
+					return expectedEvents.equals(new ArrayList<>(readTrace));
+				}
+			}));
+		}
+		for (Future<Boolean> result : results) {
+			assertTrue(result.get());
+		}
+		executor.shutdown();
+
+		XLog log = factory.createLog();
+		log.add(trace);
+		for (int i = 0; i < 500; i++) {
+			assertEquals(events.get(i), log.get(0).get(i));
+		}
+		XEvent replacement = factory.createEvent();
+		trace.set(size - 1, replacement);
+		events.set(size - 1, replacement);
+		assertEquals(events, trace);
+		factory.dispose();
+	}
 
 }
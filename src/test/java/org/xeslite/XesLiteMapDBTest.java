@@ -1,12 +1,36 @@
 package org.xeslite;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.deckfour.xes.extension.std.XConceptExtension;
+import org.deckfour.xes.extension.std.XLifecycleExtension;
+import org.deckfour.xes.extension.std.XOrganizationalExtension;
+import org.deckfour.xes.extension.std.XTimeExtension;
 import org.deckfour.xes.factory.XFactory;
+import org.deckfour.xes.factory.XFactoryNaiveImpl;
 import org.deckfour.xes.factory.XFactoryRegistry;
+import org.deckfour.xes.model.XAttribute;
+import org.deckfour.xes.model.XAttributeMap;
+import org.deckfour.xes.model.XEvent;
 import org.deckfour.xes.model.XLog;
+import org.deckfour.xes.model.XTrace;
 import org.junit.Test;
+import org.xeslite.common.XESLiteException;
+import org.xeslite.external.MapDBDatabase;
+import org.xeslite.external.MapDBStore;
 import org.xeslite.external.XFactoryExternalStore;
+import org.xeslite.parser.XesLiteXmlParser;
 
 public class XesLiteMapDBTest extends XesLiteBaseTestAbstract {
 	
@@ -22,4 +46,319 @@ public class XesLiteMapDBTest extends XesLiteBaseTestAbstract {
 		changeAttributes(log);
 	}
 
+	@Test
+	public void testCreateReadRandomLogDiskRowLayout() {
+		assertCreateRead(new XFactoryExternalStore.MapDBDiskImpl(new MapDBStore.Builder().withRowLayout()));
+		assertCreateRead(new XFactoryExternalStore.MapDBDiskImpl(new MapDBStore.Builder().withRowGroupShift(4)));
+		assertCreateRead(
+				new XFactoryExternalStore.MapDBDiskWithoutCacheImpl(new MapDBStore.Builder().withRowGroupShift(4)));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testRowLayoutWithIndex() {
+		new MapDBStore.Builder().withRowLayout().withIndex(XConceptExtension.KEY_NAME).build();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testRowLayoutWithAppendPump() {
+		new MapDBStore.Builder().withRowLayout().withAppendPump().build();
+	}
+
+	private void assertCreateRead(XFactoryExternalStore factory) {
+		XFactoryRegistry.instance().setCurrentDefault(factory);
+		XLog log = createRandomLog(factory, TEST_SIZE);
+		assertEquals(TEST_SIZE, log.size());
+		readSequentially(log);
+		readSequentiallyCommon(log);
+		readRandom(log);
+		changeAttributes(log);
+		factory.dispose();
+	}
+
+	@Test
+	public void testBoundedPumpDisk() throws InterruptedException {
+		XLog sourceLog = createRandomLog(new XFactoryNaiveImpl(), TEST_SIZE);
+		int batchSize = 4;
+		int queueCapacity = 2;
+		XFactoryExternalStore.MapDBDiskImpl factory = new XFactoryExternalStore.MapDBDiskImpl(
+				new MapDBStore.Builder().withPump().withPumpBatchSize(batchSize).withPumpQueueCapacity(queueCapacity));
+		XTrace[] traces = new XTrace[sourceLog.size()];
+		factory.startPump();
+		for (int i = 0; i < traces.length; i++) {
+			traces[i] = pumpTrace(factory, sourceLog.get(i));
+			// queued batches plus the batch that is being written
+			assertTrue(factory.getPumpQueueDepth() <= batchSize * (queueCapacity + 1));
+		}
+		assertTrue(factory.getPumpThroughput() >= 0);
+		factory.finishPump();
+		assertEquals(0, factory.getPumpQueueDepth());
+		assertPumped(sourceLog, traces);
+		factory.dispose();
+	}
+
+	@Test
+	public void testInterruptedPumpDisk() throws InterruptedException {
+		XLog sourceLog = createRandomLog(new XFactoryNaiveImpl(), TEST_SIZE);
+		XFactoryExternalStore.MapDBDiskImpl factory = new XFactoryExternalStore.MapDBDiskImpl(
+				new MapDBStore.Builder().withPump().withPumpBatchSize(1).withPumpQueueCapacity(1));
+		XTrace[] traces = new XTrace[sourceLog.size()];
+		factory.startPump();
+		for (int i = 0; i < traces.length; i++) {
+			if (i == traces.length / 2) {
+				Thread.currentThread().interrupt();
+				try {
+					pumpTrace(factory, sourceLog.get(i));
+					fail("Interrupted hand over should fail");
+				} catch (XESLiteException e) {
+				}
+				assertTrue(Thread.interrupted());
+			}
+			traces[i] = pumpTrace(factory, sourceLog.get(i));
+		}
+		factory.finishPump();
+		assertPumped(sourceLog, traces);
+		factory.dispose();
+	}
+
+	@Test
+	public void testRowGroupPumpDisk() throws InterruptedException {
+		XLog sourceLog = createRandomLog(new XFactoryNaiveImpl(), TEST_SIZE);
+		XFactoryExternalStore.MapDBDiskImpl factory = new XFactoryExternalStore.MapDBDiskImpl(
+				new MapDBStore.Builder().withPump().withRowGroupShift(3));
+		XTrace[] traces = new XTrace[sourceLog.size()];
+		factory.startPump();
+		for (int i = 0; i < traces.length; i++) {
+			traces[i] = pumpTrace(factory, sourceLog.get(i));
+		}
+		factory.finishPump();
+		assertPumped(sourceLog, traces);
+		XLog log = factory.createLog();
+		log.addAll(Arrays.asList(traces));
+		changeAttributes(log);
+		readSequentially(log);
+		factory.dispose();
+	}
+
+	@Test
+	public void testSecondaryIndexDisk() {
+		XFactoryExternalStore.MapDBDiskImpl factory = new XFactoryExternalStore.MapDBDiskImpl(
+				new MapDBStore.Builder().withIndex(XConceptExtension.KEY_NAME));
+		XLog log = createRandomLog(factory, TEST_SIZE);
+
+		String name = "Event 7";
+		List<XEvent> expected = findEvents(log, XConceptExtension.KEY_NAME, name);
+		assertTrue(!expected.isEmpty());
+		assertEquals(expected, factory.lookupEvents(log, XConceptExtension.KEY_NAME, name));
+		long[] ownerIds = factory.lookupOwnerIds(XConceptExtension.KEY_NAME, name);
+		assertEquals(expected.size(), ownerIds.length);
+		for (int i = 1; i < ownerIds.length; i++) {
+			assertTrue(ownerIds[i - 1] < ownerIds[i]);
+		}
+
+		// index follows changes of the cached attribute
+		XEvent renamed = expected.get(0);
+		XConceptExtension.instance().assignName(renamed, "Renamed");
+		assertEquals(expected.subList(1, expected.size()), factory.lookupEvents(log, XConceptExtension.KEY_NAME, name));
+		assertEquals(Arrays.asList(renamed), factory.lookupEvents(log, XConceptExtension.KEY_NAME, "Renamed"));
+		assertEquals(0, factory.lookupOwnerIds(XConceptExtension.KEY_NAME, "Unknown").length);
+
+		// positions are recorded anew after the log changed
+		XEvent added = factory.createEvent();
+		XConceptExtension.instance().assignName(added, "Renamed");
+		log.get(1).add(0, added);
+		assertEquals(Arrays.asList(renamed, added), factory.lookupEvents(log, XConceptExtension.KEY_NAME, "Renamed"));
+
+		// index created on demand from the stored attributes
+		String resource = "Resource 3";
+		factory.createIndex(XOrganizationalExtension.KEY_RESOURCE);
+		assertEquals(findEvents(log, XOrganizationalExtension.KEY_RESOURCE, resource),
+				factory.lookupEvents(log, XOrganizationalExtension.KEY_RESOURCE, resource));
+		assertEquals(TEST_SIZE, factory.lookupTraces(log, XOrganizationalExtension.KEY_RESOURCE, resource).size());
+
+		// and after traces were removed
+		Iterator<XTrace> traceIterator = log.iterator();
+		traceIterator.next();
+		traceIterator.remove();
+		assertEquals(findEvents(log, XConceptExtension.KEY_NAME, "Renamed"),
+				factory.lookupEvents(log, XConceptExtension.KEY_NAME, "Renamed"));
+		assertEquals(TEST_SIZE - 1, factory.lookupTraces(log, XOrganizationalExtension.KEY_RESOURCE, resource).size());
+		factory.dispose();
+	}
+
+	@Test
+	public void testRemoveByKeyIteratorDisk() {
+		XFactoryExternalStore.MapDBDiskWithoutCacheImpl factory = new XFactoryExternalStore.MapDBDiskWithoutCacheImpl(
+				new MapDBStore.Builder().withIndex(XOrganizationalExtension.KEY_RESOURCE));
+		XLog log = createRandomLog(factory, TEST_SIZE);
+		XEvent event = log.get(0).get(0);
+		String resource = XOrganizationalExtension.instance().extractResource(event);
+		assertTrue(factory.lookupEvents(log, XOrganizationalExtension.KEY_RESOURCE, resource).contains(event));
+		int size = event.getAttributes().size();
+		for (Iterator<String> iterator = event.getAttributes().keySet().iterator(); iterator.hasNext();) {
+			if (iterator.next().equals(XOrganizationalExtension.KEY_RESOURCE)) {
+				iterator.remove();
+			}
+		}
+		assertEquals(size - 1, event.getAttributes().size());
+		assertNull(event.getAttributes().get(XOrganizationalExtension.KEY_RESOURCE));
+		assertTrue(!factory.lookupEvents(log, XOrganizationalExtension.KEY_RESOURCE, resource).contains(event));
+		factory.dispose();
+	}
+
+	@Test
+	public void testReadAheadSequentialDisk() {
+		XFactoryExternalStore factory = new XFactoryExternalStore.MapDBDiskSequentialAccessImpl();
+		XLog log = createRandomLog(factory, TEST_SIZE);
+		for (XTrace trace : log) {
+			int i = 0;
+			for (XEvent event : trace) {
+				assertEquals(describe(trace.get(i++)), describe(event));
+			}
+		}
+		readSequentially(log);
+
+		// attributes that were read ahead are not used after a change
+		XTrace trace = log.get(0);
+		Iterator<XEvent> iterator = trace.iterator();
+		XEvent first = iterator.next();
+		XEvent second = iterator.next();
+		assertEquals(describe(trace.get(1)), describe(second));
+		trace.get(1).getAttributes().put("literal", factory.createAttributeLiteral("literal", "changed", null));
+		assertEquals("changed", second.getAttributes().get("literal").toString());
+		assertNotNull(first.getAttributes().remove(XOrganizationalExtension.KEY_RESOURCE));
+		assertNull(trace.get(0).getAttributes().get(XOrganizationalExtension.KEY_RESOURCE));
+		assertEquals(describe(trace.get(0)), describe(trace.iterator().next()));
+		factory.dispose();
+	}
+
+	@Test
+	public void testSaveLoadCachedAttributes() throws Exception {
+		XLog sourceLog = createRandomLog(new XFactoryNaiveImpl(), TEST_SIZE / 10);
+		File file = File.createTempFile("xeslite", ".db");
+		try {
+			MapDBDatabase.IO.save(sourceLog, file);
+			assertCachedAttributes(sourceLog, MapDBDatabase.IO.loadWithCache(file));
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testSaveLoadLazy() throws Exception {
+		XLog sourceLog = createRandomLog(new XFactoryNaiveImpl(), TEST_SIZE / 2);
+		File file = File.createTempFile("xeslite", ".db");
+		try {
+			MapDBDatabase.IO.save(sourceLog, file);
+			XLog log = MapDBDatabase.IO.loadLazy(file);
+			assertCachedAttributes(sourceLog, log);
+			readSequentially(log);
+			try {
+				log.remove(0);
+				fail("Lazily loaded log should not be modifiable");
+			} catch (UnsupportedOperationException e) {
+			}
+			try {
+				XConceptExtension.instance().assignName(log.get(0).get(0), "Renamed");
+				fail("Lazily loaded log should not be modifiable");
+			} catch (UnsupportedOperationException e) {
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testAppendPumpDisk() throws Exception {
+		XLog sourceLog = createRandomLog(new XFactoryNaiveImpl(), TEST_SIZE / 10);
+		XLog appendedLog = createRandomLog(new XFactoryNaiveImpl(), TEST_SIZE / 10);
+		XLog expectedLog = new XFactoryNaiveImpl().createLog();
+		expectedLog.addAll(sourceLog);
+		expectedLog.addAll(appendedLog);
+		expectedLog.addAll(appendedLog);
+		for (boolean merge : new boolean[] { false, true }) {
+			File file = File.createTempFile("xeslite", ".db");
+			try {
+				MapDBDatabase.IO.save(sourceLog, file);
+				// identifiers of the second append continue after the first
+				MapDBDatabase.IO.append(appendedLog, file);
+				MapDBDatabase.IO.append(appendedLog, file);
+				if (merge) {
+					MapDBDatabase.IO.mergeSegments(file);
+				}
+				// appended traces are stored in partially filled pages
+				XLog log = merge ? MapDBDatabase.IO.loadWithCache(file) : MapDBDatabase.IO.loadLazy(file);
+				assertCachedAttributes(expectedLog, log);
+				readSequentially(log);
+			} finally {
+				file.delete();
+			}
+		}
+	}
+
+	@Test
+	public void testParseParallelPumpDisk() throws Exception {
+		// without timestamps, OpenXES falls back to JAXB to parse them on Java 9+
+		byte[] xes = serializeLog(createLog(new XFactoryNaiveImpl(), 40, TEST_SIZE / 10, 2, true));
+		XLog expectedLog = new XesLiteXmlParser(new XFactoryNaiveImpl(), false)
+				.parse(new ByteArrayInputStream(xes)).get(0);
+		XFactoryExternalStore.MapDBDiskImpl factory = new XFactoryExternalStore.MapDBDiskImpl(
+				new MapDBStore.Builder().withPump());
+		factory.startPump();
+		XLog log = new XesLiteXmlParser(factory, false, 4, 4096).parse(new ByteArrayInputStream(xes)).get(0);
+		factory.finishPump();
+		assertSameTraces(expectedLog, log);
+		readSequentially(log);
+		changeAttributes(log);
+		factory.dispose();
+	}
+
+	private static void assertCachedAttributes(XLog sourceLog, XLog log) {
+		assertEquals(sourceLog.size(), log.size());
+		for (int i = 0; i < log.size(); i++) {
+			XTrace sourceTrace = sourceLog.get(i);
+			XTrace trace = log.get(i);
+			assertEquals(sourceTrace.size(), trace.size());
+			for (int j = 0; j < trace.size(); j++) {
+				XAttributeMap sourceAttributes = sourceTrace.get(j).getAttributes();
+				XAttributeMap attributes = trace.get(j).getAttributes();
+				for (String key : new String[] { XConceptExtension.KEY_NAME, XLifecycleExtension.KEY_TRANSITION,
+						XTimeExtension.KEY_TIMESTAMP }) {
+					assertEquals(sourceAttributes.get(key).toString(), attributes.get(key).toString());
+				}
+				assertEquals(describe(sourceTrace.get(j)), describe(trace.get(j)));
+			}
+		}
+	}
+
+	private static List<XEvent> findEvents(XLog log, String key, String value) {
+		List<XEvent> events = new ArrayList<>();
+		for (XTrace trace : log) {
+			for (XEvent event : trace) {
+				XAttribute a = event.getAttributes().get(key);
+				if (a != null && value.equals(a.toString())) {
+					events.add(event);
+				}
+			}
+		}
+		return events;
+	}
+
+	private static XTrace pumpTrace(XFactoryExternalStore factory, XTrace sourceTrace) {
+		XTrace pumpTrace = new XFactoryNaiveImpl().createTrace(sourceTrace.getAttributes());
+		for (XEvent event : sourceTrace) {
+			pumpTrace.add(factory.pumpEvent(event));
+		}
+		return factory.pumpTrace(pumpTrace);
+	}
+
+	private static void assertPumped(XLog sourceLog, XTrace[] traces) {
+		for (int i = 0; i < traces.length; i++) {
+			XTrace sourceTrace = sourceLog.get(i);
+			assertEquals(describe(sourceTrace), describe(traces[i]));
+			assertEquals(sourceTrace.size(), traces[i].size());
+			for (int j = 0; j < sourceTrace.size(); j++) {
+				assertEquals(describe(sourceTrace.get(j)), describe(traces[i].get(j)));
+			}
+		}
+	}
 }
@@ -0,0 +1,114 @@
+package org.xeslite.external;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.deckfour.xes.model.XEvent;
+import org.deckfour.xes.model.XLog;
+import org.deckfour.xes.model.XTrace;
+import org.junit.Test;
+
+public class CompressedListTest {
+
+	@Test
+	public void testCompressAfterIdleReads() {
+		XFactoryExternalStore factory = new XFactoryExternalStore.InMemoryStoreImpl();
+		XTraceCompressedExternalImpl trace = (XTraceCompressedExternalImpl) factory.createTrace();
+		List<XEvent> events = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			XEvent event = factory.createEvent();
+			trace.add(event);
+			events.add(event);
+		}
+		assertTrue(trace.hasWriteBuffer());
+		for (int i = 0; i < XAbstractCompressedList.getDefaultCompressionIdleReads(); i++) {
+			assertEquals(events.get(i % events.size()), trace.get(i % events.size()));
+		}
+		assertFalse(trace.hasWriteBuffer());
+		assertEquals(events, trace);
+
+		// a change starts a new buffer
+		trace.remove(0);
+		events.remove(0);
+		assertTrue(trace.hasWriteBuffer());
+		assertEquals(events, trace);
+		factory.dispose();
+	}
+
+	@Test
+	public void testCompressOnFreeze() {
+		XFactoryExternalStore factory = new XFactoryExternalStore.InMemoryStoreImpl();
+		XLog log = factory.createLog();
+		List<List<XEvent>> expected = new ArrayList<>();
+		for (int t = 0; t < 10; t++) {
+			log.add(factory.createTrace());
+			List<XEvent> events = new ArrayList<>();
+			for (int i = 0; i < 10; i++) {
+				// changed after being added to the log
+				XEvent event = factory.createEvent();
+				log.get(t).add(event);
+				events.add(event);
+			}
+			expected.add(events);
+		}
+		for (int t = 0; t < log.size(); t++) {
+			assertTrue(((XTraceCompressedExternalImpl) log.get(t)).hasWriteBuffer());
+		}
+		factory.freeze();
+		for (int t = 0; t < log.size(); t++) {
+			assertFalse(((XTraceCompressedExternalImpl) log.get(t)).hasWriteBuffer());
+			assertEquals(expected.get(t), log.get(t));
+		}
+		factory.dispose();
+	}
+
+	@Test
+	public void testTableViews() {
+		XFactoryExternalStore.InMemoryStoreImpl factory = new XFactoryExternalStore.InMemoryStoreImpl();
+		XLog log = factory.createCompactLog();
+		for (int t = 0; t < 10; t++) {
+			log.add(factory.createTrace());
+		}
+
+		// changes of a view are buffered and written back on the next access
+		XTrace view = log.get(4);
+		List<XEvent> events = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			XEvent event = factory.createEvent();
+			view.add(event);
+			events.add(event);
+		}
+		assertTrue(((XAbstractCompressedList<?>) view).hasWriteBuffer());
+		assertEquals(events, log.get(4));
+		view.remove(0);
+		events.remove(0);
+		assertEquals(events, log.get(4));
+
+		// views follow their row when rows are inserted
+		log.add(0, factory.createTrace());
+		XEvent added = factory.createEvent();
+		view.add(added);
+		events.add(added);
+		assertEquals(events, log.get(5));
+
+		// a view of a replaced row is detached
+		XTrace replacedView = log.get(5);
+		log.set(5, factory.createTrace());
+		replacedView.add(factory.createEvent());
+		assertEquals(0, log.get(5).size());
+		assertEquals(events.size() + 1, replacedView.size());
+
+		// a view that was created before another view of its row was written back is detached
+		XTrace staleView = log.get(6);
+		log.get(6).add(factory.createEvent());
+		staleView.add(factory.createEvent());
+		staleView.add(factory.createEvent());
+		assertEquals(1, log.get(6).size());
+		factory.dispose();
+	}
+
+}
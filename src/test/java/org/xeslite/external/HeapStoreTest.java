@@ -1,24 +1,43 @@
 package org.xeslite.external;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.deckfour.xes.model.XAttributeDiscrete;
 import org.junit.Test;
+import org.xeslite.external.InMemoryStore.AttributeStorage;
+import org.xeslite.external.InMemoryStore.BlockCache;
+import org.xeslite.external.InMemoryStore.BlockVolume;
+import org.xeslite.external.InMemoryStore.DirectVolume;
 import org.xeslite.external.InMemoryStore.HeapVolume;
 import org.xeslite.external.InMemoryStore.Mode;
+import org.xeslite.external.InMemoryStore.ShapeIndex;
+import org.xeslite.external.InMemoryStore.SparseVolume;
+import org.xeslite.external.InMemoryStore.Store;
+import org.xeslite.external.InMemoryStore.Volume;
+import org.xeslite.external.InMemoryStore.VolumeType;
 
 public class HeapStoreTest {
 
 	private final class RunnableImpl implements Runnable {
 
-		private final HeapVolume storage;
+		private final Volume storage;
 
-		public RunnableImpl(HeapVolume storage) {
+		public RunnableImpl(Volume storage) {
 			this.storage = storage;
 		}
 
@@ -100,4 +119,306 @@ public class HeapStoreTest {
 		}
 	}
 
+	@Test
+	public void testPackedIntHeapStore() {
+		InMemoryStore.HeapVolume storage = new InMemoryStore.HeapVolume(4, 9, Mode.INT);
+		final Random random = new Random();
+		int[] expected = new int[10000];
+		for (int round = 0; round < 5; round++) {
+			// few distinct values per round, overwriting the previous ones
+			for (int i = 0; i < 10000; i++) {
+				expected[i] = round * 100 + random.nextInt(5 + round * 20);
+				storage.putInt(i, expected[i], -1);
+			}
+			if (round % 2 == 0) {
+				storage.compressStorage();
+			}
+			for (int i = 0; i < 10000; i++) {
+				assertEquals(expected[i], storage.getInt(i));
+			}
+		}
+		storage.remove(42);
+		assertTrue(!storage.hasValue(42));
+		assertEquals(expected[43], storage.getInt(43));
+	}
+
+	@Test
+	public void testPackedIntBlock() {
+		InMemoryStore.PackedIntBlock block = new InMemoryStore.PackedIntBlock(512);
+		for (int i = 0; i < 512; i++) {
+			block.putInt(i << 2, i % 7 == 0 ? Integer.MAX_VALUE : i % 3);
+			block.setExistsFlag(i, true);
+		}
+		// 4 distinct values and 0 fit into 3 bits
+		assertTrue(block.getCapacity() < Mode.INT.getNumBytes(512) / 4);
+		block.compress();
+		assertTrue(block.isCompressed());
+		ByteBuffer data = block.getData();
+		assertEquals(0, data.get());
+		for (int i = 0; i < 512; i++) {
+			int val = i % 7 == 0 ? Integer.MAX_VALUE : i % 3;
+			assertEquals(val, data.getInt());
+			assertEquals(val, block.getInt(i << 2));
+		}
+	}
+
+	@Test
+	public void testPackedIntBlockPlain() {
+		InMemoryStore.PackedIntBlock block = new InMemoryStore.PackedIntBlock(512);
+		Random random = new Random();
+		int[] expected = new int[512];
+		for (int i = 0; i < 512; i++) {
+			expected[i] = random.nextInt();
+			block.putInt(i << 2, expected[i]);
+			block.setExistsFlag(i, true);
+		}
+		// distinct values do not pay off for a dictionary
+		assertTrue(block.getCapacity() <= Mode.INT.getNumBytes(512) + Mode.INT.getNumFlagBytes(512));
+		block.seal();
+		block.putInt(0, 42);
+		expected[0] = 42;
+		block.compress();
+		ByteBuffer data = block.getData();
+		assertEquals(0, data.get());
+		for (int i = 0; i < 512; i++) {
+			assertEquals(expected[i], data.getInt());
+			assertEquals(expected[i], block.getInt(i << 2));
+		}
+	}
+
+	@Test
+	public void testPackedLongBlock() {
+		InMemoryStore.PackedLongBlock block = new InMemoryStore.PackedLongBlock(512);
+		long start = System.currentTimeMillis();
+		Random random = new Random();
+		long[] expected = new long[512];
+		for (int i = 0; i < 512; i++) {
+			// timestamps within an hour, in both directions
+			expected[i] = start + (random.nextBoolean() ? 1 : -1) * random.nextInt(3600 * 1000);
+			block.putLong(i << 3, expected[i]);
+			block.setExistsFlag(i, true);
+		}
+		assertTrue(block.getCapacity() < Mode.LONG.getNumBytes(512) / 2);
+		block.putLong(0, Long.MIN_VALUE);
+		block.putLong(8, Long.MAX_VALUE);
+		expected[0] = Long.MIN_VALUE;
+		expected[1] = Long.MAX_VALUE;
+		block.compress();
+		ByteBuffer data = block.getData();
+		assertEquals(0, data.get());
+		for (int i = 0; i < 512; i++) {
+			assertEquals(expected[i], data.getLong());
+			assertEquals(expected[i], block.getLong(i << 3));
+		}
+	}
+
+	@Test
+	public void testSparseVolume() {
+		SparseVolume volume = new SparseVolume(0, 9, Mode.UUID);
+		Random random = new Random();
+		Map<Long, UUID> expected = new HashMap<>();
+		for (int i = 0; i < 1000; i++) {
+			long position = random.nextInt(1 << 20);
+			UUID uuid = UUID.randomUUID();
+			volume.putUUID(position, uuid, i % 2 == 0 ? position : -1);
+			expected.put(position, uuid);
+		}
+		for (Entry<Long, UUID> entry : expected.entrySet()) {
+			assertTrue(volume.hasValue(entry.getKey()));
+			assertEquals(entry.getValue(), volume.getUUID(entry.getKey()));
+		}
+		assertEquals(expected.size(), volume.countValues());
+		long removed = expected.keySet().iterator().next();
+		volume.remove(removed);
+		assertTrue(!volume.hasValue(removed));
+		assertEquals(expected.size() - 1, volume.countValues());
+	}
+
+	@Test
+	public void testAdaptVolumes() {
+		Store store = new Store(9, 8, VolumeType.HEAP, null);
+		AttributeStorage sparse = store.getStorage(1, XAttributeDiscrete.class, null);
+		AttributeStorage dense = store.getStorage(2, XAttributeDiscrete.class, null);
+		for (int i = 0; i < 100000; i++) {
+			if (i % 1000 == 0) {
+				sparse.getVolume().putLong(i, i, -1);
+			}
+			dense.getVolume().putLong(i, i, i % 2 == 0 ? i : -1);
+		}
+		// counted by the writes, overwrites are not counted twice
+		dense.getVolume().putLong(2, 2, 2);
+		assertEquals(100, ((BlockVolume) sparse.getVolume()).countValues());
+		assertEquals(100000, ((BlockVolume) dense.getVolume()).countValues());
+		store.adaptVolumes();
+		Volume sparseVolume = store.getStorage(1).getVolume();
+		Volume denseVolume = store.getStorage(2).getVolume();
+		assertTrue(sparseVolume instanceof SparseVolume);
+		assertTrue(denseVolume instanceof HeapVolume);
+		for (int i = 0; i < 100000; i++) {
+			assertEquals(i % 1000 == 0, sparseVolume.hasValue(i));
+			if (i % 1000 == 0) {
+				assertEquals(i, sparseVolume.getLong(i));
+			}
+			assertEquals(i, denseVolume.getLong(i));
+			assertEquals(i % 2 == 0, denseVolume.hasNested(i));
+		}
+		// becomes dense again
+		for (int i = 0; i < 100000; i++) {
+			sparseVolume.putLong(i, i, -1);
+		}
+		store.adaptVolumes();
+		assertTrue(store.getStorage(1).getVolume() instanceof HeapVolume);
+		assertEquals(99999, store.getStorage(1).getVolume().getLong(99999));
+	}
+
+	@Test
+	public void testConcurrentDirectStore() {
+		DirectVolume storage = new InMemoryStore.DirectVolume(4, 11, Mode.LONG);
+
+		ExecutorService threadPool = Executors.newFixedThreadPool(8);
+		for (int i = 0; i < 20; i++) {
+			threadPool.submit(new RunnableImpl(storage));
+		}
+		threadPool.shutdown();
+		try {
+			threadPool.awaitTermination(100, TimeUnit.DAYS);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Test
+	public void testLongDirectStore() {
+		DirectVolume storage = new InMemoryStore.DirectVolume(4, 11, Mode.LONG);
+		final Random random = new Random();
+		for (int i = 0; i < 10000; i++) {
+			long val = random.nextLong();
+			int pos = random.nextInt(10000);
+			long nested = random.nextBoolean() ? 1 : -1;
+			storage.putLong(pos, val, nested);
+			storage.compressStorage();
+			assertTrue(storage.hasValue(pos));
+			assertEquals(val, storage.getLong(pos));
+			assertTrue((nested != -1) ? storage.hasNested(pos) : !storage.hasNested(pos));
+		}
+	}
+
+	@Test
+	public void testBooleanDirectStore() {
+		DirectVolume storage = new InMemoryStore.DirectVolume(4, 11, Mode.BOOLEAN);
+		final Random random = new Random();
+		for (int i = 0; i < 10000; i++) {
+			boolean val = random.nextBoolean();
+			int pos = random.nextInt(10000);
+			long nested = random.nextBoolean() ? 1 : -1;
+			storage.putBoolean(pos, val, nested);
+			storage.compressStorage();
+			assertTrue(storage.hasValue(pos));
+			assertEquals(val, storage.getBoolean(pos));
+			assertTrue((nested != -1) ? storage.hasNested(pos) : !storage.hasNested(pos));
+		}
+	}
+
+	@Test
+	public void testShapeIndex() {
+		ShapeIndex index = new ShapeIndex(new InMemoryStore.HeapVolume(4, 11, Mode.INT));
+		assertArrayEquals(new int[0], index.getKeys(5));
+		for (int i = 0; i < 10000; i++) {
+			index.addKey(i, 7);
+			index.addKey(i, 3);
+			if (i % 2 == 0) {
+				index.addKey(i, 5);
+			}
+			index.addKey(i, 3);
+		}
+		for (int i = 0; i < 10000; i++) {
+			if (i % 2 == 0) {
+				assertArrayEquals(new int[] { 3, 5, 7 }, index.getKeys(i));
+			} else {
+				assertArrayEquals(new int[] { 3, 7 }, index.getKeys(i));
+			}
+		}
+		// {}, {7}, {3,7}, {3,5,7}
+		assertEquals(4, index.getShapes().length);
+
+		index.removeKey(0, 5);
+		assertArrayEquals(new int[] { 3, 7 }, index.getKeys(0));
+		index.removeKey(1, 5);
+		assertArrayEquals(new int[] { 3, 7 }, index.getKeys(1));
+		index.clear(2);
+		assertArrayEquals(new int[0], index.getKeys(2));
+		assertEquals(4, index.getShapes().length);
+	}
+
+	@Test
+	public void testBlockCache() {
+		BlockCache cache = new BlockCache(8 * 1024);
+		InMemoryStore.HeapVolume storage = new InMemoryStore.HeapVolume(4, 9, Mode.LONG, cache);
+		for (int i = 0; i < 10000; i++) {
+			storage.putLong(i, i, -1);
+		}
+		storage.compressStorage();
+		cache.enable();
+		for (int i = 0; i < 10000; i++) {
+			assertEquals(i, storage.getLong(i));
+			assertTrue(cache.getResidentBytes() <= cache.getBudget());
+		}
+		// one miss per block of 512 values, reads of decompressed blocks are not recorded
+		assertEquals(20, cache.getMisses());
+		cache.disable();
+		for (int i = 0; i < 10000; i++) {
+			assertEquals(i, storage.getLong(i));
+		}
+		assertEquals(20, cache.getMisses());
+	}
+
+	@Test
+	public void testOptimisticReadsHeapStore() throws Exception {
+		final InMemoryStore.HeapVolume storage = new InMemoryStore.HeapVolume(4, 9, Mode.LONG);
+		final int size = 1 << 12;
+		for (int i = 0; i < size; i++) {
+			storage.putLong(i, 0, -1);
+		}
+		final AtomicBoolean done = new AtomicBoolean(false);
+		ExecutorService threadPool = Executors.newFixedThreadPool(6);
+		// writers store values with identical upper and lower half, (de)compression swaps the buffers
+		for (int t = 0; t < 2; t++) {
+			threadPool.submit(new Runnable() {
+
+				public void run() {
+					Random random = new Random();
+					for (int i = 0; i < 200_000; i++) {
+						long half = random.nextInt() & 0xFFFFFFFFL;
+						storage.putLong(random.nextInt(size), (half << 32) | half, -1);
+						if (i % 1000 == 0) {
+							storage.compressStorage();
+						}
+					}
+					done.set(true);
+				}
+			});
+		}
+		Future<?>[] readers = new Future<?>[4];
+		for (int t = 0; t < readers.length; t++) {
+			readers[t] = threadPool.submit(new Callable<Void>() {
+
+				public Void call() {
+					Random random = new Random();
+					while (!done.get()) {
+						int position = random.nextInt(size);
+						long val = storage.getLong(position);
+						assertEquals(val >>> 32, val & 0xFFFFFFFFL);
+						assertTrue(storage.hasValue(position));
+					}
+					return null;
+				}
+			});
+		}
+		for (Future<?> reader : readers) {
+			reader.get();
+		}
+		threadPool.shutdown();
+		threadPool.awaitTermination(1, TimeUnit.MINUTES);
+	}
+
 }
@@ -1,7 +1,11 @@
 package org.xeslite.external;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
 
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
@@ -43,6 +47,157 @@ public class KeyStringPoolTest {
 		testPool(casPoolCallable);
 	}
 	
+	@Test
+	public void testArenaPool() throws InterruptedException {
+		StringPoolArenaImpl pool = new StringPoolArenaImpl();
+		testIntegrity(pool);
+		assertEquals(-1, pool.indexOf("Missing"));
+		assertNull(pool.getIndex("Missing"));
+
+		// Grows the table and the arena several times
+		final String[] values = new String[100000];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = (i % 3 == 0 ? "W\u00e4rme\u20ac\u0000" : "Key") + i;
+		}
+		final StringPoolArenaImpl concurrentPool = new StringPoolArenaImpl();
+		List<Runnable> actions = new ArrayList<Runnable>();
+		for (int t = 0; t < 8; t++) {
+			actions.add(new Runnable() {
+
+				public void run() {
+					for (String val : values) {
+						int index = concurrentPool.intern(val);
+						assertEquals(val, concurrentPool.getValue(index));
+					}
+				}
+			});
+		}
+		testPool(actions);
+		assertEquals(values.length, concurrentPool.size());
+		for (String val : values) {
+			int index = concurrentPool.indexOf(val);
+			assertEquals(val, concurrentPool.getValue(index));
+			assertEquals(index, concurrentPool.intern(val));
+		}
+		assertEquals("", concurrentPool.getValue(concurrentPool.intern("")));
+		assertEquals(values.length + 1, concurrentPool.size());
+	}
+
+	@Test
+	public void testAutomatonPool() {
+		StringPoolArenaImpl pool = new StringPoolArenaImpl();
+		for (int i = 0; i < 10000; i++) {
+			pool.put("http://example.org/resource/" + (i * 7919 % 10000));
+			pool.put("TICKET-" + i + "-\u00e4\u20ac");
+		}
+		pool.put("");
+		pool.put("http://example.org");
+
+		StringPoolAutomatonImpl compacted = StringPoolAutomatonImpl.compact(pool);
+		assertEquals(pool.size(), compacted.size());
+		for (int i = 0; i < pool.size(); i++) {
+			String value = pool.getValue(i);
+			assertEquals(value, compacted.getValue(i));
+			assertEquals(i, compacted.indexOf(value));
+			assertEquals(Integer.valueOf(i), compacted.getIndex(value));
+			assertEquals(i, compacted.intern(value));
+		}
+		assertNull(compacted.getValue(pool.size()));
+		assertEquals(-1, compacted.indexOf("http://example.org/"));
+		assertNull(compacted.getIndex("Missing"));
+		try {
+			compacted.put("Missing");
+			fail("Compacted pool should not be modifiable");
+		} catch (UnsupportedOperationException e) {
+		}
+	}
+
+	@Test
+	public void testAutomatonPoolWithHoles() {
+		final StringPoolArenaImpl arena = new StringPoolArenaImpl();
+		for (int i = 0; i < 100; i++) {
+			arena.put("value" + i);
+		}
+		// index 42 was reserved by an insert that never completed
+		StringPool pool = new StringPool() {
+
+			public Integer put(String val) {
+				return arena.put(val);
+			}
+
+			public int intern(String val) {
+				return arena.intern(val);
+			}
+
+			public Integer getIndex(String val) {
+				return arena.getIndex(val);
+			}
+
+			public int indexOf(String val) {
+				return arena.indexOf(val);
+			}
+
+			public String getValue(int index) {
+				return index == 42 ? null : arena.getValue(index);
+			}
+
+			public int size() {
+				return arena.size();
+			}
+
+			public int getCapacity() {
+				return arena.getCapacity();
+			}
+		};
+
+		StringPoolAutomatonImpl compacted = StringPoolAutomatonImpl.compact(pool);
+		assertEquals(100, compacted.size());
+		assertNull(compacted.getValue(42));
+		assertEquals(-1, compacted.indexOf("value42"));
+		for (int i = 0; i < 100; i++) {
+			if (i != 42) {
+				assertEquals("value" + i, compacted.getValue(i));
+				assertEquals(i, compacted.indexOf("value" + i));
+			}
+		}
+	}
+
+	@Test
+	public void testMappedPoolWithHoles() {
+		StringPoolArenaImpl arena = new StringPoolArenaImpl();
+		arena.put("first");
+		arena.reserve();
+		arena.put("");
+		arena.put("W\u00e4rme");
+		assertNull(arena.getValue(1));
+
+		ByteBuffer data = ByteBuffer.allocate(64);
+		IntBuffer offsets = IntBuffer.allocate(arena.size() + 1);
+		offsets.put(0);
+		for (int i = 0; i < arena.size(); i++) {
+			String value = arena.getValue(i);
+			if (value != null) {
+				data.put(StringPoolMappedImpl.encode(value));
+			} else {
+				data.put((byte) StringPoolMappedImpl.GAP);
+			}
+			offsets.put(data.position());
+		}
+		data.flip();
+		offsets.flip();
+
+		StringPoolMappedImpl pool = new StringPoolMappedImpl(arena.size(), offsets, data);
+		assertEquals(4, pool.size());
+		assertEquals("first", pool.getValue(0));
+		assertNull(pool.getValue(1));
+		assertEquals("", pool.getValue(2));
+		assertEquals("W\u00e4rme", pool.getValue(3));
+		// lookups switch to an arena that keeps the hole
+		assertEquals(3, pool.indexOf("W\u00e4rme"));
+		assertNull(pool.getValue(1));
+		assertEquals(4, pool.intern("new"));
+	}
+
 	private void testIntegrity(final StringPool pool) {
 		Integer test1 = pool.put("Test1");
 		Integer test2 = pool.put("Test2");